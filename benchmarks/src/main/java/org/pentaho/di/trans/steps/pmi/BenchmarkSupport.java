@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.logging.LogLevel;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Shared set up for the PMI benchmarks. Everything runs locally - no
+ * repository, network or engine (python, R, spark) access is required.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class BenchmarkSupport {
+
+  protected static boolean s_initialized;
+
+  /**
+   * Initialize the Kettle environment (once per JVM)
+   *
+   * @throws Exception if a problem occurs
+   */
+  public static synchronized void init() throws Exception {
+    if ( !s_initialized ) {
+      KettleEnvironment.init( false );
+      s_initialized = true;
+    }
+  }
+
+  /**
+   * Get a log that only reports errors, so that logging doesn't dominate the
+   * measurements
+   *
+   * @return a log channel
+   */
+  public static LogChannelInterface quietLog() {
+    LogChannel log = new LogChannel( "PMI benchmark" );
+    log.setLogLevel( LogLevel.ERROR );
+    return log;
+  }
+
+  /**
+   * Train a Weka classifier on some data
+   *
+   * @param classifierName the fully qualified name of the classifier
+   * @param data           the data to train on
+   * @return the trained classifier
+   * @throws Exception if a problem occurs
+   */
+  public static Classifier train( String classifierName, Instances data ) throws Exception {
+    Classifier classifier = AbstractClassifier.forName( classifierName, null );
+    classifier.buildClassifier( data );
+    return classifier;
+  }
+}
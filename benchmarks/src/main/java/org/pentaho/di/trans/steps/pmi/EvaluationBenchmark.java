@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.pmi.Evaluator;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.Instances;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks Evaluator for each evaluation mode. NONE measures building the
+ * final model only (as that is all the training steps do in this mode), and
+ * PREQUENTIAL measures test-then-train over the data one instance at a time.
+ * The classifier must be updateable for PREQUENTIAL.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class EvaluationBenchmark {
+
+  @Param( { "NONE", "PERCENTAGE_SPLIT", "CROSS_VALIDATION", "SEPARATE_TEST_SET", "PREQUENTIAL" } )
+  public Evaluator.EvalMode m_evalMode;
+
+  @Param( { "weka.classifiers.bayes.NaiveBayesUpdateable" } )
+  public String m_classifier;
+
+  @Param( { "20" } )
+  public int m_numFields;
+
+  @Param( { "10" } )
+  public int m_cardinality;
+
+  @Param( { "5000" } )
+  public int m_numRows;
+
+  @Param( { "false", "true" } )
+  public boolean m_computeAUC;
+
+  protected Instances m_train;
+  protected Instances m_test;
+  protected Classifier m_trained;
+  protected LogChannelInterface m_log;
+  protected Variables m_vars;
+
+  protected Evaluator m_evaluator;
+  protected Classifier m_prequentialClassifier;
+
+  @Setup public void setup() throws Exception {
+    BenchmarkSupport.init();
+    m_train = new SyntheticRows( m_numFields, m_cardinality, m_numRows, 1 ).toInstances();
+    m_test = new SyntheticRows( m_numFields, m_cardinality, m_numRows, 2 ).toInstances();
+    m_trained = BenchmarkSupport.train( m_classifier, m_train );
+    m_log = BenchmarkSupport.quietLog();
+    m_vars = new Variables();
+  }
+
+  @Setup( Level.Invocation ) public void setupEvaluator() throws Exception {
+    // evaluation accumulates statistics and shuffles the training data, so start afresh each time
+    m_evaluator = new Evaluator( m_evalMode, 1, m_computeAUC, false );
+    m_evaluator.initialize( new Instances( m_train ), AbstractClassifier.forName( m_classifier, null ) );
+    m_evaluator.setTrainedClassifier( m_trained );
+
+    if ( m_evalMode == Evaluator.EvalMode.PREQUENTIAL ) {
+      m_prequentialClassifier = AbstractClassifier.forName( m_classifier, null );
+      m_prequentialClassifier.buildClassifier( new Instances( m_train, 0 ) );
+      m_evaluator.setTrainedClassifier( m_prequentialClassifier );
+    }
+  }
+
+  @Benchmark public Evaluation performEvaluation() throws Exception {
+    switch ( m_evalMode ) {
+      case NONE:
+        m_evaluator.buildFinalModel( m_log, m_vars );
+        break;
+      case PREQUENTIAL:
+        for ( int i = 0; i < m_train.numInstances(); i++ ) {
+          m_evaluator.performEvaluationIncremental( m_train.instance( i ), m_log );
+          ( (UpdateableClassifier) m_prequentialClassifier ).updateClassifier( m_train.instance( i ) );
+        }
+        break;
+      default:
+        m_evaluator.performEvaluation( m_test, m_log, m_vars );
+    }
+
+    return m_evaluator.getEvaluation();
+  }
+}
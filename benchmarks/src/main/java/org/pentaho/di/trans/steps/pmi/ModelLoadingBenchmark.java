@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.Variables;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks PMIScoringData.loadSerializedModel() for models of different
+ * sizes, both plain and gzipped.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ModelLoadingBenchmark {
+
+  @Param( { "weka.classifiers.trees.J48", "weka.classifiers.trees.RandomForest" } )
+  public String m_classifier;
+
+  @Param( { "20" } )
+  public int m_numFields;
+
+  @Param( { "10" } )
+  public int m_cardinality;
+
+  @Param( { "5000" } )
+  public int m_numRows;
+
+  @Param( { "false", "true" } )
+  public boolean m_gzip;
+
+  protected File m_modelFile;
+  protected LogChannelInterface m_log;
+  protected Variables m_vars;
+
+  @Setup public void setup() throws Exception {
+    BenchmarkSupport.init();
+    SyntheticRows data = new SyntheticRows( m_numFields, m_cardinality, m_numRows, 1 );
+    PMIScoringModel model = PMIScoringModel.createScorer( BenchmarkSupport.train( m_classifier, data.toInstances() ) );
+    model.setHeader( data.getHeader() );
+
+    m_modelFile = File.createTempFile( "pmi-benchmark", m_gzip ? ".model.gz" : ".model" );
+    m_modelFile.deleteOnExit();
+    PMIScoringData.saveSerializedModel( model, m_modelFile );
+
+    m_log = BenchmarkSupport.quietLog();
+    m_vars = new Variables();
+  }
+
+  @TearDown public void tearDown() {
+    m_modelFile.delete();
+  }
+
+  @Benchmark public PMIScoringModel loadSerializedModel() throws Exception {
+    return PMIScoringData.loadSerializedModel( m_modelFile.getAbsolutePath(), m_log, m_vars );
+  }
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-attribute row to Instance conversion that PMIScoringData
+ * used to do for every row against the precompiled converters in
+ * PMIRowConverter. Run with "-prof gc" to see the allocation rate of each.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class RowConversionBenchmark {
+
+  @Param( { "10", "100" } )
+  public int m_numFields;
+
+  @Param( { "5", "100" } )
+  public int m_cardinality;
+
+  protected static final int NUM_ROWS = 1024;
+
+  protected Instances m_header;
+  protected RowMetaInterface m_rowMeta;
+  protected List<Object[]> m_rows;
+  protected int[] m_mappingIndexes;
+  protected PMIRowConverter m_converter;
+  protected double[] m_vals;
+  protected PMIRowConverter.PooledInstance m_pooled;
+  protected int m_next;
+
+  @Setup public void setup() {
+    SyntheticRows data = new SyntheticRows( m_numFields, m_cardinality, NUM_ROWS, 1 );
+    m_header = data.getHeader();
+    m_rowMeta = data.getRowMeta();
+    m_rows = data.getRows();
+    m_mappingIndexes = PMIScoringData.findMappings( m_header, m_rowMeta );
+    m_converter = new PMIRowConverter( m_header, m_rowMeta, m_mappingIndexes );
+    m_vals = new double[m_header.numAttributes()];
+    m_pooled = new PMIRowConverter.PooledInstance( m_vals );
+    m_pooled.setDataset( m_header );
+  }
+
+  protected Object[] nextRow() {
+    Object[] row = m_rows.get( m_next );
+    m_next = ( m_next + 1 ) % NUM_ROWS;
+    return row;
+  }
+
+  @Benchmark public void perRowLookups( Blackhole bh ) {
+    bh.consume( legacyConstructInstance( m_header, m_rowMeta, nextRow(), m_mappingIndexes ) );
+  }
+
+  @Benchmark public void compiledConverters( Blackhole bh ) {
+    m_converter.convert( nextRow(), m_vals, m_header, false );
+    m_pooled.reset( m_vals );
+    bh.consume( m_pooled );
+  }
+
+  /**
+   * The conversion that PMIScoringData.constructInstance() performed before
+   * converters were introduced
+   */
+  protected static Instance legacyConstructInstance( Instances header, RowMetaInterface inputMeta, Object[] inputRow,
+      int[] mappingIndexes ) {
+    double[] vals = new double[header.numAttributes()];
+
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      if ( mappingIndexes[i] >= 0 ) {
+        try {
+          Object inputVal = inputRow[mappingIndexes[i]];
+
+          Attribute temp = header.attribute( i );
+          ValueMetaInterface tempField = inputMeta.getValueMeta( mappingIndexes[i] );
+          int fieldType = tempField.getType();
+
+          if ( tempField.isNull( inputVal ) ) {
+            vals[i] = Utils.missingValue();
+            continue;
+          }
+
+          switch ( temp.type() ) {
+            case Attribute.NUMERIC:
+              if ( fieldType == ValueMetaInterface.TYPE_BOOLEAN ) {
+                vals[i] = tempField.getBoolean( inputVal ) ? 1.0 : 0.0;
+              } else if ( fieldType == ValueMetaInterface.TYPE_INTEGER ) {
+                vals[i] = tempField.getInteger( inputVal );
+              } else {
+                vals[i] = tempField.getNumber( inputVal );
+              }
+              break;
+            case Attribute.NOMINAL:
+              int index = temp.indexOfValue( tempField.getString( inputVal ) );
+              vals[i] = index < 0 ? Utils.missingValue() : index;
+              break;
+            default:
+              vals[i] = Utils.missingValue();
+          }
+        } catch ( Exception e ) {
+          vals[i] = Utils.missingValue();
+        }
+      } else {
+        vals[i] = Utils.missingValue();
+      }
+    }
+
+    Instance newInst = new DenseInstance( 1.0, vals );
+    newInst.setDataset( header );
+    return newInst;
+  }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import weka.core.Instances;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks PMIScoringData.generatePrediction() (row at a time) and
+ * generatePredictions() (batches of rows).
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ScoringBenchmark {
+
+  @Param( { "weka.classifiers.bayes.NaiveBayes", "weka.classifiers.trees.J48" } )
+  public String m_classifier;
+
+  @Param( { "10", "100" } )
+  public int m_numFields;
+
+  @Param( { "5", "50" } )
+  public int m_cardinality;
+
+  @Param( { "true", "false" } )
+  public boolean m_outputProbabilities;
+
+  @Param( { "100" } )
+  public int m_batchSize;
+
+  protected static final int NUM_ROWS = 2000;
+
+  protected PMIScoringData m_data;
+  protected PMIScoringMeta m_meta;
+  protected RowMetaInterface m_inputMeta;
+  protected RowMetaInterface m_outputMeta;
+  protected List<Object[]> m_rows;
+  protected int m_next;
+
+  @Setup public void setup() throws Exception {
+    BenchmarkSupport.init();
+    SyntheticRows data = new SyntheticRows( m_numFields, m_cardinality, NUM_ROWS, 1 );
+    Instances train = data.toInstances();
+
+    PMIScoringModel model = PMIScoringModel.createScorer( BenchmarkSupport.train( m_classifier, train ) );
+    model.setHeader( data.getHeader() );
+
+    m_meta = new PMIScoringMeta();
+    m_meta.setOutputProbabilities( m_outputProbabilities );
+
+    m_data = new PMIScoringData();
+    m_data.setModel( model );
+    m_data.mapIncomingRowMetaData( data.getHeader(), data.getRowMeta(), false, BenchmarkSupport.quietLog() );
+
+    m_inputMeta = data.getRowMeta();
+    m_outputMeta = m_inputMeta.clone();
+    m_outputMeta.addValueMeta( new ValueMetaString( "class_predicted" ) );
+    if ( m_outputProbabilities ) {
+      for ( int i = 0; i < data.getHeader().classAttribute().numValues(); i++ ) {
+        m_outputMeta.addValueMeta( new ValueMetaNumber( "class_" + i + "_predicted_prob" ) );
+      }
+      m_outputMeta.addValueMeta( new ValueMetaNumber( "class_predicted_max_prob" ) );
+    }
+    m_rows = data.getRows();
+  }
+
+  @Benchmark public void generatePrediction( Blackhole bh ) throws Exception {
+    Object[] row = m_rows.get( m_next );
+    m_next = ( m_next + 1 ) % NUM_ROWS;
+    bh.consume( m_data.generatePrediction( m_inputMeta, m_outputMeta, row, m_meta ) );
+  }
+
+  @Benchmark public void generatePredictions( Blackhole bh ) throws Exception {
+    int start = m_next;
+    m_next = ( m_next + m_batchSize ) % ( NUM_ROWS - m_batchSize );
+    bh.consume(
+        m_data.generatePredictions( m_inputMeta, m_outputMeta, m_rows.subList( start, start + m_batchSize ), m_meta ) );
+  }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic Kettle rows, along with a matching Weka header, for
+ * benchmarking. Fields cycle through number, integer, boolean and string
+ * (nominal) types. The last field is a nominal class.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class SyntheticRows {
+
+  protected final Instances m_header;
+  protected final RowMetaInterface m_rowMeta;
+  protected final List<Object[]> m_rows;
+
+  /**
+   * Constructor
+   *
+   * @param numFields   the number of fields (including the class)
+   * @param cardinality the number of distinct values for string fields and the
+   *                    class
+   * @param numRows     the number of rows to generate
+   * @param seed        the random seed
+   */
+  public SyntheticRows( int numFields, int cardinality, int numRows, long seed ) {
+    Random r = new Random( seed );
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    m_rowMeta = new RowMeta();
+
+    List<String> labels = new ArrayList<String>();
+    for ( int i = 0; i < cardinality; i++ ) {
+      labels.add( "v" + i );
+    }
+
+    for ( int i = 0; i < numFields - 1; i++ ) {
+      String name = "f" + i;
+      switch ( i % 4 ) {
+        case 0:
+          m_rowMeta.addValueMeta( new ValueMetaNumber( name ) );
+          atts.add( new Attribute( name ) );
+          break;
+        case 1:
+          m_rowMeta.addValueMeta( new ValueMetaInteger( name ) );
+          atts.add( new Attribute( name ) );
+          break;
+        case 2:
+          m_rowMeta.addValueMeta( new ValueMetaBoolean( name ) );
+          atts.add( new Attribute( name ) );
+          break;
+        default:
+          m_rowMeta.addValueMeta( new ValueMetaString( name ) );
+          atts.add( new Attribute( name, labels ) );
+      }
+    }
+    m_rowMeta.addValueMeta( new ValueMetaString( "class" ) );
+    atts.add( new Attribute( "class", labels ) );
+
+    m_header = new Instances( "synthetic", atts, 0 );
+    m_header.setClassIndex( m_header.numAttributes() - 1 );
+
+    m_rows = new ArrayList<Object[]>( numRows );
+    for ( int i = 0; i < numRows; i++ ) {
+      Object[] row = new Object[numFields];
+      for ( int j = 0; j < numFields; j++ ) {
+        switch ( m_rowMeta.getValueMeta( j ).getType() ) {
+          case ValueMetaInterface.TYPE_NUMBER:
+            row[j] = r.nextGaussian();
+            break;
+          case ValueMetaInterface.TYPE_INTEGER:
+            row[j] = (long) r.nextInt( 1000 );
+            break;
+          case ValueMetaInterface.TYPE_BOOLEAN:
+            row[j] = r.nextBoolean();
+            break;
+          default:
+            // build a new string each time, as strings in real rows are not interned
+            row[j] = new String( labels.get( r.nextInt( cardinality ) ) );
+        }
+      }
+      m_rows.add( row );
+    }
+  }
+
+  public Instances getHeader() {
+    return m_header;
+  }
+
+  public RowMetaInterface getRowMeta() {
+    return m_rowMeta;
+  }
+
+  public List<Object[]> getRows() {
+    return m_rows;
+  }
+
+  /**
+   * Convert the rows to a set of instances (e.g. for training a model to score
+   * with)
+   *
+   * @return the rows as instances
+   */
+  public Instances toInstances() {
+    int[] mapping = PMIScoringData.findMappings( m_header, m_rowMeta );
+    PMIRowConverter converter = new PMIRowConverter( m_header, m_rowMeta, mapping );
+    Instances result = new Instances( m_header, m_rows.size() );
+    for ( Object[] row : m_rows ) {
+      double[] vals = new double[m_header.numAttributes()];
+      converter.convert( row, vals, result, true );
+      result.add( new DenseInstance( 1.0, vals ) );
+    }
+
+    return result;
+  }
+}
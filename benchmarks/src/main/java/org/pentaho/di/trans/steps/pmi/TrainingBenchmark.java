@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pentaho.di.core.row.RowMetaInterface;
+import weka.core.Instances;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the conversion of buffered training rows into instances by
+ * BaseSupervisedPMIStepData.buildDataset() and constructInstance().
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class TrainingBenchmark {
+
+  @Param( { "10", "100" } )
+  public int m_numFields;
+
+  @Param( { "5", "50" } )
+  public int m_cardinality;
+
+  @Param( { "10000" } )
+  public int m_numRows;
+
+  protected BaseSupervisedPMIStepData m_data;
+  protected Instances m_header;
+  protected RowMetaInterface m_rowMeta;
+  protected List<Object[]> m_rows;
+  protected Map<String, Integer> m_fieldLookup;
+  protected int m_next;
+
+  @Setup public void setup() throws Exception {
+    BenchmarkSupport.init();
+    SyntheticRows data = new SyntheticRows( m_numFields, m_cardinality, m_numRows, 1 );
+    m_header = data.getHeader();
+    m_rowMeta = data.getRowMeta();
+    m_rows = data.getRows();
+
+    m_fieldLookup = new HashMap<String, Integer>();
+    for ( int i = 0; i < m_rowMeta.size(); i++ ) {
+      m_fieldLookup.put( m_rowMeta.getValueMeta( i ).getName(), i );
+    }
+    m_data = new BaseSupervisedPMIStepData();
+  }
+
+  @Benchmark @OutputTimeUnit( TimeUnit.SECONDS ) public Instances buildDataset() throws Exception {
+    return m_data.buildDataset( m_header, m_rowMeta, m_rows, m_fieldLookup, null );
+  }
+
+  @Benchmark public void constructInstance( Blackhole bh ) throws Exception {
+    Object[] row = m_rows.get( m_next );
+    m_next = ( m_next + 1 ) % m_numRows;
+    bh.consume( m_data.constructInstance( m_header, m_rowMeta, row, m_fieldLookup, null ) );
+  }
+}
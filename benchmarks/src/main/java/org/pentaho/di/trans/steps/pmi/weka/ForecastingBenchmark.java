@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi.weka;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.steps.pmi.BenchmarkSupport;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.timeseries.WekaForecaster;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks PMIForecastingData.generateForecast() using a forecaster trained
+ * on a synthetic seasonal series.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ForecastingBenchmark {
+
+  @Param( { "10", "100" } )
+  public int m_stepsToForecast;
+
+  @Param( { "1000" } )
+  public int m_seriesLength;
+
+  @Param( { "12" } )
+  public int m_maxLag;
+
+  protected PMIForecastingData m_data;
+  protected PMIForecastingMeta m_meta;
+  protected RowMetaInterface m_rowMeta;
+  protected TransMeta m_transMeta;
+
+  @Setup public void setup() throws Exception {
+    BenchmarkSupport.init();
+
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add( new Attribute( "value" ) );
+    Instances series = new Instances( "series", atts, m_seriesLength );
+    Random r = new Random( 1 );
+    for ( int i = 0; i < m_seriesLength; i++ ) {
+      double v = 10 * Math.sin( 2 * Math.PI * i / m_maxLag ) + 0.01 * i + r.nextGaussian();
+      series.add( new DenseInstance( 1.0, new double[] { v } ) );
+    }
+
+    WekaForecaster forecaster = new WekaForecaster();
+    forecaster.setFieldsToForecast( "value" );
+    forecaster.setBaseForecaster( new LinearRegression() );
+    forecaster.getTSLagMaker().setMinLag( 1 );
+    forecaster.getTSLagMaker().setMaxLag( m_maxLag );
+    forecaster.buildForecaster( series );
+    forecaster.primeForecaster( series );
+
+    WekaForecastingModel model = new WekaForecastingModel( forecaster );
+    model.setHeader( new Instances( series, 0 ) );
+
+    m_rowMeta = new RowMeta();
+    m_rowMeta.addValueMeta( new ValueMetaNumber( "value" ) );
+
+    m_meta = new PMIForecastingMeta();
+    m_meta.setModel( model );
+    m_meta.setNumStepsToForecast( "" + m_stepsToForecast );
+    m_meta.setArtificialTimeStartOffset( "0" );
+    m_meta.mapIncomingRowMetaData( model.getHeader(), m_rowMeta );
+
+    m_data = new PMIForecastingData();
+    m_transMeta = new TransMeta();
+  }
+
+  @Benchmark public List<Object[]> generateForecast() throws Exception {
+    return m_data.generateForecast( m_rowMeta, m_rowMeta, m_meta, null, m_transMeta );
+  }
+}
@@ -42,6 +42,7 @@ import org.pentaho.pmi.Evaluator;
 import org.pentaho.pmi.PMIEngine;
 import weka.core.Utils;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -326,6 +327,11 @@ public class BaseSupervisedPMIStep extends BaseStep implements StepInterface {
           }
           m_data.m_stratificationIndex = trainingFieldNames.indexOf( stratificationField );
           m_data.m_stratificationFieldName = stratificationField;
+          if ( !Const.isEmpty( m_meta.getStratumTrainingThreads() ) ) {
+            m_data.m_stratumTrainingThreads =
+                Integer.parseInt( environmentSubstitute( m_meta.getStratumTrainingThreads() ) );
+          }
+          m_data.m_outputStrataInCompletionOrder = m_meta.getOutputStrataInCompletionOrder();
           if ( m_data.m_rowHandlingMode == BaseSupervisedPMIStepData.RowHandlingMode.Stratified
               && m_data.m_testStream != null ) {
             if ( !testingFieldNames.contains( stratificationField ) ) {
@@ -351,6 +357,20 @@ public class BaseSupervisedPMIStep extends BaseStep implements StepInterface {
           m_data.m_randomSeed = Integer.parseInt( environmentSubstitute( m_meta.getRandomSeed() ) );
         }
 
+        if ( !Const.isEmpty( m_meta.getTrainingSpillThreshold() ) ) {
+          m_data.m_trainingSpillThresholdBytes =
+              (long) ( Double.parseDouble( environmentSubstitute( m_meta.getTrainingSpillThreshold() ) ) * 1024L
+                  * 1024L );
+        }
+        if ( !Const.isEmpty( m_meta.getTrainingSpillDirectory() ) ) {
+          m_data.m_trainingSpillDirectory = new File( environmentSubstitute( m_meta.getTrainingSpillDirectory() ) );
+          if ( !m_data.m_trainingSpillDirectory.isDirectory() && !m_data.m_trainingSpillDirectory.mkdirs() ) {
+            throw new KettleException( BaseMessages
+                .getString( PKG, "BasePMIStep.Error.UnableToCreateSpillDirectory",
+                    m_data.m_trainingSpillDirectory.toString() ) );
+          }
+        }
+
         // validate reservoir sampling
         if ( m_meta.getUseReservoirSampling() ) {
           if ( m_data.m_rowHandlingMode == BaseSupervisedPMIStepData.RowHandlingMode.Batch ) {
@@ -397,6 +417,9 @@ public class BaseSupervisedPMIStep extends BaseStep implements StepInterface {
             if ( !Const.isEmpty( m_meta.getXValFolds() ) ) {
               m_data.m_xValFolds = Integer.parseInt( environmentSubstitute( m_meta.getXValFolds() ) );
             }
+            if ( !Const.isEmpty( m_meta.getXValParallelism() ) ) {
+              m_data.m_xValParallelism = Integer.parseInt( environmentSubstitute( m_meta.getXValParallelism() ) );
+            }
           } else if ( m_meta.getEvalMode() == Evaluator.EvalMode.PERCENTAGE_SPLIT ) {
             if ( !Const.isEmpty( m_meta.getPercentageSplit() ) ) {
               m_data.m_percentageSplit = Integer.parseInt( environmentSubstitute( m_meta.getPercentageSplit() ) );
@@ -431,6 +454,7 @@ public class BaseSupervisedPMIStep extends BaseStep implements StepInterface {
         } else {
           m_data.m_modelFileName = environmentSubstitute( m_meta.getModelFileName() );
         }
+        m_data.m_writeModelBundle = m_meta.getWriteModelBundle();
 
         // incremental scheme?
         m_data.checkForIncrementalTraining( m_meta, getLogChannel() );
@@ -504,6 +528,7 @@ public class BaseSupervisedPMIStep extends BaseStep implements StepInterface {
     }
 
     if ( m_trainingDone && m_testingDone ) {
+      m_data.closeModelBundle( getLogChannel() );
       m_data.cleanup();
       setOutputDone();
       return false;
@@ -515,4 +540,24 @@ public class BaseSupervisedPMIStep extends BaseStep implements StepInterface {
 
     return true;
   }
+
+  /**
+   * Clean up. Stops any strata that are still training if the transformation was stopped part way through, and
+   * finishes writing any model bundle.
+   *
+   * @param smi step metadata
+   * @param sdi step data
+   */
+  @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    if ( m_data != null ) {
+      m_data.shutdownStratumTraining();
+      try {
+        // keep the models that were saved before the transformation was stopped
+        m_data.closeModelBundle( getLogChannel() );
+      } catch ( KettleException e ) {
+        logError( e.getMessage(), e );
+      }
+    }
+    super.dispose( smi, sdi );
+  }
 }
@@ -43,6 +43,7 @@ import org.pentaho.dm.commons.LogAdapter;
 import org.pentaho.pmi.Evaluator;
 import org.pentaho.pmi.PMIEngine;
 import org.pentaho.pmi.Scheme;
+import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.classifiers.IterativeClassifier;
 import weka.classifiers.UpdateableClassifier;
@@ -59,15 +60,29 @@ import weka.core.OptionHandler;
 import weka.core.SerializationHelper;
 import weka.core.Utils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.pentaho.di.trans.steps.pmi.BaseSupervisedPMIStepData.RowHandlingMode.All;
 import static org.pentaho.di.trans.steps.pmi.BaseSupervisedPMIStepData.RowHandlingMode.Batch;
@@ -141,6 +156,11 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
    */
   protected int m_xValFolds = 10;
 
+  /**
+   * Maximum number of folds to evaluate concurrently. Defaults to 1 (sequential) - parallel evaluation is opt-in
+   */
+  protected int m_xValParallelism = 1;
+
   /**
    * Default 2/3 1/3
    */
@@ -151,6 +171,12 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
    */
   protected List<Object[]> m_trainingRows = new ArrayList<>();
 
+  /**
+   * Column-oriented store for accumulating the current batch/stratum of training rows (when not sampling or training
+   * incrementally)
+   */
+  protected ColumnarTrainingData m_trainingColumns;
+
   /**
    * Initial rows for incremental classifiers (stratified mode primarily) when a global header cannot be determined
    * at the outset from field metadata.
@@ -183,6 +209,47 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
   protected String m_modelOutputPath = "";
   protected String m_modelFileName = "";
 
+  /**
+   * True to write the models for all strata/batches to a single bundle file
+   */
+  protected boolean m_writeModelBundle;
+
+  /**
+   * Writer for the model bundle (opened when the first model is saved)
+   */
+  protected PMIModelBundle.Writer m_modelBundleWriter;
+
+  /**
+   * Number of threads to train strata on in Stratified mode. 1 trains each stratum on the step thread as soon as the
+   * stratification value changes. At most this many strata are held in memory for training at any one time - row
+   * ingestion blocks when the limit is reached.
+   */
+  protected int m_stratumTrainingThreads = 1;
+
+  /**
+   * True to output evaluation rows (and save models) for strata as soon as they finish training, rather than in the
+   * order that strata were seen in the input
+   */
+  protected boolean m_outputStrataInCompletionOrder;
+
+  /**
+   * Bytes of accumulated training rows to hold in memory before spilling to disk (0 for no limit)
+   */
+  protected long m_trainingSpillThresholdBytes;
+
+  /**
+   * Directory to spill training rows to (null for the system temporary directory)
+   */
+  protected File m_trainingSpillDirectory;
+
+  protected ExecutorService m_stratumTrainingExecutor;
+  protected CompletionService<TrainingBatch> m_stratumCompletionService;
+
+  /**
+   * Strata submitted for training that have not yet been output, in input order
+   */
+  protected Deque<Future<TrainingBatch>> m_pendingStrata = new ArrayDeque<>();
+
   /**
    * -1 means process all rows as one batch when predicting
    */
@@ -211,6 +278,7 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
   // protected Classifier m_incrementalClassifier;
 
   protected void cleanup() {
+    shutdownStratumTraining();
     if ( m_evaluation != null ) {
       m_evaluation.clear();
     }
@@ -231,6 +299,10 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
     if ( m_trainingRows != null ) {
       m_trainingRows.clear();
     }
+    if ( m_trainingColumns != null ) {
+      m_trainingColumns.clear();
+      m_trainingColumns = null;
+    }
     if ( m_trainingFieldIndexes != null ) {
       m_trainingFieldIndexes.clear();
     }
@@ -476,20 +548,26 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
         if ( stepMeta.getUseReservoirSampling() ) {
           m_trainingSampler.processRow( row );
         } else {
-          m_trainingRows.add( row );
-          if ( m_rowHandlingMode == Batch && m_trainingRows.size() == m_batchSize ) {
+          addTrainingRow( row, stepMeta );
+          if ( m_rowHandlingMode == Batch && m_trainingColumns.size() == m_batchSize ) {
             evaluationOutputRow = new Object[1][];
             evaluationOutputRow[0] =
-                processTrainingBatch( m_trainingRows, null, stepMeta, "Batch training data", log, vars );
-            m_trainingRows.clear();
+                processTrainingBatch( m_trainingColumns, null, stepMeta, "Batch training data", log, vars );
+            m_trainingColumns.clear();
           }
         }
       } else {
         // no more rows
-        List<Object[]> data = stepMeta.getUseReservoirSampling() ? m_trainingSampler.getSample() : m_trainingRows;
-        if ( data != null && data.size() > 0 ) {
+        if ( stepMeta.getUseReservoirSampling() ) {
+          List<Object[]> data = m_trainingSampler.getSample();
+          if ( data != null && data.size() > 0 ) {
+            evaluationOutputRow = new Object[1][];
+            evaluationOutputRow[0] = processTrainingBatch( data, null, stepMeta, "Batch training data", log, vars );
+          }
+        } else if ( m_trainingColumns != null && m_trainingColumns.size() > 0 ) {
           evaluationOutputRow = new Object[1][];
-          evaluationOutputRow[0] = processTrainingBatch( data, null, stepMeta, "Batch training data", log, vars );
+          evaluationOutputRow[0] =
+              processTrainingBatch( m_trainingColumns, null, stepMeta, "Batch training data", log, vars );
         }
       }
     } else {
@@ -505,7 +583,7 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
             if ( stepMeta.getUseReservoirSampling() ) {
               m_trainingSampler.processRow( row );
             } else {
-              m_trainingRows.add( row );
+              addTrainingRow( row, stepMeta );
             }
           } else {
             if ( !Const.isEmpty( m_currentStratificationValue ) ) {
@@ -517,39 +595,55 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
               if ( stepMeta.getUseReservoirSampling() ) {
                 List<Object[]> dataToTrainFrom = m_trainingSampler.getSample();
                 if ( dataToTrainFrom != null ) {
-                  evaluationOutputRow = new Object[1][];
-                  evaluationOutputRow[0] =
-                      processTrainingBatch( dataToTrainFrom, stratVM.getString( stratVal ), stepMeta,
-                          "Stratified training sample", log, vars );
+                  evaluationOutputRow =
+                      trainStratum( new TrainingBatch( new ArrayList<>( dataToTrainFrom ) ),
+                          m_currentStratificationValue, stepMeta, "Stratified training sample", log, vars );
                 }
                 m_trainingSampler.cleanUp();
                 m_trainingSampler.initialize( m_reservoirSize, m_randomSeed );
-              } else if ( m_trainingRows.size() > 0 ) {
-                evaluationOutputRow = new Object[1][];
-                evaluationOutputRow[0] =
-                    processTrainingBatch( m_trainingRows, m_currentStratificationValue, stepMeta,
+              } else if ( m_trainingColumns != null && m_trainingColumns.size() > 0 ) {
+                evaluationOutputRow =
+                    trainStratum( new TrainingBatch( m_trainingColumns ), m_currentStratificationValue, stepMeta,
                         "Stratified training data", log, vars );
-                m_trainingRows.clear();
+                // the stratum's columns may still be in use by a training thread
+                m_trainingColumns = null;
               }
               m_stratificationCheck.add( stratVM.getString( stratVal ) );
             }
             m_currentStratificationValue = stratVM.getString( stratVal );
-            m_trainingRows.add( row );
+            if ( stepMeta.getUseReservoirSampling() ) {
+              if ( m_trainingSampler == null ) {
+                // first stratum - sampler can't be created until rows are seen
+                m_trainingSampler = new ReservoirSamplingData();
+                m_trainingSampler.setProcessingMode( ReservoirSamplingData.PROC_MODE.SAMPLING );
+                m_trainingSampler.initialize( m_reservoirSize, m_randomSeed );
+              }
+              m_trainingSampler.processRow( row );
+            } else {
+              addTrainingRow( row, stepMeta );
+            }
           }
         }
       } else {
         // no more rows
-        List<Object[]>
+        TrainingBatch
             dataToTrainFrom =
-            stepMeta.getUseReservoirSampling() ? m_trainingSampler.getSample() : m_trainingRows;
+            stepMeta.getUseReservoirSampling() ? ( m_trainingSampler != null && m_trainingSampler.getSample() != null ?
+                new TrainingBatch( m_trainingSampler.getSample() ) : null ) :
+                ( m_trainingColumns != null ? new TrainingBatch( m_trainingColumns ) : null );
         String stratVal = m_rowHandlingMode == Stratified ? m_currentStratificationValue : null;
+        List<Object[]> outputRows = new ArrayList<>();
         if ( dataToTrainFrom != null ) {
-          evaluationOutputRow = new Object[1][];
-          evaluationOutputRow[0] =
-              processTrainingBatch( dataToTrainFrom, stratVal, stepMeta,
+          outputRows.addAll( Arrays.asList(
+              trainStratum( dataToTrainFrom, stratVal, stepMeta,
                   stepMeta.getUseReservoirSampling() ? "Stratified training sample" : "Stratified training data", log,
-                  vars );
+                  vars ) ) );
         }
+        m_trainingColumns = null;
+        // wait for any strata that are still training
+        outputRows.addAll( collectTrainedStrata( 0, stepMeta, log ) );
+        shutdownStratumTraining();
+        evaluationOutputRow = outputRows.toArray( new Object[outputRows.size()][] );
 
         // reset current stratification value just in case we have a separate test set
         m_currentStratificationValue = "";
@@ -559,99 +653,391 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
     return evaluationOutputRow;
   }
 
+  /**
+   * Append a training row to the column store for the current batch/stratum
+   *
+   * @param row      the row to add
+   * @param stepMeta the step metadata
+   * @throws KettleException if a problem occurs
+   */
+  protected void addTrainingRow( Object[] row, BaseSupervisedPMIStepMeta stepMeta ) throws KettleException {
+    if ( m_trainingColumns == null ) {
+      m_trainingColumns =
+          new ColumnarTrainingData( getHeaderFieldMetadata( stepMeta ), m_trainingRowMeta, m_trainingFieldIndexes );
+      m_trainingColumns.setSpillToDisk( m_trainingSpillDirectory, m_trainingSpillThresholdBytes );
+    }
+    m_trainingColumns.add( row );
+  }
+
   protected Object[] processTrainingBatch( List<Object[]> data, String stratificationValue,
       BaseSupervisedPMIStepMeta stepMeta, String relationName, LogChannelInterface log, VariableSpace vars )
       throws KettleException {
+    return processTrainingBatch( new TrainingBatch( data ), stratificationValue, stepMeta, relationName, log, vars );
+  }
+
+  protected Object[] processTrainingBatch( ColumnarTrainingData data, String stratificationValue,
+      BaseSupervisedPMIStepMeta stepMeta, String relationName, LogChannelInterface log, VariableSpace vars )
+      throws KettleException {
+    return processTrainingBatch( new TrainingBatch( data ), stratificationValue, stepMeta, relationName, log, vars );
+  }
+
+  protected Object[] processTrainingBatch( TrainingBatch batch, String stratificationValue,
+      BaseSupervisedPMIStepMeta stepMeta, String relationName, LogChannelInterface log, VariableSpace vars )
+      throws KettleException {
 
     Object[] outputRow = null;
+    if ( batch.size() > 0 ) {
+      prepareTrainingBatch( batch, stratificationValue, stepMeta, relationName, false, log, vars );
+      trainBatch( batch, stepMeta, log, vars );
+      outputRow = completeTrainingBatch( batch, stepMeta, log );
+    }
+    return outputRow;
+  }
+
+  /**
+   * Train a stratum - either immediately on the calling thread, or by handing it off to the stratum training pool.
+   * In the latter case, the output rows for any strata that have finished training are returned.
+   *
+   * @param data                the batch holding the data for the stratum
+   * @param stratificationValue the stratification value
+   * @param stepMeta            the step metadata
+   * @param relationName        the relation name for the training data
+   * @param log                 the log to use
+   * @param vars                Kettle environment variables
+   * @return output rows (entries may be null)
+   * @throws KettleException if a problem occurs
+   */
+  protected Object[][] trainStratum( TrainingBatch data, String stratificationValue,
+      BaseSupervisedPMIStepMeta stepMeta, String relationName, LogChannelInterface log, VariableSpace vars )
+      throws KettleException {
+    if ( m_stratumTrainingThreads <= 1 ) {
+      return new Object[][] { processTrainingBatch( data, stratificationValue, stepMeta, relationName, log, vars ) };
+    }
+
+    List<Object[]> outputRows = new ArrayList<>();
     if ( data.size() > 0 ) {
-      Instances trainingHeader = determineHeader( data, relationName, stepMeta );
+      if ( m_stratumTrainingExecutor == null ) {
+        m_stratumTrainingExecutor = Executors.newFixedThreadPool( m_stratumTrainingThreads, new ThreadFactory() {
+          protected AtomicInteger m_count = new AtomicInteger();
+
+          @Override public Thread newThread( Runnable runnable ) {
+            Thread t = new Thread( runnable, "PMI stratum trainer " + m_count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+          }
+        } );
+        if ( m_outputStrataInCompletionOrder ) {
+          m_stratumCompletionService = new ExecutorCompletionService<>( m_stratumTrainingExecutor );
+        }
+      }
 
-      // build the training dataset
-      Instances
-          trainingData =
-          buildDataset( trainingHeader, m_trainingRowMeta, data, m_trainingFieldIndexes, stepMeta );
-      String evalKey = stratificationValue;
-      if ( m_rowHandlingMode != Stratified ) {
-        m_evaluation.clear();
-        m_trainingHeaders.clear();
-        evalKey = "non-stratified";
+      // back-pressure - wait for a free slot before taking on another stratum
+      outputRows.addAll( collectTrainedStrata( m_stratumTrainingThreads - 1, stepMeta, log ) );
+
+      final TrainingBatch
+          batch =
+          prepareTrainingBatch( data, stratificationValue, stepMeta, relationName, true, log, vars );
+      final BaseSupervisedPMIStepMeta meta = stepMeta;
+      final LogChannelInterface logChannel = log;
+      final VariableSpace space = vars;
+      Callable<TrainingBatch> task = new Callable<TrainingBatch>() {
+        @Override public TrainingBatch call() throws Exception {
+          trainBatch( batch, meta, logChannel, space );
+          return batch;
+        }
+      };
+      m_pendingStrata.addLast( m_stratumCompletionService != null ? m_stratumCompletionService.submit( task ) :
+          m_stratumTrainingExecutor.submit( task ) );
+    }
+    outputRows.addAll( collectTrainedStrata( m_stratumTrainingThreads, stepMeta, log ) );
+
+    return outputRows.toArray( new Object[outputRows.size()][] );
+  }
+
+  /**
+   * Get the number of cross-validation folds that one training batch may evaluate concurrently. When strata are
+   * trained on a pool of threads, each stratum gets an equal share of the configured fold parallelism (but at least
+   * one), so that the total number of concurrent fold builds stays within the configured limit rather than being
+   * multiplied by the number of stratum threads.
+   *
+   * @param stratumTask true if the batch will be trained by a stratum training thread
+   * @param log         the log to use
+   * @return the number of folds to evaluate concurrently
+   */
+  protected int getFoldParallelism( boolean stratumTask, LogChannelInterface log ) {
+    if ( !stratumTask || m_stratumTrainingThreads <= 1 ) {
+      return m_xValParallelism;
+    }
+    int result = Math.max( 1, m_xValParallelism / m_stratumTrainingThreads );
+    if ( result != m_xValParallelism && log.isDetailed() ) {
+      log.logDetailed( BaseMessages
+          .getString( PKG, "BasePMIStepData.SharingFoldParallelism", m_xValParallelism, m_stratumTrainingThreads,
+              result ) );
+    }
+    return result;
+  }
+
+  /**
+   * Complete strata that have finished training. Blocks until no more than the supplied number of strata are still
+   * pending.
+   *
+   * @param maxPending the maximum number of strata that can remain pending
+   * @param stepMeta   the step metadata
+   * @param log        the log to use
+   * @return output rows for completed strata
+   * @throws KettleException if a problem occurs
+   */
+  protected List<Object[]> collectTrainedStrata( int maxPending, BaseSupervisedPMIStepMeta stepMeta,
+      LogChannelInterface log ) throws KettleException {
+    List<Object[]> outputRows = new ArrayList<>();
+    try {
+      if ( m_stratumCompletionService != null ) {
+        Future<TrainingBatch> done;
+        while ( ( done = m_pendingStrata.size() > maxPending ? m_stratumCompletionService.take() :
+            m_stratumCompletionService.poll() ) != null ) {
+          m_pendingStrata.remove( done );
+          outputRows.add( completeTrainingBatch( done.get(), stepMeta, log ) );
+        }
+      } else {
+        while ( !m_pendingStrata.isEmpty() && ( m_pendingStrata.size() > maxPending || m_pendingStrata.peekFirst()
+            .isDone() ) ) {
+          outputRows.add( completeTrainingBatch( m_pendingStrata.removeFirst().get(), stepMeta, log ) );
+        }
       }
-      Evaluator
-          evaluator =
-          new Evaluator( stepMeta.getEvalMode(), m_randomSeed, stepMeta.getOutputAUCMetrics(),
-              stepMeta.getOutputIRMetrics() );
-      m_evaluation.put( evalKey, evaluator );
-      m_trainingHeaders.put( evalKey, trainingHeader );
-      if ( stepMeta.getEvalMode() == Evaluator.EvalMode.PERCENTAGE_SPLIT ) {
-        evaluator.setPercentageSplit( m_percentageSplit );
-      } else if ( stepMeta.getEvalMode() == Evaluator.EvalMode.CROSS_VALIDATION ) {
-        evaluator.setXValFolds( m_xValFolds );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new KettleException( e );
+    } catch ( ExecutionException e ) {
+      throw e.getCause() instanceof KettleException ? (KettleException) e.getCause() :
+          new KettleException( e.getCause() );
+    }
+
+    return outputRows;
+  }
+
+  /**
+   * Stop the stratum training pool (if running), abandoning any strata that are still training
+   */
+  protected void shutdownStratumTraining() {
+    if ( m_stratumTrainingExecutor != null ) {
+      for ( Future<TrainingBatch> pending : m_pendingStrata ) {
+        pending.cancel( true );
       }
-      evaluator.setRandomSeed( m_randomSeed );
-      try {
-        // perform evaluation (if necessary)
-        Classifier currentClassifier = (Classifier) m_scheme.getConfiguredScheme( trainingHeader );
-        log.logDebug( "Training current classifier: " + currentClassifier.getClass().getCanonicalName() + " " + Utils
-            .joinOptions( ( (OptionHandler) currentClassifier ).getOptions() ) );
-        if ( currentClassifier instanceof BatchPredictor && ( (BatchPredictor) currentClassifier )
-            .implementsMoreEfficientBatchPrediction() ) {
-          m_schemeIsMoreEfficientBatchPredictor = true;
-        }
-        evaluator.initialize( trainingData, currentClassifier );
+      m_pendingStrata.clear();
+      m_stratumTrainingExecutor.shutdownNow();
+      m_stratumTrainingExecutor = null;
+      m_stratumCompletionService = null;
+    }
+  }
 
-        // store the preferred batch prediction batch size (if necessary)
-        if ( m_schemeIsMoreEfficientBatchPredictor ) {
-          String prefBatchS = ( (BatchPredictor) evaluator.getClassifierTemplate() ).getBatchSize();
-          if ( !Const.isEmpty( prefBatchS ) ) {
-            m_batchPredictorPreferredBatchSize = Integer.parseInt( vars.environmentSubstitute( prefBatchS ) );
-          }
+  /**
+   * Set up a batch for training. This determines the header and configures the scheme, and must be done on the step
+   * thread as the scheme is shared.
+   *
+   * @param batch               the batch holding the training data
+   * @param stratificationValue the stratification value (if any)
+   * @param stepMeta            the step metadata
+   * @param relationName        the relation name for the training data
+   * @param copyScheme          true to use a private copy of the configured scheme as the template for training
+   * @param log                 the log to use
+   * @param vars                Kettle environment variables
+   * @return a batch ready for training
+   * @throws KettleException if a problem occurs
+   */
+  protected TrainingBatch prepareTrainingBatch( TrainingBatch batch, String stratificationValue,
+      BaseSupervisedPMIStepMeta stepMeta, String relationName, boolean copyScheme, LogChannelInterface log,
+      VariableSpace vars ) throws KettleException {
+    batch.m_stratificationValue = stratificationValue;
+    batch.m_batchNumber = m_rowHandlingMode == Batch ? m_batchCount : -1;
+    batch.m_trainingHeader = determineHeader( batch.m_rows, batch.m_columns, relationName, stepMeta );
+
+    batch.m_evaluator =
+        new Evaluator( stepMeta.getEvalMode(), m_randomSeed, stepMeta.getOutputAUCMetrics(),
+            stepMeta.getOutputIRMetrics() );
+    if ( stepMeta.getEvalMode() == Evaluator.EvalMode.PERCENTAGE_SPLIT ) {
+      batch.m_evaluator.setPercentageSplit( m_percentageSplit );
+    } else if ( stepMeta.getEvalMode() == Evaluator.EvalMode.CROSS_VALIDATION ) {
+      batch.m_evaluator.setXValFolds( m_xValFolds );
+      batch.m_evaluator.setFoldParallelism( getFoldParallelism( copyScheme, log ) );
+    }
+    batch.m_evaluator.setRandomSeed( m_randomSeed );
+    try {
+      Classifier currentClassifier = (Classifier) m_scheme.getConfiguredScheme( batch.m_trainingHeader );
+      if ( copyScheme ) {
+        // a serialized copy, so that configuration not exposed as options is kept
+        currentClassifier = AbstractClassifier.makeCopy( currentClassifier );
+      }
+      log.logDebug( "Training current classifier: " + currentClassifier.getClass().getCanonicalName() + " " + Utils
+          .joinOptions( ( (OptionHandler) currentClassifier ).getOptions() ) );
+      if ( currentClassifier instanceof BatchPredictor && ( (BatchPredictor) currentClassifier )
+          .implementsMoreEfficientBatchPrediction() ) {
+        m_schemeIsMoreEfficientBatchPredictor = true;
+      }
+      batch.m_classifier = currentClassifier;
+
+      // store the preferred batch prediction batch size (if necessary)
+      if ( m_schemeIsMoreEfficientBatchPredictor ) {
+        String prefBatchS = ( (BatchPredictor) currentClassifier ).getBatchSize();
+        if ( !Const.isEmpty( prefBatchS ) ) {
+          m_batchPredictorPreferredBatchSize = Integer.parseInt( vars.environmentSubstitute( prefBatchS ) );
         }
-        evaluator.performEvaluation( null, log, vars );
+      }
+    } catch ( Exception ex ) {
+      throw new KettleException( ex );
+    }
 
-        outputRow =
-            evaluator
-                .getEvalRow( stratificationValue, m_outputRowMeta, m_rowHandlingMode == Batch ? m_batchCount : -1, log );
-
-        // build final model on all the data (but only if it is going to be saved somewhere or separate test set eval or there is no eval being done)
-        if ( !Const.isEmpty( m_modelOutputPath ) || stepMeta.getEvalMode() == Evaluator.EvalMode.SEPARATE_TEST_SET
-            || stepMeta.getEvalMode() == Evaluator.EvalMode.NONE ) {
-
-          Classifier trainedFullModel = null;
-          if ( !Const.isEmpty( stepMeta.getResumableModelPath() ) && m_scheme.supportsResumableTraining() ) {
-            // TODO load model and perform training iterations with trainingData
-            List<Object> loaded = loadModel( vars.environmentSubstitute( stepMeta.getResumableModelPath() ), log );
-            trainedFullModel = (Classifier) loaded.get( 0 );
-            Evaluator.enableClassifierLoggingIfSupported( trainedFullModel, log );
-            Evaluator.configureWekaEnvironmentHandler( trainedFullModel, vars );
-            continueIteratingResumable( trainedFullModel, trainingData, stepMeta );
-            evaluator.setTrainedClassifier( trainedFullModel );
-          } else {
-            trainedFullModel = evaluator.buildFinalModel( log, vars );
-          }
-          m_finalModels.put( evalKey, trainedFullModel );
+    return batch;
+  }
 
-          // save model to file
-          saveModel( trainedFullModel, evaluator.getTrainingData(), stepMeta, log );
+  /**
+   * Build the training data for a batch, perform any evaluation and build the final model (if necessary). Only reads
+   * shared state, so can be executed on a thread other than the step thread.
+   *
+   * @param batch    the batch to train
+   * @param stepMeta the step metadata
+   * @param log      the log to use
+   * @param vars     Kettle environment variables
+   * @throws KettleException if a problem occurs
+   */
+  protected void trainBatch( TrainingBatch batch, BaseSupervisedPMIStepMeta stepMeta, LogChannelInterface log,
+      VariableSpace vars ) throws KettleException {
 
-          // output row is textual model?
-          if ( stepMeta.getEvalMode() == Evaluator.EvalMode.NONE ) {
-            outputRow = RowDataUtil.allocateRowData( Const.isEmpty( stratificationValue ) ? 1 : 2 );
-            if ( !Const.isEmpty( stratificationValue ) ) {
-              outputRow[0] = stratificationValue;
-              outputRow[1] = trainedFullModel.toString();
-            } else {
-              outputRow[0] = trainedFullModel.toString();
-            }
-          }
+    // build the training dataset
+    Instances trainingData;
+    if ( batch.m_columns != null ) {
+      if ( batch.m_columns.getNumSpilledRows() > 0 && log.isDetailed() ) {
+        log.logDetailed( BaseMessages
+            .getString( PKG, "BasePMIStepData.ReadingSpilledTrainingRows",
+                batch.m_columns.getNumSpilledRows() ) );
+      }
+      // release row groups as they are converted so that the raw and materialized data are never both held in full
+      trainingData = batch.m_columns.toInstances( batch.m_trainingHeader, true );
+      batch.m_columns.clear();
+    } else {
+      trainingData =
+          buildDataset( batch.m_trainingHeader, m_trainingRowMeta, batch.m_rows, m_trainingFieldIndexes, stepMeta );
+    }
+    batch.m_rows = null;
+    batch.m_columns = null;
+    Evaluator evaluator = batch.m_evaluator;
+    try {
+      // perform evaluation (if necessary)
+      evaluator.initialize( trainingData, batch.m_classifier );
+
+      // build final model on all the data (but only if it is going to be saved somewhere or separate test set eval or there is no eval being done)
+      boolean buildFinalModel =
+          !Const.isEmpty( m_modelOutputPath ) || stepMeta.getEvalMode() == Evaluator.EvalMode.SEPARATE_TEST_SET
+              || stepMeta.getEvalMode() == Evaluator.EvalMode.NONE;
+      boolean resumeTraining =
+          !Const.isEmpty( stepMeta.getResumableModelPath() ) && m_scheme.supportsResumableTraining();
+
+      // the final model and the percentage split/cross-validation runs only read the (shuffled) training data, so
+      // they can be built at the same time if requested
+      Classifier concurrentFinalModel = null;
+      if ( buildFinalModel && !resumeTraining && stepMeta.getBuildFinalModelConcurrently() && (
+          stepMeta.getEvalMode() == Evaluator.EvalMode.PERCENTAGE_SPLIT
+              || stepMeta.getEvalMode() == Evaluator.EvalMode.CROSS_VALIDATION ) ) {
+        concurrentFinalModel = evaluator.performEvaluationAndBuildFinalModel( log, vars );
+      } else {
+        evaluator.performEvaluation( null, log, vars );
+      }
+
+      batch.m_outputRow =
+          evaluator.getEvalRow( batch.m_stratificationValue, m_outputRowMeta, batch.m_batchNumber, log );
+
+      if ( buildFinalModel ) {
+        Classifier trainedFullModel = null;
+        if ( resumeTraining ) {
+          // TODO load model and perform training iterations with trainingData
+          List<Object> loaded = loadModel( vars.environmentSubstitute( stepMeta.getResumableModelPath() ), log );
+          trainedFullModel = (Classifier) loaded.get( 0 );
+          Evaluator.enableClassifierLoggingIfSupported( trainedFullModel, log );
+          Evaluator.configureWekaEnvironmentHandler( trainedFullModel, vars );
+          continueIteratingResumable( trainedFullModel, trainingData, stepMeta );
+          evaluator.setTrainedClassifier( trainedFullModel );
+        } else if ( concurrentFinalModel != null ) {
+          trainedFullModel = concurrentFinalModel;
+        } else {
+          trainedFullModel = evaluator.buildFinalModel( log, vars );
+        }
+        batch.m_finalModel = trainedFullModel;
+      }
+    } catch ( Exception ex ) {
+      throw new KettleException( ex );
+    }
+  }
+
+  /**
+   * Record the results of a trained batch, save the final model (if necessary) and return the output row. Must be
+   * called on the step thread.
+   *
+   * @param batch    the trained batch
+   * @param stepMeta the step metadata
+   * @param log      the log to use
+   * @return the output row for the batch (may be null)
+   * @throws KettleException if a problem occurs
+   */
+  protected Object[] completeTrainingBatch( TrainingBatch batch, BaseSupervisedPMIStepMeta stepMeta,
+      LogChannelInterface log ) throws KettleException {
+    String stratificationValue = batch.m_stratificationValue;
+    String evalKey = stratificationValue;
+    if ( m_rowHandlingMode != Stratified ) {
+      m_evaluation.clear();
+      m_trainingHeaders.clear();
+      evalKey = "non-stratified";
+    }
+    m_evaluation.put( evalKey, batch.m_evaluator );
+    m_trainingHeaders.put( evalKey, batch.m_trainingHeader );
+
+    Object[] outputRow = batch.m_outputRow;
+    Classifier trainedFullModel = batch.m_finalModel;
+    if ( trainedFullModel != null ) {
+      m_finalModels.put( evalKey, trainedFullModel );
+
+      // save model to file
+      saveModel( trainedFullModel, batch.m_evaluator.getTrainingData(), stepMeta, stratificationValue, log );
+
+      // output row is textual model?
+      if ( stepMeta.getEvalMode() == Evaluator.EvalMode.NONE ) {
+        outputRow = RowDataUtil.allocateRowData( Const.isEmpty( stratificationValue ) ? 1 : 2 );
+        if ( !Const.isEmpty( stratificationValue ) ) {
+          outputRow[0] = stratificationValue;
+          outputRow[1] = trainedFullModel.toString();
+        } else {
+          outputRow[0] = trainedFullModel.toString();
         }
-      } catch ( Exception ex ) {
-        throw new KettleException( ex );
       }
     }
     return outputRow;
   }
 
+  /**
+   * Holds the state of a batch (or stratum) of training data as it is trained
+   */
+  protected static class TrainingBatch {
+    protected List<Object[]> m_rows;
+    protected ColumnarTrainingData m_columns;
+    protected String m_stratificationValue;
+    protected int m_batchNumber;
+    protected Instances m_trainingHeader;
+    protected Classifier m_classifier;
+    protected Evaluator m_evaluator;
+    protected Object[] m_outputRow;
+    protected Classifier m_finalModel;
+
+    protected TrainingBatch( List<Object[]> rows ) {
+      m_rows = rows;
+    }
+
+    protected TrainingBatch( ColumnarTrainingData columns ) {
+      m_columns = columns;
+    }
+
+    protected int size() {
+      return m_columns != null ? m_columns.size() : m_rows.size();
+    }
+  }
+
   protected void continueIteratingResumable( Classifier classifier, Instances trainingData,
       BaseSupervisedPMIStepMeta stepMeta ) throws Exception {
     if ( classifier instanceof OptionHandler ) {
@@ -827,6 +1213,11 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
 
   protected void saveModel( Classifier model, Instances header, BaseSupervisedPMIStepMeta stepMeta,
       LogChannelInterface log ) throws KettleException {
+    saveModel( model, header, stepMeta, m_currentStratificationValue, log );
+  }
+
+  protected void saveModel( Classifier model, Instances header, BaseSupervisedPMIStepMeta stepMeta,
+      String stratificationValue, LogChannelInterface log ) throws KettleException {
     if ( Const.isEmpty( m_modelOutputPath ) ) {
       return;
     }
@@ -843,8 +1234,15 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
     }
 
     String fileName = Const.isEmpty( m_modelFileName ) ? "model" : m_modelFileName;
-    if ( m_rowHandlingMode == Stratified ) {
-      fileName = m_currentStratificationValue + "_" + fileName;
+    boolean bundle = m_writeModelBundle && m_rowHandlingMode != All;
+    String bundleKey = null;
+    if ( bundle ) {
+      if ( !PMIModelBundle.hasBundleExtension( fileName ) ) {
+        fileName += PMIModelBundle.FILE_EXTENSION;
+      }
+      bundleKey = m_rowHandlingMode == Stratified ? stratificationValue : "" + m_batchCount++;
+    } else if ( m_rowHandlingMode == Stratified ) {
+      fileName = stratificationValue + "_" + fileName;
     } else if ( m_rowHandlingMode == Batch ) {
       fileName = "" + m_batchCount + "_" + fileName;
       m_batchCount++;
@@ -871,13 +1269,46 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
         header = new Instances( header, 0 );
         log.logDetailed( "Storing training data class priors with saved model" );
       }
-      SerializationHelper.writeAll( m_modelOutputPath + File.separator + fileName,
-          ( eval == null ? new Object[] { model, header } : new Object[] { model, header, eval } ) );
+      if ( bundle ) {
+        if ( m_modelBundleWriter == null ) {
+          m_modelBundleWriter = new PMIModelBundle.Writer( new File( m_modelOutputPath, fileName ) );
+        }
+        log.logDetailed( BaseMessages.getString( PKG, "BasePMIStep.Info.AddingModelToBundle", bundleKey ) );
+        m_modelBundleWriter.add( bundleKey, model, header, eval, null );
+      } else if ( PMIModelContainer.hasContainerExtension( fileName ) ) {
+        // metadata first, so that consumers can get at the header without deserializing the model
+        PMIModelContainer.write( new File( m_modelOutputPath, fileName ), model, header, eval, null,
+            PMIModelContainer.CODEC_SERIALIZED );
+      } else {
+        SerializationHelper.writeAll( m_modelOutputPath + File.separator + fileName,
+            ( eval == null ? new Object[] { model, header } : new Object[] { model, header, eval } ) );
+      }
     } catch ( Exception e ) {
       throw new KettleException( e );
     }
   }
 
+  /**
+   * Finish writing the model bundle (if one is being written)
+   *
+   * @param log the log to use
+   * @throws KettleException if a problem occurs
+   */
+  protected void closeModelBundle( LogChannelInterface log ) throws KettleException {
+    if ( m_modelBundleWriter == null ) {
+      return;
+    }
+    PMIModelBundle.Writer writer = m_modelBundleWriter;
+    m_modelBundleWriter = null;
+    try {
+      writer.close();
+      log.logBasic( BaseMessages
+          .getString( PKG, "BasePMIStep.Info.WroteModelBundle", writer.size(), writer.getFile().toString() ) );
+    } catch ( IOException e ) {
+      throw new KettleException( e );
+    }
+  }
+
   public static List<Object> loadModel( String modelPath, LogChannelInterface log ) throws KettleException {
     if ( modelPath.toLowerCase().startsWith( "file:" ) ) {
       try {
@@ -893,7 +1324,21 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
     log.logBasic( BaseMessages.getString( PKG, "BasePMIStep.Info.LoadingResumableModel", modelPath ) );
     Object[] loaded = null;
     try {
-      loaded = SerializationHelper.readAll( modelPath );
+      BufferedInputStream in = new BufferedInputStream( new FileInputStream( modelPath ) );
+      try {
+        if ( PMIModelContainer.isContainer( in ) ) {
+          PMIModelContainer.ModelInfo info = PMIModelContainer.readInfo( in );
+          Object model = PMIModelContainer.readModel( in, info );
+          loaded =
+              info.getClassPriors() == null ? new Object[] { model, info.getHeader() } :
+                  new Object[] { model, info.getHeader(), info.getClassPriors() };
+        }
+      } finally {
+        in.close();
+      }
+      if ( loaded == null ) {
+        loaded = SerializationHelper.readAll( modelPath );
+      }
     } catch ( Exception e ) {
       throw new KettleException( e );
     }
@@ -906,13 +1351,47 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
     return Arrays.asList( loaded );
   }
 
+  /**
+   * Build a dataset from a list of rows. Wide datasets that turn out to be
+   * mostly zeros (e.g. one-hot encoded or bag-of-words data) are built from
+   * sparse instances, with a single reusable array for converting rows.
+   *
+   * @param header            the header to use
+   * @param inputRowMeta      the metadata of the rows
+   * @param data              the rows. A null row marks the end of the data
+   * @param streamFieldLookup lookup from field name to index in the rows
+   * @param stepMeta          the step metadata
+   * @return the dataset
+   * @throws KettleException if a problem occurs
+   */
   protected Instances buildDataset( Instances header, RowMetaInterface inputRowMeta, List<Object[]> data,
       Map<String, Integer> streamFieldLookup, BaseSupervisedPMIStepMeta stepMeta ) throws KettleException {
 
     Instances dataset = new Instances( header, data.size() );
+    double[] buffer = new double[header.numAttributes()];
+    boolean sparse = false;
+    if ( !header.checkForStringAttributes() ) {
+      // sample the leading rows. Skipped for string attributes, because
+      // converting adds their values to the header
+      PMISparsityEstimator sparsity = new PMISparsityEstimator( header );
+      for ( int i = 0; i < data.size() && data.get( i ) != null && !sparsity.isDecided(); i++ ) {
+        constructValues( dataset, inputRowMeta, data.get( i ), streamFieldLookup, buffer );
+        sparsity.observe( buffer );
+      }
+      sparsity.decide();
+      sparse = sparsity.isSparse();
+    }
+
     for ( Object[] row : data ) {
       if ( row != null ) {
-        Instance toAdd = constructInstance( dataset, inputRowMeta, row, streamFieldLookup, stepMeta );
+        Instance toAdd;
+        if ( sparse ) {
+          constructValues( dataset, inputRowMeta, row, streamFieldLookup, buffer );
+          toAdd = PMISparsityEstimator.createInstance( buffer, true );
+          toAdd.setDataset( dataset );
+        } else {
+          toAdd = constructInstance( dataset, inputRowMeta, row, streamFieldLookup, stepMeta );
+        }
         dataset.add( toAdd );
       } else {
         break;
@@ -926,6 +1405,27 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
       Map<String, Integer> streamFieldLookup, BaseSupervisedPMIStepMeta stepMeta ) throws KettleValueException {
 
     double[] vals = new double[header.numAttributes()];
+    constructValues( header, inputRowMeta, row, streamFieldLookup, vals );
+
+    Instance result = new DenseInstance( 1.0, vals );
+    result.setDataset( header );
+    return result;
+  }
+
+  /**
+   * Convert a row into attribute values
+   *
+   * @param header            the header to use. String values are added to its
+   *                          string attributes
+   * @param inputRowMeta      the metadata of the row
+   * @param row               the row
+   * @param streamFieldLookup lookup from field name to index in the row
+   * @param vals              the array to write the values into
+   * @throws KettleValueException if a problem occurs
+   */
+  protected void constructValues( Instances header, RowMetaInterface inputRowMeta, Object[] row,
+      Map<String, Integer> streamFieldLookup, double[] vals ) throws KettleValueException {
+
     for ( int i = 0; i < header.numAttributes(); i++ ) {
       String fieldName = header.attribute( i ).name();
       if ( streamFieldLookup.containsKey( fieldName ) ) {
@@ -948,10 +1448,6 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
         vals[i] = Utils.missingValue();
       }
     }
-
-    Instance result = new DenseInstance( 1.0, vals );
-    result.setDataset( header );
-    return result;
   }
 
   /**
@@ -983,26 +1479,60 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
 
   protected Instances determineHeader( List<Object[]> trainingRows, String relationName,
       BaseSupervisedPMIStepMeta stepMeta ) throws KettleException {
+    return determineHeader( trainingRows, null, relationName, stepMeta );
+  }
+
+  /**
+   * Determine the header for a batch of training data, held either as rows or in columns
+   *
+   * @param trainingRows    the training rows (or null if columns are supplied)
+   * @param trainingColumns the training data in columnar form (or null if rows are supplied)
+   * @param relationName    the relation name for the header
+   * @param stepMeta        the step metadata
+   * @return the header
+   * @throws KettleException if a problem occurs
+   */
+  protected Instances determineHeader( List<Object[]> trainingRows, ColumnarTrainingData trainingColumns,
+      String relationName, BaseSupervisedPMIStepMeta stepMeta ) throws KettleException {
     ArrayList<Attribute> atts = new ArrayList<>();
 
-    List<ArffMeta> arffFields = stepMeta.getFieldMetadata();
-    for ( int i = 0; i < arffFields.size(); i++ ) {
-      ArffMeta current = arffFields.get( i );
+    for ( ArffMeta current : getHeaderFieldMetadata( stepMeta ) ) {
+      atts.add( constructAttribute( current, trainingRows, trainingColumns, atts.size() ) );
+    }
+
+    Instances result = new Instances( relationName, atts, 0 );
+    result.setClassIndex( result.numAttributes() - 1 );
+
+    return result;
+  }
+
+  /**
+   * Get the field metadata for the attributes of the training header, in attribute order - i.e. all fields apart from
+   * the class and stratification field, followed by the class as the last attribute
+   *
+   * @param stepMeta the step metadata
+   * @return the field metadata in attribute order
+   */
+  protected List<ArffMeta> getHeaderFieldMetadata( BaseSupervisedPMIStepMeta stepMeta ) {
+    List<ArffMeta> result = new ArrayList<>();
+    for ( ArffMeta current : stepMeta.getFieldMetadata() ) {
       if ( current != m_classArffMeta && !current.getFieldName().equals( m_stratificationFieldName ) ) {
-        atts.add( constructAttribute( current, trainingRows ) );
+        result.add( current );
       }
     }
 
     // class as the last attribute
-    atts.add( constructAttribute( m_classArffMeta, trainingRows ) );
-
-    Instances result = new Instances( relationName, atts, 0 );
-    result.setClassIndex( result.numAttributes() - 1 );
+    result.add( m_classArffMeta );
 
     return result;
   }
 
   protected Attribute constructAttribute( ArffMeta current, List<Object[]> trainingRows ) throws KettleException {
+    return constructAttribute( current, trainingRows, null, -1 );
+  }
+
+  protected Attribute constructAttribute( ArffMeta current, List<Object[]> trainingRows,
+      ColumnarTrainingData trainingColumns, int column ) throws KettleException {
 
     Attribute result = null;
     if ( current.getArffType() == ArffMeta.DATE || current.getArffType() == ArffMeta.NUMERIC ) {
@@ -1036,8 +1566,10 @@ public class BaseSupervisedPMIStepData extends BaseStepData implements StepDataI
         } else {
           // we have to iterate over the actual data and collect values
           result =
-              new Attribute( current.getFieldName(), getNominalValsFromData( trainingRows, m_trainingRowMeta,
-                  m_trainingFieldIndexes.get( current.getFieldName() ) ) );
+              new Attribute( current.getFieldName(),
+                  trainingColumns != null ? trainingColumns.getSortedDistinctValues( column ) :
+                      getNominalValsFromData( trainingRows, m_trainingRowMeta,
+                          m_trainingFieldIndexes.get( current.getFieldName() ) ) );
         }
       }
     } else {
@@ -81,6 +81,10 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
   protected static final String RESERVOIR_SAMPLING_SIZE_TAG = "reservoir_size";
   protected static final String RESERVOIR_SAMPLING_RANDOM_SEED_TAG = "reservoir_seed";
   protected static final String STRATIFICATION_FIELD_NAME_TAG = "stratification_field_name";
+  protected static final String STRATUM_TRAINING_THREADS_TAG = "stratum_training_threads";
+  protected static final String STRATA_COMPLETION_ORDER_TAG = "strata_completion_order";
+  protected static final String TRAINING_SPILL_THRESHOLD_TAG = "training_spill_threshold_mb";
+  protected static final String TRAINING_SPILL_DIRECTORY_TAG = "training_spill_directory";
   protected static final String INCOMING_FIELD_META_TAG = "incoming_field_meta";
   protected static final String CLASS_FIELD_TAG = "class_attribute";
   protected static final String TRAINING_STEP_INPUT_NAME_TAG = "training_step_input_name";
@@ -92,12 +96,15 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
   protected static final String EVAL_MODE_TAG = "evaluation_mode";
   protected static final String SPLIT_PERCENTAGE_TAG = "split_percentage";
   protected static final String X_VAL_FOLDS_TAG = "x_val_folds";
+  protected static final String X_VAL_PARALLELISM_TAG = "x_val_parallelism";
   protected static final String RANDOM_SEED_TAG = "random_seed";
   protected static final String MODEL_OUTPUT_DIRECTORY_TAG = "model_output_path";
   protected static final String MODEL_FILE_NAME_TAG = "model_file_name";
+  protected static final String WRITE_MODEL_BUNDLE_TAG = "write_model_bundle";
   protected static final String RESUMABLE_MODEL_LOAD_PATH_TAG = "resumable_model_load_path";
   protected static final String OUTPUT_AUC_METRICS_TAG = "output_auc_metrics";
   protected static final String OUTPUT_IR_METRICS_TAG = "output_ir_metrics";
+  protected static final String BUILD_FINAL_MODEL_CONCURRENTLY_TAG = "build_final_model_concurrently";
   protected static final String INCREMENTAL_TRAININ_INITIAL_ROW_CACHE_SIZE_TAG = "incremental_initial_cache";
 
   /**
@@ -126,6 +133,28 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
 
   protected String m_stratificationFieldName = "";
 
+  /**
+   * Number of threads to train strata on when row handling mode is "stratified". Empty or 1 to train each stratum on
+   * the step thread
+   */
+  protected String m_stratumTrainingThreads = "";
+
+  /**
+   * True to output results for strata as they finish training rather than in input order
+   */
+  protected boolean m_outputStrataInCompletionOrder;
+
+  /**
+   * Amount of memory (in MB) that accumulated training rows may occupy before they are spilled to disk. Empty for no
+   * limit
+   */
+  protected String m_trainingSpillThreshold = "";
+
+  /**
+   * Directory to spill training rows to. Empty to use the system temporary directory
+   */
+  protected String m_trainingSpillDirectory = "";
+
   /**
    * Batch size to use when row handling is set to batch mode
    */
@@ -186,6 +215,12 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
    */
   protected String m_xValFolds = "10";
 
+  /**
+   * Maximum number of cross-validation folds to train and test concurrently. Empty for the number of available
+   * processors; 1 for sequential evaluation
+   */
+  protected String m_xValParallelism = "";
+
   /**
    * Random number seed to use for splitting the data in percentage split or cross-validation
    */
@@ -205,6 +240,12 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
    */
   protected boolean m_outputIRMetrics;
 
+  /**
+   * True to build the final model (when one is required) at the same time as a percentage split or cross-validation
+   * evaluation is being performed, rather than afterwards
+   */
+  protected boolean m_buildFinalModelConcurrently;
+
   /**
    * The name of the class attribute
    */
@@ -220,6 +261,12 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
    */
   protected String m_modelFileName = "";
 
+  /**
+   * True to write the models for all strata (or batches) to a single indexed bundle file rather than one file per
+   * stratum/batch
+   */
+  protected boolean m_writeModelBundle;
+
   /**
    * The number of rows to cache from the start of the incoming training stream when learning an incremental model. This will only be used if 1) the
    * underlying scheme supports incremental training and 2) the header for the data stream cannot be fully determined from the incoming row metadata
@@ -273,6 +320,83 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     return m_stratificationFieldName;
   }
 
+  /**
+   * If row handling mode is "stratified", then set the number of threads to train strata on. Row ingestion continues
+   * for the next stratum while earlier strata train.
+   *
+   * @param threads the number of threads to train strata on (empty or 1 to train on the step thread)
+   */
+  public void setStratumTrainingThreads( String threads ) {
+    m_stratumTrainingThreads = threads;
+  }
+
+  /**
+   * If row handling mode is "stratified", then get the number of threads to train strata on.
+   *
+   * @return the number of threads to train strata on (empty or 1 to train on the step thread)
+   */
+  public String getStratumTrainingThreads() {
+    return m_stratumTrainingThreads;
+  }
+
+  /**
+   * Set whether to output results (and save models) for strata as soon as they finish training, rather than in the
+   * order that strata appear in the input. Only applies when strata are trained on more than one thread.
+   *
+   * @param completionOrder true to output strata in the order that they finish training
+   */
+  public void setOutputStrataInCompletionOrder( boolean completionOrder ) {
+    m_outputStrataInCompletionOrder = completionOrder;
+  }
+
+  /**
+   * Get whether to output results (and save models) for strata as soon as they finish training, rather than in the
+   * order that strata appear in the input.
+   *
+   * @return true to output strata in the order that they finish training
+   */
+  public boolean getOutputStrataInCompletionOrder() {
+    return m_outputStrataInCompletionOrder;
+  }
+
+  /**
+   * Set the amount of memory (in MB) that accumulated (non-sampled) training rows may occupy before they are spilled
+   * to a temporary file on disk.
+   *
+   * @param threshold the spill threshold in MB (empty for no limit)
+   */
+  public void setTrainingSpillThreshold( String threshold ) {
+    m_trainingSpillThreshold = threshold;
+  }
+
+  /**
+   * Get the amount of memory (in MB) that accumulated (non-sampled) training rows may occupy before they are spilled
+   * to a temporary file on disk.
+   *
+   * @return the spill threshold in MB (empty for no limit)
+   */
+  public String getTrainingSpillThreshold() {
+    return m_trainingSpillThreshold;
+  }
+
+  /**
+   * Set the directory to spill training rows to
+   *
+   * @param directory the directory to spill to (empty for the system temporary directory)
+   */
+  public void setTrainingSpillDirectory( String directory ) {
+    m_trainingSpillDirectory = directory;
+  }
+
+  /**
+   * Get the directory to spill training rows to
+   *
+   * @return the directory to spill to (empty for the system temporary directory)
+   */
+  public String getTrainingSpillDirectory() {
+    return m_trainingSpillDirectory;
+  }
+
   /**
    * Set the size of the batch to use when row handling mode is set to "batch"
    *
@@ -563,6 +687,26 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     return m_modelFileName;
   }
 
+  /**
+   * Set whether to write the models for all strata (or batches) to a single indexed bundle file rather than one file
+   * per stratum/batch. Only applies in stratified and batch row handling modes.
+   *
+   * @param writeBundle true to write a model bundle
+   */
+  public void setWriteModelBundle( boolean writeBundle ) {
+    m_writeModelBundle = writeBundle;
+  }
+
+  /**
+   * Get whether to write the models for all strata (or batches) to a single indexed bundle file rather than one file
+   * per stratum/batch.
+   *
+   * @return true to write a model bundle
+   */
+  public boolean getWriteModelBundle() {
+    return m_writeModelBundle;
+  }
+
   /**
    * Set a path to a searialize resumable model to load (and continue training)
    *
@@ -637,6 +781,26 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     return m_xValFolds;
   }
 
+  /**
+   * Set the maximum number of cross-validation folds to train and test concurrently (empty for the number of
+   * available processors)
+   *
+   * @param parallelism the maximum number of folds to process at the same time
+   */
+  public void setXValParallelism( String parallelism ) {
+    m_xValParallelism = parallelism;
+  }
+
+  /**
+   * Get the maximum number of cross-validation folds to train and test concurrently (empty for the number of
+   * available processors)
+   *
+   * @return the maximum number of folds to process at the same time
+   */
+  public String getXValParallelism() {
+    return m_xValParallelism;
+  }
+
   /**
    * Set the random seed used when splitting data via percentage split or into folds
    *
@@ -673,6 +837,24 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     return m_outputAUCMetrics;
   }
 
+  /**
+   * Set whether to build the final model concurrently with a percentage split or cross-validation evaluation
+   *
+   * @param concurrent true to build the final model at the same time as the evaluation is performed
+   */
+  public void setBuildFinalModelConcurrently( boolean concurrent ) {
+    m_buildFinalModelConcurrently = concurrent;
+  }
+
+  /**
+   * Get whether to build the final model concurrently with a percentage split or cross-validation evaluation
+   *
+   * @return true to build the final model at the same time as the evaluation is performed
+   */
+  public boolean getBuildFinalModelConcurrently() {
+    return m_buildFinalModelConcurrently;
+  }
+
   /**
    * Set whether to output IR retrieval metrics when evaluating
    *
@@ -731,17 +913,26 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     rep.saveStepAttribute( id_transformation, id_step, RESERVOIR_SAMPLING_RANDOM_SEED_TAG,
         getRandomSeedReservoirSampling() );
     rep.saveStepAttribute( id_transformation, id_step, STRATIFICATION_FIELD_NAME_TAG, getStratificationFieldName() );
+    rep.saveStepAttribute( id_transformation, id_step, STRATUM_TRAINING_THREADS_TAG, getStratumTrainingThreads() );
+    rep.saveStepAttribute( id_transformation, id_step, STRATA_COMPLETION_ORDER_TAG,
+        getOutputStrataInCompletionOrder() );
+    rep.saveStepAttribute( id_transformation, id_step, TRAINING_SPILL_THRESHOLD_TAG, getTrainingSpillThreshold() );
+    rep.saveStepAttribute( id_transformation, id_step, TRAINING_SPILL_DIRECTORY_TAG, getTrainingSpillDirectory() );
     rep.saveStepAttribute( id_transformation, id_step, CLASS_FIELD_TAG, getClassField() );
     rep.saveStepAttribute( id_transformation, id_step, TRAINING_STEP_INPUT_NAME_TAG, getTrainingStepInputName() );
     rep.saveStepAttribute( id_transformation, id_step, TEST_STEP_INPUT_NAME_TAG, getTestingStepInputName() );
     rep.saveStepAttribute( id_transformation, id_step, EVAL_MODE_TAG, getEvalMode().toString() );
     rep.saveStepAttribute( id_transformation, id_step, SPLIT_PERCENTAGE_TAG, getPercentageSplit() );
     rep.saveStepAttribute( id_transformation, id_step, X_VAL_FOLDS_TAG, getXValFolds() );
+    rep.saveStepAttribute( id_transformation, id_step, X_VAL_PARALLELISM_TAG, getXValParallelism() );
     rep.saveStepAttribute( id_transformation, id_step, RANDOM_SEED_TAG, getRandomSeed() );
     rep.saveStepAttribute( id_transformation, id_step, MODEL_OUTPUT_DIRECTORY_TAG, getModelOutputPath() );
     rep.saveStepAttribute( id_transformation, id_step, MODEL_FILE_NAME_TAG, getModelFileName() );
+    rep.saveStepAttribute( id_transformation, id_step, WRITE_MODEL_BUNDLE_TAG, getWriteModelBundle() );
     rep.saveStepAttribute( id_transformation, id_step, RESUMABLE_MODEL_LOAD_PATH_TAG, getResumableModelPath() );
     rep.saveStepAttribute( id_transformation, id_step, OUTPUT_AUC_METRICS_TAG, getOutputAUCMetrics() );
+    rep.saveStepAttribute( id_transformation, id_step, BUILD_FINAL_MODEL_CONCURRENTLY_TAG,
+        getBuildFinalModelConcurrently() );
     rep.saveStepAttribute( id_transformation, id_step, OUTPUT_IR_METRICS_TAG, getOutputIRMetrics() );
     rep.saveStepAttribute( id_transformation, id_step, INCREMENTAL_TRAININ_INITIAL_ROW_CACHE_SIZE_TAG,
         getInitialRowCacheForNominalValDetermination() );
@@ -775,17 +966,24 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     buff.append( XMLHandler.addTagValue( RESERVOIR_SAMPLING_RANDOM_SEED_TAG, getRandomSeedReservoirSampling() ) );
     buff.append( XMLHandler.addTagValue( RESERVOIR_SAMPLING_SIZE_TAG, getReservoirSize() ) );
     buff.append( XMLHandler.addTagValue( STRATIFICATION_FIELD_NAME_TAG, getStratificationFieldName() ) );
+    buff.append( XMLHandler.addTagValue( STRATUM_TRAINING_THREADS_TAG, getStratumTrainingThreads() ) );
+    buff.append( XMLHandler.addTagValue( STRATA_COMPLETION_ORDER_TAG, getOutputStrataInCompletionOrder() ) );
+    buff.append( XMLHandler.addTagValue( TRAINING_SPILL_THRESHOLD_TAG, getTrainingSpillThreshold() ) );
+    buff.append( XMLHandler.addTagValue( TRAINING_SPILL_DIRECTORY_TAG, getTrainingSpillDirectory() ) );
     buff.append( XMLHandler.addTagValue( CLASS_FIELD_TAG, getClassField() ) );
     buff.append( XMLHandler.addTagValue( TRAINING_STEP_INPUT_NAME_TAG, getTrainingStepInputName() ) );
     buff.append( XMLHandler.addTagValue( TEST_STEP_INPUT_NAME_TAG, getTestingStepInputName() ) );
     buff.append( XMLHandler.addTagValue( EVAL_MODE_TAG, getEvalMode().toString() ) );
     buff.append( XMLHandler.addTagValue( SPLIT_PERCENTAGE_TAG, getPercentageSplit() ) );
     buff.append( XMLHandler.addTagValue( X_VAL_FOLDS_TAG, getXValFolds() ) );
+    buff.append( XMLHandler.addTagValue( X_VAL_PARALLELISM_TAG, getXValParallelism() ) );
     buff.append( XMLHandler.addTagValue( RANDOM_SEED_TAG, getRandomSeed() ) );
     buff.append( XMLHandler.addTagValue( MODEL_OUTPUT_DIRECTORY_TAG, getModelOutputPath() ) );
     buff.append( XMLHandler.addTagValue( MODEL_FILE_NAME_TAG, getModelFileName() ) );
+    buff.append( XMLHandler.addTagValue( WRITE_MODEL_BUNDLE_TAG, getWriteModelBundle() ) );
     buff.append( XMLHandler.addTagValue( RESUMABLE_MODEL_LOAD_PATH_TAG, getResumableModelPath() ) );
     buff.append( XMLHandler.addTagValue( OUTPUT_AUC_METRICS_TAG, getOutputAUCMetrics() ) );
+    buff.append( XMLHandler.addTagValue( BUILD_FINAL_MODEL_CONCURRENTLY_TAG, getBuildFinalModelConcurrently() ) );
     buff.append( XMLHandler.addTagValue( OUTPUT_IR_METRICS_TAG, getOutputIRMetrics() ) );
     buff.append( XMLHandler.addTagValue( INCREMENTAL_TRAININ_INITIAL_ROW_CACHE_SIZE_TAG,
         getInitialRowCacheForNominalValDetermination() ) );
@@ -841,6 +1039,13 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     setRandomSeedReservoirSampling( reservoirSeed == null ? "1" : reservoirSeed );
     String stratificationField = rep.getStepAttributeString( id_step, STRATIFICATION_FIELD_NAME_TAG );
     setStratificationFieldName( stratificationField == null ? "" : stratificationField );
+    String stratumThreads = rep.getStepAttributeString( id_step, STRATUM_TRAINING_THREADS_TAG );
+    setStratumTrainingThreads( stratumThreads == null ? "" : stratumThreads );
+    setOutputStrataInCompletionOrder( rep.getStepAttributeBoolean( id_step, STRATA_COMPLETION_ORDER_TAG ) );
+    String spillThreshold = rep.getStepAttributeString( id_step, TRAINING_SPILL_THRESHOLD_TAG );
+    setTrainingSpillThreshold( spillThreshold == null ? "" : spillThreshold );
+    String spillDirectory = rep.getStepAttributeString( id_step, TRAINING_SPILL_DIRECTORY_TAG );
+    setTrainingSpillDirectory( spillDirectory == null ? "" : spillDirectory );
     String classField = rep.getStepAttributeString( id_step, CLASS_FIELD_TAG );
     setClassField( classField == null ? "" : classField );
     String trainingStepInput = rep.getStepAttributeString( id_step, TRAINING_STEP_INPUT_NAME_TAG );
@@ -858,15 +1063,19 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     setPercentageSplit( splitPercentage == null ? "" : splitPercentage );
     String xValFolds = rep.getStepAttributeString( id_step, X_VAL_FOLDS_TAG );
     setXValFolds( xValFolds == null ? "" : xValFolds );
+    String xValParallelism = rep.getStepAttributeString( id_step, X_VAL_PARALLELISM_TAG );
+    setXValParallelism( xValParallelism == null ? "" : xValParallelism );
     String randomSeed = rep.getStepAttributeString( id_step, RANDOM_SEED_TAG );
     setRandomSeed( randomSeed == null ? "" : randomSeed );
     String modelOutputPath = rep.getStepAttributeString( id_step, MODEL_OUTPUT_DIRECTORY_TAG );
     setModelOutputPath( modelOutputPath == null ? "" : modelOutputPath );
     String modelFileName = rep.getStepAttributeString( id_step, MODEL_FILE_NAME_TAG );
     setModelFileName( modelFileName == null ? "" : modelFileName );
+    setWriteModelBundle( rep.getStepAttributeBoolean( id_step, WRITE_MODEL_BUNDLE_TAG ) );
     String resumeModelLoadPath = rep.getStepAttributeString( id_step, RESUMABLE_MODEL_LOAD_PATH_TAG );
     setResumableModelPath( resumeModelLoadPath == null ? "" : resumeModelLoadPath );
     setOutputAUCMetrics( rep.getStepAttributeBoolean( id_step, OUTPUT_AUC_METRICS_TAG ) );
+    setBuildFinalModelConcurrently( rep.getStepAttributeBoolean( id_step, BUILD_FINAL_MODEL_CONCURRENTLY_TAG ) );
     setOutputIRMetrics( rep.getStepAttributeBoolean( id_step, OUTPUT_IR_METRICS_TAG ) );
     setInitialRowCacheForNominalValDetermination(
         rep.getStepAttributeString( id_step, INCREMENTAL_TRAININ_INITIAL_ROW_CACHE_SIZE_TAG ) );
@@ -929,6 +1138,14 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     setRandomSeedReservoirSampling( reservoirSeed == null ? "1" : reservoirSeed );
     String stratificationField = XMLHandler.getTagValue( stepnode, STRATIFICATION_FIELD_NAME_TAG );
     setStratificationFieldName( stratificationField == null ? "" : stratificationField );
+    String stratumThreads = XMLHandler.getTagValue( stepnode, STRATUM_TRAINING_THREADS_TAG );
+    setStratumTrainingThreads( stratumThreads == null ? "" : stratumThreads );
+    String completionOrder = XMLHandler.getTagValue( stepnode, STRATA_COMPLETION_ORDER_TAG );
+    setOutputStrataInCompletionOrder( completionOrder != null && completionOrder.equalsIgnoreCase( "Y" ) );
+    String spillThreshold = XMLHandler.getTagValue( stepnode, TRAINING_SPILL_THRESHOLD_TAG );
+    setTrainingSpillThreshold( spillThreshold == null ? "" : spillThreshold );
+    String spillDirectory = XMLHandler.getTagValue( stepnode, TRAINING_SPILL_DIRECTORY_TAG );
+    setTrainingSpillDirectory( spillDirectory == null ? "" : spillDirectory );
     String classField = XMLHandler.getTagValue( stepnode, CLASS_FIELD_TAG );
     setClassField( classField == null ? "" : classField );
     String trainingStepInput = XMLHandler.getTagValue( stepnode, TRAINING_STEP_INPUT_NAME_TAG );
@@ -946,16 +1163,22 @@ public abstract class BaseSupervisedPMIStepMeta extends BaseStepMeta implements
     setPercentageSplit( splitPercentage == null ? "" : splitPercentage );
     String xValFolds = XMLHandler.getTagValue( stepnode, X_VAL_FOLDS_TAG );
     setXValFolds( xValFolds == null ? "" : xValFolds );
+    String xValParallelism = XMLHandler.getTagValue( stepnode, X_VAL_PARALLELISM_TAG );
+    setXValParallelism( xValParallelism == null ? "" : xValParallelism );
     String randomSeed = XMLHandler.getTagValue( stepnode, RANDOM_SEED_TAG );
     setRandomSeed( randomSeed == null ? "" : randomSeed );
     String modelOutputPath = XMLHandler.getTagValue( stepnode, MODEL_OUTPUT_DIRECTORY_TAG );
     setModelOutputPath( modelOutputPath == null ? "" : modelOutputPath );
     String modelFileName = XMLHandler.getTagValue( stepnode, MODEL_FILE_NAME_TAG );
     setModelFileName( modelFileName == null ? "" : modelFileName );
+    String writeBundle = XMLHandler.getTagValue( stepnode, WRITE_MODEL_BUNDLE_TAG );
+    setWriteModelBundle( writeBundle != null && writeBundle.equalsIgnoreCase( "Y" ) );
     String resumeModelLoadPath = XMLHandler.getTagValue( stepnode, RESUMABLE_MODEL_LOAD_PATH_TAG );
     setResumableModelPath( resumeModelLoadPath == null ? "" : resumeModelLoadPath );
     setOutputAUCMetrics( XMLHandler.getTagValue( stepnode, OUTPUT_AUC_METRICS_TAG ).equalsIgnoreCase( "Y" ) );
     setOutputIRMetrics( XMLHandler.getTagValue( stepnode, OUTPUT_IR_METRICS_TAG ).equalsIgnoreCase( "Y" ) );
+    String buildConcurrently = XMLHandler.getTagValue( stepnode, BUILD_FINAL_MODEL_CONCURRENTLY_TAG );
+    setBuildFinalModelConcurrently( buildConcurrently != null && buildConcurrently.equalsIgnoreCase( "Y" ) );
     String incrementalCache = XMLHandler.getTagValue( stepnode, INCREMENTAL_TRAININ_INITIAL_ROW_CACHE_SIZE_TAG );
     setInitialRowCacheForNominalValDetermination( incrementalCache == null ? "100" : incrementalCache );
 
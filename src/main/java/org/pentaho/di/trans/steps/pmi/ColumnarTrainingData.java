@@ -0,0 +1,676 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.dm.commons.ArffMeta;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Column-oriented store for training rows. Rather than holding on to each incoming Kettle row (with its boxed values)
+ * until training time, values are appended as they arrive to one column per model attribute: numeric and date fields
+ * into chunks of doubles, and nominal and string fields into chunks of int codes that index a per-column dictionary
+ * of distinct values. An {@code Instances} object can then be materialized directly from the columns once the header
+ * is known (i.e. once all the distinct nominal values have been seen).
+ * <p>
+ * Columns are in the same order as the attributes of the header produced by
+ * {@code BaseSupervisedPMIStepData.determineHeader()} - class last. The materialized instances are identical to those
+ * produced by converting the original rows with {@code BaseSupervisedPMIStepData.buildDataset()}.
+ * <p>
+ * Optionally, the store can be bounded in memory. Rows are grouped into row groups (one chunk per column) of up to
+ * {@code MAX_GROUP_SIZE} rows. When a memory limit is set, the number of rows per group is derived from the limit and
+ * the width of a row, so that several groups fit within the limit and no group exceeds {@code MAX_GROUP_BYTES}. A
+ * chunk starts small and grows geometrically as rows are added to its group. Once the chunks held in memory exceed
+ * the configured limit, complete row groups are written to a temporary spill file in a compact binary form (raw
+ * doubles for numeric columns and raw int codes for dictionary columns) and released. When materializing instances,
+ * spilled row groups are memory-mapped back one at a time, so the raw data and the materialized instances never need
+ * to be on the heap in full at the same time.
+ * <p>
+ * Not thread-safe for writing. Once all rows have been added, the store can be read by another thread.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class ColumnarTrainingData {
+
+  /**
+   * Maximum number of rows per row group, i.e. values per chunk (power of two)
+   */
+  protected static final int MAX_GROUP_BITS = 16;
+  protected static final int MAX_GROUP_SIZE = 1 << MAX_GROUP_BITS;
+
+  /**
+   * Maximum size of a row group, so that a group can be buffered and memory-mapped in one piece (well below 2 GB)
+   */
+  protected static final long MAX_GROUP_BYTES = 1L << 30;
+
+  /**
+   * Minimum number of row groups that the memory limit should hold
+   */
+  protected static final int MIN_GROUPS_IN_MEMORY = 4;
+
+  /**
+   * Number of slots allocated when a chunk is started (power of two). Chunks double in size as rows are added, up to
+   * the row group size, so that small batches/strata (particularly of wide data) don't pay for full chunks
+   */
+  protected static final int INITIAL_CHUNK_CAPACITY = 64;
+
+  /**
+   * Code used for missing values in dictionary-encoded columns
+   */
+  protected static final int MISSING_CODE = -1;
+
+  /**
+   * The columns - one per attribute
+   */
+  protected final Column[] m_columns;
+
+  /**
+   * Number of rows per row group (power of two), and the corresponding shift and mask
+   */
+  protected int m_groupBits = MAX_GROUP_BITS;
+  protected int m_groupSize = MAX_GROUP_SIZE;
+  protected int m_groupMask = MAX_GROUP_SIZE - 1;
+
+  /**
+   * Number of rows held
+   */
+  protected int m_numRows;
+
+  /**
+   * Directory to create the spill file in (null for the default temporary directory)
+   */
+  protected File m_spillDirectory;
+
+  /**
+   * Maximum number of row groups to hold in memory before spilling. -1 for no limit
+   */
+  protected int m_maxGroupsInMemory = -1;
+
+  /**
+   * Number of leading row groups that have been written to the spill file
+   */
+  protected int m_numSpilledGroups;
+
+  protected File m_spillFile;
+  protected RandomAccessFile m_spillAccess;
+  protected ByteBuffer m_spillBuffer;
+
+  /**
+   * Construct a new store.
+   *
+   * @param attributeMetas the field metadata for each attribute, in header order (class last)
+   * @param inputMeta      the metadata of the incoming training rows
+   * @param fieldIndexes   lookup from field name to index in the incoming training rows
+   */
+  public ColumnarTrainingData( List<ArffMeta> attributeMetas, RowMetaInterface inputMeta,
+      Map<String, Integer> fieldIndexes ) {
+    m_columns = new Column[attributeMetas.size()];
+    for ( int i = 0; i < attributeMetas.size(); i++ ) {
+      ArffMeta current = attributeMetas.get( i );
+      Integer streamIndex = fieldIndexes.get( current.getFieldName() );
+      if ( streamIndex == null ) {
+        m_columns[i] = new MissingColumn();
+      } else if ( current.getArffType() == ArffMeta.NOMINAL || current.getArffType() == ArffMeta.STRING ) {
+        m_columns[i] = new DictionaryColumn( inputMeta.getValueMeta( streamIndex ), streamIndex );
+      } else {
+        m_columns[i] = new NumericColumn( inputMeta.getValueMeta( streamIndex ), streamIndex );
+      }
+    }
+  }
+
+  /**
+   * Bound the amount of memory used for holding rows. Once the limit is exceeded, complete row groups are spilled to
+   * a temporary file. Must be called before any rows are added, since the size of the row groups is chosen so that
+   * at least {@code MIN_GROUPS_IN_MEMORY} groups fit within the limit, and no group exceeds {@code MAX_GROUP_BYTES}.
+   *
+   * @param directory         the directory to create the spill file in (null for the system temporary directory)
+   * @param maxBytesInMemory  the (approximate) maximum number of bytes of row data to hold in memory. Less than or
+   *                          equal to zero for no limit
+   */
+  public void setSpillToDisk( File directory, long maxBytesInMemory ) {
+    m_spillDirectory = directory;
+    long bytesPerRow = bytesPerRow();
+    if ( maxBytesInMemory <= 0 || bytesPerRow == 0 ) {
+      m_maxGroupsInMemory = -1;
+      return;
+    }
+
+    long maxGroupBytes = Math.min( MAX_GROUP_BYTES, maxBytesInMemory / MIN_GROUPS_IN_MEMORY );
+    int bits = MAX_GROUP_BITS;
+    while ( bits > 0 && ( bytesPerRow << bits ) > maxGroupBytes ) {
+      bits--;
+    }
+    m_groupBits = bits;
+    m_groupSize = 1 << bits;
+    m_groupMask = m_groupSize - 1;
+    m_maxGroupsInMemory = (int) Math.max( 1, Math.min( Integer.MAX_VALUE, maxBytesInMemory / bytesPerGroup() ) );
+  }
+
+  /**
+   * Get the number of rows that have been spilled to disk
+   *
+   * @return the number of spilled rows
+   */
+  public long getNumSpilledRows() {
+    return (long) m_numSpilledGroups * m_groupSize;
+  }
+
+  /**
+   * Append a row
+   *
+   * @param row the row to append
+   * @throws KettleException if a value can't be converted or spilling fails
+   */
+  public void add( Object[] row ) throws KettleException {
+    int group = m_numRows >>> m_groupBits;
+    int offset = m_numRows & m_groupMask;
+    if ( m_maxGroupsInMemory > 0 && offset == 0 && group - m_numSpilledGroups >= m_maxGroupsInMemory ) {
+      // about to start a new row group and the ones held are all complete
+      spillGroups( group );
+    }
+    for ( Column column : m_columns ) {
+      column.add( row, group, offset, m_groupSize );
+    }
+    m_numRows++;
+  }
+
+  /**
+   * Number of bytes taken by one row in the spill file
+   *
+   * @return the number of bytes in one row
+   */
+  protected long bytesPerRow() {
+    long result = 0;
+    for ( Column column : m_columns ) {
+      result += column.bytesPerValue();
+    }
+    return result;
+  }
+
+  /**
+   * Number of bytes in one row group. Never more than {@code MAX_GROUP_BYTES} when spilling is enabled
+   *
+   * @return the number of bytes in one row group
+   */
+  protected long bytesPerGroup() {
+    return bytesPerRow() * m_groupSize;
+  }
+
+  /**
+   * Write row groups to the spill file and release them from memory. Chunks are written one at a time through a
+   * buffer that holds a single chunk, so spilling never needs a group-sized buffer.
+   *
+   * @param toGroup spill all groups up to (but not including) this one
+   * @throws KettleException if a problem occurs
+   */
+  protected void spillGroups( int toGroup ) throws KettleException {
+    try {
+      if ( m_spillAccess == null ) {
+        m_spillFile = File.createTempFile( "pmi-training-", ".spill", m_spillDirectory );
+        m_spillFile.deleteOnExit();
+        m_spillAccess = new RandomAccessFile( m_spillFile, "rw" );
+        int maxBytesPerValue = 0;
+        for ( Column column : m_columns ) {
+          maxBytesPerValue = Math.max( maxBytesPerValue, column.bytesPerValue() );
+        }
+        m_spillBuffer = ByteBuffer.allocate( m_groupSize * maxBytesPerValue );
+      }
+      FileChannel channel = m_spillAccess.getChannel();
+      long groupBytes = bytesPerGroup();
+      for ( ; m_numSpilledGroups < toGroup; m_numSpilledGroups++ ) {
+        long position = m_numSpilledGroups * groupBytes;
+        for ( Column column : m_columns ) {
+          m_spillBuffer.clear();
+          column.spill( m_numSpilledGroups, m_spillBuffer );
+          m_spillBuffer.flip();
+          while ( m_spillBuffer.hasRemaining() ) {
+            position += channel.write( m_spillBuffer, position );
+          }
+        }
+      }
+    } catch ( IOException e ) {
+      throw new KettleException( e );
+    }
+  }
+
+  /**
+   * Get the number of rows held
+   *
+   * @return the number of rows
+   */
+  public int size() {
+    return m_numRows;
+  }
+
+  /**
+   * Get the sorted distinct (non-missing) values seen for a nominal or string column. Used to determine the values of
+   * nominal attributes when these are not pre-specified or available from indexed storage.
+   *
+   * @param column the index of the column
+   * @return the sorted distinct values of the column
+   */
+  public ArrayList<String> getSortedDistinctValues( int column ) {
+    TreeSet<String> sortedVals = new TreeSet<>();
+    if ( m_columns[column] instanceof DictionaryColumn ) {
+      sortedVals.addAll( ( (DictionaryColumn) m_columns[column] ).m_values );
+    }
+    return new ArrayList<>( sortedVals );
+  }
+
+  /**
+   * Materialize the rows as instances. Row groups are processed one at a time; spilled groups are mapped back in from
+   * the spill file and in-memory groups are released once converted if {@code release} is true.
+   *
+   * @param header  the header to use. String values will be added to the string attributes of the returned dataset
+   * @param release true to release each row group once it has been converted. The store must be cleared afterwards
+   *                before being reused.
+   * @return a dataset containing all the rows
+   * @throws KettleException if spilled data can't be read
+   */
+  public Instances toInstances( Instances header, boolean release ) throws KettleException {
+    Instances dataset = new Instances( header, m_numRows );
+
+    // translate dictionary codes to attribute value indexes once per distinct value
+    double[][] codeMaps = new double[m_columns.length][];
+    for ( int i = 0; i < m_columns.length; i++ ) {
+      if ( m_columns[i] instanceof DictionaryColumn ) {
+        codeMaps[i] = ( (DictionaryColumn) m_columns[i] ).mapCodes( dataset.attribute( i ) );
+      }
+    }
+
+    // wide, mostly-zero data is materialized as sparse instances, converted
+    // through a single reusable array
+    PMISparsityEstimator sparsity = new PMISparsityEstimator( dataset );
+    double[] buffer = new double[m_columns.length];
+    boolean sparse = false;
+
+    try {
+      Object[] chunks = new Object[m_columns.length];
+      int numGroups = ( m_numRows + m_groupSize - 1 ) >>> m_groupBits;
+      for ( int g = 0; g < numGroups; g++ ) {
+        ByteBuffer spilled = null;
+        if ( g < m_numSpilledGroups ) {
+          long groupBytes = bytesPerGroup();
+          spilled = m_spillAccess.getChannel().map( FileChannel.MapMode.READ_ONLY, g * groupBytes, groupBytes );
+        }
+        for ( int i = 0; i < m_columns.length; i++ ) {
+          chunks[i] = m_columns[i].chunk( g, spilled, m_groupSize );
+          if ( release ) {
+            m_columns[i].release( g );
+          }
+        }
+
+        int rowsInGroup = Math.min( m_groupSize, m_numRows - ( g << m_groupBits ) );
+        if ( g == 0 && !dataset.checkForStringAttributes() ) {
+          // as in buildDataset(), string attributes rule out sparse instances.
+          // Reading values has no side effects, so the leading rows can simply
+          // be sampled twice
+          for ( int r = 0; r < rowsInGroup && !sparsity.isDecided(); r++ ) {
+            readRow( chunks, r, codeMaps, buffer );
+            sparsity.observe( buffer );
+          }
+          sparsity.decide();
+          sparse = sparsity.isSparse();
+        }
+        for ( int r = 0; r < rowsInGroup; r++ ) {
+          double[] vals = sparse ? buffer : new double[m_columns.length];
+          readRow( chunks, r, codeMaps, vals );
+          dataset.add( PMISparsityEstimator.createInstance( vals, sparse ) );
+        }
+      }
+    } catch ( IOException e ) {
+      throw new KettleException( e );
+    }
+
+    return dataset;
+  }
+
+  /**
+   * Materialize the rows as instances.
+   *
+   * @param header the header to use. String values will be added to the string attributes of the returned dataset
+   * @return a dataset containing all the rows
+   * @throws KettleException if spilled data can't be read
+   */
+  public Instances toInstances( Instances header ) throws KettleException {
+    return toInstances( header, false );
+  }
+
+  /**
+   * Read the values of one row of a row group
+   *
+   * @param chunks   the chunks of the row group, one per column
+   * @param row      the index of the row within the group
+   * @param codeMaps the code to attribute value index maps for dictionary
+   *                 columns
+   * @param vals     the array to write the values into
+   */
+  protected void readRow( Object[] chunks, int row, double[][] codeMaps, double[] vals ) {
+    for ( int i = 0; i < m_columns.length; i++ ) {
+      vals[i] = m_columns[i].value( chunks[i], row, codeMaps[i] );
+    }
+  }
+
+  /**
+   * Discard all rows, and delete the spill file (if any)
+   */
+  public void clear() {
+    for ( Column column : m_columns ) {
+      column.clear();
+    }
+    m_numRows = 0;
+    m_numSpilledGroups = 0;
+    m_spillBuffer = null;
+    if ( m_spillAccess != null ) {
+      try {
+        m_spillAccess.close();
+      } catch ( IOException e ) {
+        // ignore
+      }
+      m_spillAccess = null;
+    }
+    if ( m_spillFile != null ) {
+      if ( !m_spillFile.delete() ) {
+        m_spillFile.deleteOnExit();
+      }
+      m_spillFile = null;
+    }
+  }
+
+  /**
+   * A column of values
+   */
+  protected abstract static class Column {
+
+    /**
+     * Append the value for this column from the supplied row
+     *
+     * @param row       the row
+     * @param chunk     the index of the chunk (row group) that the row belongs to
+     * @param offset    the offset of the row in the chunk
+     * @param groupSize the number of rows in a row group
+     * @throws KettleValueException if the value can't be converted
+     */
+    protected abstract void add( Object[] row, int chunk, int offset, int groupSize ) throws KettleValueException;
+
+    /**
+     * Size of a value of this column in the spill file
+     *
+     * @return the number of bytes in a spilled value
+     */
+    protected abstract int bytesPerValue();
+
+    /**
+     * Write a chunk to the supplied buffer and release it from memory. Only the chunks of complete row groups are
+     * spilled, and these have grown to their full size
+     *
+     * @param chunk the index of the chunk
+     * @param out   the buffer to write to
+     */
+    protected abstract void spill( int chunk, ByteBuffer out );
+
+    /**
+     * Get a chunk - either from memory or from the supplied spilled row group
+     *
+     * @param chunk     the index of the chunk
+     * @param spilled   the spilled row group, positioned at this column's chunk (null if the group is in memory)
+     * @param groupSize the number of rows in a row group
+     * @return the chunk's values
+     */
+    protected abstract Object chunk( int chunk, ByteBuffer spilled, int groupSize );
+
+    /**
+     * Release a chunk from memory
+     *
+     * @param chunk the index of the chunk
+     */
+    protected abstract void release( int chunk );
+
+    /**
+     * Get the attribute value for a row
+     *
+     * @param chunk   the chunk holding the row
+     * @param offset  the offset of the row in the chunk
+     * @param codeMap mapping from dictionary code to attribute value index (dictionary columns only)
+     * @return the attribute value
+     */
+    protected abstract double value( Object chunk, int offset, double[] codeMap );
+
+    protected abstract void clear();
+  }
+
+  /**
+   * Column for a field that is not present in the incoming rows
+   */
+  protected static class MissingColumn extends Column {
+    @Override protected void add( Object[] row, int chunk, int offset, int groupSize ) {
+    }
+
+    @Override protected int bytesPerValue() {
+      return 0;
+    }
+
+    @Override protected void spill( int chunk, ByteBuffer out ) {
+    }
+
+    @Override protected Object chunk( int chunk, ByteBuffer spilled, int groupSize ) {
+      return null;
+    }
+
+    @Override protected void release( int chunk ) {
+    }
+
+    @Override protected double value( Object chunk, int offset, double[] codeMap ) {
+      return Utils.missingValue();
+    }
+
+    @Override protected void clear() {
+    }
+  }
+
+  /**
+   * Numeric (or date) values held in chunks of primitive doubles. Missing values are stored as NaN
+   */
+  protected static class NumericColumn extends Column {
+    protected final ValueMetaInterface m_fieldMeta;
+    protected final int m_streamIndex;
+    protected final List<double[]> m_chunks = new ArrayList<>();
+
+    protected NumericColumn( ValueMetaInterface fieldMeta, int streamIndex ) {
+      m_fieldMeta = fieldMeta;
+      m_streamIndex = streamIndex;
+    }
+
+    @Override protected void add( Object[] row, int chunkIndex, int offset, int groupSize )
+        throws KettleValueException {
+      double[] chunk;
+      if ( offset == 0 ) {
+        chunk = new double[Math.min( INITIAL_CHUNK_CAPACITY, groupSize )];
+        m_chunks.add( chunk );
+      } else {
+        chunk = m_chunks.get( chunkIndex );
+        if ( offset == chunk.length ) {
+          chunk = Arrays.copyOf( chunk, Math.min( groupSize, chunk.length * 2 ) );
+          m_chunks.set( chunkIndex, chunk );
+        }
+      }
+      Object value = row[m_streamIndex];
+      chunk[offset] = m_fieldMeta.isNull( value ) ? Utils.missingValue() : m_fieldMeta.getNumber( value );
+    }
+
+    @Override protected int bytesPerValue() {
+      return 8;
+    }
+
+    @Override protected void spill( int chunk, ByteBuffer out ) {
+      double[] values = m_chunks.get( chunk );
+      out.asDoubleBuffer().put( values );
+      out.position( out.position() + values.length * bytesPerValue() );
+      m_chunks.set( chunk, null );
+    }
+
+    @Override protected Object chunk( int chunk, ByteBuffer spilled, int groupSize ) {
+      if ( spilled == null ) {
+        return m_chunks.get( chunk );
+      }
+      double[] result = new double[groupSize];
+      spilled.asDoubleBuffer().get( result );
+      spilled.position( spilled.position() + groupSize * bytesPerValue() );
+      return result;
+    }
+
+    @Override protected void release( int chunk ) {
+      m_chunks.set( chunk, null );
+    }
+
+    @Override protected double value( Object chunk, int offset, double[] codeMap ) {
+      return ( (double[]) chunk )[offset];
+    }
+
+    @Override protected void clear() {
+      m_chunks.clear();
+    }
+  }
+
+  /**
+   * Nominal or string values held as chunks of int codes into a dictionary of the distinct values seen
+   */
+  protected static class DictionaryColumn extends Column {
+    protected final ValueMetaInterface m_fieldMeta;
+    protected final int m_streamIndex;
+    protected final List<int[]> m_chunks = new ArrayList<>();
+
+    /**
+     * Distinct values in order of first occurrence
+     */
+    protected final List<String> m_values = new ArrayList<>();
+    protected final Map<String, Integer> m_codes = new HashMap<>();
+
+    protected DictionaryColumn( ValueMetaInterface fieldMeta, int streamIndex ) {
+      m_fieldMeta = fieldMeta;
+      m_streamIndex = streamIndex;
+    }
+
+    @Override protected void add( Object[] row, int chunkIndex, int offset, int groupSize )
+        throws KettleValueException {
+      int[] chunk;
+      if ( offset == 0 ) {
+        chunk = new int[Math.min( INITIAL_CHUNK_CAPACITY, groupSize )];
+        m_chunks.add( chunk );
+      } else {
+        chunk = m_chunks.get( chunkIndex );
+        if ( offset == chunk.length ) {
+          chunk = Arrays.copyOf( chunk, Math.min( groupSize, chunk.length * 2 ) );
+          m_chunks.set( chunkIndex, chunk );
+        }
+      }
+      Object value = row[m_streamIndex];
+      int code = MISSING_CODE;
+      if ( !m_fieldMeta.isNull( value ) ) {
+        String stringVal = m_fieldMeta.getString( value );
+        Integer existing = m_codes.get( stringVal );
+        if ( existing == null ) {
+          existing = m_values.size();
+          m_values.add( stringVal );
+          m_codes.put( stringVal, existing );
+        }
+        code = existing;
+      }
+      chunk[offset] = code;
+    }
+
+    /**
+     * Compute the attribute value index for each dictionary code. Values are added to string attributes in order of
+     * first occurrence (as they would be if the rows were converted one at a time); values that are not legal for a
+     * nominal attribute map to missing.
+     *
+     * @param attribute the attribute for this column
+     * @return the attribute value index for each dictionary code
+     */
+    protected double[] mapCodes( Attribute attribute ) {
+      double[] codeMap = new double[m_values.size()];
+      for ( int i = 0; i < codeMap.length; i++ ) {
+        if ( attribute.isString() ) {
+          codeMap[i] = attribute.addStringValue( m_values.get( i ) );
+        } else {
+          int index = attribute.indexOfValue( m_values.get( i ) );
+          codeMap[i] = index < 0 ? Utils.missingValue() : index;
+        }
+      }
+      return codeMap;
+    }
+
+    @Override protected int bytesPerValue() {
+      return 4;
+    }
+
+    @Override protected void spill( int chunk, ByteBuffer out ) {
+      int[] values = m_chunks.get( chunk );
+      out.asIntBuffer().put( values );
+      out.position( out.position() + values.length * bytesPerValue() );
+      m_chunks.set( chunk, null );
+    }
+
+    @Override protected Object chunk( int chunk, ByteBuffer spilled, int groupSize ) {
+      if ( spilled == null ) {
+        return m_chunks.get( chunk );
+      }
+      int[] result = new int[groupSize];
+      spilled.asIntBuffer().get( result );
+      spilled.position( spilled.position() + groupSize * bytesPerValue() );
+      return result;
+    }
+
+    @Override protected void release( int chunk ) {
+      m_chunks.set( chunk, null );
+    }
+
+    @Override protected double value( Object chunk, int offset, double[] codeMap ) {
+      int code = ( (int[]) chunk )[offset];
+      return code == MISSING_CODE ? Utils.missingValue() : codeMap[code];
+    }
+
+    @Override protected void clear() {
+      m_chunks.clear();
+      m_values.clear();
+      m_codes.clear();
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.logging.Metrics;
+import org.pentaho.di.core.metrics.MetricsSnapshotType;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Chooses the batch scoring size at runtime. The time taken to score each full
+ * batch is measured, and the batch size is grown geometrically for as long as
+ * throughput (rows per second) keeps improving. Once it stops improving, the
+ * search narrows in around the best size found so far until it settles.
+ * Batches that take longer than an (optional) latency ceiling to score count
+ * as no improvement, and if even the starting size exceeds the ceiling then the
+ * batch size is shrunk instead.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIBatchSizeTuner {
+
+  /**
+   * Metric recording the batch sizes chosen (when the transformation is gathering metrics)
+   */
+  public static final Metrics METRIC_BATCH_SCORING_SIZE =
+      new Metrics( MetricsSnapshotType.MAX, "PMI_BATCH_SCORING_SIZE", "Batch scoring size chosen automatically" );
+
+  public static final int MIN_BATCH_SIZE = 1;
+  public static final int MAX_BATCH_SIZE = 100000;
+
+  /**
+   * Number of full batches measured at each size tried. Averaging smooths out
+   * noise such as GC pauses and network jitter
+   */
+  protected static final int BATCHES_PER_MEASUREMENT = 3;
+
+  /**
+   * Minimum relative throughput gain for a size to count as an improvement
+   */
+  protected static final double MIN_IMPROVEMENT = 0.05;
+
+  /**
+   * Search stops once the step between sizes is smaller than this factor
+   */
+  protected static final double MIN_STEP_FACTOR = 1.1;
+
+  protected final LogChannelInterface m_log;
+
+  /**
+   * Maximum time to score one batch (nanoseconds). 0 for no limit
+   */
+  protected final long m_latencyCeilingNanos;
+
+  protected int m_batchSize;
+  protected int m_bestBatchSize;
+  protected double m_bestThroughput;
+
+  /**
+   * Factor by which the size is currently being grown from the best size
+   */
+  protected double m_stepFactor = 2.0;
+
+  protected boolean m_settled;
+
+  protected int m_measuredBatches;
+  protected long m_measuredRows;
+  protected long m_measuredNanos;
+
+  /**
+   * Constructor
+   *
+   * @param initialBatchSize    the batch size to start from
+   * @param latencyCeilingNanos the maximum time to score a batch in nanoseconds (0 for no limit)
+   * @param log                 the log to use
+   */
+  public PMIBatchSizeTuner( int initialBatchSize, long latencyCeilingNanos, LogChannelInterface log ) {
+    m_batchSize = Math.min( MAX_BATCH_SIZE, Math.max( MIN_BATCH_SIZE, initialBatchSize ) );
+    m_bestBatchSize = m_batchSize;
+    m_latencyCeilingNanos = latencyCeilingNanos;
+    m_log = log;
+    m_log.snap( METRIC_BATCH_SCORING_SIZE, m_batchSize );
+  }
+
+  /**
+   * Get the batch size to use for the next batch
+   *
+   * @return the batch size
+   */
+  public synchronized int getBatchSize() {
+    return m_batchSize;
+  }
+
+  /**
+   * Returns true once the search has settled on a batch size
+   *
+   * @return true if the batch size is no longer changing
+   */
+  public synchronized boolean isSettled() {
+    return m_settled;
+  }
+
+  /**
+   * Get the best throughput (rows per second) measured so far
+   *
+   * @return the best throughput
+   */
+  public synchronized double getBestThroughput() {
+    return m_bestThroughput;
+  }
+
+  /**
+   * Record the time taken to score a batch. May be called from any thread.
+   * Partial batches (e.g. the last batch, or one flushed by a timer) are
+   * ignored, as are batches scored at a size other than the current one.
+   *
+   * @param rows  the number of rows in the batch
+   * @param nanos the time taken to score the batch, in nanoseconds
+   */
+  public synchronized void batchScored( int rows, long nanos ) {
+    if ( m_settled || rows != m_batchSize ) {
+      return;
+    }
+
+    m_measuredBatches++;
+    m_measuredRows += rows;
+    m_measuredNanos += nanos;
+    if ( m_measuredBatches < BATCHES_PER_MEASUREMENT ) {
+      return;
+    }
+
+    double throughput = m_measuredRows / ( Math.max( 1, m_measuredNanos ) / 1e9 );
+    long meanLatency = m_measuredNanos / m_measuredBatches;
+    m_measuredBatches = 0;
+    m_measuredRows = 0;
+    m_measuredNanos = 0;
+
+    boolean tooSlow = m_latencyCeilingNanos > 0 && meanLatency > m_latencyCeilingNanos;
+    if ( m_log.isDetailed() ) {
+      m_log.logDetailed( BaseMessages
+          .getString( PMIScoringMeta.PKG, "PMIBatchSizeTuner.Message.Measured", m_batchSize, (long) throughput,
+              meanLatency / 1000000L ) );
+    }
+
+    if ( tooSlow && m_batchSize == m_bestBatchSize ) {
+      // the best size so far is over the ceiling - start again from a smaller size
+      if ( m_batchSize == MIN_BATCH_SIZE ) {
+        settle();
+        return;
+      }
+      m_bestThroughput = 0;
+      setBatchSize( (int) ( m_batchSize / m_stepFactor ) );
+      m_bestBatchSize = m_batchSize;
+      return;
+    }
+
+    if ( !tooSlow && throughput > m_bestThroughput * ( 1 + MIN_IMPROVEMENT ) ) {
+      m_bestBatchSize = m_batchSize;
+      m_bestThroughput = throughput;
+      if ( m_batchSize == MAX_BATCH_SIZE ) {
+        settle();
+      } else {
+        setBatchSize( (int) Math.ceil( m_batchSize * m_stepFactor ) );
+      }
+      return;
+    }
+
+    // no worthwhile improvement - narrow the search around the best size
+    m_stepFactor = Math.sqrt( m_stepFactor );
+    if ( m_stepFactor < MIN_STEP_FACTOR ) {
+      settle();
+    } else {
+      setBatchSize( (int) Math.ceil( m_bestBatchSize * m_stepFactor ) );
+    }
+  }
+
+  protected void setBatchSize( int size ) {
+    m_batchSize = Math.min( MAX_BATCH_SIZE, Math.max( MIN_BATCH_SIZE, size ) );
+    m_log.snap( METRIC_BATCH_SCORING_SIZE, m_batchSize );
+  }
+
+  protected void settle() {
+    m_settled = true;
+    setBatchSize( m_bestBatchSize );
+    m_log.logBasic( BaseMessages
+        .getString( PMIScoringMeta.PKG, "PMIBatchSizeTuner.Message.Settled", m_batchSize, (long) m_bestThroughput ) );
+  }
+}
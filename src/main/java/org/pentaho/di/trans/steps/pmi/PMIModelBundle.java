@@ -0,0 +1,360 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.Instances;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A single file holding several models - one per stratum (or batch) when a
+ * supervised step trains in stratified or batch row handling mode. Each entry
+ * is a model container (see {@link PMIModelContainer}), and an index mapping
+ * entry keys (stratification values or batch numbers) to their position in the
+ * file is written at the end. Entries are read lazily, via memory-mapped reads,
+ * so only the models that are actually used are ever deserialized.
+ * <p>
+ * Layout:
+ * <pre>
+ * magic (4 bytes) "PMIB"
+ * format version (int)
+ * entries (model containers)
+ * entry count (int)
+ * entry count x [key (UTF), offset (long), length (long)]
+ * index offset (long)
+ * magic (4 bytes) "PMIB"
+ * </pre>
+ * The trailing magic marks a bundle that was completely written.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIModelBundle {
+
+  /**
+   * File extension used for model bundles
+   */
+  public static final String FILE_EXTENSION = ".pmibundle";
+
+  protected static final byte[] MAGIC = { 'P', 'M', 'I', 'B' };
+
+  public static final int FORMAT_VERSION = 1;
+
+  protected static final int TRAILER_LENGTH = 8 + MAGIC.length;
+
+  /**
+   * Returns true if the supplied file name uses the bundle extension
+   *
+   * @param fileName the name to check
+   * @return true if the file name has the bundle extension
+   */
+  public static boolean hasBundleExtension( String fileName ) {
+    return fileName != null && fileName.toLowerCase().endsWith( FILE_EXTENSION );
+  }
+
+  /**
+   * Writes a model bundle. Entries are appended as they are added; the index is
+   * written when the writer is closed.
+   */
+  public static class Writer implements Closeable {
+    protected File m_file;
+    protected RandomAccessFile m_raf;
+    protected Map<String, long[]> m_index = new LinkedHashMap<>();
+
+    /**
+     * Constructor. Any existing file is overwritten.
+     *
+     * @param file the file to write to
+     * @throws IOException if a problem occurs
+     */
+    public Writer( File file ) throws IOException {
+      m_file = file;
+      m_raf = new RandomAccessFile( file, "rw" );
+      m_raf.setLength( 0 );
+      m_raf.write( MAGIC );
+      m_raf.writeInt( FORMAT_VERSION );
+    }
+
+    /**
+     * @return the file being written to
+     */
+    public File getFile() {
+      return m_file;
+    }
+
+    /**
+     * Append a model to the bundle
+     *
+     * @param key              the key for the entry (e.g. stratification value)
+     * @param model            the model to write
+     * @param header           the structure of the training data
+     * @param classPriors      evaluation object holding training class priors
+     *                         (may be null)
+     * @param ignoredAttributes indexes of attributes ignored by a clusterer (may
+     *                         be null)
+     * @throws Exception if a problem occurs, or there is already an entry for
+     *                   the key
+     */
+    public synchronized void add( String key, Object model, Instances header, Evaluation classPriors,
+        int[] ignoredAttributes ) throws Exception {
+      if ( m_raf == null ) {
+        throw new IOException( "Model bundle " + m_file + " has already been closed" );
+      }
+      if ( m_index.containsKey( key ) ) {
+        throw new IOException( "Model bundle " + m_file + " already contains an entry for '" + key + "'" );
+      }
+      long offset = m_raf.getFilePointer();
+      long length =
+          PMIModelContainer
+              .write( m_raf, model, header, classPriors, ignoredAttributes, PMIModelContainer.CODEC_SERIALIZED );
+      m_index.put( key, new long[] { offset, length } );
+    }
+
+    /**
+     * @return the number of entries written so far
+     */
+    public synchronized int size() {
+      return m_index.size();
+    }
+
+    /**
+     * Write the index and close the file
+     *
+     * @throws IOException if a problem occurs
+     */
+    @Override public synchronized void close() throws IOException {
+      if ( m_raf == null ) {
+        return;
+      }
+      try {
+        long indexOffset = m_raf.getFilePointer();
+        m_raf.writeInt( m_index.size() );
+        for ( Map.Entry<String, long[]> e : m_index.entrySet() ) {
+          m_raf.writeUTF( e.getKey() );
+          m_raf.writeLong( e.getValue()[0] );
+          m_raf.writeLong( e.getValue()[1] );
+        }
+        m_raf.writeLong( indexOffset );
+        m_raf.write( MAGIC );
+      } finally {
+        m_raf.close();
+        m_raf = null;
+      }
+    }
+  }
+
+  /**
+   * Reads entries from a model bundle. The index is read when the bundle is
+   * opened; entries are memory-mapped and read on demand. Safe for use by
+   * multiple threads.
+   */
+  public static class Reader implements Closeable {
+    protected File m_file;
+    protected RandomAccessFile m_raf;
+    protected FileChannel m_channel;
+    protected Map<String, long[]> m_index = new LinkedHashMap<>();
+
+    /**
+     * Constructor. Opens the bundle and reads its index.
+     *
+     * @param file the bundle file
+     * @throws IOException if the file is not a (complete) model bundle, or a
+     *                     problem occurs
+     */
+    public Reader( File file ) throws IOException {
+      m_file = file;
+      m_raf = new RandomAccessFile( file, "r" );
+      try {
+        m_channel = m_raf.getChannel();
+        long size = m_channel.size();
+        if ( size < MAGIC.length + 4 + 4 + TRAILER_LENGTH ) {
+          throw new IOException( "Not a PMI model bundle: " + file );
+        }
+        DataInputStream header = new DataInputStream( map( 0, MAGIC.length + 4 ) );
+        checkMagic( header );
+        int version = header.readInt();
+        if ( version > FORMAT_VERSION ) {
+          throw new IOException( "Unsupported PMI model bundle version: " + version );
+        }
+
+        DataInputStream trailer = new DataInputStream( map( size - TRAILER_LENGTH, TRAILER_LENGTH ) );
+        long indexOffset = trailer.readLong();
+        checkMagic( trailer );
+        if ( indexOffset < MAGIC.length + 4 || indexOffset >= size - TRAILER_LENGTH ) {
+          throw new IOException( "PMI model bundle index is corrupt: " + file );
+        }
+
+        DataInputStream index = new DataInputStream( map( indexOffset, size - TRAILER_LENGTH - indexOffset ) );
+        int count = index.readInt();
+        for ( int i = 0; i < count; i++ ) {
+          String key = index.readUTF();
+          long offset = index.readLong();
+          long length = index.readLong();
+          if ( offset < 0 || length < 0 || offset + length > indexOffset ) {
+            throw new IOException( "PMI model bundle index is corrupt: " + file );
+          }
+          m_index.put( key, new long[] { offset, length } );
+        }
+      } catch ( IOException e ) {
+        m_raf.close();
+        throw e;
+      }
+    }
+
+    protected void checkMagic( DataInputStream in ) throws IOException {
+      for ( byte b : MAGIC ) {
+        if ( in.readByte() != b ) {
+          throw new IOException( "Not a (completely written) PMI model bundle: " + m_file );
+        }
+      }
+    }
+
+    protected InputStream map( long offset, long length ) throws IOException {
+      if ( length > Integer.MAX_VALUE ) {
+        throw new IOException( "PMI model bundle entry is too large to map: " + length + " bytes" );
+      }
+      return new ByteBufferInputStream( m_channel.map( FileChannel.MapMode.READ_ONLY, offset, length ) );
+    }
+
+    /**
+     * @return the bundle file
+     */
+    public File getFile() {
+      return m_file;
+    }
+
+    /**
+     * @return the keys of the entries in the bundle, in the order they were
+     * written
+     */
+    public Set<String> getKeys() {
+      return Collections.unmodifiableSet( m_index.keySet() );
+    }
+
+    /**
+     * @param key the key to check
+     * @return true if the bundle has an entry for the key
+     */
+    public boolean contains( String key ) {
+      return m_index.containsKey( key );
+    }
+
+    /**
+     * Read just the metadata of an entry
+     *
+     * @param key the key of the entry
+     * @return the metadata, or null if there is no entry for the key
+     * @throws Exception if a problem occurs
+     */
+    public PMIModelContainer.ModelInfo readInfo( String key ) throws Exception {
+      long[] pos = m_index.get( key );
+      if ( pos == null ) {
+        return null;
+      }
+      return PMIModelContainer.readInfo( map( pos[0], pos[1] ) );
+    }
+
+    /**
+     * Read an entry (metadata and model)
+     *
+     * @param key the key of the entry
+     * @return a two element array holding the metadata
+     * ({@link PMIModelContainer.ModelInfo}) and the model, or null if there is
+     * no entry for the key
+     * @throws Exception if a problem occurs
+     */
+    public Object[] readEntry( String key ) throws Exception {
+      long[] pos = m_index.get( key );
+      if ( pos == null ) {
+        return null;
+      }
+      InputStream in = map( pos[0], pos[1] );
+      PMIModelContainer.ModelInfo info = PMIModelContainer.readInfo( in );
+      return new Object[] { info, PMIModelContainer.readModel( in, info ) };
+    }
+
+    @Override public void close() throws IOException {
+      m_raf.close();
+    }
+  }
+
+  /**
+   * Input stream over a (memory-mapped) buffer
+   */
+  protected static class ByteBufferInputStream extends InputStream {
+    protected ByteBuffer m_buffer;
+
+    protected ByteBufferInputStream( MappedByteBuffer buffer ) {
+      m_buffer = buffer;
+    }
+
+    @Override public int read() {
+      return m_buffer.hasRemaining() ? m_buffer.get() & 0xFF : -1;
+    }
+
+    @Override public int read( byte[] b, int off, int len ) {
+      if ( !m_buffer.hasRemaining() ) {
+        return -1;
+      }
+      len = Math.min( len, m_buffer.remaining() );
+      m_buffer.get( b, off, len );
+      return len;
+    }
+
+    @Override public long skip( long n ) {
+      int skipped = (int) Math.min( Math.max( n, 0 ), m_buffer.remaining() );
+      m_buffer.position( m_buffer.position() + skipped );
+      return skipped;
+    }
+
+    @Override public int available() {
+      return m_buffer.remaining();
+    }
+
+    @Override public boolean markSupported() {
+      return true;
+    }
+
+    @Override public synchronized void mark( int readLimit ) {
+      m_buffer.mark();
+    }
+
+    @Override public synchronized void reset() {
+      m_buffer.reset();
+    }
+  }
+}
@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.clusterers.Clusterer;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Versioned container format for saved models. A small metadata section - the
+ * structure of the training data, class priors, the type of model and so on -
+ * comes first, followed by the (serialized) model body. This means that the
+ * metadata can be read without touching the model body, which can be large (and
+ * slow to deserialize) for ensembles such as random forests. The body is
+ * protected by a CRC32 checksum.
+ * <p>
+ * Layout:
+ * <pre>
+ * magic (4 bytes) "PMIM"
+ * format version (int)
+ * metadata length (int)
+ * metadata
+ * body codec (byte)
+ * body length (long)
+ * body checksum (long)
+ * body
+ * </pre>
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIModelContainer {
+
+  /**
+   * File extension used for models saved in the container format
+   */
+  public static final String FILE_EXTENSION = ".pmimodel";
+
+  protected static final byte[] MAGIC = { 'P', 'M', 'I', 'M' };
+
+  public static final int FORMAT_VERSION = 1;
+
+  /**
+   * Body is a Java-serialized model
+   */
+  public static final byte CODEC_SERIALIZED = 0;
+
+  /**
+   * Body is a Java-serialized model, compressed with deflate (fastest setting)
+   */
+  public static final byte CODEC_SERIALIZED_DEFLATE = 1;
+
+  protected static final String TYPE_CLASSIFIER = "classifier";
+  protected static final String TYPE_CLUSTERER = "clusterer";
+  protected static final String TYPE_OTHER = "other";
+
+  protected static final int BODY_BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * Returns true if the supplied file name uses the container format extension
+   *
+   * @param fileName the name to check
+   * @return true if the file name has the container extension
+   */
+  public static boolean hasContainerExtension( String fileName ) {
+    return fileName.toLowerCase().endsWith( FILE_EXTENSION );
+  }
+
+  /**
+   * Returns true if the stream starts with a model container. The stream must
+   * support mark/reset; it is left positioned at the start.
+   *
+   * @param in the stream to check
+   * @return true if the stream contains a model container
+   * @throws IOException if a problem occurs
+   */
+  public static boolean isContainer( InputStream in ) throws IOException {
+    in.mark( MAGIC.length );
+    try {
+      for ( byte b : MAGIC ) {
+        if ( in.read() != b ) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      in.reset();
+    }
+  }
+
+  /**
+   * Write a model to a container file
+   *
+   * @param file             the file to write to
+   * @param model            the model to write
+   * @param header           the structure of the training data (instances are
+   *                         not saved)
+   * @param classPriors      evaluation object holding training class priors
+   *                         (may be null)
+   * @param ignoredAttributes indexes of attributes ignored by a clusterer (may
+   *                         be null)
+   * @param codec            the codec to use for the model body
+   * @throws Exception if a problem occurs
+   */
+  public static void write( File file, Object model, Instances header, Evaluation classPriors,
+      int[] ignoredAttributes, byte codec ) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try {
+      raf.setLength( 0 );
+      write( raf, model, header, classPriors, ignoredAttributes, codec );
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Write a model container to a file at the file's current position. The file
+   * is left positioned at the end of the container. Used to pack several
+   * containers into one file (see {@link PMIModelBundle}).
+   *
+   * @param raf              the file to write to
+   * @param model            the model to write
+   * @param header           the structure of the training data (instances are
+   *                         not saved)
+   * @param classPriors      evaluation object holding training class priors
+   *                         (may be null)
+   * @param ignoredAttributes indexes of attributes ignored by a clusterer (may
+   *                         be null)
+   * @param codec            the codec to use for the model body
+   * @return the number of bytes written
+   * @throws Exception if a problem occurs
+   */
+  public static long write( RandomAccessFile raf, Object model, Instances header, Evaluation classPriors,
+      int[] ignoredAttributes, byte codec ) throws Exception {
+    if ( codec != CODEC_SERIALIZED && codec != CODEC_SERIALIZED_DEFLATE ) {
+      throw new IllegalArgumentException( "Unknown model body codec: " + codec );
+    }
+
+    // metadata section
+    ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+    DataOutputStream metaOut = new DataOutputStream( metaBytes );
+    metaOut.writeUTF( model.getClass().getName() );
+    String type = TYPE_OTHER;
+    int numClusters = -1;
+    if ( model instanceof Classifier ) {
+      type = TYPE_CLASSIFIER;
+    } else if ( model instanceof Clusterer ) {
+      type = TYPE_CLUSTERER;
+      numClusters = ( (Clusterer) model ).numberOfClusters();
+    }
+    metaOut.writeUTF( type );
+    metaOut.writeInt( numClusters );
+    ObjectOutputStream metaObjects = new ObjectOutputStream( metaOut );
+    metaObjects.writeObject( header.stringFreeStructure() );
+    metaObjects.writeObject( classPriors );
+    metaObjects.writeObject( ignoredAttributes );
+    metaObjects.close();
+    byte[] meta = metaBytes.toByteArray();
+
+    long start = raf.getFilePointer();
+    raf.write( MAGIC );
+    raf.writeInt( FORMAT_VERSION );
+    raf.writeInt( meta.length );
+    raf.write( meta );
+    raf.writeByte( codec );
+    long bodyLengthPos = raf.getFilePointer();
+    // placeholders for the body length and checksum - filled in once the body has been written
+    raf.writeLong( 0L );
+    raf.writeLong( 0L );
+    long bodyStart = raf.getFilePointer();
+
+    CRC32 crc = new CRC32();
+    OutputStream bodyOut =
+        new CheckedOutputStream( new UnclosableOutputStream( Channels.newOutputStream( raf.getChannel() ) ), crc );
+    if ( codec == CODEC_SERIALIZED_DEFLATE ) {
+      bodyOut = new DeflaterOutputStream( bodyOut, new Deflater( Deflater.BEST_SPEED ), BODY_BUFFER_SIZE );
+    }
+    ObjectOutputStream oos = new ObjectOutputStream( new BufferedOutputStream( bodyOut, BODY_BUFFER_SIZE ) );
+    oos.writeObject( model );
+    oos.close();
+
+    long bodyEnd = raf.getChannel().position();
+    raf.seek( bodyLengthPos );
+    raf.writeLong( bodyEnd - bodyStart );
+    raf.writeLong( crc.getValue() );
+    raf.seek( bodyEnd );
+
+    return bodyEnd - start;
+  }
+
+  /**
+   * Read the metadata section of a container. The stream is left positioned at
+   * the start of the model body, so the model can be read (if needed) by
+   * passing the same stream to readModel().
+   *
+   * @param in the stream to read from
+   * @return the metadata
+   * @throws Exception if the stream does not contain a model container, or the
+   *                   container can't be read
+   */
+  public static ModelInfo readInfo( InputStream in ) throws Exception {
+    DataInputStream dis = new DataInputStream( in );
+    for ( byte b : MAGIC ) {
+      if ( dis.readByte() != b ) {
+        throw new IOException( "Not a PMI model container" );
+      }
+    }
+    int version = dis.readInt();
+    if ( version > FORMAT_VERSION ) {
+      throw new IOException( "Unsupported PMI model container version: " + version );
+    }
+    byte[] meta = new byte[dis.readInt()];
+    dis.readFully( meta );
+
+    ModelInfo info = new ModelInfo();
+    info.m_formatVersion = version;
+    DataInputStream metaIn = new DataInputStream( new ByteArrayInputStream( meta ) );
+    info.m_modelClassName = metaIn.readUTF();
+    info.m_modelType = metaIn.readUTF();
+    info.m_numClusters = metaIn.readInt();
+    ObjectInputStream metaObjects = SerializationHelper.getObjectInputStream( metaIn );
+    info.m_header = (Instances) metaObjects.readObject();
+    info.m_classPriors = (Evaluation) metaObjects.readObject();
+    info.m_ignoredAttributes = (int[]) metaObjects.readObject();
+    metaObjects.close();
+
+    info.m_bodyCodec = dis.readByte();
+    info.m_bodyLength = dis.readLong();
+    info.m_bodyChecksum = dis.readLong();
+
+    return info;
+  }
+
+  /**
+   * Read the model body. The stream must be positioned at the start of the
+   * body (i.e. readInfo() has just been called on it). The checksum of the body
+   * is verified.
+   *
+   * @param in   the stream to read from
+   * @param info the metadata read from the stream
+   * @return the model
+   * @throws Exception if a problem occurs
+   */
+  public static Object readModel( InputStream in, ModelInfo info ) throws Exception {
+    CRC32 crc = new CRC32();
+    CheckedInputStream checked = new CheckedInputStream( new BoundedInputStream( in, info.m_bodyLength ), crc );
+    InputStream bodyIn = checked;
+    if ( info.m_bodyCodec == CODEC_SERIALIZED_DEFLATE ) {
+      bodyIn = new InflaterInputStream( bodyIn );
+    } else if ( info.m_bodyCodec != CODEC_SERIALIZED ) {
+      throw new IOException( "Unknown model body codec: " + info.m_bodyCodec );
+    }
+    ObjectInputStream ois =
+        SerializationHelper.getObjectInputStream( new BufferedInputStream( bodyIn, BODY_BUFFER_SIZE ) );
+    Object model = ois.readObject();
+
+    // account for anything left in the body (e.g. end of deflate stream) before checking
+    byte[] skip = new byte[8192];
+    while ( checked.read( skip ) >= 0 ) {
+    }
+    if ( crc.getValue() != info.m_bodyChecksum ) {
+      throw new IOException( "PMI model container checksum mismatch - the model file is corrupt" );
+    }
+
+    return model;
+  }
+
+  /**
+   * Metadata about a model held in a container
+   */
+  public static class ModelInfo {
+    protected int m_formatVersion;
+    protected String m_modelClassName;
+    protected String m_modelType;
+    protected int m_numClusters;
+    protected Instances m_header;
+    protected Evaluation m_classPriors;
+    protected int[] m_ignoredAttributes;
+    protected byte m_bodyCodec;
+    protected long m_bodyLength;
+    protected long m_bodyChecksum;
+
+    public int getFormatVersion() {
+      return m_formatVersion;
+    }
+
+    public String getModelClassName() {
+      return m_modelClassName;
+    }
+
+    public boolean isClassifier() {
+      return TYPE_CLASSIFIER.equals( m_modelType );
+    }
+
+    public boolean isClusterer() {
+      return TYPE_CLUSTERER.equals( m_modelType );
+    }
+
+    /**
+     * @return the number of clusters (clusterers only), or -1 if not known
+     */
+    public int getNumClusters() {
+      return m_numClusters;
+    }
+
+    /**
+     * @return the structure of the training data
+     */
+    public Instances getHeader() {
+      return m_header;
+    }
+
+    /**
+     * @return evaluation object holding training class priors (may be null)
+     */
+    public Evaluation getClassPriors() {
+      return m_classPriors;
+    }
+
+    /**
+     * @return attributes ignored by a clusterer (may be null)
+     */
+    public int[] getIgnoredAttributes() {
+      return m_ignoredAttributes;
+    }
+
+    /**
+     * @return the size of the (encoded) model body in bytes
+     */
+    public long getBodyLength() {
+      return m_bodyLength;
+    }
+
+    public long getBodyChecksum() {
+      return m_bodyChecksum;
+    }
+  }
+
+  /**
+   * Limits reading to the model body
+   */
+  protected static class BoundedInputStream extends FilterInputStream {
+    protected long m_remaining;
+
+    protected BoundedInputStream( InputStream in, long length ) {
+      super( in );
+      m_remaining = length;
+    }
+
+    @Override public int read() throws IOException {
+      if ( m_remaining <= 0 ) {
+        return -1;
+      }
+      int b = super.read();
+      if ( b >= 0 ) {
+        m_remaining--;
+      }
+      return b;
+    }
+
+    @Override public int read( byte[] b, int off, int len ) throws IOException {
+      if ( m_remaining <= 0 ) {
+        return -1;
+      }
+      int n = super.read( b, off, (int) Math.min( len, m_remaining ) );
+      if ( n > 0 ) {
+        m_remaining -= n;
+      }
+      return n;
+    }
+
+    @Override public long skip( long n ) throws IOException {
+      long skipped = super.skip( Math.min( n, m_remaining ) );
+      m_remaining -= skipped;
+      return skipped;
+    }
+
+    @Override public int available() throws IOException {
+      return (int) Math.min( super.available(), m_remaining );
+    }
+
+    @Override public boolean markSupported() {
+      return false;
+    }
+
+    @Override public void close() {
+      // the underlying stream is closed by its owner
+    }
+  }
+
+  /**
+   * Stops the body streams from closing the underlying file before the body
+   * length and checksum have been written
+   */
+  protected static class UnclosableOutputStream extends FilterOutputStream {
+    protected UnclosableOutputStream( OutputStream out ) {
+      super( out );
+    }
+
+    @Override public void write( byte[] b, int off, int len ) throws IOException {
+      out.write( b, off, len );
+    }
+
+    @Override public void close() throws IOException {
+      flush();
+    }
+  }
+}
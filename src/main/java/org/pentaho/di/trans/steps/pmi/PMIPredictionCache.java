@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.logging.Metrics;
+import org.pentaho.di.core.metrics.MetricsSnapshotType;
+import org.pentaho.di.i18n.BaseMessages;
+import weka.core.Attribute;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least recently used cache of predictions, keyed by the encoded
+ * attribute values of the instance that was scored. Useful when the incoming
+ * rows contain a small number of distinct feature vectors (e.g. mostly
+ * categorical data), as each distinct vector then only needs to be scored
+ * once. The cache holds predictions for one model (plus any challengers) at a
+ * time - it is cleared when the model changes. Safe for use by multiple
+ * threads.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIPredictionCache {
+
+  /**
+   * Metrics recording cache hits and misses (when the transformation is gathering metrics)
+   */
+  public static final Metrics METRIC_PREDICTION_CACHE_HITS =
+      new Metrics( MetricsSnapshotType.SUM, "PMI_PREDICTION_CACHE_HITS", "Predictions served from the cache" );
+  public static final Metrics METRIC_PREDICTION_CACHE_MISSES =
+      new Metrics( MetricsSnapshotType.SUM, "PMI_PREDICTION_CACHE_MISSES", "Predictions not found in the cache" );
+
+  /**
+   * Cached predictions in access order (least recently used first)
+   */
+  protected final LinkedHashMap<VectorKey, double[][]> m_entries;
+
+  protected final int m_maxEntries;
+
+  protected final LogChannelInterface m_log;
+
+  /**
+   * The model that the cached predictions were made by
+   */
+  protected PMIScoringModel m_model;
+
+  /**
+   * False if the predictions of the current model can't be cached
+   */
+  protected boolean m_modelCacheable;
+
+  protected long m_hits;
+  protected long m_misses;
+  protected long m_evictions;
+
+  /**
+   * Constructor
+   *
+   * @param maxEntries the maximum number of distinct vectors to hold
+   *                   predictions for
+   * @param log        the log to use
+   */
+  public PMIPredictionCache( final int maxEntries, LogChannelInterface log ) {
+    m_maxEntries = Math.max( 1, maxEntries );
+    m_log = log;
+    m_entries = new LinkedHashMap<VectorKey, double[][]>( 16, 0.75f, true ) {
+      @Override protected boolean removeEldestEntry( Map.Entry<VectorKey, double[][]> eldest ) {
+        if ( size() > m_maxEntries ) {
+          m_evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Look up the predictions for a vector of attribute values
+   *
+   * @param model the (main) model that is scoring
+   * @param vals  the encoded attribute values (class value missing)
+   * @return the predicted distributions - the main model's, followed by those
+   * of any challengers - or null if they are not cached
+   */
+  public synchronized double[][] get( PMIScoringModel model, double[] vals ) {
+    if ( !isCacheable( model ) ) {
+      return null;
+    }
+    double[][] preds = m_entries.get( new VectorKey( vals ) );
+    if ( preds != null ) {
+      m_hits++;
+      m_log.snap( METRIC_PREDICTION_CACHE_HITS, 1 );
+    } else {
+      m_misses++;
+      m_log.snap( METRIC_PREDICTION_CACHE_MISSES, 1 );
+    }
+    return preds;
+  }
+
+  /**
+   * Store the predictions for a vector of attribute values
+   *
+   * @param model the (main) model that made the predictions
+   * @param vals  the encoded attribute values (class value missing). The array
+   *              is copied
+   * @param preds the predicted distributions - the main model's, followed by
+   *              those of any challengers
+   */
+  public synchronized void put( PMIScoringModel model, double[] vals, double[][] preds ) {
+    if ( !isCacheable( model ) ) {
+      return;
+    }
+    m_entries.put( new VectorKey( vals.clone() ), preds );
+  }
+
+  /**
+   * Returns true if predictions from the supplied model can be cached. The
+   * encoded values of string (and relational) attributes are indexes into
+   * values that are not kept from row to row, so they don't identify the
+   * row's contents.
+   *
+   * @param model the (main) model that is scoring
+   * @return true if predictions from the model can be cached
+   */
+  public synchronized boolean isCacheable( PMIScoringModel model ) {
+    if ( model != m_model ) {
+      // predictions are only valid for the model that made them
+      m_entries.clear();
+      m_model = model;
+      m_modelCacheable =
+          !model.getHeader().checkForStringAttributes() && !model.getHeader()
+              .checkForAttributeType( Attribute.RELATIONAL );
+    }
+    return m_modelCacheable;
+  }
+
+  public synchronized void clear() {
+    m_entries.clear();
+    m_model = null;
+  }
+
+  public synchronized long getHits() {
+    return m_hits;
+  }
+
+  public synchronized long getMisses() {
+    return m_misses;
+  }
+
+  /**
+   * @return the proportion of lookups that were served from the cache
+   */
+  public synchronized double getHitRate() {
+    long lookups = m_hits + m_misses;
+    return lookups == 0 ? 0 : (double) m_hits / lookups;
+  }
+
+  public synchronized String getStatistics() {
+    return BaseMessages
+        .getString( PMIScoringMeta.PKG, "PMIPredictionCache.Message.Statistics", m_hits, m_misses,
+            String.format( "%.1f", getHitRate() * 100.0 ), m_evictions, m_entries.size() );
+  }
+
+  /**
+   * Key for a vector of attribute values. Missing values (NaN) compare equal
+   * to each other
+   */
+  protected static class VectorKey {
+    protected final double[] m_vals;
+    protected final int m_hash;
+
+    protected VectorKey( double[] vals ) {
+      m_vals = vals;
+      m_hash = Arrays.hashCode( vals );
+    }
+
+    @Override public int hashCode() {
+      return m_hash;
+    }
+
+    @Override public boolean equals( Object other ) {
+      return other instanceof VectorKey && m_hash == ( (VectorKey) other ).m_hash && Arrays
+          .equals( m_vals, ( (VectorKey) other ).m_vals );
+    }
+  }
+}
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts incoming Kettle rows into arrays of attribute values for a PMI
+ * model. The attribute-to-field mapping is compiled once into an array of
+ * converters, one per attribute, that are specialized for the type and storage
+ * of the incoming field and the type of the attribute. Nominal attributes get a
+ * pre-built lookup from incoming value to label index. Converting a row is then
+ * a loop over the converters that writes into a caller-supplied array, and
+ * creates no garbage for numeric, boolean and nominal attributes.
+ * <p>
+ * Instances of this class hold no per-row state, so can be used by more than
+ * one thread at a time. Each converter does have a (thread-safe) sparsity
+ * estimator that callers can use to decide whether to wrap converted values
+ * in sparse instances.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIRowConverter {
+
+  /**
+   * The header that the converters were compiled against
+   */
+  protected final Instances m_header;
+
+  /**
+   * One converter per attribute in the header
+   */
+  protected final AttributeConverter[] m_converters;
+
+  /**
+   * Decides whether converted rows should be held as sparse instances
+   */
+  protected final PMISparsityEstimator m_sparsity;
+
+  /**
+   * Compile converters for the supplied header and incoming row structure
+   *
+   * @param header         the header of the model
+   * @param inputMeta      the meta data of the incoming rows
+   * @param mappingIndexes the mapping from attributes to incoming fields (as
+   *                       computed by PMIScoringData.findMappings())
+   */
+  public PMIRowConverter( Instances header, RowMetaInterface inputMeta, int[] mappingIndexes ) {
+    m_header = header;
+    m_converters = new AttributeConverter[header.numAttributes()];
+
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      m_converters[i] =
+          mappingIndexes[i] >= 0 ? compile( header.attribute( i ), inputMeta.getValueMeta( mappingIndexes[i] ),
+              mappingIndexes[i] ) : MISSING;
+    }
+    m_sparsity = new PMISparsityEstimator( header );
+  }
+
+  /**
+   * Get the header that the converters were compiled against
+   *
+   * @return the header
+   */
+  public Instances getHeader() {
+    return m_header;
+  }
+
+  /**
+   * Get the sparsity estimator for rows converted by this converter
+   *
+   * @return the sparsity estimator
+   */
+  public PMISparsityEstimator getSparsity() {
+    return m_sparsity;
+  }
+
+  /**
+   * Convert an incoming row. Values that can't be converted are set to
+   * missing.
+   *
+   * @param inputRow      the incoming row
+   * @param vals          the array to write attribute values into
+   * @param header        the header that the values are destined for. String
+   *                      values are set on (or added to) the attributes in this
+   *                      header
+   * @param addStringVals true to add string values to string attributes (rather
+   *                      than setting the single value)
+   */
+  public void convert( Object[] inputRow, double[] vals, Instances header, boolean addStringVals ) {
+    AttributeConverter[] converters = m_converters;
+    for ( int i = 0; i < converters.length; i++ ) {
+      try {
+        vals[i] = converters[i].convert( inputRow, header, addStringVals );
+      } catch ( Exception e ) {
+        vals[i] = Utils.missingValue();
+      }
+    }
+  }
+
+  /**
+   * A dense instance that wraps a reusable array of values. Calling
+   * {@code reset()} before each use re-attaches the instance to the array (in
+   * case something has called setValue() on it, which causes a dense instance
+   * to take a private copy of its values), so that a single instance can be
+   * used to score any number of rows.
+   */
+  public static class PooledInstance extends DenseInstance {
+
+    private static final long serialVersionUID = -4312409937264367516L;
+
+    public PooledInstance( double[] vals ) {
+      super( 1.0, vals );
+    }
+
+    /**
+     * Re-attach this instance to the supplied array of values
+     *
+     * @param vals the values to wrap
+     */
+    public void reset( double[] vals ) {
+      m_AttValues = vals;
+      m_Weight = 1.0;
+    }
+  }
+
+  protected static AttributeConverter compile( Attribute att, ValueMetaInterface field, int fieldIndex ) {
+    boolean normalStorage = field.getStorageType() == ValueMetaInterface.STORAGE_TYPE_NORMAL;
+
+    switch ( att.type() ) {
+      case Attribute.NUMERIC:
+        if ( normalStorage ) {
+          switch ( field.getType() ) {
+            case ValueMetaInterface.TYPE_NUMBER:
+              return new NumberConverter( fieldIndex );
+            case ValueMetaInterface.TYPE_INTEGER:
+              return new IntegerConverter( fieldIndex );
+            case ValueMetaInterface.TYPE_BOOLEAN:
+              return new BooleanConverter( fieldIndex );
+            default:
+              // fall through to the generic converter
+          }
+        }
+        return new GenericNumericConverter( fieldIndex, field );
+      case Attribute.NOMINAL:
+        if ( field.getStorageType() == ValueMetaInterface.STORAGE_TYPE_INDEXED && field.getIndex() != null ) {
+          return new IndexedNominalConverter( fieldIndex, field, att );
+        }
+        return new NominalConverter( fieldIndex, field, att );
+      case Attribute.STRING:
+        return new StringConverter( fieldIndex, field, att.index() );
+      default:
+        return MISSING;
+    }
+  }
+
+  /**
+   * Base class for converting one incoming field to an attribute value
+   */
+  protected abstract static class AttributeConverter {
+    protected final int m_fieldIndex;
+
+    protected AttributeConverter( int fieldIndex ) {
+      m_fieldIndex = fieldIndex;
+    }
+
+    protected abstract double convert( Object[] inputRow, Instances header, boolean addStringVals ) throws Exception;
+  }
+
+  /**
+   * Attributes that have no (type compatible) incoming field
+   */
+  protected static final AttributeConverter MISSING = new AttributeConverter( -1 ) {
+    @Override protected double convert( Object[] inputRow, Instances header, boolean addStringVals ) {
+      return Utils.missingValue();
+    }
+  };
+
+  protected static class NumberConverter extends AttributeConverter {
+    protected NumberConverter( int fieldIndex ) {
+      super( fieldIndex );
+    }
+
+    @Override protected double convert( Object[] inputRow, Instances header, boolean addStringVals ) {
+      Object val = inputRow[m_fieldIndex];
+      return val == null ? Utils.missingValue() : (Double) val;
+    }
+  }
+
+  protected static class IntegerConverter extends AttributeConverter {
+    protected IntegerConverter( int fieldIndex ) {
+      super( fieldIndex );
+    }
+
+    @Override protected double convert( Object[] inputRow, Instances header, boolean addStringVals ) {
+      Object val = inputRow[m_fieldIndex];
+      return val == null ? Utils.missingValue() : (Long) val;
+    }
+  }
+
+  protected static class BooleanConverter extends AttributeConverter {
+    protected BooleanConverter( int fieldIndex ) {
+      super( fieldIndex );
+    }
+
+    @Override protected double convert( Object[] inputRow, Instances header, boolean addStringVals ) {
+      Object val = inputRow[m_fieldIndex];
+      if ( val == null ) {
+        return Utils.missingValue();
+      }
+      return (Boolean) val ? 1.0 : 0.0;
+    }
+  }
+
+  /**
+   * Numeric attributes from fields with lazy conversion/indexed storage, or
+   * big number fields
+   */
+  protected static class GenericNumericConverter extends AttributeConverter {
+    protected final ValueMetaInterface m_field;
+    protected final int m_type;
+
+    protected GenericNumericConverter( int fieldIndex, ValueMetaInterface field ) {
+      super( fieldIndex );
+      m_field = field;
+      m_type = field.getType();
+    }
+
+    @Override protected double convert( Object[] inputRow, Instances header, boolean addStringVals )
+        throws Exception {
+      Object val = inputRow[m_fieldIndex];
+      if ( m_field.isNull( val ) ) {
+        return Utils.missingValue();
+      }
+      if ( m_type == ValueMetaInterface.TYPE_BOOLEAN ) {
+        return m_field.getBoolean( val ) ? 1.0 : 0.0;
+      } else if ( m_type == ValueMetaInterface.TYPE_INTEGER ) {
+        return m_field.getInteger( val );
+      }
+      return m_field.getNumber( val );
+    }
+  }
+
+  protected static class NominalConverter extends AttributeConverter {
+    protected final ValueMetaInterface m_field;
+    protected final Map<String, Integer> m_lookup;
+
+    protected NominalConverter( int fieldIndex, ValueMetaInterface field, Attribute att ) {
+      super( fieldIndex );
+      m_field = field;
+      m_lookup = new HashMap<String, Integer>( att.numValues() * 2 );
+      for ( int i = 0; i < att.numValues(); i++ ) {
+        m_lookup.put( att.value( i ), i );
+      }
+    }
+
+    @Override protected double convert( Object[] inputRow, Instances header, boolean addStringVals )
+        throws Exception {
+      Object val = inputRow[m_fieldIndex];
+      if ( m_field.isNull( val ) ) {
+        return Utils.missingValue();
+      }
+      Integer index = m_lookup.get( m_field.getString( val ) );
+      return index == null ? Utils.missingValue() : index;
+    }
+  }
+
+  /**
+   * Nominal attributes from fields with indexed storage. The field's index of
+   * values is mapped to label indexes up front, so no string lookups are
+   * needed at all
+   */
+  protected static class IndexedNominalConverter extends AttributeConverter {
+    protected final ValueMetaInterface m_field;
+    protected final double[] m_labelIndexes;
+
+    protected IndexedNominalConverter( int fieldIndex, ValueMetaInterface field, Attribute att ) {
+      super( fieldIndex );
+      m_field = field;
+      Object[] fieldIndexValues = field.getIndex();
+      m_labelIndexes = new double[fieldIndexValues.length];
+      for ( int i = 0; i < fieldIndexValues.length; i++ ) {
+        int index = fieldIndexValues[i] == null ? -1 : att.indexOfValue( fieldIndexValues[i].toString() );
+        m_labelIndexes[i] = index < 0 ? Utils.missingValue() : index;
+      }
+    }
+
+    @Override protected double convert( Object[] inputRow, Instances header, boolean addStringVals ) {
+      Object val = inputRow[m_fieldIndex];
+      if ( val == null ) {
+        return Utils.missingValue();
+      }
+      int i = (Integer) val;
+      return i >= 0 && i < m_labelIndexes.length ? m_labelIndexes[i] : Utils.missingValue();
+    }
+  }
+
+  protected static class StringConverter extends AttributeConverter {
+    protected final ValueMetaInterface m_field;
+    protected final int m_attIndex;
+
+    protected StringConverter( int fieldIndex, ValueMetaInterface field, int attIndex ) {
+      super( fieldIndex );
+      m_field = field;
+      m_attIndex = attIndex;
+    }
+
+    @Override protected double convert( Object[] inputRow, Instances header, boolean addStringVals )
+        throws Exception {
+      Object val = inputRow[m_fieldIndex];
+      if ( m_field.isNull( val ) ) {
+        return Utils.missingValue();
+      }
+      Attribute att = header.attribute( m_attIndex );
+      String s = m_field.getString( val );
+      if ( addStringVals ) {
+        return att.addStringValue( s );
+      }
+      // Set the attribute in the header to contain just this string value
+      att.setStringValue( s );
+      return 0.0;
+    }
+  }
+}
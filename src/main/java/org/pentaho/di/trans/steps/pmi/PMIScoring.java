@@ -23,12 +23,16 @@
 package org.pentaho.di.trans.steps.pmi;
 
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.RowListener;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
@@ -38,10 +42,21 @@ import weka.core.SerializedObject;
 import org.pentaho.di.trans.step.StepMetaInterface;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
@@ -60,7 +75,42 @@ public class PMIScoring extends BaseStep implements StepInterface {
   /**
    * cache for models that are loaded from files specified in incoming rows
    */
-  private Map<String, PMIScoringModel> m_modelCache;
+  private PMIScoringModelCache m_modelCache;
+
+  /**
+   * bundle of models (e.g. one per stratum) when the model file is a model
+   * bundle. The incoming field then holds the key of the model to use for
+   * each row. Null if not scoring with a bundle
+   */
+  private PMIModelBundle.Reader m_modelBundle;
+
+  /**
+   * models loaded from the bundle so far, by key. Every model that has been
+   * used stays resident until the step finishes
+   */
+  private Map<String, PMIScoringModel> m_bundledModels;
+
+  /**
+   * rows read ahead of the row being scored, so that the next model file can be
+   * loaded in the background. Null if not prefetching
+   */
+  private Deque<Object[]> m_lookahead;
+
+  /**
+   * the number of rows to read ahead when prefetching models
+   */
+  private int m_prefetchRows;
+
+  /**
+   * window of rows buffered so that rows for the same model (file name
+   * sourced from a field) can be scored together. Null if not grouping
+   */
+  private List<Object[]> m_modelGroupWindow;
+
+  /**
+   * the number of rows in each window when grouping rows by model
+   */
+  private int m_modelGroupWindowSize;
 
   /**
    * model filename from the last row processed (if reading model filenames from
@@ -74,6 +124,103 @@ public class PMIScoring extends BaseStep implements StepInterface {
   private int m_batchScoringSize = PMIScoringMeta.DEFAULT_BATCH_SCORING_SIZE;
   private List<Object[]> m_batch;
 
+  /**
+   * chooses the batch size at runtime when the batch scoring size is "auto".
+   * Null otherwise
+   */
+  private PMIBatchSizeTuner m_batchSizeTuner;
+
+  /**
+   * true if batches of rows are being scored by a pool of worker threads
+   */
+  private boolean m_parallelScoring;
+
+  /**
+   * number of worker threads used when scoring in parallel
+   */
+  private int m_numScoringThreads = 1;
+
+  /**
+   * true if batches for a BatchPredictor model are being scored in a pipeline:
+   * rows are converted (and earlier batches output) on the step's thread while
+   * a single prediction thread works on the current batch
+   */
+  private boolean m_pipelinedScoring;
+
+  /**
+   * maximum number of batches waiting to be predicted or output when
+   * pipelining
+   */
+  private int m_maxBatchesInFlight = PMIScoringMeta.DEFAULT_MAX_BATCHES_IN_FLIGHT;
+
+  /**
+   * returned by getRowWithin() when no row arrived in time
+   */
+  private static final Object[] NO_ROW_YET = new Object[0];
+
+  /**
+   * maximum time (nanoseconds) that a row may wait in a partially filled batch.
+   * Zero if only full batches are scored
+   */
+  private long m_maxBatchLatencyNanos;
+
+  /**
+   * time (from System.nanoTime()) that the first row was added to the current
+   * batch
+   */
+  private long m_batchStartNanos;
+
+  /**
+   * the pool of workers that score batches in parallel (or the single
+   * prediction thread when pipelining). All workers share the one model held
+   * by m_data
+   */
+  private ExecutorService m_scoringPool;
+
+  /**
+   * each scoring thread's private copies of the main model and challengers,
+   * used when any of these is not thread-safe. Null if the workers share the
+   * models held by m_data
+   */
+  private ThreadLocal<WorkerModels> m_workerModels;
+
+  /**
+   * all the private copies made by the scoring threads, so that they can be
+   * released when the pool is shut down or the model is replaced
+   */
+  private final List<PMIScoringModel> m_workerCopies = new ArrayList<PMIScoringModel>();
+
+  /**
+   * batches that have been handed to the worker pool, in the order that their
+   * rows arrived. Output is always taken from the head of this queue so that
+   * row order is preserved
+   */
+  private Deque<Future<Object[][]>> m_pendingBatches;
+
+  /**
+   * models (or private copies of models) acquired from the shared model
+   * registry that need to be released when this step is finished
+   */
+  private List<PMIScoringModel> m_acquiredModels = new ArrayList<PMIScoringModel>();
+
+  /**
+   * threads that score batches with the challenger models, concurrently with
+   * the main model. Null if there are no challengers, or rows are not being
+   * scored in batches
+   */
+  private ExecutorService m_challengerPool;
+
+  /**
+   * watches the model file for new versions to swap in. Null if not watching
+   */
+  private PMIScoringModelWatcher m_modelWatcher;
+
+  /**
+   * Maximum difference allowed between the predictions of a compacted model and
+   * the original, or a negative value if models are not being compacted
+   */
+  private double m_compactModelTolerance = -1;
+
   public PMIScoring( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
       Trans trans ) {
     super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
@@ -102,6 +249,13 @@ public class PMIScoring extends BaseStep implements StepInterface {
       }
       logDebug( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Debug.UsingDefaultModel" ) );
       m_data.setModel( defaultM );
+      // so that the next row naming the previous model file switches back to it
+      m_lastRowModelFile = "";
+      return;
+    }
+
+    if ( m_modelBundle != null ) {
+      setModelFromBundle( modelFileName );
       return;
     }
 
@@ -112,25 +266,227 @@ public class PMIScoring extends BaseStep implements StepInterface {
       return;
     }
 
-    if ( m_meta.getCacheLoadedModels() ) {
-      PMIScoringModel modelToUse = m_modelCache.get( resolvedName );
-      if ( modelToUse != null ) {
-        logDebug( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Debug.FoundModelInCache" ) + " " //$NON-NLS-1$
-            + modelToUse.getModel().getClass() );
-        m_data.setModel( modelToUse );
-        m_lastRowModelFile = resolvedName;
-        return;
+    if ( m_modelCache != null ) {
+      PMIScoringModel modelToUse;
+      try {
+        modelToUse = m_modelCache.get( resolvedName );
+      } catch ( Exception ex ) {
+        throw new KettleException(
+            BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ProblemDeserializingModel" ), ex );
+      }
+      if ( log.isDebug() ) {
+        logDebug( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Debug.UsingModelFromCache" ) + " "
+            //$NON-NLS-1$
+            + resolvedName );
       }
+      m_data.setModel( modelToUse );
+      m_lastRowModelFile = resolvedName;
+      return;
     }
 
     // load the model
     logDebug(
         BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Debug.LoadingModelUsingFieldValue" ) + " " //$NON-NLS-1$
             + environmentSubstitute( modelFileName ) );
-    PMIScoringModel modelToUse = setModel( modelFileName );
+    PMIScoringModel previousModel = m_data.getModel();
+    setModel( modelFileName );
+
+    if ( previousModel != null && previousModel != m_data.getDefaultModel() ) {
+      // not caching, so hand the previous model back to the registry (if it came from there)
+      releaseAcquiredModel( previousModel );
+    }
+  }
+
+  /**
+   * Sets the model to use from the model bundle. Models are loaded from the
+   * bundle the first time their key is seen, and then stay resident.
+   *
+   * @param key the key (e.g. stratification value) of the model to use
+   * @throws KettleException if the bundle has no model for the key, or the
+   *                         model can't be loaded
+   */
+  private void setModelFromBundle( String key ) throws KettleException {
+    if ( key.equals( m_lastRowModelFile ) ) {
+      return;
+    }
+
+    PMIScoringModel model = m_bundledModels.get( key );
+    if ( model == null ) {
+      try {
+        model = PMIScoringData.loadBundledModel( m_modelBundle, key, getLogChannel(), this );
+        if ( model != null ) {
+          model = compactModel( model );
+        }
+      } catch ( Exception ex ) {
+        throw new KettleException(
+            BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ProblemDeserializingModel" ), ex );
+      }
+      if ( model == null ) {
+        throw new KettleException( BaseMessages
+            .getString( PMIScoringMeta.PKG, "PMIScoring.Error.NoModelInBundleForKey", key,
+                m_modelBundle.getFile().toString() ) );
+      }
+      if ( log.isDetailed() ) {
+        logDetailed( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.LoadedModelFromBundle", key ) );
+      }
+      m_bundledModels.put( key, model );
+    }
+    m_data.setModel( model );
+    m_lastRowModelFile = key;
+  }
+
+  /**
+   * Release the models loaded from the model bundle and close the bundle
+   */
+  protected void closeModelBundle() {
+    if ( m_bundledModels != null ) {
+      for ( PMIScoringModel model : m_bundledModels.values() ) {
+        model.done();
+      }
+      m_bundledModels = null;
+    }
+    if ( m_modelBundle != null ) {
+      try {
+        m_modelBundle.close();
+      } catch ( IOException e ) {
+        logError( e.getMessage(), e );
+      }
+      m_modelBundle = null;
+    }
+  }
+
+  /**
+   * Load the challenger models. Challengers are scored against the same
+   * converted rows as the main (champion) model, so they must have been
+   * trained on the same fields.
+   *
+   * @throws KettleException if a challenger can't be loaded, or is not
+   *                         compatible with the champion
+   */
+  protected void loadChallengers() throws KettleException {
+    PMIScoringModel champion = m_data.getModel();
+    if ( !champion.isSupervisedLearningModel() ) {
+      throw new KettleException(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ChallengersNeedSupervisedModel" ) );
+    }
+
+    List<PMIScoringModel> challengers = new ArrayList<PMIScoringModel>();
+    // set these now, so that they get cleaned up if a later challenger fails to load
+    m_data.setChallengers( challengers );
+    for ( String challengerFile : m_meta.getChallengerModelFileNames() ) {
+      PMIScoringModel challenger;
+      try {
+        challenger = loadModel( challengerFile );
+      } catch ( Exception ex ) {
+        throw new KettleException( BaseMessages
+            .getString( PMIScoringMeta.PKG, "PMIScoring.Error.ProblemLoadingChallenger",
+                environmentSubstitute( challengerFile ) ), ex );
+      }
+      if ( m_meta.getShareLoadedModels() ) {
+        m_acquiredModels.add( challenger );
+      }
+      challengers.add( challenger );
+
+      if ( !challenger.isSupervisedLearningModel() || !champion.getHeader()
+          .equalHeaders( challenger.getHeader() ) ) {
+        String reason =
+            challenger.isSupervisedLearningModel() ? champion.getHeader().equalHeadersMsg( challenger.getHeader() ) :
+                BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ChallengerNotSupervised" );
+        throw new KettleException( BaseMessages
+            .getString( PMIScoringMeta.PKG, "PMIScoring.Error.IncompatibleChallenger",
+                environmentSubstitute( challengerFile ), reason ) );
+      }
+    }
+
+    logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.ScoringWithChallengers",
+        challengers.size() ) );
+  }
+
+  /**
+   * Stop the challenger scoring threads and release the challenger models
+   */
+  protected void releaseChallengers() {
+    if ( m_challengerPool != null ) {
+      m_challengerPool.shutdownNow();
+      m_challengerPool = null;
+    }
+    if ( m_data != null ) {
+      m_data.setChallengerExecutor( null );
+      for ( PMIScoringModel challenger : m_data.getChallengers() ) {
+        if ( !releaseAcquiredModel( challenger ) ) {
+          challenger.done();
+        }
+      }
+      m_data.setChallengers( new ArrayList<PMIScoringModel>() );
+    }
+  }
+
+  /**
+   * Load a model, either from the shared model registry (in which case the
+   * model must be released when finished with) or directly from the file.
+   *
+   * @param modelFileName the path to the model file
+   * @return the loaded model
+   * @throws Exception if a problem occurs
+   */
+  protected PMIScoringModel loadModel( String modelFileName ) throws Exception {
+    if ( m_meta.getShareLoadedModels() ) {
+      // shared models are held by the registry, so compacting a copy would not save anything
+      return PMIScoringModelRegistry
+          .acquire( modelFileName, m_meta.getUpdateIncrementalModel() && !m_meta.getFileNameFromField(),
+              getLogChannel(), this );
+    }
+    return compactModel( PMIScoringData.loadSerializedModel( modelFileName, getLogChannel(), this ) );
+  }
+
+  /**
+   * Replace a tree model with a compacted copy, if models are being compacted
+   * and the compacted copy's predictions are close enough to the original's
+   *
+   * @param model the loaded model
+   * @return the compacted model, or the supplied model if it is not compacted
+   * @throws Exception if a problem occurs
+   */
+  protected PMIScoringModel compactModel( PMIScoringModel model ) throws Exception {
+    if ( m_compactModelTolerance < 0 ) {
+      return model;
+    }
+    PMIScoringCompactTrees compact = PMIScoringCompactTrees.compactModel( model );
+    if ( compact == null ) {
+      return model;
+    }
+    double diff = compact.getMaxDifference();
+    if ( diff > m_compactModelTolerance ) {
+      logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.ModelNotCompacted",
+          String.format( "%.6f", diff ), m_compactModelTolerance ) );
+      return model;
+    }
+    if ( log.isDetailed() ) {
+      logDetailed( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.CompactedModel",
+          compact.getOriginalNumNodes(), compact.getNumNodes(), compact.getSizeInBytes() / 1024,
+          String.format( "%.6f", diff ) ) );
+    }
+    model.done();
+    return compact;
+  }
 
-    if ( m_meta.getCacheLoadedModels() ) {
-      m_modelCache.put( resolvedName, modelToUse );
+  /**
+   * Parse the compact model tolerance setting
+   *
+   * @return the maximum difference allowed between the predictions of a
+   * compacted model and the original
+   */
+  protected double parseCompactModelTolerance() {
+    if ( Const.isEmpty( m_meta.getCompactModelTolerance() ) ) {
+      return PMIScoringMeta.DEFAULT_COMPACT_MODEL_TOLERANCE;
+    }
+    String resolved = environmentSubstitute( m_meta.getCompactModelTolerance() );
+    try {
+      return Math.max( 0, Double.parseDouble( resolved.trim() ) );
+    } catch ( NumberFormatException ex ) {
+      logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseCompactModelTolerance",
+          resolved, PMIScoringMeta.DEFAULT_COMPACT_MODEL_TOLERANCE ) );
+      return PMIScoringMeta.DEFAULT_COMPACT_MODEL_TOLERANCE;
     }
   }
 
@@ -139,7 +495,10 @@ public class PMIScoring extends BaseStep implements StepInterface {
     // Load the model
     PMIScoringModel model = null;
     try {
-      model = PMIScoringData.loadSerializedModel( modelFileName, getLogChannel(), this );
+      model = loadModel( modelFileName );
+      if ( m_meta.getShareLoadedModels() ) {
+        m_acquiredModels.add( model );
+      }
       m_data.setModel( model );
 
       if ( m_meta.getFileNameFromField() ) {
@@ -165,8 +524,35 @@ public class PMIScoring extends BaseStep implements StepInterface {
     m_meta = (PMIScoringMeta) smi;
     m_data = (PMIScoringData) sdi;
 
-    Object[] r = getRow();
+    Object[] r;
+    if ( m_maxBatchLatencyNanos > 0 ) {
+      // wait for input no longer than the oldest row in the batch may wait, and
+      // flush the batch on this thread when the input has been quiet for too long
+      long wait = getFlushWaitNanos();
+      if ( wait == 0 ) {
+        flushStaleBatch();
+        wait = getFlushWaitNanos();
+      }
+      r = getRowWithin( Math.max( 1, wait ) );
+      if ( r == NO_ROW_YET ) {
+        flushStaleBatch();
+        return true;
+      }
+    } else {
+      r = getRow();
+    }
+
+    return processRow( r );
+  }
 
+  /**
+   * Process an incoming row of data, or the end of the input.
+   *
+   * @param r the incoming row, or null if there are no more rows
+   * @return true if there may be more rows to process
+   * @throws KettleException if an error occurs
+   */
+  protected boolean processRow( Object[] r ) throws KettleException {
     // Handle the first row
     if ( first ) {
       first = false;
@@ -177,6 +563,10 @@ public class PMIScoring extends BaseStep implements StepInterface {
       }
 
       m_data.setOutputRowMeta( getInputRowMeta().clone() );
+      if ( m_meta.getCompactModels() && !m_meta.getEvaluateRatherThanScore() ) {
+        // evaluation needs the original Weka model
+        m_compactModelTolerance = parseCompactModelTolerance();
+      }
       if ( m_meta.getFileNameFromField() ) {
         RowMetaInterface inputRowMeta = getInputRowMeta();
 
@@ -191,12 +581,34 @@ public class PMIScoring extends BaseStep implements StepInterface {
           throw new KettleException( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error." ) ); //$NON-NLS-1$
         }
 
-        if ( m_meta.getCacheLoadedModels() ) {
-          m_modelCache = new HashMap<String, PMIScoringModel>();
+        if ( !Const.isEmpty( m_meta.getModelGroupWindowSize() ) && !m_meta.getEvaluateRatherThanScore() ) {
+          m_modelGroupWindowSize = parseCacheSetting( m_meta.getModelGroupWindowSize() );
+          if ( m_modelGroupWindowSize > 1 ) {
+            m_modelGroupWindow = new ArrayList<Object[]>( m_modelGroupWindowSize );
+            logBasic( BaseMessages
+                .getString( PMIScoringMeta.PKG, "PMIScoring.Message.GroupingRowsByModel", m_modelGroupWindowSize ) );
+          }
+        }
+
+        String modelFile = m_meta.getSerializedModelFileName();
+        boolean bundle = !Const.isEmpty( modelFile ) && PMIModelBundle.hasBundleExtension(
+            environmentSubstitute( modelFile ) );
+        if ( m_meta.getCacheLoadedModels() && !bundle ) {
+          initModelCache();
         }
 
         // set the default model
-        if ( !Const.isEmpty( m_meta.getSerializedModelFileName() ) ) {
+        if ( bundle ) {
+          // the field holds the keys of models in the bundle - there is no default model
+          try {
+            m_modelBundle = PMIScoringData.openModelBundle( modelFile, this );
+          } catch ( Exception ex ) {
+            throw new KettleException( ex );
+          }
+          m_bundledModels = new HashMap<String, PMIScoringModel>();
+          logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.ScoringWithModelBundle",
+              m_modelBundle.getFile().toString(), m_modelBundle.getKeys().size() ) );
+        } else if ( !Const.isEmpty( m_meta.getSerializedModelFileName() ) ) {
           PMIScoringModel defaultModel = setModel( m_meta.getSerializedModelFileName() );
 
           m_data.setDefaultModel( defaultModel );
@@ -249,6 +661,22 @@ public class PMIScoring extends BaseStep implements StepInterface {
             ex ); //$NON-NLS-1$
       }
 
+      if ( m_meta.getCompileTreeModels() && !m_meta.getFileNameFromField() ) {
+        compileTreeModel();
+      }
+      if ( !Const.isEmpty( m_meta.getLookupTableMaxMB() ) && !m_meta.getFileNameFromField() && !( m_meta
+          .getUpdateIncrementalModel() && m_data.getModel().isUpdateableModel() ) ) {
+        compileLookupTable();
+      }
+
+      if ( m_meta.getChallengerModelFileNames().size() > 0 ) {
+        if ( m_meta.getFileNameFromField() || m_meta.getEvaluateRatherThanScore() ) {
+          logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.ChallengersIgnored" ) );
+        } else {
+          loadChallengers();
+        }
+      }
+
       if ( m_meta.getEvaluateRatherThanScore() && m_data.getModel().isSupervisedLearningModel() ) {
         // check for presence of class attribute and matching type...
         try {
@@ -271,46 +699,159 @@ public class PMIScoring extends BaseStep implements StepInterface {
       // Determine the output format
       m_meta.getFields( m_data.getOutputRowMeta(), getStepname(), null, null, this );
 
-      if ( !Const.isEmpty( m_meta.getBatchScoringSize() ) && m_meta.getModel().isBatchPredictor() ) {
+      m_parallelScoring = false;
+      if ( !Const.isEmpty( m_meta.getNumScoringThreads() ) && !m_meta.getEvaluateRatherThanScore() && !m_meta
+          .getFileNameFromField() && !( m_meta.getUpdateIncrementalModel() && m_data.getModel().isUpdateableModel() ) ) {
+        String threads = environmentSubstitute( m_meta.getNumScoringThreads() );
         try {
-          String bss = environmentSubstitute( m_meta.getBatchScoringSize() );
-          m_batchScoringSize = Integer.parseInt( bss );
+          m_numScoringThreads = Integer.parseInt( threads );
         } catch ( NumberFormatException ex ) {
-          String
-              modelPreferred =
-              environmentSubstitute( ( (BatchPredictor) m_meta.getModel().getModel() ).getBatchSize() );
+          logBasic( BaseMessages
+              .getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseNumScoringThreads", threads ) );
+          m_numScoringThreads = 1;
+        }
+        m_parallelScoring = m_numScoringThreads > 1;
+      }
+      initWorkerModels();
 
-          boolean sizeOk = false;
-          if ( !Const.isEmpty( modelPreferred ) ) {
+      m_pipelinedScoring = false;
+      if ( !m_parallelScoring && m_meta.getPipelineBatchScoring() && m_data.getModel().isBatchPredictor() && !m_meta
+          .getEvaluateRatherThanScore() && !m_meta.getFileNameFromField() ) {
+        m_pipelinedScoring = true;
+        m_maxBatchesInFlight = PMIScoringMeta.DEFAULT_MAX_BATCHES_IN_FLIGHT;
+        if ( !Const.isEmpty( m_meta.getMaxBatchesInFlight() ) ) {
+          String max = environmentSubstitute( m_meta.getMaxBatchesInFlight() );
+          try {
+            m_maxBatchesInFlight = Integer.parseInt( max.trim() );
+          } catch ( NumberFormatException ex ) {
+            m_maxBatchesInFlight = -1;
+          }
+          if ( m_maxBatchesInFlight < 1 ) {
             logBasic( BaseMessages
-                .getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseBatchScoringSize", //$NON-NLS-1$
-                    modelPreferred ) );
-            try {
-              m_batchScoringSize = Integer.parseInt( modelPreferred );
-              sizeOk = true;
-            } catch ( NumberFormatException e ) {
-              // ignore
-            }
+                .getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseMaxBatchesInFlight", max,
+                    PMIScoringMeta.DEFAULT_MAX_BATCHES_IN_FLIGHT ) );
+            m_maxBatchesInFlight = PMIScoringMeta.DEFAULT_MAX_BATCHES_IN_FLIGHT;
           }
+        }
+      }
+
+      if ( m_data.getModel().isBatchPredictor() || m_parallelScoring ) {
+        m_batchScoringSize = determineBatchScoringSize();
+        m_batch = new ArrayList<Object[]>();
+
+        if ( isAutoBatchScoringSize() && !m_meta.getEvaluateRatherThanScore() ) {
+          initBatchSizeTuner();
+        }
+      }
 
-          if ( !sizeOk ) {
-            logBasic(
-                BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseBatchScoringSizeDefault",
-                    //$NON-NLS-1$
-                    PMIScoringMeta.DEFAULT_BATCH_SCORING_SIZE ) );
+      if ( m_batch != null && m_data.getChallengers().size() > 0 ) {
+        // each batch is predicted by the champion and the challengers at the same time
+        m_challengerPool = Executors.newFixedThreadPool( m_data.getChallengers().size(), new ThreadFactory() {
+          protected int m_count;
 
-            m_batchScoringSize = PMIScoringMeta.DEFAULT_BATCH_SCORING_SIZE;
+          @Override public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, getStepname() + " challenger thread " + ( ++m_count ) );
+            t.setDaemon( true );
+            return t;
+          }
+        } );
+        m_data.setChallengerExecutor( m_challengerPool );
+      }
+
+      if ( !Const.isEmpty( m_meta.getPredictionCacheSize() ) && !m_meta.getEvaluateRatherThanScore() && !m_meta
+          .getFileNameFromField() ) {
+        if ( m_meta.getUpdateIncrementalModel() && m_data.getModel().isUpdateableModel() ) {
+          // predictions change as the model learns from the incoming rows
+          logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.PredictionCacheDisabled" ) );
+        } else {
+          int cacheSize = parseCacheSetting( m_meta.getPredictionCacheSize() );
+          if ( cacheSize > 0 ) {
+            PMIPredictionCache cache = new PMIPredictionCache( cacheSize, getLogChannel() );
+            if ( cache.isCacheable( m_data.getModel() ) ) {
+              m_data.setPredictionCache( cache );
+              logBasic( BaseMessages
+                  .getString( PMIScoringMeta.PKG, "PMIScoring.Message.PredictionCacheEnabled", cacheSize ) );
+            } else {
+              logBasic( BaseMessages
+                  .getString( PMIScoringMeta.PKG, "PMIScoring.Message.PredictionCacheNotApplicable" ) );
+            }
           }
         }
       }
 
-      if ( m_data.getModel().isBatchPredictor() ) {
-        m_batch = new ArrayList<Object[]>();
+      if ( m_parallelScoring ) {
+        logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.ScoringInParallel",
+            m_numScoringThreads, m_batchScoringSize ) );
+        logBasic( BaseMessages.getString( PMIScoringMeta.PKG, m_workerModels != null
+            ? "PMIScoring.Message.ScoringWithModelCopies" : "PMIScoring.Message.ScoringWithSharedModel" ) );
+        m_pendingBatches = new ArrayDeque<Future<Object[][]>>();
+        m_scoringPool = Executors.newFixedThreadPool( m_numScoringThreads, new ThreadFactory() {
+          protected int m_count;
+
+          @Override public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, getStepname() + " scoring thread " + ( ++m_count ) );
+            t.setDaemon( true );
+            return t;
+          }
+        } );
+      } else if ( m_pipelinedScoring ) {
+        logBasic( BaseMessages
+            .getString( PMIScoringMeta.PKG, "PMIScoring.Message.ScoringPipelined", m_maxBatchesInFlight,
+                m_batchScoringSize ) );
+        m_pendingBatches = new ArrayDeque<Future<Object[][]>>();
+        // a single thread, so that the model is asked for one batch of predictions at a time
+        m_scoringPool = Executors.newSingleThreadExecutor( new ThreadFactory() {
+          @Override public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, getStepname() + " prediction thread" );
+            t.setDaemon( true );
+            return t;
+          }
+        } );
+      }
+
+      if ( m_meta.getWatchModelFile() ) {
+        initModelWatcher();
+      }
+
+      if ( m_batch != null && !Const.isEmpty( m_meta.getMaxBatchLatency() ) && !m_meta.getEvaluateRatherThanScore()
+          && !m_meta.getFileNameFromField() ) {
+        initBatchLatency();
       }
     } // end (if first)
 
     if ( r == null ) {
-      if ( !m_meta.getEvaluateRatherThanScore() && m_data.getModel().isBatchPredictor() && !m_meta
+      m_maxBatchLatencyNanos = 0;
+
+      if ( m_modelWatcher != null ) {
+        m_modelWatcher.stop();
+        m_modelWatcher = null;
+      }
+
+      if ( m_lookahead != null ) {
+        while ( !m_lookahead.isEmpty() ) {
+          scoreRow( m_lookahead.poll() );
+        }
+      }
+
+      if ( m_modelGroupWindow != null && m_modelGroupWindow.size() > 0 ) {
+        scoreModelGroups();
+      }
+
+      if ( m_parallelScoring || m_pipelinedScoring ) {
+        try {
+          if ( m_batch.size() > 0 ) {
+            submitBatch();
+          }
+          while ( !m_pendingBatches.isEmpty() ) {
+            outputNextCompletedBatch();
+          }
+        } catch ( Exception ex ) {
+          throw new KettleException(
+              BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ProblemWhileGettingPredictionsForBatch" ),
+              ex ); //$NON-NLS-1$
+        }
+        shutdownScoringPool();
+      } else if ( !m_meta.getEvaluateRatherThanScore() && m_data.getModel().isBatchPredictor() && !m_meta
           .getFileNameFromField() && m_batch.size() > 0 ) {
         try {
           outputBatchRows( true );
@@ -365,36 +906,97 @@ public class PMIScoring extends BaseStep implements StepInterface {
         }
       }
 
-      if ( m_meta.getFileNameFromField() ) {
-        // clear the main model
-        m_data.getModel().done();
-        m_data.setModel( null );
-        m_data.setDefaultModel( null );
-        if ( m_modelCache != null ) {
-          m_modelCache.clear();
-        }
-      } else {
-        m_data.getModel().done();
-        m_data.setModel( null );
-        m_data.setDefaultModel( null );
+      // cached models are disposed of by the cache
+      PMIScoringModel currentModel = m_data.getModel();
+      if ( ( m_modelCache == null || !m_modelCache.contains( currentModel ) ) && ( m_bundledModels == null
+          || !m_bundledModels.containsValue( currentModel ) ) && !releaseAcquiredModel( currentModel ) ) {
+        currentModel.done();
+      }
+      releaseChallengers();
+      releaseAcquiredModels();
+      closeModelBundle();
+      if ( m_data.getPredictionCache() != null ) {
+        logBasic( m_data.getPredictionCache().getStatistics() );
+        m_data.getPredictionCache().clear();
       }
+      if ( m_modelCache != null ) {
+        logBasic( m_modelCache.getStatistics() );
+        m_modelCache.clear();
+        m_modelCache = null;
+      }
+      m_data.setModel( null );
+      m_data.setDefaultModel( null );
 
       setOutputDone();
       return false;
     }
 
+    if ( m_modelGroupWindow != null ) {
+      m_modelGroupWindow.add( r );
+      if ( m_modelGroupWindow.size() >= m_modelGroupWindowSize ) {
+        scoreModelGroups();
+      }
+    } else if ( m_lookahead != null ) {
+      m_lookahead.add( r );
+      if ( m_lookahead.size() > m_prefetchRows ) {
+        scoreRow( m_lookahead.poll() );
+        prefetchNextModel();
+      }
+    } else {
+      scoreRow( r );
+    }
+
+    if ( log.isRowLevel() ) {
+      log.logRowlevel( toString(), "Read row #" + getLinesRead() + " : " + r );
+    }
+
+    if ( checkFeedback( getLinesRead() ) ) {
+      logBasic( "Linenr " + getLinesRead() );
+    }
+    return true;
+  }
+
+  /**
+   * Score (or evaluate) a single incoming row. Depending on the configuration,
+   * the row might be added to a batch for scoring later.
+   *
+   * @param r the row to score
+   * @throws KettleException if a problem occurs
+   */
+  protected void scoreRow( Object[] r ) throws KettleException {
     // Make prediction for row using model
     try {
       if ( m_meta.getFileNameFromField() ) {
         setModelFromField( r );
       }
 
-      if ( m_data.getModel().isBatchPredictor() && !m_meta.getFileNameFromField() ) {
+      // only swap models at a batch boundary
+      if ( m_modelWatcher != null && ( m_batch == null || m_batch.isEmpty() ) && m_modelWatcher.hasNewModel() ) {
+        swapInNewModel();
+      }
+
+      if ( m_parallelScoring || m_pipelinedScoring ) {
+        m_batch.add( r );
+        if ( m_batch.size() == 1 ) {
+          startBatch();
+        }
+        if ( m_batch.size() >= m_batchScoringSize ) {
+          submitBatch();
+        }
+
+        // emit anything that has already been scored, without blocking
+        while ( !m_pendingBatches.isEmpty() && m_pendingBatches.peek().isDone() ) {
+          outputNextCompletedBatch();
+        }
+      } else if ( m_data.getModel().isBatchPredictor() && !m_meta.getFileNameFromField() ) {
         try {
           // add current row to batch
           m_batch.add( r );
+          if ( m_batch.size() == 1 ) {
+            startBatch();
+          }
 
-          if ( m_batch.size() == m_batchScoringSize ) {
+          if ( m_batch.size() >= m_batchScoringSize ) {
             outputBatchRows( false );
           }
         } catch ( Exception ex ) {
@@ -416,24 +1018,455 @@ public class PMIScoring extends BaseStep implements StepInterface {
           BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.UnableToMakePredictionForRow", getLinesRead() ),
           ex );
     }
+  }
 
-    if ( log.isRowLevel() ) {
-      log.logRowlevel( toString(), "Read row #" + getLinesRead() + " : " + r );
+  /**
+   * Start watching the model file for new versions. Watching is not possible
+   * when model file names come from an incoming field, when evaluating, when
+   * updating an incremental model or when the model is stored in the step
+   * metadata.
+   *
+   * @throws KettleException if a problem occurs
+   */
+  protected void initModelWatcher() throws KettleException {
+    if ( m_meta.getFileNameFromField() || m_meta.getEvaluateRatherThanScore() || Const
+        .isEmpty( m_meta.getSerializedModelFileName() ) || ( m_meta.getUpdateIncrementalModel() && m_data.getModel()
+        .isUpdateableModel() ) ) {
+      logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToWatchModelFile" ) );
+      return;
     }
 
-    if ( checkFeedback( getLinesRead() ) ) {
-      logBasic( "Linenr " + getLinesRead() );
+    int intervalSeconds = PMIScoringMeta.DEFAULT_MODEL_WATCH_INTERVAL;
+    if ( !Const.isEmpty( m_meta.getModelWatchInterval() ) ) {
+      String interval = environmentSubstitute( m_meta.getModelWatchInterval() );
+      try {
+        intervalSeconds = Integer.parseInt( interval.trim() );
+      } catch ( NumberFormatException ex ) {
+        intervalSeconds = -1;
+      }
+      if ( intervalSeconds <= 0 ) {
+        logBasic( BaseMessages
+            .getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseModelWatchInterval", interval,
+                PMIScoringMeta.DEFAULT_MODEL_WATCH_INTERVAL ) );
+        intervalSeconds = PMIScoringMeta.DEFAULT_MODEL_WATCH_INTERVAL;
+      }
+    }
+
+    final RowMetaInterface inputRowMeta = getInputRowMeta();
+    final boolean batchPredictor = m_data.getModel().isBatchPredictor();
+    String resolvedName = environmentSubstitute( m_meta.getSerializedModelFileName() );
+    try {
+      m_modelWatcher = new PMIScoringModelWatcher( resolvedName, new PMIScoringModelCache.ModelLoader() {
+        @Override public PMIScoringModel loadModel( String resolvedName ) throws Exception {
+          return PMIScoring.this.loadModel( resolvedName );
+        }
+      }, new PMIScoringModelWatcher.ModelValidator() {
+        @Override public String validateModel( PMIScoringModel model ) {
+          return validateReplacementModel( model, inputRowMeta, batchPredictor );
+        }
+      }, new PMIScoringModelCache.ModelDisposer() {
+        @Override public void disposeModel( PMIScoringModel model ) {
+          if ( !PMIScoringModelRegistry.release( model ) ) {
+            model.done();
+          }
+        }
+      }, getLogChannel() );
+    } catch ( Exception ex ) {
+      throw new KettleException( ex );
+    }
+    m_modelWatcher.start( intervalSeconds * 1000L );
+    logBasic( BaseMessages
+        .getString( PMIScoringMeta.PKG, "PMIScoring.Message.WatchingModelFile", resolvedName, intervalSeconds ) );
+  }
+
+  /**
+   * Check that a new version of the model can replace the current one without
+   * changing the output of the step. Called on the model watcher's thread.
+   *
+   * @param model          the new version of the model
+   * @param inputRowMeta   the metadata of the incoming rows
+   * @param batchPredictor true if the current model is a batch predictor
+   * @return null if the new model can be used, otherwise a description of why
+   * not
+   */
+  protected String validateReplacementModel( PMIScoringModel model, RowMetaInterface inputRowMeta,
+      boolean batchPredictor ) {
+    Instances header = model.getHeader();
+    if ( header == null ) {
+      return BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.NewModelHasNoHeader" );
+    }
+    if ( model.isBatchPredictor() != batchPredictor ) {
+      return BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.NewModelBatchPredictorMismatch" );
+    }
+
+    int[] mappings = PMIScoringData.findMappings( header, inputRowMeta );
+    int numMapped = 0;
+    for ( int i = 0; i < mappings.length; i++ ) {
+      if ( model.isSupervisedLearningModel() && i == header.classIndex() ) {
+        continue;
+      }
+      if ( mappings[i] == PMIScoringData.TYPE_MISMATCH ) {
+        return BaseMessages
+            .getString( PMIScoringMeta.PKG, "PMIScoring.Error.NewModelTypeMismatch", header.attribute( i ).name() );
+      }
+      if ( mappings[i] >= 0 ) {
+        numMapped++;
+      }
+    }
+    if ( numMapped == 0 ) {
+      return BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.NewModelNoFieldsMapped" );
+    }
+
+    // the fields output must stay the same
+    PMIScoringMeta tempMeta = (PMIScoringMeta) m_meta.clone();
+    tempMeta.setModel( model );
+    RowMetaInterface newOutputMeta = inputRowMeta.clone();
+    try {
+      tempMeta.getFields( newOutputMeta, getStepname(), null, null, this );
+    } catch ( KettleStepException ex ) {
+      return ex.getMessage();
+    }
+    RowMetaInterface outputMeta = m_data.getOutputRowMeta();
+    boolean sameOutput = newOutputMeta.size() == outputMeta.size();
+    for ( int i = 0; sameOutput && i < outputMeta.size(); i++ ) {
+      ValueMetaInterface current = outputMeta.getValueMeta( i );
+      ValueMetaInterface replacement = newOutputMeta.getValueMeta( i );
+      sameOutput = current.getName().equals( replacement.getName() ) && current.getType() == replacement.getType();
+    }
+    if ( !sameOutput ) {
+      return BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.NewModelOutputFieldsDiffer" );
+    }
+
+    return null;
+  }
+
+  /**
+   * Swap in the new model loaded by the model watcher (if any). Must only be
+   * called between batches.
+   *
+   * @throws Exception if a problem occurs
+   */
+  protected void swapInNewModel() throws Exception {
+    if ( m_parallelScoring || m_pipelinedScoring ) {
+      // batches in flight were submitted for the current model
+      while ( !m_pendingBatches.isEmpty() ) {
+        outputNextCompletedBatch();
+      }
+    }
+
+    PMIScoringModel newModel = m_modelWatcher.takeNewModel();
+    if ( newModel == null ) {
+      return;
+    }
+    if ( PMIScoringModelRegistry.isRegistered( newModel ) ) {
+      m_acquiredModels.add( newModel );
+    }
+
+    PMIScoringModel oldModel = m_data.getModel();
+    m_data.setModel( newModel );
+    // watching is not possible when an incremental model is being updated
+    m_data.mapIncomingRowMetaData( newModel.getHeader(), getInputRowMeta(), false, log );
+    if ( m_meta.getCompileTreeModels() ) {
+      compileTreeModel();
+    }
+    if ( !Const.isEmpty( m_meta.getLookupTableMaxMB() ) ) {
+      compileLookupTable();
+    }
+    // the new model may not be as thread-safe as the old one. No batches are in
+    // flight, so the copies of the old model are no longer in use
+    releaseWorkerCopies();
+    initWorkerModels();
+    if ( oldModel != null && !releaseAcquiredModel( oldModel ) ) {
+      oldModel.done();
+    }
+
+    logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.SwappedInNewModel", getLinesRead() ) );
+  }
+
+  /**
+   * Set up the scoring of partially filled batches once their oldest row has
+   * waited for longer than the maximum batch latency.
+   */
+  protected void initBatchLatency() {
+    String latency = environmentSubstitute( m_meta.getMaxBatchLatency() );
+    long latencyMillis = -1;
+    try {
+      latencyMillis = Long.parseLong( latency.trim() );
+    } catch ( NumberFormatException ex ) {
+      // reported below
+    }
+    if ( latencyMillis <= 0 ) {
+      logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseMaxBatchLatency",
+          latency ) );
+      return;
+    }
+
+    m_maxBatchLatencyNanos = TimeUnit.MILLISECONDS.toNanos( latencyMillis );
+    logBasic(
+        BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.FlushingBatchesOnTimer", latencyMillis ) );
+  }
+
+  /**
+   * Get how long to wait for the next input row before the current batch (or a
+   * batch being scored in the background) needs attention
+   *
+   * @return the time to wait in nanoseconds (0 if the batch is already due)
+   */
+  protected long getFlushWaitNanos() {
+    long wait = m_maxBatchLatencyNanos;
+    if ( m_batch.size() > 0 ) {
+      wait = m_batchStartNanos + m_maxBatchLatencyNanos - System.nanoTime();
+    }
+    if ( m_pendingBatches != null && !m_pendingBatches.isEmpty() ) {
+      // check a few times per latency period for batches finished in the background
+      wait = Math.min( wait, m_maxBatchLatencyNanos / 4 );
+    }
+    return Math.max( 0, wait );
+  }
+
+  /**
+   * Get the next input row, waiting no longer than the supplied time. With a
+   * single input the row is taken straight from the input row set, with the
+   * bookkeeping that getRow() does; otherwise this waits as getRow() does.
+   *
+   * @param timeoutNanos the maximum time to wait
+   * @return the row, null at the end of the input, or NO_ROW_YET if no row
+   * arrived in time
+   * @throws KettleException if a problem occurs
+   */
+  protected Object[] getRowWithin( long timeoutNanos ) throws KettleException {
+    List<RowSet> inputs = getInputRowSets();
+    if ( inputs.size() != 1 ) {
+      return getRow();
+    }
+    RowSet rowSet = inputs.get( 0 );
+    Object[] row = rowSet.getRowWait( timeoutNanos, TimeUnit.NANOSECONDS );
+    if ( row == null ) {
+      // getRow() handles the end of the input (and a row that arrived just after the wait)
+      return rowSet.isDone() || isStopped() ? getRow() : NO_ROW_YET;
+    }
+
+    if ( getInputRowMeta() == null ) {
+      setInputRowMeta( rowSet.getRowMeta() );
+    }
+    incrementLinesRead();
+    for ( RowListener listener : getRowListeners() ) {
+      listener.rowReadEvent( getInputRowMeta(), row );
+    }
+    return row;
+  }
+
+  /**
+   * Score and output the current batch if it is only partially filled but its
+   * oldest row has waited for longer than the maximum batch latency. Also
+   * outputs any batches that have finished being scored in the background.
+   *
+   * @throws KettleException if a problem occurs
+   */
+  protected void flushStaleBatch() throws KettleException {
+    try {
+      if ( m_batch.size() > 0 && System.nanoTime() - m_batchStartNanos >= m_maxBatchLatencyNanos ) {
+        if ( log.isDebug() ) {
+          logDebug( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.FlushingPartialBatch",
+              m_batch.size() ) );
+        }
+        if ( m_parallelScoring || m_pipelinedScoring ) {
+          submitBatch();
+        } else {
+          outputBatchRows( false );
+        }
+      }
+
+      if ( m_pendingBatches != null ) {
+        while ( !m_pendingBatches.isEmpty() && m_pendingBatches.peek().isDone() ) {
+          outputNextCompletedBatch();
+        }
+      }
+    } catch ( KettleException ex ) {
+      throw ex;
+    } catch ( Exception ex ) {
+      throw new KettleException(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ProblemWhileGettingPredictionsForBatch" ),
+          ex ); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Set up the (bounded) cache for models loaded from files named in the
+   * incoming field, along with background prefetching of models if configured.
+   */
+  protected void initModelCache() {
+    int maxEntries = parseCacheSetting( m_meta.getModelCacheMaxEntries() );
+    long maxBytes = parseCacheSetting( m_meta.getModelCacheMaxMB() ) * 1024L * 1024L;
+    m_prefetchRows = parseCacheSetting( m_meta.getModelPrefetchRows() );
+
+    // when grouping rows by model, the model for the next group is prefetched
+    boolean prefetch = m_prefetchRows > 0 || m_modelGroupWindow != null;
+    m_modelCache =
+        new PMIScoringModelCache( maxEntries, maxBytes, prefetch, new PMIScoringModelCache.ModelLoader() {
+          @Override public PMIScoringModel loadModel( String resolvedName ) throws Exception {
+            return PMIScoring.this.loadModel( resolvedName );
+          }
+        }, new PMIScoringModelCache.ModelDisposer() {
+          @Override public void disposeModel( PMIScoringModel model ) {
+            if ( !PMIScoringModelRegistry.release( model ) ) {
+              model.done();
+            }
+          }
+        }, getLogChannel() );
+
+    if ( m_prefetchRows > 0 && m_modelGroupWindow == null ) {
+      m_lookahead = new ArrayDeque<Object[]>();
+    }
+  }
+
+  /**
+   * Score the window of buffered rows, one model at a time. Rows are grouped
+   * by the (resolved) model file named in each row, so each model is switched
+   * to once per window, and the rows for a batch predictor are scored as
+   * batches. The scored rows are output in their original order.
+   *
+   * @throws KettleException if a problem occurs
+   */
+  protected void scoreModelGroups() throws KettleException {
+    RowMetaInterface inputRowMeta = getInputRowMeta();
+    RowMetaInterface outputRowMeta = m_data.getOutputRowMeta();
+    List<Object[]> window = m_modelGroupWindow;
+    m_modelGroupWindow = new ArrayList<Object[]>( m_modelGroupWindowSize );
+
+    // positions of the rows for each model, in order of the model's first appearance. Rows without a model file name
+    // (i.e. for the default model) are keyed by the empty string
+    Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+    for ( int i = 0; i < window.size(); i++ ) {
+      String modelFileName = inputRowMeta.getString( window.get( i ), m_indexOfFieldToLoadFrom );
+      String key = Const.isEmpty( modelFileName ) ? "" :
+          m_modelBundle != null ? modelFileName : environmentSubstitute( modelFileName );
+      List<Integer> positions = groups.get( key );
+      if ( positions == null ) {
+        positions = new ArrayList<Integer>();
+        groups.put( key, positions );
+      }
+      positions.add( i );
+    }
+    if ( log.isDetailed() ) {
+      logDetailed( BaseMessages
+          .getString( PMIScoringMeta.PKG, "PMIScoring.Message.ScoringModelGroups", window.size(), groups.size() ) );
+    }
+
+    // start with the model already in use, to save a switch
+    List<String> keys = new ArrayList<String>( groups.keySet() );
+    if ( keys.remove( m_lastRowModelFile ) ) {
+      keys.add( 0, m_lastRowModelFile );
+    }
+
+    Object[][] scored = new Object[window.size()][];
+    for ( int g = 0; g < keys.size(); g++ ) {
+      List<Integer> positions = groups.get( keys.get( g ) );
+      try {
+        setModelFromField( window.get( positions.get( 0 ) ) );
+
+        // load the next group's model in the background while this group is scored
+        if ( m_modelCache != null && g + 1 < keys.size() && keys.get( g + 1 ).length() > 0 ) {
+          m_modelCache.prefetch( keys.get( g + 1 ) );
+        }
+
+        PMIScoringModel model = m_data.getModel();
+        if ( model.isBatchPredictor() ) {
+          int batchSize = Math.max( 1, getCurrentBatchScoringSize() );
+          for ( int start = 0; start < positions.size(); start += batchSize ) {
+            List<Integer> batchPositions = positions.subList( start, Math.min( positions.size(), start + batchSize ) );
+            List<Object[]> batch = new ArrayList<Object[]>( batchPositions.size() );
+            for ( Integer p : batchPositions ) {
+              batch.add( window.get( p ) );
+            }
+            long startTime = System.nanoTime();
+            Object[][] outputRows = m_data.generatePredictions( inputRowMeta, outputRowMeta, batch, m_meta );
+            if ( m_batchSizeTuner != null ) {
+              m_batchSizeTuner.batchScored( batch.size(), System.nanoTime() - startTime );
+            }
+            for ( int i = 0; i < outputRows.length; i++ ) {
+              scored[batchPositions.get( i )] = outputRows[i];
+            }
+          }
+        } else {
+          for ( Integer p : positions ) {
+            scored[p] = m_data.generatePrediction( inputRowMeta, outputRowMeta, window.get( p ), m_meta );
+          }
+        }
+      } catch ( KettleException ex ) {
+        throw ex;
+      } catch ( Exception ex ) {
+        throw new KettleException(
+            BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ErrorGettingBatchPredictions" ), ex );
+      }
+    }
+
+    for ( Object[] outputRow : scored ) {
+      if ( outputRow != null ) {
+        putRow( outputRowMeta, outputRow );
+      }
+    }
+  }
+
+  /**
+   * Parse a (variable substituted) numeric model cache setting.
+   *
+   * @param setting the setting to parse
+   * @return the parsed value, or 0 (no limit/disabled) if the setting is empty
+   * or can't be parsed
+   */
+  protected int parseCacheSetting( String setting ) {
+    if ( Const.isEmpty( setting ) ) {
+      return 0;
+    }
+    String resolved = environmentSubstitute( setting );
+    try {
+      return Integer.parseInt( resolved.trim() );
+    } catch ( NumberFormatException ex ) {
+      logBasic(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseModelCacheSetting", resolved ) );
+      return 0;
+    }
+  }
+
+  /**
+   * Look through the rows read ahead for the next model file that is different
+   * to the current one, and start loading it in the background.
+   */
+  protected void prefetchNextModel() {
+    if ( !m_modelCache.canPrefetch() ) {
+      return;
+    }
+
+    RowMetaInterface inputRowMeta = getInputRowMeta();
+    for ( Object[] row : m_lookahead ) {
+      try {
+        String modelFileName = inputRowMeta.getString( row, m_indexOfFieldToLoadFrom );
+        if ( !Const.isEmpty( modelFileName ) ) {
+          String resolvedName = environmentSubstitute( modelFileName );
+          if ( !resolvedName.equals( m_lastRowModelFile ) ) {
+            m_modelCache.prefetch( resolvedName );
+            return;
+          }
+        }
+      } catch ( KettleException ex ) {
+        // leave it to scoring to report problems with the value
+        return;
+      }
     }
-    return true;
   }
 
   protected void outputBatchRows( boolean finished ) throws Exception {
     // get predictions for the batch
+    long start = System.nanoTime();
     Object[][]
         outputRows =
         m_meta.getEvaluateRatherThanScore() ?
             m_data.evaluateForRows( getInputRowMeta(), m_data.getOutputRowMeta(), m_batch, m_meta, this ) :
             m_data.generatePredictions( getInputRowMeta(), m_data.getOutputRowMeta(), m_batch, m_meta );
+    if ( m_batchSizeTuner != null ) {
+      m_batchSizeTuner.batchScored( m_batch.size(), System.nanoTime() - start );
+    }
 
     if ( finished && m_meta.getEvaluateRatherThanScore() ) {
       // make sure we get the output row that contains eval
@@ -456,6 +1489,451 @@ public class PMIScoring extends BaseStep implements StepInterface {
     m_batch.clear();
   }
 
+  /**
+   * Determine the size of the batches to score. Uses the user-specified size if
+   * set, falling back to the size preferred by the model (if it is a
+   * BatchPredictor) and then the default batch size if it can't be parsed.
+   *
+   * @return the batch size to use
+   */
+  protected int determineBatchScoringSize() {
+    if ( Const.isEmpty( m_meta.getBatchScoringSize() ) ) {
+      return PMIScoringMeta.DEFAULT_BATCH_SCORING_SIZE;
+    }
+
+    // when the size is chosen automatically, the size preferred by the model is the starting point
+    boolean auto = isAutoBatchScoringSize();
+    if ( !auto ) {
+      try {
+        String bss = environmentSubstitute( m_meta.getBatchScoringSize() );
+        return Integer.parseInt( bss );
+      } catch ( NumberFormatException ex ) {
+        // fall through
+      }
+    }
+
+    if ( m_data.getModel().isBatchPredictor() ) {
+      String modelPreferred = environmentSubstitute( ( (BatchPredictor) m_data.getModel().getModel() ).getBatchSize() );
+      if ( !Const.isEmpty( modelPreferred ) ) {
+        if ( !auto ) {
+          logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseBatchScoringSize",
+              //$NON-NLS-1$
+              modelPreferred ) );
+        }
+        try {
+          return Integer.parseInt( modelPreferred );
+        } catch ( NumberFormatException e ) {
+          // ignore
+        }
+      }
+    }
+
+    if ( !auto ) {
+      logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.UnableToParseBatchScoringSizeDefault",
+          //$NON-NLS-1$
+          PMIScoringMeta.DEFAULT_BATCH_SCORING_SIZE ) );
+    }
+
+    return PMIScoringMeta.DEFAULT_BATCH_SCORING_SIZE;
+  }
+
+  /**
+   * Returns true if the batch scoring size is to be chosen automatically at
+   * runtime
+   *
+   * @return true if the batch scoring size is "auto"
+   */
+  protected boolean isAutoBatchScoringSize() {
+    if ( Const.isEmpty( m_meta.getBatchScoringSize() ) ) {
+      return false;
+    }
+    String bss = environmentSubstitute( m_meta.getBatchScoringSize() );
+    return bss != null && PMIScoringMeta.AUTO_BATCH_SCORING_SIZE.equalsIgnoreCase( bss.trim() );
+  }
+
+  /**
+   * Set up automatic batch sizing, starting from the current batch size. The
+   * maximum batch latency (if set) is used as the ceiling on the time taken to
+   * score a batch.
+   */
+  protected void initBatchSizeTuner() {
+    long ceilingNanos = 0;
+    if ( !Const.isEmpty( m_meta.getMaxBatchLatency() ) ) {
+      try {
+        String latency = environmentSubstitute( m_meta.getMaxBatchLatency() );
+        ceilingNanos = TimeUnit.MILLISECONDS.toNanos( Long.parseLong( latency.trim() ) );
+      } catch ( NumberFormatException ex ) {
+        // reported when the batch latency is set up
+      }
+    }
+    m_batchSizeTuner = new PMIBatchSizeTuner( m_batchScoringSize, Math.max( 0, ceilingNanos ), getLogChannel() );
+    logBasic( BaseMessages
+        .getString( PMIScoringMeta.PKG, "PMIScoring.Message.AutoBatchScoringSize", m_batchScoringSize ) );
+  }
+
+  /**
+   * Called when the first row is added to a new batch
+   */
+  protected void startBatch() {
+    m_batchStartNanos = System.nanoTime();
+    if ( m_batchSizeTuner != null ) {
+      m_batchScoringSize = m_batchSizeTuner.getBatchSize();
+    }
+  }
+
+  /**
+   * Get the batch size currently in use. When the batch scoring size is "auto"
+   * this is the size chosen so far.
+   *
+   * @return the current batch scoring size
+   */
+  public int getCurrentBatchScoringSize() {
+    return m_batchSizeTuner != null ? m_batchSizeTuner.getBatchSize() : m_batchScoringSize;
+  }
+
+  /**
+   * Hand the current batch of rows to the worker pool for scoring. Blocks (by
+   * outputting the oldest batch) if too many batches are already in flight.
+   * When pipelining, the batch is converted here on the step's thread, so that
+   * conversion overlaps with the prediction of the previous batch.
+   *
+   * @throws Exception if a problem occurs
+   */
+  protected void submitBatch() throws Exception {
+    final List<Object[]> toScore = m_batch;
+    final RowMetaInterface inputRowMeta = getInputRowMeta();
+    final RowMetaInterface outputRowMeta = m_data.getOutputRowMeta();
+    m_batch = new ArrayList<Object[]>( m_batchScoringSize );
+
+    final PMIBatchSizeTuner tuner = m_batchSizeTuner;
+    if ( m_pipelinedScoring ) {
+      final Instances converted = m_data.convertBatch( inputRowMeta, toScore );
+      m_pendingBatches.add( m_scoringPool.submit( new Callable<Object[][]>() {
+        @Override public Object[][] call() throws Exception {
+          long start = System.nanoTime();
+          Object[][] result = m_data.generatePredictions( inputRowMeta, outputRowMeta, toScore, converted, m_meta );
+          if ( tuner != null ) {
+            tuner.batchScored( toScore.size(), System.nanoTime() - start );
+          }
+          return result;
+        }
+      } ) );
+    } else {
+      m_pendingBatches.add( m_scoringPool.submit( new Callable<Object[][]>() {
+        @Override public Object[][] call() throws Exception {
+          long start = System.nanoTime();
+          Object[][] result;
+          if ( m_workerModels != null ) {
+            WorkerModels models = getWorkerModels();
+            result =
+                m_data.generatePredictions( inputRowMeta, outputRowMeta, toScore, m_meta, models.m_model,
+                    models.m_challengers );
+          } else {
+            result = m_data.generatePredictions( inputRowMeta, outputRowMeta, toScore, m_meta );
+          }
+          if ( tuner != null ) {
+            tuner.batchScored( toScore.size(), System.nanoTime() - start );
+          }
+          return result;
+        }
+      } ) );
+    }
+
+    if ( log.isDetailed() ) {
+      logDetailed( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.PredictingBatch" ) );
+    }
+
+    // bound the memory used by rows waiting to be scored or output
+    int maxPending = m_pipelinedScoring ? m_maxBatchesInFlight : m_numScoringThreads * 2;
+    while ( m_pendingBatches.size() > maxPending ) {
+      outputNextCompletedBatch();
+    }
+  }
+
+  /**
+   * Decide whether the scoring threads can share the main model and the
+   * challengers, or need private copies of them. A model that keeps state
+   * while predicting (i.e. is not known to be thread-safe) can't be shared,
+   * since every scoring thread would be using it (via the challenger threads,
+   * in the case of a challenger) at the same time.
+   */
+  protected void initWorkerModels() {
+    m_workerModels = null;
+    if ( !m_parallelScoring ) {
+      return;
+    }
+    boolean copy = !m_data.getModel().isThreadSafe();
+    List<PMIScoringModel> challengers = m_data.getChallengers();
+    for ( int i = 0; i < challengers.size(); i++ ) {
+      if ( !challengers.get( i ).isThreadSafe() ) {
+        copy = true;
+        if ( log.isDetailed() ) {
+          logDetailed( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.CopyingChallenger",
+              environmentSubstitute( m_meta.getChallengerModelFileNames().get( i ) ) ) );
+        }
+      }
+    }
+    if ( copy ) {
+      m_workerModels = new ThreadLocal<WorkerModels>();
+    }
+  }
+
+  /**
+   * Get the calling scoring thread's private copies of the main model and the
+   * challengers, making them if this thread has not made them yet (or the main
+   * model has since been replaced). Copies are made once per thread, rather
+   * than per batch, and only of models that are not thread-safe.
+   *
+   * @return the models for the calling thread
+   * @throws Exception if the model can't be copied
+   */
+  protected WorkerModels getWorkerModels() throws Exception {
+    WorkerModels models = m_workerModels.get();
+    PMIScoringModel current = m_data.getModel();
+    if ( models == null || models.m_source != current ) {
+      models = new WorkerModels();
+      models.m_source = current;
+      models.m_model = copyForWorker( current );
+      models.m_challengers = new ArrayList<PMIScoringModel>();
+      for ( PMIScoringModel challenger : m_data.getChallengers() ) {
+        models.m_challengers.add( copyForWorker( challenger ) );
+      }
+      synchronized ( m_workerCopies ) {
+        if ( models.m_model != current ) {
+          m_workerCopies.add( models.m_model );
+        }
+        for ( int i = 0; i < models.m_challengers.size(); i++ ) {
+          if ( models.m_challengers.get( i ) != m_data.getChallengers().get( i ) ) {
+            m_workerCopies.add( models.m_challengers.get( i ) );
+          }
+        }
+      }
+      m_workerModels.set( models );
+    }
+    return models;
+  }
+
+  /**
+   * Release the private copies of models made by the scoring threads. Called
+   * when no batches are being scored.
+   */
+  protected void releaseWorkerCopies() {
+    synchronized ( m_workerCopies ) {
+      for ( PMIScoringModel copy : m_workerCopies ) {
+        copy.done();
+      }
+      m_workerCopies.clear();
+    }
+  }
+
+  /**
+   * Copy a model for the exclusive use of one scoring thread, unless it is
+   * thread-safe
+   *
+   * @param model the model
+   * @return a copy of the model, or the model itself if it is thread-safe
+   * @throws Exception if the model can't be copied
+   */
+  protected static PMIScoringModel copyForWorker( PMIScoringModel model ) throws Exception {
+    return model.isThreadSafe() ? model : (PMIScoringModel) new SerializedObject( model ).getObject();
+  }
+
+  /**
+   * The models used by one scoring thread
+   */
+  protected static class WorkerModels {
+
+    /**
+     * the model (held by the step's data) that the copy was made from
+     */
+    protected PMIScoringModel m_source;
+
+    /**
+     * this thread's copy of the main model
+     */
+    protected PMIScoringModel m_model;
+
+    /**
+     * this thread's copies of the challengers (thread-safe challengers are not
+     * copied)
+     */
+    protected List<PMIScoringModel> m_challengers;
+  }
+
+  /**
+   * Wait for the oldest in-flight batch to be scored and then output its rows.
+   *
+   * @throws Exception if a problem occurs
+   */
+  protected void outputNextCompletedBatch() throws Exception {
+    Future<Object[][]> next = m_pendingBatches.poll();
+    Object[][] outputRows = null;
+    try {
+      outputRows = next.get();
+    } catch ( ExecutionException ex ) {
+      if ( ex.getCause() instanceof Exception ) {
+        throw (Exception) ex.getCause();
+      }
+      throw ex;
+    }
+
+    if ( outputRows != null ) {
+      for ( Object[] row : outputRows ) {
+        putRow( m_data.getOutputRowMeta(), row );
+      }
+    }
+  }
+
+  /**
+   * Shut down the scoring worker pool (if one is running) and discard any
+   * batches that have not been output. The per-thread model copies are
+   * released once the workers have stopped.
+   */
+  protected void shutdownScoringPool() {
+    boolean workersStopped = true;
+    if ( m_scoringPool != null ) {
+      m_scoringPool.shutdownNow();
+      try {
+        workersStopped = m_scoringPool.awaitTermination( 10, TimeUnit.SECONDS );
+      } catch ( InterruptedException ex ) {
+        Thread.currentThread().interrupt();
+        workersStopped = false;
+      }
+      m_scoringPool = null;
+    }
+    if ( m_pendingBatches != null ) {
+      m_pendingBatches.clear();
+    }
+    // leave the copies alone if a worker might still be scoring with one
+    if ( workersStopped ) {
+      releaseWorkerCopies();
+    }
+  }
+
+  /**
+   * Hand a model back to the shared model registry, if it was acquired from
+   * there.
+   *
+   * @param model the model to release
+   * @return true if the model was acquired from the registry (and has now been
+   * released)
+   */
+  protected boolean releaseAcquiredModel( PMIScoringModel model ) {
+    // compiled scorers share the classifier of the model they were compiled from
+    if ( model instanceof PMIScoringLookupTable ) {
+      model = ( (PMIScoringLookupTable) model ).getSource();
+    }
+    if ( model instanceof PMIScoringTreeEnsemble ) {
+      model = ( (PMIScoringTreeEnsemble) model ).getSource();
+    }
+    if ( model != null && m_acquiredModels.remove( model ) ) {
+      PMIScoringModelRegistry.release( model );
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Replace the current model with a flattened copy of its trees, if it is a
+   * supported tree model
+   *
+   * @throws KettleException if a problem occurs while flattening the trees
+   */
+  protected void compileTreeModel() throws KettleException {
+    PMIScoringModel model = m_data.getModel();
+    try {
+      PMIScoringModel compiled = PMIScoringModel.createTreeEnsembleScorer( model );
+      if ( compiled != model ) {
+        m_data.setModel( compiled );
+        PMIScoringTreeEnsemble trees = (PMIScoringTreeEnsemble) compiled;
+        logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.CompiledTreeModel",
+            trees.getNumTrees(), trees.getNumNodes() ) );
+        // when scoring, only the node tables are needed from now on. Shared models are
+        // held by the registry anyway, and are released through the source
+        if ( !m_meta.getEvaluateRatherThanScore() && !m_acquiredModels.contains( model ) ) {
+          trees.releaseSource();
+          model.done();
+          logDetailed( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.ReleasedCompiledSource" ) );
+        }
+      } else {
+        logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.TreeModelNotCompiled" ) );
+      }
+    } catch ( Exception ex ) {
+      throw new KettleException(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ProblemCompilingTreeModel" ), ex );
+    }
+  }
+
+  /**
+   * Replace the current model with a table of precomputed predictions, if it is
+   * a classifier built from nominal attributes only and the table fits in the
+   * configured size
+   *
+   * @throws KettleException if a problem occurs while computing the table
+   */
+  protected void compileLookupTable() throws KettleException {
+    long maxBytes = parseCacheSetting( m_meta.getLookupTableMaxMB() ) * 1024L * 1024L;
+    if ( maxBytes <= 0 ) {
+      return;
+    }
+    PMIScoringModel model = m_data.getModel();
+    long size = PMIScoringLookupTable.getTableSizeInBytes( model.getHeader() );
+    if ( !model.isSupervisedLearningModel() || size < 0 ) {
+      logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.LookupTableNotApplicable" ) );
+      return;
+    }
+    if ( size > maxBytes ) {
+      logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.LookupTableTooLarge",
+          String.format( "%.1f", size / ( 1024.0 * 1024.0 ) ) ) );
+      return;
+    }
+
+    try {
+      long start = System.currentTimeMillis();
+      PMIScoringModel compiled = PMIScoringModel.createLookupTableScorer( model, maxBytes );
+      if ( compiled != model ) {
+        m_data.setModel( compiled );
+        logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Message.CompiledLookupTable",
+            String.format( "%.1f", size / ( 1024.0 * 1024.0 ) ), System.currentTimeMillis() - start ) );
+      }
+    } catch ( Exception ex ) {
+      throw new KettleException(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.ProblemCompilingLookupTable" ), ex );
+    }
+  }
+
+  /**
+   * Hand all models that are still held back to the shared model registry
+   */
+  protected void releaseAcquiredModels() {
+    for ( PMIScoringModel model : m_acquiredModels ) {
+      PMIScoringModelRegistry.release( model );
+    }
+    m_acquiredModels.clear();
+  }
+
+  /**
+   * Clean up after the step has finished.
+   *
+   * @param smi a <code>StepMetaInterface</code> value
+   * @param sdi a <code>StepDataInterface</code> value
+   */
+  @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    if ( m_modelWatcher != null ) {
+      m_modelWatcher.stop();
+      m_modelWatcher = null;
+    }
+    shutdownScoringPool();
+    releaseChallengers();
+    releaseAcquiredModels();
+    closeModelBundle();
+    if ( m_modelCache != null ) {
+      m_modelCache.clear();
+      m_modelCache = null;
+    }
+    super.dispose( smi, sdi );
+  }
+
   /**
    * Initialize the step.
    *
@@ -24,6 +24,7 @@ package org.pentaho.di.trans.steps.pmi;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.bayes.NaiveBayes;
 import weka.classifiers.evaluation.Evaluation;
 import weka.classifiers.pmml.consumer.PMMLClassifier;
 import weka.core.BatchPredictor;
@@ -31,6 +32,10 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Utils;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Subclass of PMIScoringModel that encapsulates a supervised classification or regression model
  *
@@ -38,6 +43,33 @@ import weka.core.Utils;
  */
 public class PMIScoringClassifier extends PMIScoringModel {
 
+  /**
+   * Classifiers whose prediction methods do not modify any internal state, and
+   * can therefore be shared between scoring threads. Classifiers that pass
+   * each instance through Weka filters when predicting (e.g. Logistic, SMO,
+   * LinearRegression, M5P) are not included, as a filter holds the instance
+   * being converted.
+   */
+  protected static final Set<String>
+      THREAD_SAFE_CLASSIFIERS =
+      new HashSet<String>( Arrays
+          .asList( "weka.classifiers.trees.J48", "weka.classifiers.trees.RandomForest",
+              "weka.classifiers.trees.RandomTree", "weka.classifiers.trees.REPTree",
+              "weka.classifiers.trees.DecisionStump", "weka.classifiers.trees.HoeffdingTree",
+              "weka.classifiers.rules.ZeroR", "weka.classifiers.rules.OneR", "weka.classifiers.rules.JRip",
+              "weka.classifiers.rules.PART", "weka.classifiers.bayes.NaiveBayesMultinomial",
+              "weka.classifiers.bayes.NaiveBayesMultinomialUpdateable",
+              "weka.classifiers.functions.SimpleLinearRegression" ) );
+
+  /**
+   * Classifiers that are thread-safe unless they discretize with a filter
+   * (supervised discretization)
+   */
+  protected static final Set<String>
+      THREAD_SAFE_UNLESS_DISCRETIZING =
+      new HashSet<String>(
+          Arrays.asList( "weka.classifiers.bayes.NaiveBayes", "weka.classifiers.bayes.NaiveBayesUpdateable" ) );
+
   // The encapsulated classifier
   private Classifier m_model;
 
@@ -160,6 +192,23 @@ public class PMIScoringClassifier extends PMIScoringModel {
     }
   }
 
+  /**
+   * Returns true if the classifier is known to not modify any state
+   * when producing predictions.
+   *
+   * @return true if the classifier can be shared between scoring threads
+   */
+  @Override public boolean isThreadSafe() {
+    if ( m_model == null ) {
+      return false;
+    }
+    String name = m_model.getClass().getName();
+    if ( THREAD_SAFE_UNLESS_DISCRETIZING.contains( name ) ) {
+      return !( (NaiveBayes) m_model ).getUseSupervisedDiscretization();
+    }
+    return THREAD_SAFE_CLASSIFIERS.contains( name );
+  }
+
   /**
    * Returns the textual description of the Classifier's model.
    *
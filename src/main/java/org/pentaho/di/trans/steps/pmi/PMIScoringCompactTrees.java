@@ -0,0 +1,459 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A reduced-precision, compacted copy of a flattened tree model (see
+ * PMIScoringTreeEnsemble) for keeping many models resident. Split points,
+ * missing-value proportions and distributions are held as floats, identical
+ * distributions are stored once, and identical subtrees (within and across
+ * the trees of an ensemble) share the same nodes. The Weka model is not
+ * retained. Predictions can differ slightly from the original model's, so
+ * compaction is accompanied by a check of the differences (see
+ * maxDifference()).
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringCompactTrees extends PMIScoringClassifier {
+
+  /**
+   * Number of generated rows to compare the compacted model with the original
+   * on
+   */
+  public static final int NUM_CHECK_ROWS = 1000;
+
+  protected int[] m_roots;
+  protected int[] m_attribute;
+  protected float[] m_splitPoint;
+  protected int[] m_childStart;
+  protected int[] m_numChildren;
+  protected float[] m_prop;
+
+  /**
+   * Index of each node's distribution in m_dists (in units of m_width), or -1
+   */
+  protected int[] m_distIndex;
+  protected float[] m_dists;
+  protected int m_width;
+  protected boolean m_splitInclusive;
+  protected boolean m_averageTrees;
+  protected int m_boostClasses;
+  protected double m_shrinkage;
+
+  /**
+   * Description of the original model (the Weka model is not retained)
+   */
+  protected String m_description;
+
+  /**
+   * Number of nodes in the original (uncompacted) trees
+   */
+  protected int m_originalNumNodes;
+
+  /**
+   * Largest difference between the predictions of the compacted trees and the
+   * original model, as found by compactModel()
+   */
+  protected double m_maxDifference = Double.NaN;
+
+  protected PMIScoringCompactTrees( PMIScoringTreeEnsemble trees ) {
+    super( null );
+    setEvaluation( trees.getEvaluation() );
+    setHeader( trees.getHeader() );
+    m_description = trees.toString();
+  }
+
+  /**
+   * Flatten and compact the trees of a model, and compare the compacted trees'
+   * predictions with those of the model itself (so that a difference
+   * introduced by flattening is caught as well as one introduced by reduced
+   * precision)
+   *
+   * @param model the original model
+   * @return the compacted trees, or null if the model is not a supported tree
+   * model
+   * @throws Exception if a problem occurs
+   */
+  public static PMIScoringCompactTrees compactModel( PMIScoringModel model ) throws Exception {
+    PMIScoringModel trees = PMIScoringModel.createTreeEnsembleScorer( model );
+    if ( !( trees instanceof PMIScoringTreeEnsemble ) ) {
+      return null;
+    }
+    PMIScoringCompactTrees compact = compact( (PMIScoringTreeEnsemble) trees );
+    compact.m_maxDifference = compact.maxDifference( model, NUM_CHECK_ROWS );
+    return compact;
+  }
+
+  /**
+   * Get the largest difference between the predictions of the compacted trees
+   * and the original model
+   *
+   * @return the largest difference found by compactModel(), or NaN if the
+   * trees were not compacted with compactModel()
+   */
+  public double getMaxDifference() {
+    return m_maxDifference;
+  }
+
+  /**
+   * Compact a flattened tree model
+   *
+   * @param trees the flattened trees
+   * @return the compacted trees
+   */
+  public static PMIScoringCompactTrees compact( PMIScoringTreeEnsemble trees ) {
+    PMIScoringCompactTrees compact = new PMIScoringCompactTrees( trees );
+    compact.m_width = trees.m_width;
+    compact.m_splitInclusive = trees.m_splitInclusive;
+    compact.m_averageTrees = trees.m_averageTrees;
+    compact.m_boostClasses = trees.m_boostClasses;
+    compact.m_shrinkage = trees.m_shrinkage;
+    compact.m_originalNumNodes = trees.getNumNodes();
+
+    Compactor compactor = new Compactor( trees );
+    compact.m_roots = new int[trees.m_roots.length];
+    for ( int i = 0; i < compact.m_roots.length; i++ ) {
+      // a root is a block of one node
+      long[] desc = compactor.describe( trees.m_roots[i] );
+      compact.m_roots[i] = compactor.block( new long[][] { desc }, new float[] { 0 } );
+    }
+    compactor.build( compact );
+
+    return compact;
+  }
+
+  /**
+   * Get the number of nodes after compaction
+   *
+   * @return the number of nodes
+   */
+  public int getNumNodes() {
+    return m_attribute.length;
+  }
+
+  /**
+   * Get the number of nodes in the trees before compaction
+   *
+   * @return the number of nodes before compaction
+   */
+  public int getOriginalNumNodes() {
+    return m_originalNumNodes;
+  }
+
+  /**
+   * Get the approximate number of bytes held by the compacted trees
+   *
+   * @return the size of the node tables and distributions in bytes
+   */
+  public long getSizeInBytes() {
+    return m_attribute.length * 24L + m_dists.length * 4L + m_roots.length * 4L;
+  }
+
+  /**
+   * Compare the predictions of the compacted trees with those of the original
+   * model on rows generated from the training data structure. Nominal values
+   * are drawn uniformly, and numeric values are drawn around the split points
+   * of the trees (where reduced precision can change the branch taken).
+   *
+   * @param original the original model
+   * @param numRows  the number of rows to compare on
+   * @return the largest absolute difference in a predicted probability (or
+   * relative difference in a predicted numeric value)
+   * @throws Exception if a problem occurs
+   */
+  public double maxDifference( PMIScoringModel original, int numRows ) throws Exception {
+    Instances header = getHeader();
+    List<List<Double>> splits = new ArrayList<List<Double>>();
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      splits.add( new ArrayList<Double>() );
+    }
+    for ( int n = 0; n < m_attribute.length; n++ ) {
+      if ( m_attribute[n] >= 0 && !Float.isNaN( m_splitPoint[n] ) ) {
+        splits.get( m_attribute[n] ).add( (double) m_splitPoint[n] );
+      }
+    }
+    return PMIScoringTreeEnsemble.maxDifference( original, this, splits, numRows );
+  }
+
+  /**
+   * Add the (weighted) distribution predicted by the subtree at a node to an
+   * array. Same as PMIScoringTreeEnsemble.addDistribution(), over the compacted
+   * tables.
+   *
+   * @param node   the node to start at
+   * @param inst   the instance to predict
+   * @param weight the weight of the subtree's distribution
+   * @param out    the array to add to
+   * @return false if the subtree has no distribution for the instance
+   */
+  protected boolean addDistribution( int node, Instance inst, double weight, double[] out ) {
+    int fallback = -1;
+    while ( true ) {
+      if ( m_distIndex[node] >= 0 ) {
+        fallback = node;
+      }
+      int att = m_attribute[node];
+      if ( att < 0 ) {
+        break;
+      }
+      double val = inst.value( att );
+      int start = m_childStart[node];
+      if ( Utils.isMissingValue( val ) ) {
+        for ( int i = start; i < start + m_numChildren[node]; i++ ) {
+          if ( m_prop[i] > 0 ) {
+            addDistribution( i, inst, weight * m_prop[i], out );
+          }
+        }
+        return true;
+      }
+      float split = m_splitPoint[node];
+      if ( Float.isNaN( split ) ) {
+        int index = (int) val;
+        if ( index < 0 || index >= m_numChildren[node] ) {
+          break;
+        }
+        node = start + index;
+      } else if ( m_splitInclusive ? Utils.smOrEq( val, split ) : val < split ) {
+        node = start;
+      } else {
+        node = start + 1;
+      }
+    }
+
+    if ( fallback < 0 ) {
+      return false;
+    }
+    int offset = m_distIndex[fallback] * m_width;
+    for ( int i = 0; i < m_width; i++ ) {
+      out[i] += weight * m_dists[offset + i];
+    }
+    return true;
+  }
+
+  /**
+   * Return a probability distribution (over classes), or a single predicted
+   * value for a numeric class.
+   *
+   * @param inst the Instance to be predicted
+   * @return a probability distribution
+   * @throws Exception if an error occurs
+   */
+  @Override public double[] distributionForInstance( Instance inst ) throws Exception {
+    if ( m_boostClasses > 0 ) {
+      double[] fs = new double[m_boostClasses];
+      double[] pred = new double[m_boostClasses];
+      double[] value = new double[1];
+      int perIteration = m_boostClasses == 2 ? 1 : m_boostClasses;
+      for ( int t = 0; t < m_roots.length; t += perIteration ) {
+        for ( int j = 0; j < perIteration; j++ ) {
+          value[0] = 0;
+          addDistribution( m_roots[t + j], inst, 1.0, value );
+          pred[j] = m_shrinkage * value[0];
+        }
+        PMIScoringTreeEnsemble.addBoostedPredictions( pred, fs );
+      }
+      return PMIScoringTreeEnsemble.boostedDistribution( fs );
+    }
+
+    double[] dist = new double[m_width];
+    if ( !m_header.classAttribute().isNominal() ) {
+      double sum = 0;
+      int count = 0;
+      for ( int root : m_roots ) {
+        dist[0] = 0;
+        if ( addDistribution( root, inst, 1.0, dist ) ) {
+          sum += dist[0];
+          count++;
+        }
+      }
+      dist[0] = count > 0 ? sum / count : Utils.missingValue();
+      return dist;
+    }
+
+    for ( int root : m_roots ) {
+      addDistribution( root, inst, 1.0, dist );
+    }
+    if ( m_averageTrees ) {
+      double sum = Utils.sum( dist );
+      if ( !Utils.eq( sum, 0 ) ) {
+        Utils.normalize( dist, sum );
+      }
+    }
+    return dist;
+  }
+
+  @Override public double classifyInstance( Instance inst ) throws Exception {
+    double[] dist = distributionForInstance( inst );
+    if ( !m_header.classAttribute().isNominal() ) {
+      return dist[0];
+    }
+    int maxIndex = Utils.maxIndex( dist );
+    return dist[maxIndex] > 0 ? maxIndex : Utils.missingValue();
+  }
+
+  @Override public double[][] distributionsForInstances( Instances insts ) throws Exception {
+    double[][] preds = new double[insts.numInstances()][];
+    for ( int i = 0; i < preds.length; i++ ) {
+      preds[i] = distributionForInstance( insts.instance( i ) );
+    }
+    return preds;
+  }
+
+  /**
+   * Returns false. The compacted trees are scored directly, not in batches.
+   *
+   * @return false
+   */
+  @Override public boolean isBatchPredictor() {
+    return false;
+  }
+
+  /**
+   * Returns true. The node tables are never modified once built.
+   *
+   * @return true
+   */
+  @Override public boolean isThreadSafe() {
+    return true;
+  }
+
+  @Override public String toString() {
+    return m_description;
+  }
+
+  /**
+   * Builds the compacted tables bottom up. A node is described by its split,
+   * distribution and block of children; identical blocks of children (and so
+   * identical subtrees) are only stored once.
+   */
+  protected static class Compactor {
+    protected final PMIScoringTreeEnsemble m_trees;
+    protected final List<long[]> m_nodes = new ArrayList<long[]>();
+    protected final List<Float> m_props = new ArrayList<Float>();
+    protected final Map<String, Integer> m_blocks = new HashMap<String, Integer>();
+    protected final Map<String, Integer> m_distIndexes = new HashMap<String, Integer>();
+    protected final List<float[]> m_dists = new ArrayList<float[]>();
+
+    protected Compactor( PMIScoringTreeEnsemble trees ) {
+      m_trees = trees;
+    }
+
+    /**
+     * Describe a node of the flattened trees, compacting its subtree
+     *
+     * @param node the node
+     * @return the description: attribute, split point bits, distribution
+     * index, start and size of the block of children
+     */
+    protected long[] describe( int node ) {
+      int numChildren = m_trees.m_numChildren[node];
+      int start = -1;
+      if ( numChildren > 0 ) {
+        long[][] children = new long[numChildren][];
+        float[] props = new float[numChildren];
+        for ( int i = 0; i < numChildren; i++ ) {
+          children[i] = describe( m_trees.m_childStart[node] + i );
+          props[i] = (float) m_trees.m_prop[m_trees.m_childStart[node] + i];
+        }
+        start = block( children, props );
+      }
+      int distIndex = -1;
+      int offset = m_trees.m_distOffset[node];
+      if ( offset >= 0 ) {
+        float[] dist = new float[m_trees.m_width];
+        for ( int i = 0; i < dist.length; i++ ) {
+          dist[i] = (float) m_trees.m_dists[offset + i];
+        }
+        String key = Arrays.toString( dist );
+        Integer index = m_distIndexes.get( key );
+        if ( index == null ) {
+          index = m_dists.size();
+          m_dists.add( dist );
+          m_distIndexes.put( key, index );
+        }
+        distIndex = index;
+      }
+      int att = m_trees.m_attribute[node];
+      float split = att >= 0 ? (float) m_trees.m_splitPoint[node] : Float.NaN;
+      return new long[] { att, Float.floatToIntBits( split ), distIndex, start, numChildren };
+    }
+
+    /**
+     * Store a block of sibling nodes, or find an identical block already stored
+     *
+     * @param nodes the descriptions of the nodes
+     * @param props the missing-value proportions of the nodes
+     * @return the index of the first node of the block
+     */
+    protected int block( long[][] nodes, float[] props ) {
+      StringBuilder key = new StringBuilder();
+      for ( int i = 0; i < nodes.length; i++ ) {
+        key.append( Arrays.toString( nodes[i] ) ).append( Float.floatToIntBits( props[i] ) ).append( ';' );
+      }
+      String k = key.toString();
+      Integer start = m_blocks.get( k );
+      if ( start == null ) {
+        start = m_nodes.size();
+        for ( int i = 0; i < nodes.length; i++ ) {
+          m_nodes.add( nodes[i] );
+          m_props.add( props[i] );
+        }
+        m_blocks.put( k, start );
+      }
+      return start;
+    }
+
+    protected void build( PMIScoringCompactTrees compact ) {
+      int numNodes = m_nodes.size();
+      compact.m_attribute = new int[numNodes];
+      compact.m_splitPoint = new float[numNodes];
+      compact.m_distIndex = new int[numNodes];
+      compact.m_childStart = new int[numNodes];
+      compact.m_numChildren = new int[numNodes];
+      compact.m_prop = new float[numNodes];
+      for ( int i = 0; i < numNodes; i++ ) {
+        long[] desc = m_nodes.get( i );
+        compact.m_attribute[i] = (int) desc[0];
+        compact.m_splitPoint[i] = Float.intBitsToFloat( (int) desc[1] );
+        compact.m_distIndex[i] = (int) desc[2];
+        compact.m_childStart[i] = (int) desc[3];
+        compact.m_numChildren[i] = (int) desc[4];
+        compact.m_prop[i] = m_props.get( i );
+      }
+      compact.m_dists = new float[m_dists.size() * compact.m_width];
+      for ( int i = 0; i < m_dists.size(); i++ ) {
+        System.arraycopy( m_dists.get( i ), 0, compact.m_dists, i * compact.m_width, compact.m_width );
+      }
+    }
+  }
+}
@@ -29,14 +29,15 @@ import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.pmi.Evaluator;
+import org.w3c.dom.Document;
 import weka.classifiers.Classifier;
 import weka.classifiers.evaluation.Evaluation;
 import weka.core.Attribute;
-import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.SerializationHelper;
@@ -47,16 +48,24 @@ import weka.core.xml.XStream;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -84,6 +93,17 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
    */
   private double[] m_vals = null;
 
+  /**
+   * wraps m_vals for scoring single rows
+   */
+  private PMIRowConverter.PooledInstance m_pooledInstance;
+
+  /**
+   * converters for incoming rows, compiled against the header of the current
+   * model
+   */
+  private volatile PMIRowConverter m_converter;
+
   /**
    * Holds the actual PMI model (classifier, clusterer or PMML) used by this
    * copy of the step
@@ -97,6 +117,23 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
    */
   protected PMIScoringModel m_defaultModel;
 
+  /**
+   * Challenger models - scored against the same converted rows as the main
+   * (champion) model, with their predictions appended after the champion's
+   */
+  protected List<PMIScoringModel> m_challengers = new ArrayList<PMIScoringModel>();
+
+  /**
+   * Cache of predictions for repeated feature vectors (null if not caching)
+   */
+  protected PMIPredictionCache m_predictionCache;
+
+  /**
+   * Used to score batches with the challengers concurrently with the champion.
+   * Null to score the models one after the other
+   */
+  protected ExecutorService m_challengerExecutor;
+
   /**
    * used to map attribute indices to incoming field indices
    */
@@ -172,6 +209,53 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
     return m_defaultModel;
   }
 
+  /**
+   * Set the challenger models to score alongside the main model
+   *
+   * @param challengers the challenger models
+   */
+  public void setChallengers( List<PMIScoringModel> challengers ) {
+    m_challengers = challengers;
+  }
+
+  /**
+   * Get the challenger models that are scored alongside the main model
+   *
+   * @return the challenger models
+   */
+  public List<PMIScoringModel> getChallengers() {
+    return m_challengers;
+  }
+
+  /**
+   * Set the cache to use for memoizing predictions for repeated feature vectors
+   *
+   * @param cache the cache to use, or null to not cache predictions
+   */
+  public void setPredictionCache( PMIPredictionCache cache ) {
+    m_predictionCache = cache;
+  }
+
+  /**
+   * Get the cache used for memoizing predictions for repeated feature vectors
+   *
+   * @return the cache in use, or null if predictions are not cached
+   */
+  public PMIPredictionCache getPredictionCache() {
+    return m_predictionCache;
+  }
+
+  /**
+   * Set the executor to use for scoring batches with the challengers
+   * concurrently with the main model
+   *
+   * @param executor the executor to use, or null to score the models one after
+   *                 the other
+   */
+  public void setChallengerExecutor( ExecutorService executor ) {
+    m_challengerExecutor = executor;
+  }
+
   /**
    * Get the meta data for the output format
    *
@@ -240,6 +324,7 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
   public void mapIncomingRowMetaData( Instances header, RowMetaInterface inputRowMeta, boolean updateIncrementalModel,
       LogChannelInterface log ) {
     m_mappingIndexes = PMIScoringData.findMappings( header, inputRowMeta );
+    m_converter = new PMIRowConverter( header, inputRowMeta, m_mappingIndexes );
     m_updateIncrementalModel = updateIncrementalModel;
 
     // If updating of incremental models has been selected, then
@@ -262,7 +347,8 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
 
   /**
    * Loads a serialized model. Models can either be binary serialized Java
-   * objects, objects deep-serialized to xml, or PMML.
+   * objects, model containers (see PMIModelContainer), objects deep-serialized
+   * to xml, or PMML.
    *
    * @param modelFile a <code>File</code> value
    * @return the model
@@ -275,6 +361,21 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
     Instances header = null;
     Evaluation classPriorEval = null;
     int[] ignoredAttsForClustering = null;
+    Document pmml = null;
+
+    if ( PMIModelBundle.hasBundleExtension( space.environmentSubstitute( modelFile ) ) ) {
+      // all the models in a bundle are trained on the same fields, so the first is representative
+      PMIModelBundle.Reader bundle = openModelBundle( modelFile, space );
+      try {
+        if ( bundle.getKeys().isEmpty() ) {
+          throw new Exception( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Error.EmptyModelBundle",
+              bundle.getFile().toString() ) );
+        }
+        return loadBundledModel( bundle, bundle.getKeys().iterator().next(), log, space );
+      } finally {
+        bundle.close();
+      }
+    }
 
     modelFile = space.environmentSubstitute( modelFile );
     FileObject modelF = KettleVFS.getFileObject( modelFile );
@@ -287,13 +388,19 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
     BufferedInputStream buff = new BufferedInputStream( is );
 
     if ( modelFile.toLowerCase().endsWith( ".xml" ) ) {
-      // assume it is PMML
-      model = PMMLFactory.getPMMLModel( buff, null );
+      // assume it is PMML. Keep the document so that the model can be compiled
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      int read;
+      while ( ( read = buff.read( chunk ) ) > 0 ) {
+        bytes.write( chunk, 0, read );
+      }
+      buff.close();
+      model = PMMLFactory.getPMMLModel( new ByteArrayInputStream( bytes.toByteArray() ), null );
+      pmml = XMLHandler.loadXMLFile( new ByteArrayInputStream( bytes.toByteArray() ) );
 
       // we will use the mining schema as the instance structure
       header = ( (PMMLModel) model ).getMiningSchema().getMiningSchemaAsInstances();
-
-      buff.close();
     } else if ( modelFile.toLowerCase().endsWith( ".xstreammodel" ) ) {
       log.logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Log.LoadXMLModel" ) );
 
@@ -310,6 +417,13 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
         buff.close();
         throw new Exception( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Error.CantLoadXMLModel" ) );
       }
+    } else if ( PMIModelContainer.isContainer( buff ) ) {
+      PMIModelContainer.ModelInfo info = PMIModelContainer.readInfo( buff );
+      header = info.getHeader();
+      classPriorEval = info.getClassPriors();
+      ignoredAttsForClustering = info.getIgnoredAttributes();
+      model = PMIModelContainer.readModel( buff, info );
+      buff.close();
     } else {
       InputStream stream = buff;
       if ( modelFile.toLowerCase().endsWith( ".gz" ) ) {
@@ -342,6 +456,66 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
       oi.close();
     }
 
+    PMIScoringModel wsm = createScoringModel( model, header, classPriorEval, ignoredAttsForClustering, log, space );
+    if ( pmml != null && wsm instanceof PMIScoringClassifier ) {
+      PMIScoringPMMLEvaluator compiled = PMIScoringPMMLEvaluator.compile( (PMIScoringClassifier) wsm, pmml );
+      if ( compiled != null ) {
+        log.logBasic( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Log.CompiledPMMLModel",
+            compiled.getCompiledModelType() ) );
+        wsm = compiled;
+      } else {
+        log.logDetailed( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Log.PMMLModelNotCompiled" ) );
+      }
+    }
+    return wsm;
+  }
+
+  /**
+   * Open a model bundle. Bundles are read via memory-mapped reads, so they must
+   * be on a local file system.
+   *
+   * @param bundleFile the path to the bundle
+   * @param space      variables to use
+   * @return a reader for the bundle
+   * @throws Exception if a problem occurs
+   */
+  public static PMIModelBundle.Reader openModelBundle( String bundleFile, VariableSpace space ) throws Exception {
+    bundleFile = space.environmentSubstitute( bundleFile );
+    FileObject bundleF = KettleVFS.getFileObject( bundleFile );
+    if ( !bundleF.exists() ) {
+      throw new Exception(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.NonExistentModelFile", bundleFile ) );
+    }
+    if ( !"file".equalsIgnoreCase( bundleF.getName().getScheme() ) ) {
+      throw new Exception(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Error.ModelBundleNotLocal", bundleFile ) );
+    }
+    return new PMIModelBundle.Reader( new File( KettleVFS.getFilename( bundleF ) ) );
+  }
+
+  /**
+   * Load one of the models in a bundle
+   *
+   * @param bundle the bundle to load from
+   * @param key    the key of the model to load
+   * @param log    the log to use
+   * @param space  variables to use
+   * @return the model, or null if the bundle has no model for the key
+   * @throws Exception if a problem occurs
+   */
+  public static PMIScoringModel loadBundledModel( PMIModelBundle.Reader bundle, String key, LogChannelInterface log,
+      VariableSpace space ) throws Exception {
+    Object[] entry = bundle.readEntry( key );
+    if ( entry == null ) {
+      return null;
+    }
+    PMIModelContainer.ModelInfo info = (PMIModelContainer.ModelInfo) entry[0];
+    return createScoringModel( entry[1], info.getHeader(), info.getClassPriors(), info.getIgnoredAttributes(), log,
+        space );
+  }
+
+  protected static PMIScoringModel createScoringModel( Object model, Instances header, Evaluation classPriorEval,
+      int[] ignoredAttsForClustering, LogChannelInterface log, VariableSpace space ) throws Exception {
     Evaluator.configureWekaEnvironmentHandler( model, space );
 
     PMIScoringModel
@@ -357,12 +531,57 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
     return wsm;
   }
 
+  /**
+   * Reads just the metadata (training data structure, class priors etc.) of a
+   * model saved in the container format, without deserializing the model
+   * itself.
+   *
+   * @param modelFile the path to the model file
+   * @param space     variables to use
+   * @return the model's metadata, or null if the file is not a model container
+   * @throws Exception if a problem occurs
+   */
+  public static PMIModelContainer.ModelInfo loadModelInfo( String modelFile, VariableSpace space ) throws Exception {
+    modelFile = space.environmentSubstitute( modelFile );
+    String lower = modelFile.toLowerCase();
+    if ( lower.endsWith( ".xml" ) || lower.endsWith( ".xstreammodel" ) ) {
+      return null;
+    }
+    if ( PMIModelBundle.hasBundleExtension( modelFile ) ) {
+      PMIModelBundle.Reader bundle = openModelBundle( modelFile, space );
+      try {
+        return bundle.getKeys().isEmpty() ? null : bundle.readInfo( bundle.getKeys().iterator().next() );
+      } finally {
+        bundle.close();
+      }
+    }
+
+    FileObject modelF = KettleVFS.getFileObject( modelFile );
+    if ( !modelF.exists() ) {
+      throw new Exception(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.NonExistentModelFile", modelFile ) );
+    }
+    // small buffer - only the metadata is read
+    BufferedInputStream buff = new BufferedInputStream( KettleVFS.getInputStream( modelF ), 8192 );
+    try {
+      return PMIModelContainer.isContainer( buff ) ? PMIModelContainer.readInfo( buff ) : null;
+    } finally {
+      buff.close();
+    }
+  }
+
   public static void saveSerializedModel( PMIScoringModel wsm, File saveTo ) throws Exception {
 
     Object model = wsm.getModel();
     Instances header = wsm.getHeader();
     header =
         header.stringFreeStructure(); // make sure we don't serialize any string/relational values into the model file
+
+    if ( PMIModelContainer.hasContainerExtension( saveTo.getName() ) ) {
+      Evaluation priors = wsm instanceof PMIScoringClassifier ? ( (PMIScoringClassifier) wsm ).getEvaluation() : null;
+      PMIModelContainer.write( saveTo, model, header, priors, null, PMIModelContainer.CODEC_SERIALIZED );
+      return;
+    }
     OutputStream os = new FileOutputStream( saveTo );
 
     if ( saveTo.getName().toLowerCase().endsWith( ".gz" ) ) { //$NON-NLS-1$
@@ -459,70 +678,306 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
   public Object[][] generatePredictions( RowMetaInterface inputMeta, RowMetaInterface outputMeta,
       List<Object[]> inputRows, PMIScoringMeta meta ) throws Exception {
 
+    Instances batch = convertBatch( inputMeta, inputRows );
+
+    return generatePredictions( inputMeta, outputMeta, inputRows, batch, meta );
+  }
+
+  /**
+   * Generates a batch of predictions using the supplied scorers rather than
+   * the models held by this object. Used by scoring threads that each have
+   * their own copies of models that are not thread-safe.
+   *
+   * @param inputMeta   the meta data for the incoming rows
+   * @param outputMeta  the meta data for the output rows
+   * @param inputRows   the values of the incoming row
+   * @param meta        meta data for this step
+   * @param scorer      the copy of the main model to predict with
+   * @param challengers the copies of the challengers to predict with
+   * @return a Kettle row containing all incoming fields along with new ones
+   * that hold the prediction(s)
+   * @throws Exception if an error occurs
+   */
+  public Object[][] generatePredictions( RowMetaInterface inputMeta, RowMetaInterface outputMeta,
+      List<Object[]> inputRows, PMIScoringMeta meta, PMIScoringModel scorer, List<PMIScoringModel> challengers )
+      throws Exception {
+
+    Instances batch = convertBatch( inputMeta, inputRows );
+
+    return generatePredictions( inputMeta, outputMeta, inputRows, batch, meta, scorer, challengers );
+  }
+
+  /**
+   * Converts a batch of incoming Kettle rows into instances, ready for
+   * prediction by generatePredictions(). Conversion and prediction are separate
+   * so that the next batch can be converted while the current one is being
+   * predicted.
+   *
+   * @param inputMeta the meta data for the incoming rows
+   * @param inputRows the incoming rows
+   * @return the converted batch
+   * @throws Exception if an error occurs
+   */
+  public Instances convertBatch( RowMetaInterface inputMeta, List<Object[]> inputRows ) throws Exception {
     int[] mappingIndexes = m_mappingIndexes;
-    PMIScoringModel model = getModel(); // copy of the model for this copy of
-    // the step
-    boolean outputProbs = meta.getOutputProbabilities();
-    boolean supervised = model.isSupervisedLearningModel();
+    PMIScoringModel model = getModel();
 
-    Attribute classAtt = null;
-    if ( supervised ) {
-      classAtt = model.getHeader().classAttribute();
+    // string attributes get values added to them during conversion, so each batch needs
+    // its own copy of these if batches are to be converted concurrently
+    Instances header = model.getHeader();
+    if ( header.checkForStringAttributes() ) {
+      header = header.stringFreeStructure();
     }
-
-    Instances batch = new Instances( model.getHeader(), inputRows.size() );
+    Instances batch = new Instances( header, inputRows.size() );
     for ( Object[] r : inputRows ) {
       Instance inst = constructInstance( batch, inputMeta, r, mappingIndexes, model, true, true );
       batch.add( inst );
     }
-    for ( int i = 0; i < batch.numInstances(); i++ ) {
-      batch.instance( i ).setClassMissing();
+    if ( model.isSupervisedLearningModel() ) {
+      for ( int i = 0; i < batch.numInstances(); i++ ) {
+        batch.instance( i ).setClassMissing();
+      }
     }
 
-    double[][] preds = model.distributionsForInstances( batch );
+    return batch;
+  }
+
+  /**
+   * Generates a batch of predictions for a batch of incoming Kettle rows that
+   * have already been converted by convertBatch().
+   *
+   * @param inputMeta  the meta data for the incoming rows
+   * @param outputMeta the meta data for the output rows
+   * @param inputRows  the values of the incoming row
+   * @param batch      the incoming rows converted to instances
+   * @param meta       meta data for this step
+   * @return a Kettle row containing all incoming fields along with new ones
+   * that hold the prediction(s)
+   * @throws Exception if an error occurs
+   */
+  public Object[][] generatePredictions( RowMetaInterface inputMeta, RowMetaInterface outputMeta,
+      List<Object[]> inputRows, Instances batch, PMIScoringMeta meta ) throws Exception {
+    return generatePredictions( inputMeta, outputMeta, inputRows, batch, meta, getModel(), m_challengers );
+  }
+
+  /**
+   * Generates a batch of predictions for rows that have already been converted,
+   * using the supplied scorers
+   *
+   * @param inputMeta   the meta data for the incoming rows
+   * @param outputMeta  the meta data for the output rows
+   * @param inputRows   the values of the incoming row
+   * @param batch       the incoming rows converted to instances
+   * @param meta        meta data for this step
+   * @param scorer      the main model, or a private copy of it, to predict with
+   * @param challengers the challengers (or private copies of them) to predict
+   *                    with
+   * @return a Kettle row containing all incoming fields along with new ones
+   * that hold the prediction(s)
+   * @throws Exception if an error occurs
+   */
+  public Object[][] generatePredictions( RowMetaInterface inputMeta, RowMetaInterface outputMeta,
+      List<Object[]> inputRows, Instances batch, PMIScoringMeta meta, PMIScoringModel scorer,
+      List<PMIScoringModel> challengers ) throws Exception {
+
+    PMIScoringModel model = getModel(); // copy of the model for this copy of
+    // the step. Cached predictions are keyed on this, even when a private copy
+    // of it is doing the predicting
+    boolean outputProbs = meta.getOutputProbabilities();
 
-    Object[][] result = new Object[preds.length][];
-    for ( int i = 0; i < preds.length; i++ ) {
+    // predictions for each row - the champion's, followed by those of each challenger
+    double[][][] preds =
+        m_predictionCache != null && m_predictionCache.isCacheable( model ) ? predictWithCache( model, scorer,
+            challengers, batch ) : predictAll( scorer, challengers, batch );
+
+    Object[][] result = new Object[batch.numInstances()][];
+    for ( int i = 0; i < result.length; i++ ) {
       // First copy the input data to the new result...
       Object[] resultRow = RowDataUtil.resizeArray( inputRows.get( i ), outputMeta.size() );
-      int index = inputMeta.size();
+      int index = outputPrediction( resultRow, inputMeta.size(), preds[i][0], model, outputProbs );
+      for ( int m = 0; m < challengers.size(); m++ ) {
+        index = outputPrediction( resultRow, index, preds[i][m + 1], challengers.get( m ), outputProbs );
+      }
 
-      double[] prediction = preds[i];
+      result[i] = resultRow;
+    }
 
-      if ( supervised ) {
-        if ( classAtt.isNumeric() ) {
-          resultRow[index++] = prediction[0];
-        } else {
-          int maxProb = Utils.maxIndex( prediction );
-          if ( prediction[maxProb] > 0 ) {
-            resultRow[index++] = classAtt.value( maxProb );
-          } else {
-            resultRow[index++] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Message.UnableToPredict" );
-          }
-        }
-      } else {
-        int maxProb = Utils.maxIndex( prediction );
-        if ( prediction[maxProb] > 0 ) {
-          resultRow[index++] = maxProb;
-        } else {
-          resultRow[index++] =
-              BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Message.UnableToPredictCluster" );
+    return result;
+  }
+
+  /**
+   * Get predictions for a batch of instances, consulting the prediction cache
+   * first. Only the distinct feature vectors that are not in the cache are
+   * scored (once each), and their predictions are added to the cache.
+   *
+   * @param model       the main model
+   * @param scorer      the main model, or a private copy of it, to predict with
+   * @param challengers the challenger models
+   * @param batch       the instances to predict
+   * @return the predictions for each instance - the main model's, followed by
+   * those of each challenger
+   * @throws Exception if a problem occurs
+   */
+  protected double[][][] predictWithCache( PMIScoringModel model, PMIScoringModel scorer,
+      List<PMIScoringModel> challengers, Instances batch ) throws Exception {
+    double[][][] preds = new double[batch.numInstances()][][];
+    int classIndex = batch.classIndex();
+
+    // rows (by index) that share each distinct uncached feature vector
+    Map<PMIPredictionCache.VectorKey, List<Integer>> toScore =
+        new LinkedHashMap<PMIPredictionCache.VectorKey, List<Integer>>();
+    for ( int i = 0; i < batch.numInstances(); i++ ) {
+      double[] vals = batch.instance( i ).toDoubleArray();
+      if ( classIndex >= 0 ) {
+        vals[classIndex] = Utils.missingValue();
+      }
+      PMIPredictionCache.VectorKey key = new PMIPredictionCache.VectorKey( vals );
+      List<Integer> rows = toScore.get( key );
+      if ( rows != null ) {
+        rows.add( i );
+        continue;
+      }
+      preds[i] = m_predictionCache.get( model, vals );
+      if ( preds[i] == null ) {
+        rows = new ArrayList<Integer>();
+        rows.add( i );
+        toScore.put( key, rows );
+      }
+    }
+
+    if ( toScore.size() > 0 ) {
+      Instances distinct = new Instances( batch, toScore.size() );
+      for ( List<Integer> rows : toScore.values() ) {
+        distinct.add( batch.instance( rows.get( 0 ) ) );
+      }
+      double[][][] distinctPreds = predictAll( scorer, challengers, distinct );
+      int d = 0;
+      for ( Map.Entry<PMIPredictionCache.VectorKey, List<Integer>> e : toScore.entrySet() ) {
+        m_predictionCache.put( model, e.getKey().m_vals, distinctPreds[d] );
+        for ( int row : e.getValue() ) {
+          preds[row] = distinctPreds[d];
         }
+        d++;
       }
+    }
+
+    return preds;
+  }
 
-      if ( ( outputProbs && classAtt == null ) || ( outputProbs && !classAtt.isNumeric() ) ) {
-        // output probability distribution
-        for ( double j : prediction ) {
-          resultRow[index++] = j;
+  /**
+   * Get predictions from the main model and the challengers for a batch of
+   * instances. If there is an executor for the challengers, then the
+   * challengers score concurrently with the main model.
+   *
+   * @param model       the main model
+   * @param challengers the challenger models
+   * @param batch       the instances to predict
+   * @return the predictions for each instance - the main model's, followed by
+   * those of each challenger
+   * @throws Exception if a problem occurs
+   */
+  protected double[][][] predictAll( PMIScoringModel model, List<PMIScoringModel> challengers, Instances batch )
+      throws Exception {
+    // predictions from the champion, followed by those from each challenger
+    double[][][] preds = new double[1 + challengers.size()][][];
+    if ( m_challengerExecutor != null && challengers.size() > 0 ) {
+      final Instances toPredict = batch;
+      List<Future<double[][]>> challengerPreds = new ArrayList<Future<double[][]>>( challengers.size() );
+      for ( final PMIScoringModel challenger : challengers ) {
+        challengerPreds.add( m_challengerExecutor.submit( new Callable<double[][]>() {
+          @Override public double[][] call() throws Exception {
+            return predictBatch( challenger, toPredict );
+          }
+        } ) );
+      }
+      preds[0] = predictBatch( model, batch );
+      try {
+        for ( int m = 0; m < challengers.size(); m++ ) {
+          preds[m + 1] = challengerPreds.get( m ).get();
         }
-        int maxProb = Utils.maxIndex( prediction );
-        resultRow[index] = prediction[maxProb];
+      } catch ( ExecutionException e ) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
       }
+    } else {
+      preds[0] = predictBatch( model, batch );
+      for ( int m = 0; m < challengers.size(); m++ ) {
+        preds[m + 1] = predictBatch( challengers.get( m ), batch );
+      }
+    }
 
-      result[i] = resultRow;
+    // transpose to per-row predictions
+    double[][][] rowPreds = new double[batch.numInstances()][1 + challengers.size()][];
+    for ( int i = 0; i < rowPreds.length; i++ ) {
+      for ( int m = 0; m < preds.length; m++ ) {
+        rowPreds[i][m] = preds[m][i];
+      }
     }
+    return rowPreds;
+  }
 
-    return result;
+  /**
+   * Get predictions from a model for a batch of instances
+   *
+   * @param model the model to use
+   * @param batch the instances to predict
+   * @return the predicted distributions
+   * @throws Exception if a problem occurs
+   */
+  protected static double[][] predictBatch( PMIScoringModel model, Instances batch ) throws Exception {
+    if ( model.isBatchPredictor() ) {
+      return model.distributionsForInstances( batch );
+    }
+
+    // batches of rows for non-batch predictors are only formed when scoring in parallel (or with challengers)
+    double[][] preds = new double[batch.numInstances()][];
+    for ( int i = 0; i < batch.numInstances(); i++ ) {
+      preds[i] = model.distributionForInstance( batch.instance( i ) );
+    }
+    return preds;
+  }
+
+  /**
+   * Write the output fields for a model's prediction into an output row
+   *
+   * @param resultRow   the output row
+   * @param index       the index of the first output field for the model
+   * @param prediction  the predicted distribution
+   * @param model       the model that made the prediction
+   * @param outputProbs true if probabilities are being output
+   * @return the index of the field after the last one written
+   */
+  protected static int outputPrediction( Object[] resultRow, int index, double[] prediction, PMIScoringModel model,
+      boolean outputProbs ) {
+    Attribute classAtt = model.isSupervisedLearningModel() ? model.getHeader().classAttribute() : null;
+
+    // output for numeric class or discrete class value
+    int maxProb = Utils.maxIndex( prediction );
+    if ( classAtt != null ) {
+      if ( classAtt.isNumeric() ) {
+        resultRow[index++] = prediction[0];
+      } else if ( prediction[maxProb] > 0 ) {
+        resultRow[index++] = classAtt.value( maxProb );
+      } else {
+        resultRow[index++] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Message.UnableToPredict" );
+      }
+    } else {
+      if ( prediction[maxProb] > 0 ) {
+        resultRow[index++] = new Double( maxProb );
+      } else {
+        resultRow[index++] =
+            BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Message.UnableToPredictCluster" );
+      }
+    }
+
+    if ( outputProbs && ( classAtt == null || !classAtt.isNumeric() ) ) {
+      // output probability distribution
+      for ( double p : prediction ) {
+        resultRow[index++] = p;
+      }
+      resultRow[index++] = prediction[maxProb];
+    }
+
+    return index;
   }
 
   /**
@@ -545,19 +1000,34 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
     PMIScoringModel model = getModel();
     boolean outputProbs = meta.getOutputProbabilities();
     boolean supervised = model.isSupervisedLearningModel();
-
-    Attribute classAtt = null;
-    if ( supervised ) {
-      classAtt = model.getHeader().classAttribute();
-    }
+    List<PMIScoringModel> challengers = m_challengers;
 
     // need to construct an Instance to represent this
     // input row
     Instance toScore = constructInstance( model.getHeader(), inputMeta, inputRow, mappingIndexes, model, false, false );
     if ( supervised ) {
-      toScore.setClassMissing();
+      // set the class missing directly in the values so that the instance stays attached
+      // to the reusable array
+      m_vals[toScore.classIndex()] = Utils.missingValue();
+      if ( toScore != m_pooledInstance ) {
+        // a sparse instance has its own copy of the values
+        toScore.setClassMissing();
+      }
+    }
+    // predictions from the champion, followed by those from each challenger
+    double[][] preds = m_predictionCache != null ? m_predictionCache.get( model, m_vals ) : null;
+    if ( preds == null ) {
+      preds = new double[1 + challengers.size()][];
+      preds[0] = model.distributionForInstance( toScore );
+
+      // the challengers score the same instance
+      for ( int m = 0; m < challengers.size(); m++ ) {
+        preds[m + 1] = challengers.get( m ).distributionForInstance( toScore );
+      }
+      if ( m_predictionCache != null ) {
+        m_predictionCache.put( model, m_vals, preds );
+      }
     }
-    double[] prediction = model.distributionForInstance( toScore );
 
     // Update the model??
     if ( meta.getUpdateIncrementalModel() && model.isUpdateableModel() && !toScore.isMissing( toScore.classIndex() ) ) {
@@ -565,39 +1035,9 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
     }
     // First copy the input data to the new result...
     Object[] resultRow = RowDataUtil.resizeArray( inputRow, outputMeta.size() );
-    int index = inputMeta.size();
-
-    // output for numeric class or discrete class value
-    if ( supervised ) {
-      if ( classAtt.isNumeric() ) {
-        resultRow[index++] = prediction[0];
-      } else {
-        int maxProb = Utils.maxIndex( prediction );
-        if ( prediction[maxProb] > 0 ) {
-          resultRow[index++] = classAtt.value( maxProb );
-        } else {
-          resultRow[index++] = BaseMessages.getString( PMIScoringMeta.PKG, "WekaScoringData.Message.UnableToPredict" );
-        }
-      }
-    } else {
-      int maxProb = Utils.maxIndex( prediction );
-      if ( prediction[maxProb] > 0 ) {
-        Double newVal = new Double( maxProb );
-        resultRow[index++] = newVal;
-      } else {
-        String newVal = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringData.Message.UnableToPredictCluster" );
-        resultRow[index++] = newVal;
-      }
-    }
-
-    if ( ( outputProbs && classAtt == null ) || ( outputProbs && !classAtt.isNumeric() ) ) {
-      // output probability distribution
-      for ( int i = 0; i < prediction.length; i++ ) {
-        Double newVal = prediction[i];
-        resultRow[index++] = newVal;
-      }
-      int maxProb = Utils.maxIndex( prediction );
-      resultRow[index] = prediction[maxProb];
+    int index = outputPrediction( resultRow, inputMeta.size(), preds[0], model, outputProbs );
+    for ( int m = 0; m < challengers.size(); m++ ) {
+      index = outputPrediction( resultRow, index, preds[m + 1], challengers.get( m ), outputProbs );
     }
 
     return resultRow;
@@ -690,87 +1130,52 @@ public class PMIScoringData extends BaseStepData implements StepDataInterface {
    * @param model          a <code>PMIScoringModel</code> value
    * @param freshVector    true if a fresh array of doubles should be created (necessary for processing batches for BatchPredictors)
    * @param addStringVals  true to add string values (rather than setting) in the header. Again, necessary for BatchPredictors
-   * @return an <code>Instance</code> value
+   * @return an <code>Instance</code> value. This is a sparse instance once the
+   * converter's sparsity estimator has decided that incoming rows are sparse
    */
   private Instance constructInstance( Instances header, RowMetaInterface inputMeta, Object[] inputRow,
       int[] mappingIndexes, PMIScoringModel model, boolean freshVector, boolean addStringVals ) {
 
-    // Instances header = model.getHeader();
-
-    // Re-use this array (unless told otherwise) to avoid an object creation
-    if ( m_vals == null || freshVector ) {
-      m_vals = new double[header.numAttributes()];
+    PMIRowConverter converter = m_converter;
+    if ( converter == null || converter.getHeader() != model.getHeader() ) {
+      // model has changed (e.g. model file names are coming from a field)
+      converter = new PMIRowConverter( model.getHeader(), inputMeta, mappingIndexes );
+      m_converter = converter;
     }
 
-    for ( int i = 0; i < header.numAttributes(); i++ ) {
-
-      if ( mappingIndexes[i] >= 0 ) {
-        try {
-          Object inputVal = inputRow[mappingIndexes[i]];
-
-          Attribute temp = header.attribute( i );
-          ValueMetaInterface tempField = inputMeta.getValueMeta( mappingIndexes[i] );
-          int fieldType = tempField.getType();
-
-          // Check for missing value (null or empty string)
-          if ( tempField.isNull( inputVal ) ) {
-            m_vals[i] = Utils.missingValue();
-            continue;
-          }
-
-          switch ( temp.type() ) {
-            case Attribute.NUMERIC:
-              if ( fieldType == ValueMetaInterface.TYPE_BOOLEAN ) {
-                Boolean b = tempField.getBoolean( inputVal );
-                if ( b ) {
-                  m_vals[i] = 1.0;
-                } else {
-                  m_vals[i] = 0.0;
-                }
-              } else if ( fieldType == ValueMetaInterface.TYPE_INTEGER ) {
-                m_vals[i] = tempField.getInteger( inputVal );
-              } else {
-                m_vals[i] = tempField.getNumber( inputVal );
-              }
-              break;
-            case Attribute.NOMINAL:
-              String s = tempField.getString( inputVal );
-              // now need to look for this value in the attribute
-              // in order to get the correct index
-              int index = temp.indexOfValue( s );
-              if ( index < 0 ) {
-                // set to missing value
-                m_vals[i] = Utils.missingValue();
-              } else {
-                m_vals[i] = index;
-              }
-              break;
-            case Attribute.STRING: {
-              String s2 = tempField.getString( inputVal );
-              // Set the attribute in the header to contain just this string value
-              if ( addStringVals ) {
-                m_vals[i] = temp.addStringValue( s2 );
-              } else {
-                temp.setStringValue( s2 );
-                m_vals[i] = 0.0;
-              }
-              break;
-            }
-            default:
-              m_vals[i] = Utils.missingValue();
-          }
-        } catch ( Exception e ) {
-          m_vals[i] = Utils.missingValue();
-        }
-      } else {
-        // set to missing value
-        m_vals[i] = Utils.missingValue();
+    PMISparsityEstimator sparsity = converter.getSparsity();
+    boolean sparse = sparsity.isSparse();
+    if ( freshVector ) {
+      // fresh vectors are never stored in the member field so that batches can be
+      // converted concurrently
+      double[] vals = new double[header.numAttributes()];
+      converter.convert( inputRow, vals, header, addStringVals );
+      if ( !sparse ) {
+        sparsity.observe( vals );
       }
+      Instance newInst = PMISparsityEstimator.createInstance( vals, sparse );
+      newInst.setDataset( header );
+      return newInst;
+    }
+
+    // Re-use this array and instance to avoid object creation
+    if ( m_vals == null || m_vals.length != header.numAttributes() ) {
+      m_vals = new double[header.numAttributes()];
+      m_pooledInstance = new PMIRowConverter.PooledInstance( m_vals );
+    }
+    converter.convert( inputRow, m_vals, header, addStringVals );
+    if ( sparse ) {
+      // m_vals is just a conversion buffer here - the sparse instance copies
+      // the non-zero values
+      Instance newInst = PMISparsityEstimator.createInstance( m_vals, true );
+      newInst.setDataset( header );
+      return newInst;
     }
+    sparsity.observe( m_vals );
+    m_pooledInstance.reset( m_vals );
+    m_pooledInstance.setDataset( header );
 
-    Instance newInst = new DenseInstance( 1.0, m_vals );
-    newInst.setDataset( header );
-    return newInst;
+    return m_pooledInstance;
   }
 
   public static boolean modelFileExists( String modelFile, VariableSpace space ) throws Exception {
@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Subclass of PMIScoringClassifier that answers predictions from a table of
+ * precomputed distributions. When all the (non-class) attributes a classifier
+ * was trained with are nominal, the classifier can only ever see a finite
+ * number of distinct inputs. If that number is small enough, the
+ * distribution for every combination of values (including missing) is
+ * computed up front, and scoring becomes an array lookup indexed by the
+ * encoded nominal values.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringLookupTable extends PMIScoringClassifier {
+
+  /**
+   * The scorer that the table was compiled from
+   */
+  protected PMIScoringClassifier m_source;
+
+  /**
+   * The precomputed distributions, one block of m_width values per combination
+   * of attribute values. Null if the table has been invalidated by an update
+   * to the model
+   */
+  protected double[] m_table;
+
+  /**
+   * Number of values in each distribution
+   */
+  protected int m_width;
+
+  /**
+   * Distance (in table blocks) between consecutive values of each attribute.
+   * Zero for the class attribute
+   */
+  protected int[] m_strides;
+
+  /**
+   * Construct a lookup table for the supplied scorer. Use compile() to
+   * construct and fill a table.
+   *
+   * @param source the scorer to compile
+   */
+  protected PMIScoringLookupTable( PMIScoringClassifier source ) {
+    super( source.getModel() );
+    m_source = source;
+    setEvaluation( source.getEvaluation() );
+    setHeader( source.getHeader() );
+  }
+
+  /**
+   * Get the number of bytes a lookup table for the supplied training data
+   * structure would occupy
+   *
+   * @param header the training data structure (with the class set)
+   * @return the size of the table in bytes, or -1 if the structure is not
+   * suitable for a lookup table (non-nominal attributes, or too many
+   * combinations of values to index)
+   */
+  public static long getTableSizeInBytes( Instances header ) {
+    if ( header == null || header.classIndex() < 0 ) {
+      return -1;
+    }
+    Attribute classAtt = header.classAttribute();
+    if ( !classAtt.isNominal() && !classAtt.isNumeric() ) {
+      return -1;
+    }
+    long cells = classAtt.isNominal() ? classAtt.numValues() : 1;
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      if ( i == header.classIndex() ) {
+        continue;
+      }
+      if ( !header.attribute( i ).isNominal() ) {
+        return -1;
+      }
+      // an extra slot for missing
+      cells *= header.attribute( i ).numValues() + 1;
+      if ( cells > Integer.MAX_VALUE ) {
+        return -1;
+      }
+    }
+
+    return cells * 8L;
+  }
+
+  /**
+   * Compile a scorer into a lookup table
+   *
+   * @param source        the scorer to compile
+   * @param maxTableBytes the maximum size of the table in bytes
+   * @return the lookup table, or null if the scorer's training data is not
+   * all nominal, or the table would be larger than maxTableBytes
+   * @throws Exception if a problem occurs while computing the predictions
+   */
+  public static PMIScoringLookupTable compile( PMIScoringClassifier source, long maxTableBytes ) throws Exception {
+    Instances header = source.getHeader();
+    long size = getTableSizeInBytes( header );
+    if ( size < 0 || size > maxTableBytes ) {
+      return null;
+    }
+
+    PMIScoringLookupTable lookup = new PMIScoringLookupTable( source );
+    Attribute classAtt = header.classAttribute();
+    int classIndex = header.classIndex();
+    int numAtts = header.numAttributes();
+    lookup.m_width = classAtt.isNominal() ? classAtt.numValues() : 1;
+    lookup.m_strides = new int[numAtts];
+    int numBlocks = 1;
+    for ( int i = numAtts - 1; i >= 0; i-- ) {
+      if ( i != classIndex ) {
+        lookup.m_strides[i] = numBlocks;
+        numBlocks *= header.attribute( i ).numValues() + 1;
+      }
+    }
+
+    // step through all the combinations of values in table order - the last
+    // attribute varies fastest
+    double[] table = new double[numBlocks * lookup.m_width];
+    Instance inst = new DenseInstance( numAtts );
+    inst.setDataset( header );
+    inst.setMissing( classIndex );
+    int[] digits = new int[numAtts];
+    for ( int i = 0; i < numAtts; i++ ) {
+      if ( i != classIndex ) {
+        inst.setValue( i, 0 );
+      }
+    }
+    for ( int block = 0; block < numBlocks; block++ ) {
+      double[] dist = source.distributionForInstance( inst );
+      System.arraycopy( dist, 0, table, block * lookup.m_width, lookup.m_width );
+
+      // advance to the next combination
+      for ( int i = numAtts - 1; i >= 0; i-- ) {
+        if ( i == classIndex ) {
+          continue;
+        }
+        int numVals = header.attribute( i ).numValues();
+        digits[i] = digits[i] == numVals ? 0 : digits[i] + 1;
+        if ( digits[i] == numVals ) {
+          inst.setMissing( i );
+        } else {
+          inst.setValue( i, digits[i] );
+        }
+        if ( digits[i] != 0 ) {
+          break;
+        }
+      }
+    }
+    lookup.m_table = table;
+
+    return lookup;
+  }
+
+  /**
+   * Get the scorer that the table was compiled from
+   *
+   * @return the source scorer
+   */
+  public PMIScoringClassifier getSource() {
+    return m_source;
+  }
+
+  /**
+   * Returns true if predictions are currently being answered from the table
+   *
+   * @return true if the table is in use
+   */
+  public boolean isTableValid() {
+    return m_table != null;
+  }
+
+  /**
+   * Get the offset of the distribution for an instance in the table
+   *
+   * @param inst the instance to look up
+   * @return the offset in the table, or -1 if the instance has a value that is
+   * not in the table
+   */
+  protected int tableOffset( Instance inst ) {
+    int block = 0;
+    for ( int i = 0; i < m_strides.length; i++ ) {
+      if ( m_strides[i] == 0 ) {
+        continue;
+      }
+      int numVals = m_header.attribute( i ).numValues();
+      double val = inst.value( i );
+      int index = numVals;
+      if ( !Utils.isMissingValue( val ) ) {
+        index = (int) val;
+        if ( index < 0 || index >= numVals ) {
+          return -1;
+        }
+      }
+      block += index * m_strides[i];
+    }
+    return block * m_width;
+  }
+
+  /**
+   * Return a probability distribution (over classes), or a single predicted
+   * value for a numeric class.
+   *
+   * @param inst the Instance to be predicted
+   * @return a probability distribution
+   * @throws Exception if an error occurs
+   */
+  @Override public double[] distributionForInstance( Instance inst ) throws Exception {
+    double[] table = m_table;
+    int offset = table != null ? tableOffset( inst ) : -1;
+    if ( offset < 0 ) {
+      return m_source.distributionForInstance( inst );
+    }
+    return Arrays.copyOfRange( table, offset, offset + m_width );
+  }
+
+  /**
+   * Return a classification (number for regression problems
+   * or index of a class value for classification problems).
+   *
+   * @param inst the Instance to be classified (predicted)
+   * @return the prediction
+   * @throws Exception if an error occurs
+   */
+  @Override public double classifyInstance( Instance inst ) throws Exception {
+    if ( m_table == null ) {
+      return m_source.classifyInstance( inst );
+    }
+    double[] dist = distributionForInstance( inst );
+    if ( !m_header.classAttribute().isNominal() ) {
+      return dist[0];
+    }
+    return Utils.sum( dist ) <= 0 ? Utils.missingValue() : Utils.maxIndex( dist );
+  }
+
+  /**
+   * Batch scoring method
+   *
+   * @param insts the instances to get predictions for
+   * @return an array of probability distributions, one for each instance
+   * @throws Exception if a problem occurs
+   */
+  @Override public double[][] distributionsForInstances( Instances insts ) throws Exception {
+    if ( m_table == null ) {
+      return m_source.distributionsForInstances( insts );
+    }
+    double[][] preds = new double[insts.numInstances()][];
+    for ( int i = 0; i < preds.length; i++ ) {
+      preds[i] = distributionForInstance( insts.instance( i ) );
+    }
+    return preds;
+  }
+
+  /**
+   * Update (if possible) the model with the supplied instance. The table no
+   * longer reflects the model once it has been updated, so predictions are
+   * made by the model from then on.
+   *
+   * @param inst the Instance to update with
+   * @return true if the update was updated successfully
+   * @throws Exception if an error occurs
+   */
+  @Override public boolean update( Instance inst ) throws Exception {
+    if ( isUpdateableModel() ) {
+      m_table = null;
+    }
+    return super.update( inst );
+  }
+
+  /**
+   * Returns true if the table is in use (it is never modified once computed),
+   * or if the model itself can be shared between scoring threads
+   *
+   * @return true if the lookup table can be shared between scoring threads
+   */
+  @Override public boolean isThreadSafe() {
+    return m_table != null || m_source.isThreadSafe();
+  }
+}
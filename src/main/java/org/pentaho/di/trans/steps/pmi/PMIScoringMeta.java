@@ -22,6 +22,7 @@
 
 package org.pentaho.di.trans.steps.pmi;
 
+import org.apache.commons.vfs2.FileObject;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.Counter;
 import org.pentaho.di.core.annotations.Step;
@@ -34,6 +35,7 @@ import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
 import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.repository.ObjectId;
@@ -56,8 +58,13 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -75,11 +82,98 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    */
   public static final int DEFAULT_BATCH_SCORING_SIZE = 100;
 
+  /**
+   * Batch scoring size value that has the step choose the size at runtime, based on measured throughput
+   */
+  public static final String AUTO_BATCH_SCORING_SIZE = "auto";
+
+  /**
+   * Default number of seconds between checks of the model file when watching it for changes
+   */
+  public static final int DEFAULT_MODEL_WATCH_INTERVAL = 30;
+
+  /**
+   * Default maximum number of batches in flight when pipelining batch scoring
+   */
+  public static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 2;
+
+  /**
+   * Default maximum difference allowed between the predictions of a compacted model and the original
+   */
+  public static final double DEFAULT_COMPACT_MODEL_TOLERANCE = 0.001;
+
+  /**
+   * Prefix and extension of the content-addressed files that externalized embedded models are written to. The digest
+   * of the serialized model goes in between
+   */
+  public static final String EMBEDDED_MODEL_FILE_PREFIX = "pmi-embedded-";
+  public static final String EMBEDDED_MODEL_FILE_EXTENSION = ".model";
+
+  /**
+   * Default directory for externalized embedded models - alongside the transformation
+   */
+  public static final String DEFAULT_EMBEDDED_MODEL_DIRECTORY = "${Internal.Entry.Current.Directory}";
+
   /**
    * User batch scoring size
    */
   protected String m_batchScoringSize = "";
 
+  /**
+   * Number of threads to use for scoring batches of rows in parallel. Empty or 1
+   * means score on the step's thread
+   */
+  protected String m_numScoringThreads = "";
+
+  /**
+   * True if batches for BatchPredictor models are to be scored in a pipeline, i.e. the next batch is converted, and
+   * the previous one output, while the current one is being predicted
+   */
+  protected boolean m_pipelineBatchScoring;
+
+  /**
+   * Maximum number of batches waiting to be predicted or output when pipelining. Empty for the default
+   */
+  protected String m_maxBatchesInFlight = "";
+
+  /**
+   * Maximum time (milliseconds) that a row may wait in a partially filled batch before the batch is scored anyway.
+   * Empty to only score full batches (and the final partial batch at the end of the stream)
+   */
+  protected String m_maxBatchLatency = "";
+
+  /**
+   * Files holding challenger models. Each incoming row is converted once and scored by the main (champion) model and
+   * by every challenger; the challengers' predictions are appended after the champion's
+   */
+  protected List<String> m_challengerModelFileNames = new ArrayList<String>();
+
+  /**
+   * Maximum number of distinct feature vectors to cache predictions for. Empty (or 0) to not cache predictions
+   */
+  protected String m_predictionCacheSize = "";
+
+  /**
+   * Maximum size (MB) of a precomputed lookup table for models built from nominal attributes only. Empty (or 0) to
+   * always score with the model
+   */
+  protected String m_lookupTableMaxMB = "";
+
+  /**
+   * Whether to compile tree models (J48, RandomTree, REPTree, RandomForest) into flattened node tables for scoring
+   */
+  protected boolean m_compileTreeModels;
+
+  /**
+   * Whether to keep loaded tree models in a compacted, reduced-precision form
+   */
+  protected boolean m_compactModels;
+
+  /**
+   * Maximum difference allowed between the predictions of a compacted model and the original. Empty for the default
+   */
+  protected String m_compactModelTolerance = "";
+
   /**
    * Use a model file specified in an incoming field
    */
@@ -91,6 +185,49 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    */
   protected boolean m_cacheLoadedModels;
 
+  /**
+   * Whether to share models loaded from files with other step copies and
+   * transformations running in the same JVM
+   */
+  protected boolean m_shareLoadedModels;
+
+  /**
+   * Whether to watch the model file for changes and swap in new versions
+   * while the transformation is running
+   */
+  protected boolean m_watchModelFile;
+
+  /**
+   * Number of seconds between checks of the model file for changes. Empty
+   * means use the default
+   */
+  protected String m_modelWatchInterval = "";
+
+  /**
+   * Maximum number of models to hold in the cache of loaded models. Empty means
+   * no limit
+   */
+  protected String m_modelCacheMaxEntries = "";
+
+  /**
+   * Maximum estimated size (in MB) of the models held in the cache of loaded
+   * models. Empty means no limit
+   */
+  protected String m_modelCacheMaxMB = "";
+
+  /**
+   * Number of rows to look ahead for the next model file to load in the
+   * background. Empty or 0 means no prefetching
+   */
+  protected String m_modelPrefetchRows = "";
+
+  /**
+   * Number of rows to buffer so that the rows in the buffer can be grouped by
+   * model file and each group scored together. Empty or 1 means rows are
+   * scored one at a time, in arrival order
+   */
+  protected String m_modelGroupWindowSize = "";
+
   /**
    * The name of the field that is being used to specify model file name/path
    */
@@ -154,6 +291,40 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    */
   protected transient PMIScoringModel m_defaultModel;
 
+  /**
+   * True if an embedded model is to be written to a content-addressed file next to the transformation, rather than
+   * inline (as base64) in the step's XML or repository attributes
+   */
+  protected boolean m_externalizeEmbeddedModel;
+
+  /**
+   * Directory to write externalized embedded models to. Empty for the default (the transformation's directory)
+   */
+  protected String m_embeddedModelDirectory = "";
+
+  /**
+   * The embedded model that the serialized bytes and digest below belong to. If the embedded model is no longer this
+   * object then they are stale and get recomputed on demand
+   */
+  protected transient PMIScoringModel m_embeddedModelSource;
+
+  /**
+   * Serialized form of the embedded model
+   */
+  protected transient byte[] m_embeddedModelBytes;
+
+  /**
+   * SHA-256 digest (hex) of the serialized embedded model. Used for equals()/hashCode() and to name externalized
+   * model files
+   */
+  protected transient String m_embeddedModelDigest;
+
+  /**
+   * Externalized model file (possibly containing variables) that has yet to be read. Models stored this way are only
+   * deserialized when first needed
+   */
+  protected transient String m_embeddedModelFile;
+
   /**
    * Set whether to perform evaluation on the incoming stream (if targets are present) rather than score the data.
    * Applies to supervised models only
@@ -250,6 +421,197 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
     return m_batchScoringSize;
   }
 
+  /**
+   * Set the number of threads to use for scoring batches of rows in parallel.
+   * All threads share the single model loaded by this copy of the step.
+   *
+   * @param threads the number of scoring threads to use
+   */
+  public void setNumScoringThreads( String threads ) {
+    m_numScoringThreads = threads;
+  }
+
+  /**
+   * Get the number of threads to use for scoring batches of rows in parallel.
+   * All threads share the single model loaded by this copy of the step.
+   *
+   * @return the number of scoring threads to use
+   */
+  public String getNumScoringThreads() {
+    return m_numScoringThreads;
+  }
+
+  /**
+   * Set whether to pipeline the scoring of batches for BatchPredictor models
+   *
+   * @param pipeline true to pipeline batch scoring
+   */
+  public void setPipelineBatchScoring( boolean pipeline ) {
+    m_pipelineBatchScoring = pipeline;
+  }
+
+  /**
+   * Get whether to pipeline the scoring of batches for BatchPredictor models
+   *
+   * @return true if batch scoring is to be pipelined
+   */
+  public boolean getPipelineBatchScoring() {
+    return m_pipelineBatchScoring;
+  }
+
+  /**
+   * Set the maximum number of batches waiting to be predicted or output when pipelining
+   *
+   * @param max the maximum number of batches in flight
+   */
+  public void setMaxBatchesInFlight( String max ) {
+    m_maxBatchesInFlight = max;
+  }
+
+  /**
+   * Get the maximum number of batches waiting to be predicted or output when pipelining
+   *
+   * @return the maximum number of batches in flight
+   */
+  public String getMaxBatchesInFlight() {
+    return m_maxBatchesInFlight;
+  }
+
+  /**
+   * Set the maximum time (milliseconds) that a row may wait in a partially filled batch
+   *
+   * @param latency the maximum latency in milliseconds. Empty to only score full batches
+   */
+  public void setMaxBatchLatency( String latency ) {
+    m_maxBatchLatency = latency;
+  }
+
+  /**
+   * Get the maximum time (milliseconds) that a row may wait in a partially filled batch
+   *
+   * @return the maximum latency in milliseconds
+   */
+  public String getMaxBatchLatency() {
+    return m_maxBatchLatency;
+  }
+
+  /**
+   * Set the files holding challenger models. Challengers must have been trained on the same fields as the main model
+   * (i.e. have the same header) and must be supervised models.
+   *
+   * @param fileNames the challenger model files
+   */
+  public void setChallengerModelFileNames( List<String> fileNames ) {
+    m_challengerModelFileNames = fileNames;
+  }
+
+  /**
+   * Get the files holding challenger models
+   *
+   * @return the challenger model files
+   */
+  public List<String> getChallengerModelFileNames() {
+    return m_challengerModelFileNames;
+  }
+
+  /**
+   * Set the maximum number of distinct feature vectors to cache predictions for. Caching is not used for updateable
+   * models that are being updated on the incoming data.
+   *
+   * @param size the maximum number of cached predictions. Empty (or 0) to not cache predictions
+   */
+  public void setPredictionCacheSize( String size ) {
+    m_predictionCacheSize = size;
+  }
+
+  /**
+   * Get the maximum number of distinct feature vectors to cache predictions for
+   *
+   * @return the maximum number of cached predictions
+   */
+  public String getPredictionCacheSize() {
+    return m_predictionCacheSize;
+  }
+
+  /**
+   * Set the maximum size (MB) of a lookup table of precomputed predictions. If the model is a classifier built from
+   * nominal attributes only, and the predictions for every combination of values fit in this limit, then they are
+   * computed up front and scoring becomes a table lookup.
+   *
+   * @param max the maximum size of the table in MB. Empty (or 0) to always score with the model
+   */
+  public void setLookupTableMaxMB( String max ) {
+    m_lookupTableMaxMB = max;
+  }
+
+  /**
+   * Get the maximum size (MB) of a lookup table of precomputed predictions
+   *
+   * @return the maximum size of the table in MB
+   */
+  public String getLookupTableMaxMB() {
+    return m_lookupTableMaxMB;
+  }
+
+  /**
+   * Set whether to compile supported tree models (J48, RandomTree, REPTree, bagged ensembles of these, such as
+   * RandomForest, and LogitBoost with REPTree, as in gradient boosted trees) into flattened node tables for faster
+   * scoring
+   *
+   * @param compile true if tree models are to be compiled for scoring
+   */
+  public void setCompileTreeModels( boolean compile ) {
+    m_compileTreeModels = compile;
+  }
+
+  /**
+   * Get whether to compile supported tree models into flattened node tables for faster scoring
+   *
+   * @return true if tree models are to be compiled for scoring
+   */
+  public boolean getCompileTreeModels() {
+    return m_compileTreeModels;
+  }
+
+  /**
+   * Set whether to keep loaded tree models in a compacted, reduced-precision form (float split points, shared
+   * distributions and subtrees), without the original Weka model. A model is only compacted if its predictions stay
+   * within the compact model tolerance of the original's.
+   *
+   * @param compact true if tree models are to be compacted when loaded
+   */
+  public void setCompactModels( boolean compact ) {
+    m_compactModels = compact;
+  }
+
+  /**
+   * Get whether to keep loaded tree models in a compacted, reduced-precision form
+   *
+   * @return true if tree models are to be compacted when loaded
+   */
+  public boolean getCompactModels() {
+    return m_compactModels;
+  }
+
+  /**
+   * Set the maximum difference allowed between a predicted probability (or the relative difference between a
+   * predicted value) of a compacted model and that of the original model
+   *
+   * @param tolerance the maximum difference. Empty for the default
+   */
+  public void setCompactModelTolerance( String tolerance ) {
+    m_compactModelTolerance = tolerance;
+  }
+
+  /**
+   * Get the maximum difference allowed between the predictions of a compacted model and the original
+   *
+   * @return the maximum difference
+   */
+  public String getCompactModelTolerance() {
+    return m_compactModelTolerance;
+  }
+
   /**
    * Set whether filename is coming from an incoming field
    *
@@ -288,6 +650,147 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
     return m_cacheLoadedModels;
   }
 
+  /**
+   * Set whether to share models loaded from files with other step copies and
+   * transformations running in the same JVM
+   *
+   * @param s true if loaded models are to be shared
+   */
+  public void setShareLoadedModels( boolean s ) {
+    m_shareLoadedModels = s;
+  }
+
+  /**
+   * Get whether to share models loaded from files with other step copies and
+   * transformations running in the same JVM
+   *
+   * @return true if loaded models are to be shared
+   */
+  public boolean getShareLoadedModels() {
+    return m_shareLoadedModels;
+  }
+
+  /**
+   * Set whether to watch the model file for changes. New versions of the file
+   * are loaded in the background and swapped in, between batches, without
+   * stopping the transformation. Does not apply when model file names are
+   * sourced from an incoming field, when evaluating or when updating an
+   * incremental model.
+   *
+   * @param w true if the model file is to be watched for changes
+   */
+  public void setWatchModelFile( boolean w ) {
+    m_watchModelFile = w;
+  }
+
+  /**
+   * Get whether to watch the model file for changes.
+   *
+   * @return true if the model file is to be watched for changes
+   */
+  public boolean getWatchModelFile() {
+    return m_watchModelFile;
+  }
+
+  /**
+   * Set the number of seconds between checks of the model file for changes
+   *
+   * @param interval the number of seconds between checks (empty for the
+   *                 default)
+   */
+  public void setModelWatchInterval( String interval ) {
+    m_modelWatchInterval = interval;
+  }
+
+  /**
+   * Get the number of seconds between checks of the model file for changes
+   *
+   * @return the number of seconds between checks (empty for the default)
+   */
+  public String getModelWatchInterval() {
+    return m_modelWatchInterval;
+  }
+
+  /**
+   * Set the maximum number of models to hold in the cache of loaded models.
+   * Least recently used models are evicted when the limit is reached.
+   *
+   * @param max the maximum number of models to cache (empty for no limit)
+   */
+  public void setModelCacheMaxEntries( String max ) {
+    m_modelCacheMaxEntries = max;
+  }
+
+  /**
+   * Get the maximum number of models to hold in the cache of loaded models.
+   *
+   * @return the maximum number of models to cache (empty for no limit)
+   */
+  public String getModelCacheMaxEntries() {
+    return m_modelCacheMaxEntries;
+  }
+
+  /**
+   * Set the maximum estimated size, in MB, of the models held in the cache of
+   * loaded models. The size of a model is estimated from the size of its file.
+   *
+   * @param max the maximum size of cached models in MB (empty for no limit)
+   */
+  public void setModelCacheMaxMB( String max ) {
+    m_modelCacheMaxMB = max;
+  }
+
+  /**
+   * Get the maximum estimated size, in MB, of the models held in the cache of
+   * loaded models.
+   *
+   * @return the maximum size of cached models in MB (empty for no limit)
+   */
+  public String getModelCacheMaxMB() {
+    return m_modelCacheMaxMB;
+  }
+
+  /**
+   * Set the number of rows to look ahead for the next model file to load in the
+   * background (when caching models that are named in an incoming field). Works
+   * best when the incoming rows are sorted on the model file field.
+   *
+   * @param rows the number of rows to look ahead (empty or 0 for no prefetching)
+   */
+  public void setModelPrefetchRows( String rows ) {
+    m_modelPrefetchRows = rows;
+  }
+
+  /**
+   * Get the number of rows to look ahead for the next model file to load in the
+   * background.
+   *
+   * @return the number of rows to look ahead (empty or 0 for no prefetching)
+   */
+  public String getModelPrefetchRows() {
+    return m_modelPrefetchRows;
+  }
+
+  /**
+   * Set the number of rows to buffer so that rows for the same model can be scored together (only used when model
+   * file names are being sourced from a field in the incoming rows)
+   *
+   * @param size the number of rows in each window. Empty (or 1) to score rows one at a time, in arrival order
+   */
+  public void setModelGroupWindowSize( String size ) {
+    m_modelGroupWindowSize = size;
+  }
+
+  /**
+   * Get the number of rows to buffer so that rows for the same model can be scored together (only used when model
+   * file names are being sourced from a field in the incoming rows)
+   *
+   * @return the number of rows in each window
+   */
+  public String getModelGroupWindowSize() {
+    return m_modelGroupWindowSize;
+  }
+
   /**
    * Set the name of the incoming field that holds paths to model files
    *
@@ -352,6 +855,7 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    */
   public void setModel( PMIScoringModel model ) {
     m_model = model;
+    m_embeddedModelFile = null;
   }
 
   /**
@@ -361,6 +865,7 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    * model (Classifier or Clusterer)
    */
   public PMIScoringModel getModel() {
+    loadEmbeddedModelFile();
     return m_model;
   }
 
@@ -372,6 +877,7 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    * incoming data row.
    */
   public PMIScoringModel getDefaultModel() {
+    loadEmbeddedModelFile();
     return m_defaultModel;
   }
 
@@ -383,6 +889,53 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    */
   public void setDefaultModel( PMIScoringModel defaultM ) {
     m_defaultModel = defaultM;
+    m_embeddedModelFile = null;
+  }
+
+  /**
+   * Set whether to write an embedded model to a content-addressed file rather than inline in the step metadata
+   *
+   * @param externalize true to write embedded models to a separate file
+   */
+  public void setExternalizeEmbeddedModel( boolean externalize ) {
+    m_externalizeEmbeddedModel = externalize;
+  }
+
+  /**
+   * Get whether to write an embedded model to a content-addressed file rather than inline in the step metadata
+   *
+   * @return true if embedded models are written to a separate file
+   */
+  public boolean getExternalizeEmbeddedModel() {
+    return m_externalizeEmbeddedModel;
+  }
+
+  /**
+   * Set the directory to write externalized embedded models to
+   *
+   * @param directory the directory (may contain variables). Empty for the transformation's directory
+   */
+  public void setEmbeddedModelDirectory( String directory ) {
+    m_embeddedModelDirectory = directory;
+  }
+
+  /**
+   * Get the directory to write externalized embedded models to
+   *
+   * @return the directory (may contain variables)
+   */
+  public String getEmbeddedModelDirectory() {
+    return m_embeddedModelDirectory;
+  }
+
+  /**
+   * Discard the cached serialized form of the embedded model. Only needed if the embedded model object is modified in
+   * place, since replacing it via setModel()/setDefaultModel() is detected automatically
+   */
+  public synchronized void invalidateEmbeddedModel() {
+    m_embeddedModelSource = null;
+    m_embeddedModelBytes = null;
+    m_embeddedModelDigest = null;
   }
 
   /**
@@ -425,7 +978,7 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
   }
 
   /**
-   * Check for equality
+   * Check for equality. Any embedded model is compared by the digest of its serialized form
    *
    * @param obj an <code>Object</code> to compare with
    * @return true if equal to the supplied object
@@ -433,7 +986,7 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
   @Override public boolean equals( Object obj ) {
     if ( obj != null && ( obj.getClass().equals( this.getClass() ) ) ) {
       PMIScoringMeta m = (PMIScoringMeta) obj;
-      return ( getXML( false ) == m.getXML( false ) );
+      return getXML( false, true ).equals( m.getXML( false, true ) );
     }
 
     return false;
@@ -445,7 +998,7 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    * @return the hash code for this object
    */
   @Override public int hashCode() {
-    return getXML( false ).hashCode();
+    return getXML( false, true ).hashCode();
   }
 
   /**
@@ -455,6 +1008,7 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
    */
   @Override public Object clone() {
     PMIScoringMeta retval = (PMIScoringMeta) super.clone();
+    retval.m_challengerModelFileNames = new ArrayList<String>( m_challengerModelFileNames );
     /* // deep copy the model (if any)
     if ( m_model != null ) {
       try {
@@ -492,6 +1046,18 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
   }
 
   protected String getXML( boolean logging ) {
+    return getXML( logging, false );
+  }
+
+  /**
+   * Return the XML describing this (configured) step
+   *
+   * @param logging      true if logging is to be performed
+   * @param identityOnly true if the XML is only needed to identify this configuration (for equals() and hashCode()).
+   *                     In this case any embedded model is represented by its digest alone
+   * @return a <code>String</code> containing the XML
+   */
+  protected String getXML( boolean logging, boolean identityOnly ) {
     StringBuilder retval = new StringBuilder();
 
     retval.append( XMLHandler.addTagValue( "output_probabilities", m_outputProbabilities ) );
@@ -521,32 +1087,66 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
       retval.append( XMLHandler.addTagValue( "batch_scoring_size", m_batchScoringSize ) );
     }
 
+    if ( !Const.isEmpty( m_numScoringThreads ) ) {
+      retval.append( XMLHandler.addTagValue( "num_scoring_threads", m_numScoringThreads ) );
+    }
+    retval.append( XMLHandler.addTagValue( "pipeline_batch_scoring", m_pipelineBatchScoring ) );
+    if ( !Const.isEmpty( m_maxBatchesInFlight ) ) {
+      retval.append( XMLHandler.addTagValue( "max_batches_in_flight", m_maxBatchesInFlight ) );
+    }
+    if ( !Const.isEmpty( m_maxBatchLatency ) ) {
+      retval.append( XMLHandler.addTagValue( "max_batch_latency", m_maxBatchLatency ) );
+    }
+    if ( m_challengerModelFileNames.size() > 0 ) {
+      retval.append( XMLHandler.openTag( "challenger_models" ) ).append( Const.CR );
+      for ( String challenger : m_challengerModelFileNames ) {
+        retval.append( XMLHandler.addTagValue( "challenger_model_file", challenger ) );
+      }
+      retval.append( XMLHandler.closeTag( "challenger_models" ) ).append( Const.CR );
+    }
+    if ( !Const.isEmpty( m_predictionCacheSize ) ) {
+      retval.append( XMLHandler.addTagValue( "prediction_cache_size", m_predictionCacheSize ) );
+    }
+    if ( !Const.isEmpty( m_lookupTableMaxMB ) ) {
+      retval.append( XMLHandler.addTagValue( "lookup_table_max_mb", m_lookupTableMaxMB ) );
+    }
+
     retval.append( XMLHandler.addTagValue( "cache_loaded_models", m_cacheLoadedModels ) );
+    retval.append( XMLHandler.addTagValue( "share_loaded_models", m_shareLoadedModels ) );
+    retval.append( XMLHandler.addTagValue( "compile_tree_models", m_compileTreeModels ) );
+    retval.append( XMLHandler.addTagValue( "compact_models", m_compactModels ) );
+    if ( !Const.isEmpty( m_compactModelTolerance ) ) {
+      retval.append( XMLHandler.addTagValue( "compact_model_tolerance", m_compactModelTolerance ) );
+    }
+    retval.append( XMLHandler.addTagValue( "watch_model_file", m_watchModelFile ) );
+    if ( !Const.isEmpty( m_modelWatchInterval ) ) {
+      retval.append( XMLHandler.addTagValue( "model_watch_interval", m_modelWatchInterval ) );
+    }
+    if ( !Const.isEmpty( m_modelCacheMaxEntries ) ) {
+      retval.append( XMLHandler.addTagValue( "model_cache_max_entries", m_modelCacheMaxEntries ) );
+    }
+    if ( !Const.isEmpty( m_modelCacheMaxMB ) ) {
+      retval.append( XMLHandler.addTagValue( "model_cache_max_mb", m_modelCacheMaxMB ) );
+    }
+    if ( !Const.isEmpty( m_modelPrefetchRows ) ) {
+      retval.append( XMLHandler.addTagValue( "model_prefetch_rows", m_modelPrefetchRows ) );
+    }
+    if ( !Const.isEmpty( m_modelGroupWindowSize ) ) {
+      retval.append( XMLHandler.addTagValue( "model_group_window_size", m_modelGroupWindowSize ) );
+    }
 
     retval.append( XMLHandler.addTagValue( "perform_evaluation", m_evaluateRatherThanScore ) );
     retval.append( XMLHandler.addTagValue( "output_ir_metrics", m_outputIRMetrics ) );
     retval.append( XMLHandler.addTagValue( "output_auc_metrics", m_outputAUCMetrics ) );
 
-    PMIScoringModel temp = m_fileNameFromField ? m_defaultModel : m_model;
-    if ( temp != null && Const.isEmpty( getSerializedModelFileName() ) ) {
-      byte[] model = serializeModelToBase64( temp );
-      if ( model != null ) {
-        try {
-          String base64model = XMLHandler.addTagValue( "pmi_scoring_model", model );
-          String modType = ( m_fileNameFromField ) ? "default" : "";
-          if ( logging ) {
-            getLog().logDebug( "Serializing " + modType + " model." );
-            getLog().logDebug(
-                BaseMessages.getString( PKG, "PMIScoringMeta.Log.SizeOfModel" ) + " " + base64model.length() );
-          }
+    retval.append( XMLHandler.addTagValue( "externalize_embedded_model", m_externalizeEmbeddedModel ) );
+    if ( !Const.isEmpty( m_embeddedModelDirectory ) ) {
+      retval.append( XMLHandler.addTagValue( "embedded_model_directory", m_embeddedModelDirectory ) );
+    }
 
-          retval.append( base64model );
-        } catch ( IOException e ) {
-          if ( logging ) {
-            getLog().logError( BaseMessages.getString( PKG, "PMIScoringMeta.Log.Base64SerializationProblem" ) );
-          }
-        }
-      }
+    PMIScoringModel temp = m_fileNameFromField ? m_defaultModel : m_model;
+    if ( ( temp != null || m_embeddedModelFile != null ) && Const.isEmpty( getSerializedModelFileName() ) ) {
+      retval.append( getEmbeddedModelXML( logging, identityOnly ) );
     } else {
       if ( !Const.isEmpty( m_modelFileName ) ) {
 
@@ -581,6 +1181,22 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
     }
 
     m_batchScoringSize = XMLHandler.getTagValue( stepnode, "batch_scoring_size" );
+    m_numScoringThreads = XMLHandler.getTagValue( stepnode, "num_scoring_threads" );
+    temp = XMLHandler.getTagValue( stepnode, "pipeline_batch_scoring" );
+    m_pipelineBatchScoring = !Const.isEmpty( temp ) && temp.equalsIgnoreCase( "Y" );
+    m_maxBatchesInFlight = XMLHandler.getTagValue( stepnode, "max_batches_in_flight" );
+    m_maxBatchLatency = XMLHandler.getTagValue( stepnode, "max_batch_latency" );
+    m_predictionCacheSize = XMLHandler.getTagValue( stepnode, "prediction_cache_size" );
+    m_lookupTableMaxMB = XMLHandler.getTagValue( stepnode, "lookup_table_max_mb" );
+    m_challengerModelFileNames = new ArrayList<String>();
+    Node challengers = XMLHandler.getSubNode( stepnode, "challenger_models" );
+    if ( challengers != null ) {
+      int numChallengers = XMLHandler.countNodes( challengers, "challenger_model_file" );
+      for ( int i = 0; i < numChallengers; i++ ) {
+        m_challengerModelFileNames
+            .add( XMLHandler.getNodeValue( XMLHandler.getSubNodeByNr( challengers, "challenger_model_file", i ) ) );
+      }
+    }
 
     String store = XMLHandler.getTagValue( stepnode, "store_model_in_meta" );
     if ( store != null ) {
@@ -607,13 +1223,44 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
       m_cacheLoadedModels = true;
     }
 
+    temp = XMLHandler.getTagValue( stepnode, "share_loaded_models" );
+    m_shareLoadedModels = !Const.isEmpty( temp ) && temp.equalsIgnoreCase( "Y" );
+    temp = XMLHandler.getTagValue( stepnode, "compile_tree_models" );
+    m_compileTreeModels = !Const.isEmpty( temp ) && temp.equalsIgnoreCase( "Y" );
+    temp = XMLHandler.getTagValue( stepnode, "compact_models" );
+    m_compactModels = !Const.isEmpty( temp ) && temp.equalsIgnoreCase( "Y" );
+    m_compactModelTolerance = XMLHandler.getTagValue( stepnode, "compact_model_tolerance" );
+    temp = XMLHandler.getTagValue( stepnode, "watch_model_file" );
+    m_watchModelFile = !Const.isEmpty( temp ) && temp.equalsIgnoreCase( "Y" );
+    m_modelWatchInterval = XMLHandler.getTagValue( stepnode, "model_watch_interval" );
+    m_modelCacheMaxEntries = XMLHandler.getTagValue( stepnode, "model_cache_max_entries" );
+    m_modelCacheMaxMB = XMLHandler.getTagValue( stepnode, "model_cache_max_mb" );
+    m_modelPrefetchRows = XMLHandler.getTagValue( stepnode, "model_prefetch_rows" );
+    m_modelGroupWindowSize = XMLHandler.getTagValue( stepnode, "model_group_window_size" );
+
+    temp = XMLHandler.getTagValue( stepnode, "externalize_embedded_model" );
+    m_externalizeEmbeddedModel = !Const.isEmpty( temp ) && temp.equalsIgnoreCase( "Y" );
+    m_embeddedModelDirectory = XMLHandler.getTagValue( stepnode, "embedded_model_directory" );
+
     // try and get the XML-based model
     boolean success = false;
+    invalidateEmbeddedModel();
+    m_embeddedModelFile = null;
+    String digest = XMLHandler.getTagValue( stepnode, "pmi_scoring_model_digest" );
+    String embeddedModelFile = XMLHandler.getTagValue( stepnode, "pmi_scoring_model_file" );
+    if ( !Const.isEmpty( embeddedModelFile ) ) {
+      // externalized model - not read until it is actually needed
+      m_embeddedModelFile = embeddedModelFile;
+      m_embeddedModelDigest = digest;
+      success = true;
+    }
     try {
-      String base64modelXML = XMLHandler.getTagValue( stepnode, "pmi_scoring_model" );
+      if ( !success ) {
+        String base64modelXML = XMLHandler.getTagValue( stepnode, "pmi_scoring_model" );
 
-      deSerializeBase64Model( base64modelXML );
-      success = true;
+        deSerializeModel( XMLHandler.stringToBinary( base64modelXML ), digest );
+        success = true;
+      }
 
       String modType = ( m_fileNameFromField ) ? "default" : "";
       logDebug( "Deserializing " + modType + " model." );
@@ -659,14 +1306,37 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
     m_fileNameFromField = rep.getStepAttributeBoolean( id_step, 0, "file_name_from_field" );
 
     m_batchScoringSize = rep.getStepAttributeString( id_step, 0, "batch_scoring_size" );
+    m_numScoringThreads = rep.getStepAttributeString( id_step, 0, "num_scoring_threads" );
+    m_pipelineBatchScoring = rep.getStepAttributeBoolean( id_step, 0, "pipeline_batch_scoring" );
+    m_maxBatchesInFlight = rep.getStepAttributeString( id_step, 0, "max_batches_in_flight" );
+    m_maxBatchLatency = rep.getStepAttributeString( id_step, 0, "max_batch_latency" );
+    m_predictionCacheSize = rep.getStepAttributeString( id_step, 0, "prediction_cache_size" );
+    m_lookupTableMaxMB = rep.getStepAttributeString( id_step, 0, "lookup_table_max_mb" );
+    m_challengerModelFileNames = new ArrayList<String>();
+    int numChallengers = rep.countNrStepAttributes( id_step, "challenger_model_file" );
+    for ( int i = 0; i < numChallengers; i++ ) {
+      m_challengerModelFileNames.add( rep.getStepAttributeString( id_step, i, "challenger_model_file" ) );
+    }
 
     if ( m_fileNameFromField ) {
       m_fieldNameToLoadModelFrom = rep.getStepAttributeString( id_step, 0, "field_name_to_load_from" );
     }
 
     m_cacheLoadedModels = rep.getStepAttributeBoolean( id_step, 0, "cache_loaded_models" );
+    m_shareLoadedModels = rep.getStepAttributeBoolean( id_step, 0, "share_loaded_models" );
+    m_compileTreeModels = rep.getStepAttributeBoolean( id_step, 0, "compile_tree_models" );
+    m_compactModels = rep.getStepAttributeBoolean( id_step, 0, "compact_models" );
+    m_compactModelTolerance = rep.getStepAttributeString( id_step, 0, "compact_model_tolerance" );
+    m_watchModelFile = rep.getStepAttributeBoolean( id_step, 0, "watch_model_file" );
+    m_modelWatchInterval = rep.getStepAttributeString( id_step, 0, "model_watch_interval" );
+    m_modelCacheMaxEntries = rep.getStepAttributeString( id_step, 0, "model_cache_max_entries" );
+    m_modelCacheMaxMB = rep.getStepAttributeString( id_step, 0, "model_cache_max_mb" );
+    m_modelPrefetchRows = rep.getStepAttributeString( id_step, 0, "model_prefetch_rows" );
+    m_modelGroupWindowSize = rep.getStepAttributeString( id_step, 0, "model_group_window_size" );
 
     m_storeModelInStepMetaData = rep.getStepAttributeBoolean( id_step, 0, "store_model_in_meta" );
+    m_externalizeEmbeddedModel = rep.getStepAttributeBoolean( id_step, 0, "externalize_embedded_model" );
+    m_embeddedModelDirectory = rep.getStepAttributeString( id_step, 0, "embedded_model_directory" );
 
     setEvaluateRatherThanScore( rep.getStepAttributeBoolean( id_step, 0, "perform_evaluation" ) );
     setOutputIRMetrics( rep.getStepAttributeBoolean( id_step, 0, "output_ir_metrics" ) );
@@ -685,6 +1355,19 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
       success = false;
     }
 
+    invalidateEmbeddedModel();
+    m_embeddedModelFile = null;
+    String digest = rep.getStepAttributeString( id_step, 0, "pmi_scoring_model_digest" );
+    if ( !success ) {
+      // an externalized model?
+      String embeddedModelFile = rep.getStepAttributeString( id_step, 0, "pmi_scoring_model_file" );
+      if ( !Const.isEmpty( embeddedModelFile ) ) {
+        m_embeddedModelFile = embeddedModelFile;
+        m_embeddedModelDigest = digest;
+        success = true;
+      }
+    }
+
     if ( !success ) {
       // try and get the model itself...
       try {
@@ -693,7 +1376,7 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
 
         if ( !Const.isEmpty( base64XMLModel ) ) {
           // try to de-serialize
-          deSerializeBase64Model( base64XMLModel );
+          deSerializeModel( XMLHandler.stringToBinary( base64XMLModel ), digest );
           success = true;
         } else {
           success = false;
@@ -741,6 +1424,28 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
     }
 
     rep.saveStepAttribute( id_transformation, id_step, 0, "cache_loaded_models", m_cacheLoadedModels );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "share_loaded_models", m_shareLoadedModels );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "compile_tree_models", m_compileTreeModels );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "compact_models", m_compactModels );
+    if ( !Const.isEmpty( m_compactModelTolerance ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "compact_model_tolerance", m_compactModelTolerance );
+    }
+    rep.saveStepAttribute( id_transformation, id_step, 0, "watch_model_file", m_watchModelFile );
+    if ( !Const.isEmpty( m_modelWatchInterval ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "model_watch_interval", m_modelWatchInterval );
+    }
+    if ( !Const.isEmpty( m_modelCacheMaxEntries ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "model_cache_max_entries", m_modelCacheMaxEntries );
+    }
+    if ( !Const.isEmpty( m_modelCacheMaxMB ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "model_cache_max_mb", m_modelCacheMaxMB );
+    }
+    if ( !Const.isEmpty( m_modelPrefetchRows ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "model_prefetch_rows", m_modelPrefetchRows );
+    }
+    if ( !Const.isEmpty( m_modelGroupWindowSize ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "model_group_window_size", m_modelGroupWindowSize );
+    }
 
     rep.saveStepAttribute( id_transformation, id_step, 0, "store_model_in_meta", m_storeModelInStepMetaData );
 
@@ -752,18 +1457,56 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
       rep.saveStepAttribute( id_transformation, id_step, 0, "batch_scoring_size", m_batchScoringSize );
     }
 
+    if ( !Const.isEmpty( m_numScoringThreads ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "num_scoring_threads", m_numScoringThreads );
+    }
+    rep.saveStepAttribute( id_transformation, id_step, 0, "pipeline_batch_scoring", m_pipelineBatchScoring );
+    if ( !Const.isEmpty( m_maxBatchesInFlight ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "max_batches_in_flight", m_maxBatchesInFlight );
+    }
+    if ( !Const.isEmpty( m_maxBatchLatency ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "max_batch_latency", m_maxBatchLatency );
+    }
+    if ( !Const.isEmpty( m_predictionCacheSize ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "prediction_cache_size", m_predictionCacheSize );
+    }
+    if ( !Const.isEmpty( m_lookupTableMaxMB ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "lookup_table_max_mb", m_lookupTableMaxMB );
+    }
+    for ( int i = 0; i < m_challengerModelFileNames.size(); i++ ) {
+      rep.saveStepAttribute( id_transformation, id_step, i, "challenger_model_file",
+          m_challengerModelFileNames.get( i ) );
+    }
+
+    rep.saveStepAttribute( id_transformation, id_step, 0, "externalize_embedded_model", m_externalizeEmbeddedModel );
+    if ( !Const.isEmpty( m_embeddedModelDirectory ) ) {
+      rep.saveStepAttribute( id_transformation, id_step, 0, "embedded_model_directory", m_embeddedModelDirectory );
+    }
+
+    if ( m_embeddedModelFile != null && !m_externalizeEmbeddedModel ) {
+      loadEmbeddedModelFile();
+    }
     PMIScoringModel temp = ( m_fileNameFromField ) ? m_defaultModel : m_model;
 
-    if ( temp != null && Const.isEmpty( m_modelFileName ) ) {
+    if ( m_embeddedModelFile != null && Const.isEmpty( m_modelFileName ) ) {
+      // externalized model that has not been read - just save the reference again
+      rep.saveStepAttribute( id_transformation, id_step, 0, "pmi_scoring_model_digest", m_embeddedModelDigest );
+      rep.saveStepAttribute( id_transformation, id_step, 0, "pmi_scoring_model_file", m_embeddedModelFile );
+    } else if ( temp != null && Const.isEmpty( m_modelFileName ) && updateEmbeddedModelCache() ) {
       try {
-        // Convert model to base64 encoding
-        byte[] model = serializeModelToBase64( temp );
-        String base64XMLModel = KettleDatabaseRepository.byteArrayToString( model );
+        rep.saveStepAttribute( id_transformation, id_step, 0, "pmi_scoring_model_digest", m_embeddedModelDigest );
+        String embeddedModelFile = m_externalizeEmbeddedModel ? writeEmbeddedModelFile( true ) : null;
+        if ( embeddedModelFile != null ) {
+          rep.saveStepAttribute( id_transformation, id_step, 0, "pmi_scoring_model_file", embeddedModelFile );
+        } else {
+          // Convert model to base64 encoding
+          String base64XMLModel = KettleDatabaseRepository.byteArrayToString( m_embeddedModelBytes );
 
-        String modType = ( m_fileNameFromField ) ? "default" : "";
-        logDebug( "Serializing " + modType + " model." );
+          String modType = ( m_fileNameFromField ) ? "default" : "";
+          logDebug( "Serializing " + modType + " model." );
 
-        rep.saveStepAttribute( id_transformation, id_step, 0, "pmi_scoring_model", base64XMLModel );
+          rep.saveStepAttribute( id_transformation, id_step, 0, "pmi_scoring_model", base64XMLModel );
+        }
       } catch ( Exception ex ) {
         logError( BaseMessages.getString( PKG, "PMIScoringDialog.Log.Base64SerializationProblem" ), ex );
       }
@@ -796,6 +1539,10 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
   @Override public void getFields( RowMetaInterface row, String origin, RowMetaInterface[] info, StepMeta nextStep,
       VariableSpace space ) throws KettleStepException {
 
+    // an externalized embedded model is only read when first needed
+    loadEmbeddedModelFile();
+
+    PMIModelContainer.ModelInfo modelInfo = null;
     if ( m_model == null && !Const.isEmpty( getSerializedModelFileName() ) ) {
       // see if we can load from a file.
 
@@ -806,19 +1553,27 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
           throw new KettleStepException( BaseMessages.getString( PKG, "PMIScoring.Error.NonExistentModelFile" ) );
         }
 
-        PMIScoringModel model = PMIScoringData.loadSerializedModel( m_modelFileName, getLog(), space );
-        setModel( model );
+        // the output structure for models in the container format can be determined from their metadata alone
+        modelInfo = PMIScoringData.loadModelInfo( m_modelFileName, space );
+        if ( modelInfo == null || ( modelInfo.isClusterer() && modelInfo.getNumClusters() < 0 ) ) {
+          modelInfo = null;
+          PMIScoringModel model = PMIScoringData.loadSerializedModel( m_modelFileName, getLog(), space );
+          setModel( model );
+        }
       } catch ( Exception ex ) {
         throw new KettleStepException( BaseMessages.getString( PKG, "PMIScoring.Error.ProblemDeserializingModel" ),
             ex );
       }
     }
 
-    if ( m_model != null ) {
+    if ( m_model != null || modelInfo != null ) {
+      Instances header = m_model != null ? m_model.getHeader() : modelInfo.getHeader();
+      boolean supervised = m_model != null ? m_model.isSupervisedLearningModel() : modelInfo.isClassifier();
+
       // output fields when performing evaluation rather than scoring
-      if ( getEvaluateRatherThanScore() && m_model.isSupervisedLearningModel() ) {
+      if ( getEvaluateRatherThanScore() && supervised ) {
         try {
-          getFieldsEvalMode( row, space, (PMIScoringClassifier) m_model );
+          getFieldsEvalMode( row, space, header );
         } catch ( KettlePluginException e ) {
           throw new KettleStepException( e );
         }
@@ -826,36 +1581,14 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
       }
 
       try {
-        Instances header = m_model.getHeader();
-        String classAttName;
-        boolean supervised = m_model.isSupervisedLearningModel();
-
         if ( supervised ) {
-          classAttName = header.classAttribute().name();
+          addSupervisedPredictionFields( row, origin, header, "" );
 
-          int
-              valueType =
-              ( header.classAttribute().isNumeric() ) ? ValueMetaInterface.TYPE_NUMBER : ValueMetaInterface.TYPE_STRING;
-
-          ValueMetaInterface newVM = ValueMetaFactory.createValueMeta( classAttName + "_predicted", valueType );
-          newVM.setOrigin( origin );
-          row.addValueMeta( newVM );
-
-          if ( m_outputProbabilities && !header.classAttribute().isNumeric() ) {
-            for ( int i = 0; i < header.classAttribute().numValues(); i++ ) {
-              String classVal = header.classAttribute().value( i );
-              // ValueMetaInterface
-              newVM =
-                  ValueMetaFactory.createValueMeta( classAttName + ":" + classVal + "_predicted_prob",
-                      ValueMetaInterface.TYPE_NUMBER );
-              newVM.setOrigin( origin );
-              row.addValueMeta( newVM );
+          // challengers share the main model's header, so produce the same fields
+          if ( !m_fileNameFromField ) {
+            for ( int i = 0; i < m_challengerModelFileNames.size(); i++ ) {
+              addSupervisedPredictionFields( row, origin, header, getChallengerFieldPrefix( i ) );
             }
-
-            // add one for the max probability too
-            newVM = ValueMetaFactory.createValueMeta( classAttName + "_max_prob", ValueMetaInterface.TYPE_NUMBER );
-            newVM.setOrigin( origin );
-            row.addValueMeta( newVM );
           }
         } else {
           ValueMetaInterface
@@ -866,7 +1599,10 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
 
           if ( m_outputProbabilities ) {
             try {
-              int numClusters = ( (PMIScoringClusterer) m_model ).numberOfClusters();
+              int
+                  numClusters =
+                  m_model != null ? ( (PMIScoringClusterer) m_model ).numberOfClusters() :
+                      modelInfo.getNumClusters();
               for ( int i = 0; i < numClusters; i++ ) {
                 //  ValueMetaInterface
                 newVM =
@@ -890,18 +1626,65 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
     }
   }
 
+  /**
+   * Adds the output fields for the predictions of a supervised model
+   *
+   * @param row    the row metadata to add to
+   * @param origin the origin of the fields
+   * @param header the structure of the data the model was trained on
+   * @param prefix prefix for the field names (empty for the main model)
+   * @throws KettlePluginException if a problem occurs
+   */
+  protected void addSupervisedPredictionFields( RowMetaInterface row, String origin, Instances header,
+      String prefix ) throws KettlePluginException {
+    String classAttName = prefix + header.classAttribute().name();
+
+    int
+        valueType =
+        ( header.classAttribute().isNumeric() ) ? ValueMetaInterface.TYPE_NUMBER : ValueMetaInterface.TYPE_STRING;
+
+    ValueMetaInterface newVM = ValueMetaFactory.createValueMeta( classAttName + "_predicted", valueType );
+    newVM.setOrigin( origin );
+    row.addValueMeta( newVM );
+
+    if ( m_outputProbabilities && !header.classAttribute().isNumeric() ) {
+      for ( int i = 0; i < header.classAttribute().numValues(); i++ ) {
+        String classVal = header.classAttribute().value( i );
+        newVM =
+            ValueMetaFactory
+                .createValueMeta( classAttName + ":" + classVal + "_predicted_prob", ValueMetaInterface.TYPE_NUMBER );
+        newVM.setOrigin( origin );
+        row.addValueMeta( newVM );
+      }
+
+      // add one for the max probability too
+      newVM = ValueMetaFactory.createValueMeta( classAttName + "_max_prob", ValueMetaInterface.TYPE_NUMBER );
+      newVM.setOrigin( origin );
+      row.addValueMeta( newVM );
+    }
+  }
+
+  /**
+   * Get the prefix for the names of the output fields of a challenger model
+   *
+   * @param challenger the index of the challenger (0-based)
+   * @return the prefix for the challenger's output fields
+   */
+  public static String getChallengerFieldPrefix( int challenger ) {
+    return "challenger" + ( challenger + 1 ) + "_";
+  }
+
   /**
    * Generates row metadata to represent evaluation-based output fields
    *
    * @param outRowMeta the output row metadata
    * @param vars       environment variables
-   * @param model      the model/default model (used to obtain training data structure)
+   * @param header     the structure of the data the model/default model was trained on
    * @throws KettlePluginException if a problem occurs
    */
-  protected void getFieldsEvalMode( RowMetaInterface outRowMeta, VariableSpace vars, PMIScoringClassifier model )
+  protected void getFieldsEvalMode( RowMetaInterface outRowMeta, VariableSpace vars, Instances header )
       throws KettlePluginException {
     outRowMeta.clear();
-    Instances header = model.getHeader();
     Attribute classAtt = header.classAttribute();
     boolean classIsNominal = classAtt.isNominal();
 
@@ -1052,19 +1835,232 @@ public class PMIScoringMeta extends BaseStepMeta implements StepMetaInterface {
     return null;
   }
 
-  protected void deSerializeBase64Model( String base64modelXML ) throws Exception {
-    byte[] model = XMLHandler.stringToBinary( base64modelXML );
-
+  /**
+   * Deserialize an embedded model and make it the model (or default model, if model file names are being sourced from
+   * a field). The serialized bytes are kept, so that the model does not need to be serialized again when saving or
+   * comparing this step's configuration
+   *
+   * @param model  the serialized model
+   * @param digest the digest of the serialized model, or null if it is to be computed
+   * @throws Exception if a problem occurs
+   */
+  protected void deSerializeModel( byte[] model, String digest ) throws Exception {
     // now de-serialize
     ByteArrayInputStream bis = new ByteArrayInputStream( model );
     ObjectInputStream ois = SerializationHelper.getObjectInputStream( bis );
 
+    PMIScoringModel result = (PMIScoringModel) ois.readObject();
+    ois.close();
     if ( m_fileNameFromField ) {
-      m_defaultModel = (PMIScoringModel) ois.readObject();
+      m_defaultModel = result;
     } else {
-      m_model = (PMIScoringModel) ois.readObject();
+      m_model = result;
+    }
+
+    synchronized ( this ) {
+      m_embeddedModelSource = result;
+      m_embeddedModelBytes = model;
+      m_embeddedModelDigest = Const.isEmpty( digest ) ? computeDigest( model ) : digest;
+    }
+  }
+
+  /**
+   * Make sure that the cached serialized form and digest belong to the current embedded model, recomputing them if
+   * the model has been replaced since they were computed
+   *
+   * @return true if there is an embedded model and it could be serialized
+   */
+  protected synchronized boolean updateEmbeddedModelCache() {
+    PMIScoringModel temp = m_fileNameFromField ? m_defaultModel : m_model;
+    if ( temp == null ) {
+      return false;
+    }
+
+    if ( temp != m_embeddedModelSource || m_embeddedModelBytes == null ) {
+      byte[] model = serializeModelToBase64( temp );
+      if ( model == null ) {
+        return false;
+      }
+      m_embeddedModelSource = temp;
+      m_embeddedModelBytes = model;
+      m_embeddedModelDigest = computeDigest( model );
+    }
+
+    return true;
+  }
+
+  /**
+   * Get the XML for the embedded model. This is either the model inline (as base64), or a reference to the
+   * content-addressed file that the model has been written to. Both are accompanied by the digest of the model
+   *
+   * @param logging      true if logging is to be performed
+   * @param identityOnly true if only the digest is needed
+   * @return the XML for the embedded model
+   */
+  protected String getEmbeddedModelXML( boolean logging, boolean identityOnly ) {
+    StringBuilder retval = new StringBuilder();
+
+    if ( m_embeddedModelFile != null && !identityOnly && !m_externalizeEmbeddedModel ) {
+      // user has switched back to storing the model inline
+      loadEmbeddedModelFile();
+    }
+
+    if ( m_embeddedModelFile != null ) {
+      // externalized model that has not been read - just write the reference out again
+      retval.append( XMLHandler.addTagValue( "pmi_scoring_model_digest", m_embeddedModelDigest ) );
+      if ( !identityOnly ) {
+        retval.append( XMLHandler.addTagValue( "pmi_scoring_model_file", m_embeddedModelFile ) );
+      }
+      return retval.toString();
+    }
+
+    if ( !updateEmbeddedModelCache() ) {
+      return "";
+    }
+    retval.append( XMLHandler.addTagValue( "pmi_scoring_model_digest", m_embeddedModelDigest ) );
+    if ( identityOnly ) {
+      return retval.toString();
+    }
+
+    if ( m_externalizeEmbeddedModel ) {
+      String embeddedModelFile = writeEmbeddedModelFile( logging );
+      if ( embeddedModelFile != null ) {
+        retval.append( XMLHandler.addTagValue( "pmi_scoring_model_file", embeddedModelFile ) );
+        return retval.toString();
+      }
+    }
+
+    try {
+      String base64model = XMLHandler.addTagValue( "pmi_scoring_model", m_embeddedModelBytes );
+      String modType = ( m_fileNameFromField ) ? "default" : "";
+      if ( logging ) {
+        getLog().logDebug( "Serializing " + modType + " model." );
+        getLog()
+            .logDebug( BaseMessages.getString( PKG, "PMIScoringMeta.Log.SizeOfModel" ) + " " + base64model.length() );
+      }
+
+      retval.append( base64model );
+    } catch ( IOException e ) {
+      if ( logging ) {
+        getLog().logError( BaseMessages.getString( PKG, "PMIScoringMeta.Log.Base64SerializationProblem" ) );
+      }
+    }
+
+    return retval.toString();
+  }
+
+  /**
+   * Write the embedded model to its content-addressed file, unless that file already exists (in which case it
+   * already holds this exact model).
+   *
+   * @param logging true if logging is to be performed
+   * @return the (unresolved) path of the file, or null if the model could not be written - in which case it should be
+   * stored inline instead
+   */
+  protected String writeEmbeddedModelFile( boolean logging ) {
+    String directory =
+        Const.isEmpty( m_embeddedModelDirectory ) ? DEFAULT_EMBEDDED_MODEL_DIRECTORY : m_embeddedModelDirectory;
+    String fileName =
+        directory + "/" + EMBEDDED_MODEL_FILE_PREFIX + m_embeddedModelDigest + EMBEDDED_MODEL_FILE_EXTENSION;
+    String resolved = substituteVariables( fileName );
+    if ( resolved.contains( "${" ) ) {
+      // e.g. a transformation that has not been saved yet has no directory
+      if ( logging ) {
+        logBasic( BaseMessages.getString( PKG, "PMIScoringMeta.Log.UnableToResolveEmbeddedModelFile", fileName ) );
+      }
+      return null;
+    }
+
+    try {
+      FileObject file = KettleVFS.getFileObject( resolved );
+      if ( !file.exists() || file.getContent().getSize() != m_embeddedModelBytes.length ) {
+        OutputStream os = KettleVFS.getOutputStream( file, false );
+        try {
+          os.write( m_embeddedModelBytes );
+        } finally {
+          os.close();
+        }
+        if ( logging ) {
+          logDetailed( BaseMessages.getString( PKG, "PMIScoringMeta.Log.WroteEmbeddedModelFile", resolved ) );
+        }
+      }
+    } catch ( Exception ex ) {
+      if ( logging ) {
+        logError( BaseMessages.getString( PKG, "PMIScoringMeta.Log.UnableToWriteEmbeddedModelFile", resolved ), ex );
+      }
+      return null;
+    }
+
+    return fileName;
+  }
+
+  /**
+   * Read an externalized embedded model, if there is one that has yet to be read
+   */
+  protected synchronized void loadEmbeddedModelFile() {
+    if ( m_embeddedModelFile == null ) {
+      return;
+    }
+
+    String resolved = substituteVariables( m_embeddedModelFile );
+    try {
+      InputStream is = KettleVFS.getInputStream( resolved );
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      try {
+        byte[] buff = new byte[1024 * 1024];
+        int read;
+        while ( ( read = is.read( buff ) ) != -1 ) {
+          bos.write( buff, 0, read );
+        }
+      } finally {
+        is.close();
+      }
+      byte[] model = bos.toByteArray();
+
+      String digest = computeDigest( model );
+      if ( !Const.isEmpty( m_embeddedModelDigest ) && !m_embeddedModelDigest.equals( digest ) ) {
+        throw new KettleException(
+            BaseMessages.getString( PKG, "PMIScoringMeta.Error.EmbeddedModelDigestMismatch", resolved ) );
+      }
+      deSerializeModel( model, digest );
+      m_embeddedModelFile = null;
+    } catch ( Exception ex ) {
+      // leave the reference in place so that it is not lost if the step is saved again
+      logError( BaseMessages.getString( PKG, "PMIScoringMeta.Error.UnableToReadEmbeddedModelFile", resolved ), ex );
+    }
+  }
+
+  /**
+   * Resolve variables against the parent transformation (if known)
+   *
+   * @param value the value to resolve
+   * @return the resolved value
+   */
+  protected String substituteVariables( String value ) {
+    if ( getParentStepMeta() != null && getParentStepMeta().getParentTransMeta() != null ) {
+      return getParentStepMeta().getParentTransMeta().environmentSubstitute( value );
+    }
+    return value;
+  }
+
+  /**
+   * Compute the SHA-256 digest of a serialized model
+   *
+   * @param model the serialized model
+   * @return the digest as a hex string
+   */
+  protected static String computeDigest( byte[] model ) {
+    try {
+      byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( model );
+      StringBuilder b = new StringBuilder();
+      for ( byte d : digest ) {
+        b.append( String.format( "%02x", d & 0xff ) );
+      }
+      return b.toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      // every JVM is required to support SHA-256
+      throw new IllegalStateException( e );
     }
-    ois.close();
   }
 
   @Override public void setDefault() {
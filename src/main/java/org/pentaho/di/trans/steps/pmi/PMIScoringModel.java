@@ -95,6 +95,18 @@ public abstract class PMIScoringModel implements Serializable {
     // something here.
   }
 
+  /**
+   * Returns true if the encapsulated model can safely produce predictions
+   * for more than one thread at a time. Many Weka models hold per-prediction
+   * state (e.g. filters used to transform incoming instances), so the default
+   * is false.
+   *
+   * @return true if the model can be shared between scoring threads
+   */
+  public boolean isThreadSafe() {
+    return false;
+  }
+
   /**
    * Set the weka model
    *
@@ -218,4 +230,45 @@ public abstract class PMIScoringModel implements Serializable {
     classifier.setEvaluation( forClassPriors );
     return classifier;
   }
+
+  /**
+   * Static factory method that compiles a scorer for a supported tree model
+   * (J48, RandomTree, REPTree, or a bagged ensemble of these such as
+   * RandomForest) into flattened node tables (see PMIScoringTreeEnsemble).
+   *
+   * @param scorer the scorer to compile (header must be set)
+   * @return the flattened scorer, or the supplied scorer if its model is not a
+   * supported tree model
+   * @throws Exception if an error occurs
+   */
+  public static PMIScoringModel createTreeEnsembleScorer( PMIScoringModel scorer ) throws Exception {
+    if ( !( scorer instanceof PMIScoringClassifier ) || scorer instanceof PMIScoringTreeEnsemble
+        || scorer instanceof PMIScoringLookupTable || scorer instanceof PMIScoringCompactTrees ) {
+      return scorer;
+    }
+
+    PMIScoringTreeEnsemble trees = PMIScoringTreeEnsemble.compile( (PMIScoringClassifier) scorer );
+    return trees != null ? trees : scorer;
+  }
+
+  /**
+   * Static factory method that compiles a scorer into a precomputed lookup
+   * table (see PMIScoringLookupTable) if the model is a classifier trained on
+   * nominal attributes only, and the table fits in the supplied limit.
+   *
+   * @param scorer        the scorer to compile (header must be set)
+   * @param maxTableBytes the maximum size of the table in bytes
+   * @return the lookup table scorer, or the supplied scorer if it can't be
+   * compiled into a table
+   * @throws Exception if an error occurs
+   */
+  public static PMIScoringModel createLookupTableScorer( PMIScoringModel scorer, long maxTableBytes )
+      throws Exception {
+    if ( !( scorer instanceof PMIScoringClassifier ) || scorer instanceof PMIScoringLookupTable ) {
+      return scorer;
+    }
+
+    PMIScoringLookupTable table = PMIScoringLookupTable.compile( (PMIScoringClassifier) scorer, maxTableBytes );
+    return table != null ? table : scorer;
+  }
 }
@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bounded, least recently used cache for models that are loaded from files
+ * named in an incoming field. The cache can be limited by number of entries
+ * and/or by the estimated size (in bytes) of the models it holds - the size of
+ * a model is estimated from the size of its file. Optionally, the next model
+ * can be loaded in the background, ahead of the rows that need it.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringModelCache {
+
+  /**
+   * Loads a model from a (resolved) file name
+   */
+  public interface ModelLoader {
+    PMIScoringModel loadModel( String resolvedName ) throws Exception;
+  }
+
+  /**
+   * Disposes of models that are evicted from, or left in, the cache
+   */
+  public interface ModelDisposer {
+    void disposeModel( PMIScoringModel model );
+  }
+
+  /**
+   * Cached models in access order (least recently used first)
+   */
+  protected final LinkedHashMap<String, CacheEntry>
+      m_entries =
+      new LinkedHashMap<String, CacheEntry>( 16, 0.75f, true );
+
+  /**
+   * Maximum number of models to hold (<= 0 for no limit)
+   */
+  protected int m_maxEntries;
+
+  /**
+   * Maximum estimated size of the models held (<= 0 for no limit)
+   */
+  protected long m_maxBytes;
+
+  /**
+   * Current estimated size of the models held
+   */
+  protected long m_currentBytes;
+
+  protected long m_hits;
+  protected long m_misses;
+  protected long m_prefetchHits;
+  protected long m_evictions;
+
+  protected final ModelLoader m_loader;
+  protected final ModelDisposer m_disposer;
+  protected final LogChannelInterface m_log;
+
+  /**
+   * Single background thread used for prefetching (null if prefetching is not
+   * enabled)
+   */
+  protected ExecutorService m_prefetchPool;
+
+  /**
+   * Name of the model currently being prefetched
+   */
+  protected String m_prefetchName;
+
+  /**
+   * The model currently being prefetched
+   */
+  protected Future<CacheEntry> m_prefetchFuture;
+
+  /**
+   * Constructor
+   *
+   * @param maxEntries the maximum number of models to hold (<= 0 for no limit)
+   * @param maxBytes   the maximum estimated size of the models held (<= 0 for
+   *                   no limit)
+   * @param prefetch   true if models can be loaded in the background
+   * @param loader     the loader to use
+   * @param disposer   the disposer to hand evicted models to
+   * @param log        the log to use
+   */
+  public PMIScoringModelCache( int maxEntries, long maxBytes, boolean prefetch, ModelLoader loader,
+      ModelDisposer disposer, LogChannelInterface log ) {
+    m_maxEntries = maxEntries;
+    m_maxBytes = maxBytes;
+    m_loader = loader;
+    m_disposer = disposer;
+    m_log = log;
+
+    if ( prefetch ) {
+      m_prefetchPool = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread t = new Thread( r, "PMI model prefetch" );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+    }
+  }
+
+  /**
+   * Get a model from the cache, loading it (or collecting it from the
+   * background prefetch) if necessary.
+   *
+   * @param resolvedName the (resolved) path to the model file
+   * @return the model
+   * @throws Exception if a problem occurs while loading the model
+   */
+  public PMIScoringModel get( String resolvedName ) throws Exception {
+    CacheEntry entry = m_entries.get( resolvedName );
+    if ( entry != null ) {
+      m_hits++;
+      return entry.m_model;
+    }
+
+    if ( m_prefetchFuture != null && resolvedName.equals( m_prefetchName ) ) {
+      Future<CacheEntry> prefetched = m_prefetchFuture;
+      m_prefetchFuture = null;
+      m_prefetchName = null;
+      entry = prefetched.get();
+      m_prefetchHits++;
+    } else {
+      entry = load( resolvedName );
+      m_misses++;
+    }
+
+    put( resolvedName, entry );
+    return entry.m_model;
+  }
+
+  /**
+   * Returns true if the supplied model is held in the cache
+   *
+   * @param model the model to check
+   * @return true if the model is in the cache
+   */
+  public boolean contains( PMIScoringModel model ) {
+    for ( CacheEntry e : m_entries.values() ) {
+      if ( e.m_model == model ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if a model can be prefetched right now - i.e. prefetching is
+   * enabled and there isn't a prefetch in progress already
+   *
+   * @return true if a model can be prefetched
+   */
+  public boolean canPrefetch() {
+    return m_prefetchPool != null && ( m_prefetchFuture == null || m_prefetchFuture.isDone() );
+  }
+
+  /**
+   * Start loading a model in the background, if prefetching is enabled, the
+   * model is not already cached and nothing else is currently being
+   * prefetched. A completed prefetch of some other model that has not been
+   * asked for is discarded.
+   *
+   * @param resolvedName the (resolved) path to the model file
+   */
+  public void prefetch( final String resolvedName ) {
+    if ( !canPrefetch() || resolvedName.equals( m_prefetchName ) || m_entries.containsKey( resolvedName ) ) {
+      return;
+    }
+    discardPrefetch();
+
+    if ( m_log.isDetailed() ) {
+      m_log.logDetailed(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringModelCache.Message.Prefetching", resolvedName ) );
+    }
+    m_prefetchName = resolvedName;
+    m_prefetchFuture = m_prefetchPool.submit( new Callable<CacheEntry>() {
+      @Override public CacheEntry call() throws Exception {
+        return load( resolvedName );
+      }
+    } );
+  }
+
+  /**
+   * Dispose of all cached (and prefetched) models and stop the prefetch thread
+   */
+  public void clear() {
+    discardPrefetch();
+    if ( m_prefetchPool != null ) {
+      m_prefetchPool.shutdownNow();
+      m_prefetchPool = null;
+    }
+
+    for ( CacheEntry e : m_entries.values() ) {
+      m_disposer.disposeModel( e.m_model );
+    }
+    m_entries.clear();
+    m_currentBytes = 0;
+  }
+
+  /**
+   * Get a summary of cache activity
+   *
+   * @return a summary of hits, misses and evictions
+   */
+  public String getStatistics() {
+    return BaseMessages
+        .getString( PMIScoringMeta.PKG, "PMIScoringModelCache.Message.Statistics", m_hits, m_prefetchHits, m_misses,
+            m_evictions, m_entries.size(), m_currentBytes / ( 1024 * 1024 ) );
+  }
+
+  public long getHits() {
+    return m_hits;
+  }
+
+  public long getPrefetchHits() {
+    return m_prefetchHits;
+  }
+
+  public long getMisses() {
+    return m_misses;
+  }
+
+  public long getEvictions() {
+    return m_evictions;
+  }
+
+  protected void discardPrefetch() {
+    if ( m_prefetchFuture != null ) {
+      try {
+        m_disposer.disposeModel( m_prefetchFuture.get().m_model );
+      } catch ( Exception ex ) {
+        // the model is not going to be used, so a failure to load it doesn't matter
+      }
+      m_prefetchFuture = null;
+      m_prefetchName = null;
+    }
+  }
+
+  protected CacheEntry load( String resolvedName ) throws Exception {
+    PMIScoringModel model = m_loader.loadModel( resolvedName );
+
+    long size = 0;
+    if ( model instanceof PMIScoringCompactTrees ) {
+      // much smaller than the file it was loaded from
+      size = ( (PMIScoringCompactTrees) model ).getSizeInBytes();
+    } else {
+      try {
+        FileObject modelF = KettleVFS.getFileObject( resolvedName );
+        size = modelF.getContent().getSize();
+      } catch ( Exception ex ) {
+        // size unknown - only the entry limit will apply to this model
+      }
+    }
+
+    return new CacheEntry( model, size );
+  }
+
+  /**
+   * Add an entry and evict least recently used models until the cache is back
+   * within its limits. The newly added model is never evicted.
+   *
+   * @param resolvedName the (resolved) path to the model file
+   * @param entry        the entry to add
+   */
+  protected void put( String resolvedName, CacheEntry entry ) {
+    m_entries.put( resolvedName, entry );
+    m_currentBytes += entry.m_size;
+
+    List<PMIScoringModel> evicted = new ArrayList<PMIScoringModel>();
+    Iterator<Map.Entry<String, CacheEntry>> i = m_entries.entrySet().iterator();
+    while ( m_entries.size() > 1 && ( ( m_maxEntries > 0 && m_entries.size() > m_maxEntries ) || ( m_maxBytes > 0
+        && m_currentBytes > m_maxBytes ) ) ) {
+      Map.Entry<String, CacheEntry> eldest = i.next();
+      i.remove();
+      m_currentBytes -= eldest.getValue().m_size;
+      evicted.add( eldest.getValue().m_model );
+      m_evictions++;
+
+      if ( m_log.isDetailed() ) {
+        m_log.logDetailed(
+            BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringModelCache.Message.Evicted", eldest.getKey() ) );
+      }
+    }
+
+    for ( PMIScoringModel model : evicted ) {
+      m_disposer.disposeModel( model );
+    }
+  }
+
+  /**
+   * A cached model along with its estimated size
+   */
+  protected static class CacheEntry {
+    protected final PMIScoringModel m_model;
+    protected final long m_size;
+
+    protected CacheEntry( PMIScoringModel model, long size ) {
+      m_model = model;
+      m_size = size;
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.apache.commons.vfs2.FileContent;
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+import weka.core.SerializedObject;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * JVM-wide registry of models loaded by the PMI scoring step. Models are keyed
+ * on the resolved path of the model file, along with its modification time and
+ * size, so that each version of a model file is only read and de-serialized once
+ * regardless of how many step copies or transformations are using it. Callers
+ * acquire a model and must release it when they are finished with it - the model
+ * is discarded once the last reference to it has been released. Models that are
+ * not safe to use from more than one thread are handed out as private copies,
+ * made from an in-memory serialized form of the shared model.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringModelRegistry {
+
+  /**
+   * Registered models, keyed by path + modification time + size
+   */
+  protected static final Map<String, RegistryEntry> s_entries = new HashMap<String, RegistryEntry>();
+
+  /**
+   * Lookup from model instance (shared or private copy) to its registry entry
+   */
+  protected static final Map<PMIScoringModel, RegistryEntry>
+      s_entriesByModel =
+      new IdentityHashMap<PMIScoringModel, RegistryEntry>();
+
+  /**
+   * Acquire a model from the registry, loading it if this version of the model
+   * file has not been loaded already. The shared instance is returned if the
+   * model can be used safely by more than one thread at a time, and the caller
+   * will not be modifying it. Otherwise, a private copy is made from an
+   * in-memory serialized form of the shared model (rather than by re-reading
+   * the model file). Either way, the model returned must be handed back via
+   * release() when no longer needed.
+   *
+   * @param modelFile the path to the model file (may contain variables)
+   * @param forUpdate true if the caller will be updating the model
+   * @param log       the log to use
+   * @param space     variables to use
+   * @return the model
+   * @throws Exception if a problem occurs
+   */
+  public static PMIScoringModel acquire( String modelFile, boolean forUpdate, LogChannelInterface log,
+      VariableSpace space ) throws Exception {
+    String resolvedName = space.environmentSubstitute( modelFile );
+    String key = registryKey( resolvedName );
+
+    RegistryEntry entry;
+    synchronized ( s_entries ) {
+      entry = s_entries.get( key );
+      if ( entry == null ) {
+        entry = new RegistryEntry( key );
+        s_entries.put( key, entry );
+      }
+      entry.m_refCount++;
+    }
+
+    // load outside of the registry lock so that different models can be loaded concurrently
+    try {
+      synchronized ( entry ) {
+        if ( entry.m_model == null ) {
+          entry.m_model = PMIScoringData.loadSerializedModel( resolvedName, log, space );
+          synchronized ( s_entries ) {
+            s_entriesByModel.put( entry.m_model, entry );
+          }
+          log.logBasic(
+              BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringModelRegistry.Message.LoadedModel", resolvedName ) );
+        } else if ( log.isDetailed() ) {
+          log.logDetailed( BaseMessages
+              .getString( PMIScoringMeta.PKG, "PMIScoringModelRegistry.Message.UsingSharedModel", resolvedName ) );
+        }
+
+        if ( !forUpdate && entry.m_model.isThreadSafe() ) {
+          return entry.m_model;
+        }
+
+        if ( entry.m_serialized == null ) {
+          entry.m_serialized = new SerializedObject( entry.m_model );
+        }
+        PMIScoringModel copy = (PMIScoringModel) entry.m_serialized.getObject();
+        copy.setLog( log );
+        synchronized ( s_entries ) {
+          s_entriesByModel.put( copy, entry );
+        }
+
+        return copy;
+      }
+    } catch ( Exception ex ) {
+      PMIScoringModel toDiscard;
+      synchronized ( s_entries ) {
+        toDiscard = decrementReferences( entry );
+      }
+      if ( toDiscard != null ) {
+        toDiscard.done();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Release a model that was acquired from the registry. Private copies are
+   * discarded immediately; the shared model is discarded when the last
+   * reference to it has been released.
+   *
+   * @param model the model to release
+   * @return true if the model was being managed by the registry
+   */
+  public static boolean release( PMIScoringModel model ) {
+    boolean isCopy;
+    PMIScoringModel toDiscard;
+    synchronized ( s_entries ) {
+      RegistryEntry entry = s_entriesByModel.get( model );
+      if ( entry == null ) {
+        return false;
+      }
+      isCopy = model != entry.m_model;
+      if ( isCopy ) {
+        s_entriesByModel.remove( model );
+      }
+      toDiscard = decrementReferences( entry );
+    }
+
+    if ( isCopy ) {
+      model.done();
+    }
+    if ( toDiscard != null ) {
+      toDiscard.done();
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the supplied model (or private copy) was acquired from the
+   * registry and has not been released yet
+   *
+   * @param model the model to check
+   * @return true if the model is managed by the registry
+   */
+  public static boolean isRegistered( PMIScoringModel model ) {
+    synchronized ( s_entries ) {
+      return s_entriesByModel.containsKey( model );
+    }
+  }
+
+  /**
+   * Get the number of distinct model files currently held by the registry
+   *
+   * @return the number of model files held
+   */
+  public static int numRegisteredModels() {
+    synchronized ( s_entries ) {
+      return s_entries.size();
+    }
+  }
+
+  /**
+   * Decrement the reference count of an entry, removing it from the registry if
+   * there are no references left. Must be called while holding the registry
+   * lock.
+   *
+   * @param entry the entry to decrement
+   * @return the shared model if it is no longer in use and should be discarded,
+   * null otherwise
+   */
+  protected static PMIScoringModel decrementReferences( RegistryEntry entry ) {
+    entry.m_refCount--;
+    if ( entry.m_refCount > 0 ) {
+      return null;
+    }
+
+    if ( s_entries.get( entry.m_key ) == entry ) {
+      s_entries.remove( entry.m_key );
+    }
+    if ( entry.m_model != null ) {
+      s_entriesByModel.remove( entry.m_model );
+    }
+    entry.m_serialized = null;
+
+    return entry.m_model;
+  }
+
+  /**
+   * Construct the key for a model file - its fully qualified URI plus the
+   * modification time and size of the file, so that a model file that gets
+   * replaced on disk results in a new entry.
+   *
+   * @param resolvedName the path to the model file (with variables resolved)
+   * @return the key for the model file
+   * @throws Exception if the model file does not exist or can't be accessed
+   */
+  protected static String registryKey( String resolvedName ) throws Exception {
+    FileObject modelF = KettleVFS.getFileObject( resolvedName );
+    if ( !modelF.exists() ) {
+      throw new Exception(
+          BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.NonExistentModelFile", resolvedName ) );
+    }
+    FileContent content = modelF.getContent();
+
+    return modelF.getName().getURI() + "|" + content.getLastModifiedTime() + "|" + content.getSize();
+  }
+
+  /**
+   * An entry in the registry
+   */
+  protected static class RegistryEntry {
+    protected final String m_key;
+    protected PMIScoringModel m_model;
+    protected SerializedObject m_serialized;
+    protected int m_refCount;
+
+    protected RegistryEntry( String key ) {
+      m_key = key;
+    }
+  }
+}
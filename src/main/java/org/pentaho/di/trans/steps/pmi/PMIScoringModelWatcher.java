@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.apache.commons.vfs2.FileContent;
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Watches a model file for changes. When a new version of the file appears (and
+ * has stopped changing), it is loaded and validated on a background thread. A
+ * model that passes validation is held until the scoring step picks it up (via
+ * takeNewModel()) at a point where it is safe to swap models - e.g. between
+ * batches - so rows are never scored by a partially loaded model and scoring
+ * never waits on a load.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringModelWatcher {
+
+  /**
+   * Checks that a newly loaded model can be swapped in for the current one
+   */
+  public interface ModelValidator {
+
+    /**
+     * @param model the newly loaded model
+     * @return null if the model can be used, otherwise a description of why not
+     */
+    String validateModel( PMIScoringModel model );
+  }
+
+  /**
+   * Fully resolved path of the model file being watched
+   */
+  protected final String m_resolvedName;
+
+  protected final PMIScoringModelCache.ModelLoader m_loader;
+  protected final ModelValidator m_validator;
+  protected final PMIScoringModelCache.ModelDisposer m_disposer;
+  protected final LogChannelInterface m_log;
+
+  /**
+   * Version (modification time + size) of the file that is currently in use
+   * (or was last rejected)
+   */
+  protected String m_currentVersion;
+
+  /**
+   * Version seen at the last poll. A new version is only loaded once it has
+   * been seen unchanged at two consecutive polls, so that files that are still
+   * being written are not picked up
+   */
+  protected String m_candidateVersion;
+
+  /**
+   * Validated model waiting to be swapped in
+   */
+  protected final AtomicReference<PMIScoringModel> m_newModel = new AtomicReference<PMIScoringModel>();
+
+  protected ScheduledExecutorService m_poller;
+
+  /**
+   * Constructor
+   *
+   * @param resolvedName the path to the model file (with variables resolved)
+   * @param loader       used to load new versions of the model
+   * @param validator    used to check that new versions can replace the current one
+   * @param disposer     used to dispose of models that are rejected or never picked up
+   * @param log          the log to use
+   * @throws Exception if the model file can't be accessed
+   */
+  public PMIScoringModelWatcher( String resolvedName, PMIScoringModelCache.ModelLoader loader,
+      ModelValidator validator, PMIScoringModelCache.ModelDisposer disposer, LogChannelInterface log )
+      throws Exception {
+    m_resolvedName = resolvedName;
+    m_loader = loader;
+    m_validator = validator;
+    m_disposer = disposer;
+    m_log = log;
+
+    // the version already loaded by the step
+    m_currentVersion = fileVersion();
+    m_candidateVersion = m_currentVersion;
+  }
+
+  /**
+   * Start polling the model file
+   *
+   * @param intervalMillis the time between polls, in milliseconds
+   */
+  public synchronized void start( long intervalMillis ) {
+    if ( m_poller != null ) {
+      return;
+    }
+    m_poller = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+      @Override public Thread newThread( Runnable r ) {
+        Thread t = new Thread( r, "PMI model watcher" );
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+    m_poller.scheduleWithFixedDelay( new Runnable() {
+      @Override public void run() {
+        poll();
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Stop polling and dispose of any model that has not been picked up
+   */
+  public synchronized void stop() {
+    if ( m_poller != null ) {
+      m_poller.shutdownNow();
+      try {
+        m_poller.awaitTermination( 5, TimeUnit.SECONDS );
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+      m_poller = null;
+    }
+    PMIScoringModel pending = m_newModel.getAndSet( null );
+    if ( pending != null ) {
+      m_disposer.disposeModel( pending );
+    }
+  }
+
+  /**
+   * Returns true if a new, validated, model is waiting to be swapped in. Does
+   * not block.
+   *
+   * @return true if a new model is available
+   */
+  public boolean hasNewModel() {
+    return m_newModel.get() != null;
+  }
+
+  /**
+   * Take the new model (if any). The caller becomes responsible for disposing
+   * of it. Does not block.
+   *
+   * @return the new model, or null if there is no new model available
+   */
+  public PMIScoringModel takeNewModel() {
+    return m_newModel.getAndSet( null );
+  }
+
+  /**
+   * Check the model file, and load and validate a new version if it has
+   * settled. Called on the watcher thread.
+   */
+  protected void poll() {
+    String version;
+    try {
+      version = fileVersion();
+    } catch ( Exception ex ) {
+      // file might be in the middle of being replaced - try again next time
+      if ( m_log.isDebug() ) {
+        m_log.logDebug( BaseMessages
+            .getString( PMIScoringMeta.PKG, "PMIScoringModelWatcher.Message.UnableToAccessModelFile", m_resolvedName,
+                ex.getMessage() ) );
+      }
+      return;
+    }
+
+    boolean settled = version.equals( m_candidateVersion );
+    m_candidateVersion = version;
+    if ( !settled || version.equals( m_currentVersion ) ) {
+      return;
+    }
+
+    PMIScoringModel model;
+    try {
+      model = m_loader.loadModel( m_resolvedName );
+    } catch ( Exception ex ) {
+      // leave m_currentVersion alone so that the load is retried at the next poll
+      m_log.logError( BaseMessages
+          .getString( PMIScoringMeta.PKG, "PMIScoringModelWatcher.Error.UnableToLoadNewModel", m_resolvedName ), ex );
+      return;
+    }
+    m_currentVersion = version;
+
+    String problem = m_validator.validateModel( model );
+    if ( problem != null ) {
+      m_log.logError( BaseMessages
+          .getString( PMIScoringMeta.PKG, "PMIScoringModelWatcher.Error.NewModelRejected", m_resolvedName,
+              problem ) );
+      m_disposer.disposeModel( model );
+      return;
+    }
+
+    m_log.logBasic(
+        BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringModelWatcher.Message.NewModelLoaded", m_resolvedName ) );
+    // replace any earlier version that the step has not picked up yet
+    PMIScoringModel superseded = m_newModel.getAndSet( model );
+    if ( superseded != null ) {
+      m_disposer.disposeModel( superseded );
+    }
+  }
+
+  /**
+   * Get the current version of the model file - its modification time and
+   * size
+   *
+   * @return the version of the model file
+   * @throws Exception if the file does not exist or can't be accessed
+   */
+  protected String fileVersion() throws Exception {
+    FileObject modelF = KettleVFS.getFileObject( m_resolvedName );
+    try {
+      // make sure we see the current state of the file rather than a cached one
+      modelF.refresh();
+      if ( !modelF.exists() ) {
+        throw new Exception(
+            BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoring.Error.NonExistentModelFile", m_resolvedName ) );
+      }
+      FileContent content = modelF.getContent();
+
+      return content.getLastModifiedTime() + "|" + content.getSize();
+    } finally {
+      modelF.close();
+    }
+  }
+}
@@ -0,0 +1,874 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.pentaho.di.core.xml.XMLHandler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import weka.classifiers.pmml.consumer.PMMLClassifier;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Subclass of PMIScoringClassifier that scores PMML regression and tree models
+ * with an evaluator compiled from the PMML document, rather than through
+ * Weka's interpreted PMML consumers. Field references are resolved to
+ * attribute indexes (and categorical values to value indexes) up front,
+ * regression tables are reduced to arrays of coefficients and tree nodes are
+ * laid out in arrays.
+ * <p>
+ * The compiled evaluator covers models without derived fields, and rows
+ * where all the fields the model uses are present. Rows with missing values,
+ * or that the model can't make a prediction for, are passed to Weka's
+ * interpreted model, as is any model that uses PMML features beyond the
+ * compiled subset.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringPMMLEvaluator extends PMIScoringClassifier {
+
+  /**
+   * Indexes of the attributes that the compiled evaluator reads
+   */
+  protected int[] m_usedFields;
+
+  /**
+   * The compiled evaluator
+   */
+  protected CompiledModel m_compiled;
+
+  /**
+   * Construct a compiled scorer for the supplied (interpreted) scorer. Use
+   * compile() to construct one.
+   *
+   * @param source the interpreted scorer
+   */
+  protected PMIScoringPMMLEvaluator( PMIScoringClassifier source ) {
+    super( source.getModel() );
+    setEvaluation( source.getEvaluation() );
+    setHeader( source.getHeader() );
+  }
+
+  /**
+   * Compile a PMML model
+   *
+   * @param source the interpreted scorer for the PMML model (header must be
+   *               set to the mining schema)
+   * @param pmml   the PMML document that the model was loaded from
+   * @return the compiled scorer, or null if the model uses PMML features that
+   * are not compiled
+   * @throws Exception if a problem occurs
+   */
+  public static PMIScoringPMMLEvaluator compile( PMIScoringClassifier source, Document pmml ) throws Exception {
+    Instances header = source.getHeader();
+    if ( !( source.getModel() instanceof PMMLClassifier ) || header == null || header.classIndex() < 0 ) {
+      return null;
+    }
+    Node root = XMLHandler.getSubNode( pmml, "PMML" );
+    if ( root == null || hasDerivedFields( XMLHandler.getSubNode( root, "TransformationDictionary" ) ) ) {
+      return null;
+    }
+
+    Set<Integer> usedFields = new LinkedHashSet<Integer>();
+    CompiledModel compiled = null;
+    Node modelNode = XMLHandler.getSubNode( root, "RegressionModel" );
+    if ( modelNode != null && canCompile( modelNode, header ) ) {
+      compiled = RegressionEvaluator.compile( modelNode, header, usedFields );
+    } else {
+      modelNode = XMLHandler.getSubNode( root, "TreeModel" );
+      if ( modelNode != null && canCompile( modelNode, header ) ) {
+        compiled = TreeEvaluator.compile( modelNode, header, usedFields );
+      }
+    }
+    if ( compiled == null ) {
+      return null;
+    }
+
+    PMIScoringPMMLEvaluator evaluator = new PMIScoringPMMLEvaluator( source );
+    evaluator.m_compiled = compiled;
+    evaluator.m_usedFields = new int[usedFields.size()];
+    int i = 0;
+    for ( int f : usedFields ) {
+      evaluator.m_usedFields[i++] = f;
+    }
+
+    return evaluator;
+  }
+
+  /**
+   * Returns true if a transformation dictionary (or local transformations)
+   * element defines derived fields
+   *
+   * @param transformations the element (may be null)
+   * @return true if there are derived fields
+   */
+  protected static boolean hasDerivedFields( Node transformations ) {
+    return transformations != null && XMLHandler.countNodes( transformations, "DerivedField" ) > 0;
+  }
+
+  /**
+   * Check the parts of a model element common to all model types: there must
+   * be only one model, no derived fields or target rescaling, and mining
+   * fields must not use outlier treatment.
+   *
+   * @param modelNode the model element
+   * @param header    the mining schema
+   * @return true if the model can be compiled (as far as these checks go)
+   */
+  protected static boolean canCompile( Node modelNode, Instances header ) {
+    if ( XMLHandler.getSubNode( modelNode, "Targets" ) != null || hasDerivedFields(
+        XMLHandler.getSubNode( modelNode, "LocalTransformations" ) ) ) {
+      return false;
+    }
+    Node schema = XMLHandler.getSubNode( modelNode, "MiningSchema" );
+    if ( schema == null ) {
+      return false;
+    }
+    for ( Node field : XMLHandler.getNodes( schema, "MiningField" ) ) {
+      String outliers = XMLHandler.getTagAttribute( field, "outliers" );
+      if ( outliers != null && !outliers.equals( "asIs" ) ) {
+        return false;
+      }
+      if ( header.attribute( XMLHandler.getTagAttribute( field, "name" ) ) == null ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Look up a field referenced by the model
+   *
+   * @param header     the mining schema
+   * @param name       the name of the field
+   * @param usedFields the set of fields used by the model, to add to
+   * @return the attribute for the field, or null if it is not an input field
+   */
+  protected static Attribute getField( Instances header, String name, Set<Integer> usedFields ) {
+    Attribute att = name != null ? header.attribute( name ) : null;
+    if ( att == null || att.index() == header.classIndex() || ( !att.isNumeric() && !att.isNominal() ) ) {
+      return null;
+    }
+    usedFields.add( att.index() );
+    return att;
+  }
+
+  /**
+   * Get the type of model that was compiled
+   *
+   * @return the name of the PMML model element
+   */
+  public String getCompiledModelType() {
+    return m_compiled.getModelType();
+  }
+
+  /**
+   * Return a probability distribution (over classes), or a single predicted
+   * value for a numeric class.
+   *
+   * @param inst the Instance to be predicted
+   * @return a probability distribution
+   * @throws Exception if an error occurs
+   */
+  @Override public double[] distributionForInstance( Instance inst ) throws Exception {
+    for ( int f : m_usedFields ) {
+      if ( inst.isMissing( f ) ) {
+        return super.distributionForInstance( inst );
+      }
+    }
+    double[] preds = m_compiled.evaluate( inst );
+    return preds != null ? preds : super.distributionForInstance( inst );
+  }
+
+  /**
+   * Return a classification (number for regression problems
+   * or index of a class value for classification problems).
+   *
+   * @param inst the Instance to be classified (predicted)
+   * @return the prediction
+   * @throws Exception if an error occurs
+   */
+  @Override public double classifyInstance( Instance inst ) throws Exception {
+    double[] dist = distributionForInstance( inst );
+    if ( !m_header.classAttribute().isNominal() ) {
+      return dist[0];
+    }
+    int maxIndex = Utils.maxIndex( dist );
+    return dist[maxIndex] > 0 ? maxIndex : Utils.missingValue();
+  }
+
+  /**
+   * Batch scoring method
+   *
+   * @param insts the instances to get predictions for
+   * @return an array of probability distributions, one for each instance
+   * @throws Exception if a problem occurs
+   */
+  @Override public double[][] distributionsForInstances( Instances insts ) throws Exception {
+    double[][] preds = new double[insts.numInstances()][];
+    for ( int i = 0; i < preds.length; i++ ) {
+      preds[i] = distributionForInstance( insts.instance( i ) );
+    }
+    return preds;
+  }
+
+  /**
+   * A PMML model compiled for a particular mining schema
+   */
+  protected abstract static class CompiledModel implements Serializable {
+
+    /**
+     * Get the prediction for an instance with no missing values in the fields
+     * used by the model
+     *
+     * @param inst the instance to predict
+     * @return the prediction, or null if the model makes no prediction (the
+     * interpreted model is used for the instance instead)
+     */
+    protected abstract double[] evaluate( Instance inst );
+
+    protected abstract String getModelType();
+  }
+
+  /**
+   * Compiled PMML RegressionModel
+   */
+  protected static class RegressionEvaluator extends CompiledModel {
+
+    protected static final int NORM_NONE = 0;
+    protected static final int NORM_SIMPLEMAX = 1;
+    protected static final int NORM_SOFTMAX = 2;
+    protected static final int NORM_LOGIT = 3;
+
+    protected boolean m_classification;
+    protected int m_width;
+    protected int m_normalization;
+
+    /**
+     * For each regression table: the index of the target category it predicts
+     * (0 for regression), intercept, numeric predictors (attribute, exponent,
+     * coefficient) and categorical predictors (attribute, value, coefficient)
+     */
+    protected int[] m_targetIndex;
+    protected double[] m_intercept;
+    protected int[][] m_numericAtt;
+    protected int[][] m_exponent;
+    protected double[][] m_numericCoef;
+    protected int[][] m_categoricalAtt;
+    protected int[][] m_categoricalValue;
+    protected double[][] m_categoricalCoef;
+
+    protected static RegressionEvaluator compile( Node modelNode, Instances header, Set<Integer> usedFields ) {
+      RegressionEvaluator eval = new RegressionEvaluator();
+      Attribute classAtt = header.classAttribute();
+      eval.m_classification = "classification".equals( XMLHandler.getTagAttribute( modelNode, "functionName" ) );
+      if ( eval.m_classification != classAtt.isNominal() ) {
+        return null;
+      }
+      eval.m_width = eval.m_classification ? classAtt.numValues() : 1;
+
+      String norm = XMLHandler.getTagAttribute( modelNode, "normalizationMethod" );
+      if ( norm == null || norm.equals( "none" ) ) {
+        eval.m_normalization = NORM_NONE;
+      } else if ( eval.m_classification && norm.equals( "simplemax" ) ) {
+        eval.m_normalization = NORM_SIMPLEMAX;
+      } else if ( eval.m_classification && norm.equals( "softmax" ) ) {
+        eval.m_normalization = NORM_SOFTMAX;
+      } else if ( eval.m_classification && norm.equals( "logit" ) ) {
+        eval.m_normalization = NORM_LOGIT;
+      } else {
+        return null;
+      }
+
+      List<Node> tables = XMLHandler.getNodes( modelNode, "RegressionTable" );
+      if ( tables.isEmpty() || ( !eval.m_classification && tables.size() != 1 ) ) {
+        return null;
+      }
+      int numTables = tables.size();
+      eval.m_targetIndex = new int[numTables];
+      eval.m_intercept = new double[numTables];
+      eval.m_numericAtt = new int[numTables][];
+      eval.m_exponent = new int[numTables][];
+      eval.m_numericCoef = new double[numTables][];
+      eval.m_categoricalAtt = new int[numTables][];
+      eval.m_categoricalValue = new int[numTables][];
+      eval.m_categoricalCoef = new double[numTables][];
+      Set<Integer> targets = new HashSet<Integer>();
+      for ( int t = 0; t < numTables; t++ ) {
+        Node table = tables.get( t );
+        if ( XMLHandler.countNodes( table, "PredictorTerm" ) > 0 ) {
+          return null;
+        }
+        if ( eval.m_classification ) {
+          eval.m_targetIndex[t] = classAtt.indexOfValue( XMLHandler.getTagAttribute( table, "targetCategory" ) );
+          if ( eval.m_targetIndex[t] < 0 || !targets.add( eval.m_targetIndex[t] ) ) {
+            return null;
+          }
+        }
+        eval.m_intercept[t] = Double.parseDouble( XMLHandler.getTagAttribute( table, "intercept" ) );
+
+        List<Node> numeric = XMLHandler.getNodes( table, "NumericPredictor" );
+        eval.m_numericAtt[t] = new int[numeric.size()];
+        eval.m_exponent[t] = new int[numeric.size()];
+        eval.m_numericCoef[t] = new double[numeric.size()];
+        for ( int i = 0; i < numeric.size(); i++ ) {
+          Node p = numeric.get( i );
+          Attribute att = getField( header, XMLHandler.getTagAttribute( p, "name" ), usedFields );
+          if ( att == null || !att.isNumeric() ) {
+            return null;
+          }
+          String exponent = XMLHandler.getTagAttribute( p, "exponent" );
+          eval.m_numericAtt[t][i] = att.index();
+          eval.m_exponent[t][i] = exponent != null ? Integer.parseInt( exponent.trim() ) : 1;
+          eval.m_numericCoef[t][i] = Double.parseDouble( XMLHandler.getTagAttribute( p, "coefficient" ) );
+        }
+
+        List<Node> categorical = XMLHandler.getNodes( table, "CategoricalPredictor" );
+        eval.m_categoricalAtt[t] = new int[categorical.size()];
+        eval.m_categoricalValue[t] = new int[categorical.size()];
+        eval.m_categoricalCoef[t] = new double[categorical.size()];
+        for ( int i = 0; i < categorical.size(); i++ ) {
+          Node p = categorical.get( i );
+          Attribute att = getField( header, XMLHandler.getTagAttribute( p, "name" ), usedFields );
+          if ( att == null || !att.isNominal() ) {
+            return null;
+          }
+          eval.m_categoricalAtt[t][i] = att.index();
+          // a value that is not in the mining schema never matches
+          eval.m_categoricalValue[t][i] = att.indexOfValue( XMLHandler.getTagAttribute( p, "value" ) );
+          eval.m_categoricalCoef[t][i] = Double.parseDouble( XMLHandler.getTagAttribute( p, "coefficient" ) );
+        }
+      }
+      if ( eval.m_classification && targets.size() != eval.m_width ) {
+        return null;
+      }
+
+      return eval;
+    }
+
+    @Override protected double[] evaluate( Instance inst ) {
+      double[] preds = new double[m_width];
+      for ( int t = 0; t < m_intercept.length; t++ ) {
+        double y = m_intercept[t];
+        int[] atts = m_numericAtt[t];
+        for ( int i = 0; i < atts.length; i++ ) {
+          double x = inst.value( atts[i] );
+          y += m_numericCoef[t][i] * ( m_exponent[t][i] == 1 ? x : Math.pow( x, m_exponent[t][i] ) );
+        }
+        atts = m_categoricalAtt[t];
+        for ( int i = 0; i < atts.length; i++ ) {
+          if ( (int) inst.value( atts[i] ) == m_categoricalValue[t][i] ) {
+            y += m_categoricalCoef[t][i];
+          }
+        }
+        preds[m_targetIndex[t]] = y;
+      }
+
+      switch ( m_normalization ) {
+        case NORM_SIMPLEMAX:
+          return normalize( preds );
+        case NORM_SOFTMAX:
+          for ( int i = 0; i < preds.length; i++ ) {
+            preds[i] = Math.exp( preds[i] );
+          }
+          return normalize( preds );
+        case NORM_LOGIT:
+          for ( int i = 0; i < preds.length; i++ ) {
+            preds[i] = 1.0 / ( 1.0 + Math.exp( -preds[i] ) );
+          }
+          return normalize( preds );
+        default:
+          return preds;
+      }
+    }
+
+    /**
+     * Normalize the predictions as Weka does
+     *
+     * @param preds the predictions
+     * @return the normalized predictions, or null if they can't be normalized
+     * (the interpreted model decides what happens then)
+     */
+    protected static double[] normalize( double[] preds ) {
+      double sum = Utils.sum( preds );
+      if ( sum == 0 || Double.isNaN( sum ) ) {
+        return null;
+      }
+      Utils.normalize( preds, sum );
+      return preds;
+    }
+
+    @Override protected String getModelType() {
+      return "RegressionModel";
+    }
+  }
+
+  /**
+   * A compiled PMML predicate, for rows with no missing values
+   */
+  protected abstract static class Predicate implements Serializable {
+    protected abstract boolean evaluate( Instance inst );
+  }
+
+  /**
+   * A constant predicate (True or False)
+   */
+  protected static class ConstantPredicate extends Predicate {
+    protected final boolean m_value;
+
+    protected ConstantPredicate( boolean value ) {
+      m_value = value;
+    }
+
+    @Override protected boolean evaluate( Instance inst ) {
+      return m_value;
+    }
+  }
+
+  /**
+   * A comparison between a field and a constant (SimplePredicate). Categorical
+   * values are compared by value index.
+   */
+  protected static class SimplePredicate extends Predicate {
+    protected static final int EQUAL = 0;
+    protected static final int NOT_EQUAL = 1;
+    protected static final int LESS_THAN = 2;
+    protected static final int LESS_OR_EQUAL = 3;
+    protected static final int GREATER_THAN = 4;
+    protected static final int GREATER_OR_EQUAL = 5;
+
+    protected final int m_att;
+    protected final int m_op;
+    protected final double m_value;
+
+    protected SimplePredicate( int att, int op, double value ) {
+      m_att = att;
+      m_op = op;
+      m_value = value;
+    }
+
+    @Override protected boolean evaluate( Instance inst ) {
+      double v = inst.value( m_att );
+      switch ( m_op ) {
+        case EQUAL:
+          return v == m_value;
+        case NOT_EQUAL:
+          return v != m_value;
+        case LESS_THAN:
+          return v < m_value;
+        case LESS_OR_EQUAL:
+          return v <= m_value;
+        case GREATER_THAN:
+          return v > m_value;
+        default:
+          return v >= m_value;
+      }
+    }
+  }
+
+  /**
+   * Set membership of a field's value (SimpleSetPredicate)
+   */
+  protected static class SetPredicate extends Predicate {
+    protected final int m_att;
+    protected final double[] m_values;
+    protected final boolean m_isIn;
+
+    protected SetPredicate( int att, double[] values, boolean isIn ) {
+      m_att = att;
+      m_values = values;
+      m_isIn = isIn;
+    }
+
+    @Override protected boolean evaluate( Instance inst ) {
+      double v = inst.value( m_att );
+      for ( double value : m_values ) {
+        if ( v == value ) {
+          return m_isIn;
+        }
+      }
+      return !m_isIn;
+    }
+  }
+
+  /**
+   * Combination of predicates (CompoundPredicate). With no missing values a
+   * surrogate predicate is decided by its first predicate.
+   */
+  protected static class CompoundPredicate extends Predicate {
+    protected static final int AND = 0;
+    protected static final int OR = 1;
+    protected static final int XOR = 2;
+    protected static final int SURROGATE = 3;
+
+    protected final int m_op;
+    protected final Predicate[] m_predicates;
+
+    protected CompoundPredicate( int op, Predicate[] predicates ) {
+      m_op = op;
+      m_predicates = predicates;
+    }
+
+    @Override protected boolean evaluate( Instance inst ) {
+      switch ( m_op ) {
+        case AND:
+          for ( Predicate p : m_predicates ) {
+            if ( !p.evaluate( inst ) ) {
+              return false;
+            }
+          }
+          return true;
+        case OR:
+          for ( Predicate p : m_predicates ) {
+            if ( p.evaluate( inst ) ) {
+              return true;
+            }
+          }
+          return false;
+        case XOR:
+          boolean result = false;
+          for ( Predicate p : m_predicates ) {
+            result ^= p.evaluate( inst );
+          }
+          return result;
+        default:
+          return m_predicates[0].evaluate( inst );
+      }
+    }
+  }
+
+  /**
+   * Compiled PMML TreeModel. Nodes are laid out in arrays, with the children of
+   * each node stored contiguously.
+   */
+  protected static class TreeEvaluator extends CompiledModel {
+
+    protected int m_width;
+    protected boolean m_returnLastPrediction;
+
+    protected Predicate[] m_predicate;
+    protected int[] m_childStart;
+    protected int[] m_numChildren;
+
+    /**
+     * The score of each node (a distribution, or a single value for
+     * regression). Null if the node has no score
+     */
+    protected double[][] m_score;
+
+    protected static TreeEvaluator compile( Node modelNode, Instances header, Set<Integer> usedFields ) {
+      TreeEvaluator eval = new TreeEvaluator();
+      Attribute classAtt = header.classAttribute();
+      boolean classification = "classification".equals( XMLHandler.getTagAttribute( modelNode, "functionName" ) );
+      if ( classification != classAtt.isNominal() ) {
+        return null;
+      }
+      eval.m_width = classification ? classAtt.numValues() : 1;
+      eval.m_returnLastPrediction =
+          "returnLastPrediction".equals( XMLHandler.getTagAttribute( modelNode, "noTrueChildStrategy" ) );
+
+      Node root = XMLHandler.getSubNode( modelNode, "Node" );
+      if ( root == null ) {
+        return null;
+      }
+      List<Node> nodes = new ArrayList<Node>();
+      List<int[]> children = new ArrayList<int[]>();
+      nodes.add( root );
+      children.add( null );
+      // breadth first, so that the children of each node are contiguous
+      for ( int n = 0; n < nodes.size(); n++ ) {
+        List<Node> kids = XMLHandler.getNodes( nodes.get( n ), "Node" );
+        children.set( n, new int[] { nodes.size(), kids.size() } );
+        for ( Node kid : kids ) {
+          nodes.add( kid );
+          children.add( null );
+        }
+      }
+
+      int numNodes = nodes.size();
+      eval.m_predicate = new Predicate[numNodes];
+      eval.m_childStart = new int[numNodes];
+      eval.m_numChildren = new int[numNodes];
+      eval.m_score = new double[numNodes][];
+      for ( int n = 0; n < numNodes; n++ ) {
+        Node node = nodes.get( n );
+        if ( XMLHandler.getSubNode( node, "EmbeddedModel" ) != null
+            || XMLHandler.getSubNode( node, "Regression" ) != null
+            || XMLHandler.getSubNode( node, "DecisionTree" ) != null ) {
+          return null;
+        }
+        eval.m_predicate[n] = eval.compilePredicate( findPredicate( node ), header, usedFields );
+        if ( eval.m_predicate[n] == null ) {
+          return null;
+        }
+        eval.m_childStart[n] = children.get( n )[0];
+        eval.m_numChildren[n] = children.get( n )[1];
+        if ( !eval.compileScore( n, node, classAtt ) ) {
+          return null;
+        }
+      }
+
+      return eval;
+    }
+
+    /**
+     * Find the predicate element of a node
+     *
+     * @param node the Node element
+     * @return the predicate element, or null if there is none
+     */
+    protected static Node findPredicate( Node node ) {
+      for ( Node child = node.getFirstChild(); child != null; child = child.getNextSibling() ) {
+        String name = child.getNodeName();
+        if ( name.equals( "SimplePredicate" ) || name.equals( "CompoundPredicate" ) || name
+            .equals( "SimpleSetPredicate" ) || name.equals( "True" ) || name.equals( "False" ) ) {
+          return child;
+        }
+      }
+      return null;
+    }
+
+    protected boolean compileScore( int n, Node node, Attribute classAtt ) {
+      String score = XMLHandler.getTagAttribute( node, "score" );
+      if ( !classAtt.isNominal() ) {
+        if ( score != null ) {
+          m_score[n] = new double[] { Double.parseDouble( score ) };
+        }
+        return true;
+      }
+
+      List<Node> dists = XMLHandler.getNodes( node, "ScoreDistribution" );
+      if ( dists.isEmpty() ) {
+        if ( score != null ) {
+          int index = classAtt.indexOfValue( score );
+          if ( index < 0 ) {
+            return false;
+          }
+          m_score[n] = new double[m_width];
+          m_score[n][index] = 1.0;
+        }
+        return true;
+      }
+
+      double[] probs = new double[m_width];
+      double[] counts = new double[m_width];
+      boolean allProbs = true;
+      for ( Node d : dists ) {
+        int index = classAtt.indexOfValue( XMLHandler.getTagAttribute( d, "value" ) );
+        if ( index < 0 ) {
+          return false;
+        }
+        String prob = XMLHandler.getTagAttribute( d, "probability" );
+        if ( prob != null ) {
+          probs[index] = Double.parseDouble( prob );
+        } else {
+          allProbs = false;
+        }
+        counts[index] = Double.parseDouble( XMLHandler.getTagAttribute( d, "recordCount" ) );
+      }
+      if ( !allProbs ) {
+        double total = Utils.sum( counts );
+        if ( total <= 0 ) {
+          return false;
+        }
+        for ( int i = 0; i < m_width; i++ ) {
+          probs[i] = counts[i] / total;
+        }
+      }
+      m_score[n] = probs;
+      return true;
+    }
+
+    protected Predicate compilePredicate( Node p, Instances header, Set<Integer> usedFields ) {
+      if ( p == null ) {
+        return null;
+      }
+      String name = p.getNodeName();
+      if ( name.equals( "True" ) || name.equals( "False" ) ) {
+        return new ConstantPredicate( name.equals( "True" ) );
+      }
+      if ( name.equals( "CompoundPredicate" ) ) {
+        String op = XMLHandler.getTagAttribute( p, "booleanOperator" );
+        List<Predicate> parts = new ArrayList<Predicate>();
+        for ( Node child = p.getFirstChild(); child != null; child = child.getNextSibling() ) {
+          if ( child.getNodeType() != Node.ELEMENT_NODE || child.getNodeName().equals( "Extension" ) ) {
+            continue;
+          }
+          Predicate part = compilePredicate( child, header, usedFields );
+          if ( part == null ) {
+            return null;
+          }
+          parts.add( part );
+        }
+        int code =
+            "and".equals( op ) ? CompoundPredicate.AND : "or".equals( op ) ? CompoundPredicate.OR :
+                "xor".equals( op ) ? CompoundPredicate.XOR : "surrogate".equals( op ) ? CompoundPredicate.SURROGATE
+                    : -1;
+        if ( code < 0 || parts.isEmpty() ) {
+          return null;
+        }
+        return new CompoundPredicate( code, parts.toArray( new Predicate[parts.size()] ) );
+      }
+
+      Attribute att = getField( header, XMLHandler.getTagAttribute( p, "field" ), usedFields );
+      if ( att == null ) {
+        return null;
+      }
+      if ( name.equals( "SimplePredicate" ) ) {
+        String op = XMLHandler.getTagAttribute( p, "operator" );
+        if ( "isMissing".equals( op ) || "isNotMissing".equals( op ) ) {
+          // rows with missing values are scored by the interpreted model
+          return new ConstantPredicate( "isNotMissing".equals( op ) );
+        }
+        String value = XMLHandler.getTagAttribute( p, "value" );
+        int code =
+            "equal".equals( op ) ? SimplePredicate.EQUAL : "notEqual".equals( op ) ? SimplePredicate.NOT_EQUAL :
+                "lessThan".equals( op ) ? SimplePredicate.LESS_THAN :
+                    "lessOrEqual".equals( op ) ? SimplePredicate.LESS_OR_EQUAL :
+                        "greaterThan".equals( op ) ? SimplePredicate.GREATER_THAN :
+                            "greaterOrEqual".equals( op ) ? SimplePredicate.GREATER_OR_EQUAL : -1;
+        if ( code < 0 || value == null ) {
+          return null;
+        }
+        if ( att.isNominal() ) {
+          // only equality is defined on value indexes
+          if ( code != SimplePredicate.EQUAL && code != SimplePredicate.NOT_EQUAL ) {
+            return null;
+          }
+          int index = att.indexOfValue( value );
+          if ( index < 0 ) {
+            return new ConstantPredicate( code == SimplePredicate.NOT_EQUAL );
+          }
+          return new SimplePredicate( att.index(), code, index );
+        }
+        return new SimplePredicate( att.index(), code, Double.parseDouble( value ) );
+      }
+
+      if ( name.equals( "SimpleSetPredicate" ) ) {
+        String op = XMLHandler.getTagAttribute( p, "booleanOperator" );
+        Node array = XMLHandler.getSubNode( p, "Array" );
+        if ( array == null || ( !"isIn".equals( op ) && !"isNotIn".equals( op ) ) ) {
+          return null;
+        }
+        List<String> tokens = parseArray( XMLHandler.getNodeValue( array ) );
+        List<Double> values = new ArrayList<Double>();
+        for ( String token : tokens ) {
+          if ( att.isNominal() ) {
+            int index = att.indexOfValue( token );
+            if ( index >= 0 ) {
+              values.add( (double) index );
+            }
+          } else {
+            values.add( Double.parseDouble( token ) );
+          }
+        }
+        double[] vals = new double[values.size()];
+        for ( int i = 0; i < vals.length; i++ ) {
+          vals[i] = values.get( i );
+        }
+        return new SetPredicate( att.index(), vals, "isIn".equals( op ) );
+      }
+
+      return null;
+    }
+
+    /**
+     * Split the content of a PMML Array into its values. Values are separated
+     * by white space, and may be enclosed in double quotes (with \" for a
+     * quote inside a value).
+     *
+     * @param content the content of the Array element
+     * @return the values
+     */
+    protected static List<String> parseArray( String content ) {
+      List<String> tokens = new ArrayList<String>();
+      if ( content == null ) {
+        return tokens;
+      }
+      int i = 0;
+      int len = content.length();
+      while ( i < len ) {
+        char c = content.charAt( i );
+        if ( Character.isWhitespace( c ) ) {
+          i++;
+        } else if ( c == '"' ) {
+          StringBuilder token = new StringBuilder();
+          i++;
+          while ( i < len && content.charAt( i ) != '"' ) {
+            if ( content.charAt( i ) == '\\' && i + 1 < len && content.charAt( i + 1 ) == '"' ) {
+              i++;
+            }
+            token.append( content.charAt( i++ ) );
+          }
+          i++;
+          tokens.add( token.toString() );
+        } else {
+          int start = i;
+          while ( i < len && !Character.isWhitespace( content.charAt( i ) ) ) {
+            i++;
+          }
+          tokens.add( content.substring( start, i ) );
+        }
+      }
+      return tokens;
+    }
+
+    @Override protected double[] evaluate( Instance inst ) {
+      int node = 0;
+      if ( !m_predicate[0].evaluate( inst ) ) {
+        return null;
+      }
+      while ( m_numChildren[node] > 0 ) {
+        int next = -1;
+        int start = m_childStart[node];
+        for ( int i = start; i < start + m_numChildren[node]; i++ ) {
+          if ( m_predicate[i].evaluate( inst ) ) {
+            next = i;
+            break;
+          }
+        }
+        if ( next < 0 ) {
+          if ( !m_returnLastPrediction ) {
+            return null;
+          }
+          break;
+        }
+        node = next;
+      }
+      return m_score[node] != null ? m_score[node].clone() : null;
+    }
+
+    @Override protected String getModelType() {
+      return "TreeModel";
+    }
+  }
+}
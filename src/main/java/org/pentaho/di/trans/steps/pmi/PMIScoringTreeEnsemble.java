@@ -0,0 +1,875 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.meta.LogitBoost;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.REPTree;
+import weka.classifiers.trees.RandomTree;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.classifiers.trees.j48.Distribution;
+import weka.classifiers.trees.j48.NoSplit;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Subclass of PMIScoringClassifier that scores with a flattened copy of a
+ * trained tree model. The nodes of all the trees are laid out in parallel
+ * arrays (split attribute, threshold, position of the children, leaf
+ * distribution), with the children of each node stored contiguously, so that
+ * scoring walks a few arrays instead of chasing references between Weka's
+ * node objects. Predictions are the same as the Weka model's, and are checked
+ * against it on generated rows before the flattened trees are used.
+ * <p>
+ * Supported models are J48, RandomTree and REPTree, bagged ensembles of
+ * RandomTree/REPTree (e.g. RandomForest), and LogitBoost with REPTree base
+ * learners (the gradient boosted trees scheme). A boosted model is an additive
+ * sum of regression trees that is turned into class probabilities with a
+ * softmax. The tree structure is read from the (non-public) fields of the Weka
+ * classes, so compile() returns null for anything it does not recognize and
+ * the model is scored as usual.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringTreeEnsemble extends PMIScoringClassifier {
+
+  /**
+   * The scorer that the trees were compiled from
+   */
+  protected PMIScoringClassifier m_source;
+
+  /**
+   * Index of the root node of each tree
+   */
+  protected int[] m_roots;
+
+  /**
+   * Split attribute of each node (-1 for a leaf)
+   */
+  protected int[] m_attribute;
+
+  /**
+   * Split point of each node. NaN for a split on a nominal attribute (one child
+   * per value)
+   */
+  protected double[] m_splitPoint;
+
+  /**
+   * Index of the first child of each node
+   */
+  protected int[] m_childStart;
+
+  /**
+   * Number of children of each node
+   */
+  protected int[] m_numChildren;
+
+  /**
+   * Proportion of the parent's training data that went to each node. Used to
+   * weight the children of a node when the split attribute is missing
+   */
+  protected double[] m_prop;
+
+  /**
+   * Offset of each node's distribution in m_dists, or -1 if the node has none
+   */
+  protected int[] m_distOffset;
+
+  /**
+   * The node distributions, m_width values each
+   */
+  protected double[] m_dists;
+
+  /**
+   * Number of values in a distribution (number of classes, or 1 for a numeric
+   * class)
+   */
+  protected int m_width;
+
+  /**
+   * True if values equal to the split point (within Weka's tolerance) go left
+   * (J48), rather than just values less than the split point
+   */
+  protected boolean m_splitInclusive;
+
+  /**
+   * True if the predictions of the trees are averaged (Bagging)
+   */
+  protected boolean m_averageTrees;
+
+  /**
+   * Number of classes if the trees are the regression trees of a LogitBoost
+   * model, or 0. The trees are stored one boosting iteration after another,
+   * one tree per class (a single tree when there are two classes)
+   */
+  protected int m_boostClasses;
+
+  /**
+   * Shrinkage applied to the predictions of the boosted trees
+   */
+  protected double m_shrinkage = 1.0;
+
+  /**
+   * Description of the source model, once the source has been released
+   */
+  protected String m_description;
+
+  /**
+   * Number of generated rows that the flattened trees are checked against the
+   * Weka model on
+   */
+  public static final int NUM_CHECK_ROWS = 200;
+
+  /**
+   * Largest difference in a predicted probability (or relative difference in a
+   * predicted numeric value) allowed between the flattened trees and the Weka
+   * model
+   */
+  public static final double CHECK_TOLERANCE = 1e-9;
+
+  /**
+   * Construct a flattened scorer for the supplied scorer. Use compile() to
+   * construct and fill one.
+   *
+   * @param source the scorer to compile
+   */
+  protected PMIScoringTreeEnsemble( PMIScoringClassifier source ) {
+    super( source.getModel() );
+    m_source = source;
+    setEvaluation( source.getEvaluation() );
+    setHeader( source.getHeader() );
+  }
+
+  /**
+   * Compile the tree model of a scorer into flattened node tables
+   *
+   * @param source the scorer to compile
+   * @return the flattened scorer, or null if the model is not a supported tree
+   * model, or the flattened trees do not predict the same as the model
+   * @throws Exception if a problem occurs
+   */
+  public static PMIScoringTreeEnsemble compile( PMIScoringClassifier source ) throws Exception {
+    Instances header = source.getHeader();
+    Object model = source.getModel();
+    if ( header == null || header.classIndex() < 0 || ( !header.classAttribute().isNominal() && !header
+        .classAttribute().isNumeric() ) ) {
+      return null;
+    }
+
+    boolean boosted = model instanceof LogitBoost;
+    if ( boosted && !header.classAttribute().isNominal() ) {
+      return null;
+    }
+
+    PMIScoringTreeEnsemble flat = new PMIScoringTreeEnsemble( source );
+    // the trees of a boosted model are regression trees with a single value at each leaf
+    flat.m_width = header.classAttribute().isNominal() && !boosted ? header.classAttribute().numValues() : 1;
+    NodeTableBuilder builder = new NodeTableBuilder( flat.m_width );
+    List<Integer> roots = new ArrayList<Integer>();
+    try {
+      if ( model instanceof J48 ) {
+        if ( ( (J48) model ).getUseLaplace() ) {
+          return null;
+        }
+        flat.m_splitInclusive = true;
+        int root = builder.addNodes( 1 );
+        if ( !addJ48Node( builder, root, (ClassifierTree) getFieldValue( model, "m_root" ), header ) ) {
+          return null;
+        }
+        roots.add( root );
+      } else if ( model instanceof RandomTree || model instanceof REPTree ) {
+        int root = builder.addNodes( 1 );
+        if ( !addWekaTree( builder, root, (Classifier) model, header ) ) {
+          return null;
+        }
+        roots.add( root );
+      } else if ( model instanceof Bagging ) {
+        flat.m_averageTrees = true;
+        Classifier[] members = (Classifier[]) getFieldValue( model, "m_Classifiers" );
+        if ( members == null || members.length == 0 ) {
+          return null;
+        }
+        for ( Classifier member : members ) {
+          if ( !( member instanceof RandomTree ) && !( member instanceof REPTree ) ) {
+            return null;
+          }
+          int root = builder.addNodes( 1 );
+          if ( !addWekaTree( builder, root, member, header ) ) {
+            return null;
+          }
+          roots.add( root );
+        }
+      } else if ( boosted ) {
+        if ( !addBoostedTrees( flat, builder, roots, model, header ) ) {
+          return null;
+        }
+      } else {
+        return null;
+      }
+    } catch ( NoSuchFieldException e ) {
+      // a version of Weka that lays out its trees differently
+      return null;
+    } catch ( ClassCastException e ) {
+      return null;
+    }
+
+    flat.m_roots = new int[roots.size()];
+    for ( int i = 0; i < flat.m_roots.length; i++ ) {
+      flat.m_roots[i] = roots.get( i );
+    }
+    builder.build( flat );
+
+    // the trees are reproduced from the non-public fields of the Weka classes, so make
+    // sure they predict the same as the Weka model before scoring with them
+    if ( maxDifference( source, flat, flat.getSplitPoints(), NUM_CHECK_ROWS ) > CHECK_TOLERANCE ) {
+      return null;
+    }
+
+    return flat;
+  }
+
+  /**
+   * Add the regression trees of a LogitBoost model to the node table
+   *
+   * @param flat    the flattened scorer being built
+   * @param builder the node table being built
+   * @param roots   the list of root nodes to add to
+   * @param model   the LogitBoost model
+   * @param header  the training data structure
+   * @return false if the model can't be flattened
+   * @throws Exception if a problem occurs
+   */
+  protected static boolean addBoostedTrees( PMIScoringTreeEnsemble flat, NodeTableBuilder builder,
+      List<Integer> roots, Object model, Instances header ) throws Exception {
+    if ( getOptionalFieldValue( model, "m_ZeroR" ) != null ) {
+      // model was built from data with no usable attributes
+      return false;
+    }
+    int numClasses = (Integer) getFieldValue( model, "m_NumClasses" );
+    int numGenerated = (Integer) getFieldValue( model, "m_NumGenerated" );
+    Object members = getFieldValue( model, "m_Classifiers" );
+    List<Classifier[]> iterations = new ArrayList<Classifier[]>();
+    if ( members instanceof Classifier[][] ) {
+      iterations.addAll( Arrays.asList( (Classifier[][]) members ) );
+    } else if ( members instanceof List ) {
+      for ( Object iteration : (List<?>) members ) {
+        iterations.add( (Classifier[]) iteration );
+      }
+    } else {
+      return false;
+    }
+    if ( numClasses != header.classAttribute().numValues() || numGenerated <= 0
+        || numGenerated > iterations.size() ) {
+      return false;
+    }
+
+    int perIteration = numClasses == 2 ? 1 : numClasses;
+    for ( int i = 0; i < numGenerated; i++ ) {
+      Classifier[] trees = iterations.get( i );
+      if ( trees == null || trees.length < perIteration ) {
+        return false;
+      }
+      for ( int j = 0; j < perIteration; j++ ) {
+        if ( !( trees[j] instanceof REPTree ) ) {
+          return false;
+        }
+        int root = builder.addNodes( 1 );
+        if ( !addWekaTree( builder, root, trees[j], header ) ) {
+          return false;
+        }
+        roots.add( root );
+      }
+    }
+    flat.m_boostClasses = numClasses;
+    flat.m_shrinkage = (Double) getFieldValue( model, "m_Shrinkage" );
+    return true;
+  }
+
+  /**
+   * Get the value of a (possibly inherited, non-public) field of an object, if
+   * the field exists
+   *
+   * @param obj  the object
+   * @param name the name of the field
+   * @return the value of the field, or null if there is no such field
+   * @throws Exception if the field can't be read
+   */
+  protected static Object getOptionalFieldValue( Object obj, String name ) throws Exception {
+    try {
+      return getFieldValue( obj, name );
+    } catch ( NoSuchFieldException e ) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the value of a (possibly inherited, non-public) field of an object
+   *
+   * @param obj  the object
+   * @param name the name of the field
+   * @return the value of the field
+   * @throws Exception if the field does not exist or can't be read
+   */
+  protected static Object getFieldValue( Object obj, String name ) throws Exception {
+    Class<?> clazz = obj.getClass();
+    while ( clazz != null ) {
+      try {
+        Field field = clazz.getDeclaredField( name );
+        field.setAccessible( true );
+        return field.get( obj );
+      } catch ( NoSuchFieldException e ) {
+        clazz = clazz.getSuperclass();
+      }
+    }
+    throw new NoSuchFieldException( name );
+  }
+
+  /**
+   * Add a RandomTree or REPTree to the node table
+   *
+   * @param builder the node table being built
+   * @param node    the index of the root node
+   * @param tree    the RandomTree or REPTree
+   * @param header  the training data structure
+   * @return false if the tree can't be flattened
+   * @throws Exception if a problem occurs
+   */
+  protected static boolean addWekaTree( NodeTableBuilder builder, int node, Classifier tree, Instances header )
+      throws Exception {
+    if ( getFieldValue( tree, "m_zeroR" ) != null ) {
+      // model was built from data with no usable attributes
+      return false;
+    }
+    Object root = getFieldValue( tree, "m_Tree" );
+    if ( root == null ) {
+      return false;
+    }
+    // RandomTree normalizes its class counts at prediction time, REPTree stores probabilities
+    boolean randomTree = tree instanceof RandomTree;
+    addWekaTreeNode( builder, node, root, randomTree ? "m_ClassDistribution" : "m_ClassProbs",
+        randomTree && header.classAttribute().isNominal(), header );
+    return true;
+  }
+
+  /**
+   * Add a node of a RandomTree or REPTree (and its subtree) to the node table
+   *
+   * @param builder   the node table being built
+   * @param node      the index of the node
+   * @param treeNode  the Weka tree node
+   * @param distField the name of the field that holds the node's distribution
+   * @param normalize true if the node's distribution is to be normalized
+   * @param header    the training data structure
+   * @throws Exception if a problem occurs
+   */
+  protected static void addWekaTreeNode( NodeTableBuilder builder, int node, Object treeNode, String distField,
+      boolean normalize, Instances header ) throws Exception {
+    int att = (Integer) getFieldValue( treeNode, "m_Attribute" );
+    double[] dist = (double[]) getFieldValue( treeNode, distField );
+    if ( dist != null ) {
+      dist = dist.clone();
+      if ( normalize && Utils.sum( dist ) > 0 ) {
+        Utils.normalize( dist );
+      }
+    }
+    builder.setDistribution( node, dist );
+    if ( att < 0 ) {
+      return;
+    }
+
+    Object[] successors = (Object[]) getFieldValue( treeNode, "m_Successors" );
+    double[] prop = (double[]) getFieldValue( treeNode, "m_Prop" );
+    builder.setSplit( node, att,
+        header.attribute( att ).isNominal() ? Double.NaN : (Double) getFieldValue( treeNode, "m_SplitPoint" ) );
+    int start = builder.addNodes( successors.length );
+    builder.setChildren( node, start, successors.length );
+    for ( int i = 0; i < successors.length; i++ ) {
+      builder.setProp( start + i, prop[i] );
+      addWekaTreeNode( builder, start + i, successors[i], distField, normalize, header );
+    }
+  }
+
+  /**
+   * Add a node of a J48 tree (and its subtree) to the node table
+   *
+   * @param builder  the node table being built
+   * @param node     the index of the node
+   * @param treeNode the J48 tree node
+   * @param header   the training data structure
+   * @return false if the tree uses a split that can't be flattened
+   * @throws Exception if a problem occurs
+   */
+  protected static boolean addJ48Node( NodeTableBuilder builder, int node, ClassifierTree treeNode,
+      Instances header ) throws Exception {
+    ClassifierSplitModel split = (ClassifierSplitModel) getFieldValue( treeNode, "m_localModel" );
+    Distribution dist = split.distribution();
+    if ( (Boolean) getFieldValue( treeNode, "m_isLeaf" ) ) {
+      if ( !( split instanceof NoSplit ) ) {
+        return false;
+      }
+      double[] probs = new double[builder.m_width];
+      for ( int c = 0; c < probs.length; c++ ) {
+        probs[c] = dist.prob( c );
+      }
+      builder.setDistribution( node, probs );
+      return true;
+    }
+    if ( !( split instanceof C45Split ) ) {
+      // e.g. binary splits on nominal attributes
+      return false;
+    }
+
+    C45Split c45 = (C45Split) split;
+    ClassifierTree[] sons = (ClassifierTree[]) getFieldValue( treeNode, "m_sons" );
+    boolean nominal = header.attribute( c45.attIndex() ).isNominal();
+    builder.setSplit( node, c45.attIndex(), nominal ? Double.NaN : c45.splitPoint() );
+    int start = builder.addNodes( sons.length );
+    builder.setChildren( node, start, sons.length );
+    for ( int i = 0; i < sons.length; i++ ) {
+      if ( (Boolean) getFieldValue( sons[i], "m_isEmpty" ) ) {
+        // an empty branch predicts from this split's distribution for the branch,
+        // and is not part of the weighted combination when the value is missing
+        double[] probs = new double[builder.m_width];
+        for ( int c = 0; c < probs.length; c++ ) {
+          probs[c] = dist.prob( c, i );
+        }
+        builder.setDistribution( start + i, probs );
+      } else {
+        builder.setProp( start + i, dist.perBag( i ) / dist.total() );
+        if ( !addJ48Node( builder, start + i, sons[i], header ) ) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the scorer that the trees were compiled from
+   *
+   * @return the source scorer, or null if it has been released
+   */
+  public PMIScoringClassifier getSource() {
+    return m_source;
+  }
+
+  /**
+   * Drop the references to the scorer and Weka model that the trees were
+   * compiled from, so that only the node tables stay resident. The Weka model
+   * is no longer available for evaluation or updating afterwards.
+   */
+  public void releaseSource() {
+    m_description = toString();
+    m_source = null;
+    setModel( null );
+  }
+
+  /**
+   * Get the split points of the numeric splits in the trees
+   *
+   * @return a list of split points for each attribute
+   */
+  protected List<List<Double>> getSplitPoints() {
+    List<List<Double>> splits = new ArrayList<List<Double>>();
+    for ( int i = 0; i < m_header.numAttributes(); i++ ) {
+      splits.add( new ArrayList<Double>() );
+    }
+    for ( int n = 0; n < m_attribute.length; n++ ) {
+      if ( m_attribute[n] >= 0 && !Double.isNaN( m_splitPoint[n] ) ) {
+        splits.get( m_attribute[n] ).add( m_splitPoint[n] );
+      }
+    }
+    return splits;
+  }
+
+  /**
+   * Compare the predictions of two models on rows generated from the training
+   * data structure. Nominal values are drawn uniformly, numeric values are
+   * drawn around the supplied split points (where a difference in precision
+   * can change the branch taken), and some values are missing.
+   *
+   * @param expected the reference model
+   * @param actual   the model to compare with the reference
+   * @param splits   the split points of each attribute
+   * @param numRows  the number of rows to compare on
+   * @return the largest absolute difference in a predicted probability (or
+   * relative difference in a predicted numeric value)
+   * @throws Exception if a problem occurs
+   */
+  protected static double maxDifference( PMIScoringModel expected, PMIScoringModel actual,
+      List<List<Double>> splits, int numRows ) throws Exception {
+    Instances header = actual.getHeader();
+    Random r = new Random( 1 );
+    Instance inst = new DenseInstance( header.numAttributes() );
+    inst.setDataset( header );
+    double maxDiff = 0;
+    for ( int n = 0; n < numRows; n++ ) {
+      for ( int i = 0; i < header.numAttributes(); i++ ) {
+        Attribute att = header.attribute( i );
+        List<Double> s = splits.get( i );
+        if ( i == header.classIndex() || ( !att.isNominal() && !att.isNumeric() ) || r.nextInt( 10 ) == 0 ) {
+          inst.setMissing( i );
+        } else if ( att.isNominal() ) {
+          inst.setValue( i, att.numValues() > 0 ? r.nextInt( att.numValues() ) : Utils.missingValue() );
+        } else if ( s.size() > 0 ) {
+          double split = s.get( r.nextInt( s.size() ) );
+          inst.setValue( i, split + ( r.nextDouble() - 0.5 ) * Math.max( 1e-3, Math.abs( split ) * 1e-3 ) );
+        } else {
+          inst.setValue( i, r.nextGaussian() );
+        }
+      }
+
+      double[] e = expected.distributionForInstance( inst );
+      double[] a = actual.distributionForInstance( inst );
+      for ( int i = 0; i < e.length; i++ ) {
+        if ( Utils.isMissingValue( e[i] ) || Utils.isMissingValue( a[i] ) ) {
+          if ( Utils.isMissingValue( e[i] ) != Utils.isMissingValue( a[i] ) ) {
+            return Double.POSITIVE_INFINITY;
+          }
+          continue;
+        }
+        double diff = Math.abs( e[i] - a[i] );
+        if ( !header.classAttribute().isNominal() ) {
+          diff /= Math.max( 1, Math.abs( e[i] ) );
+        }
+        maxDiff = Math.max( maxDiff, diff );
+      }
+    }
+    return maxDiff;
+  }
+
+  /**
+   * Get the number of nodes in the flattened trees
+   *
+   * @return the number of nodes
+   */
+  public int getNumNodes() {
+    return m_attribute.length;
+  }
+
+  /**
+   * Get the number of trees
+   *
+   * @return the number of trees
+   */
+  public int getNumTrees() {
+    return m_roots.length;
+  }
+
+  /**
+   * Add the (weighted) distribution predicted by the subtree at a node to an
+   * array. A node without a distribution (one that received no training data)
+   * defers to the closest node above it that has one.
+   *
+   * @param node   the node to start at
+   * @param inst   the instance to predict
+   * @param weight the weight of the subtree's distribution
+   * @param out    the array to add to
+   * @return false if the subtree has no distribution for the instance
+   */
+  protected boolean addDistribution( int node, Instance inst, double weight, double[] out ) {
+    int fallback = -1;
+    while ( true ) {
+      if ( m_distOffset[node] >= 0 ) {
+        fallback = node;
+      }
+      int att = m_attribute[node];
+      if ( att < 0 ) {
+        break;
+      }
+      double val = inst.value( att );
+      int start = m_childStart[node];
+      if ( Utils.isMissingValue( val ) ) {
+        // combine all the branches, weighted by the proportion of training data that went down each
+        for ( int i = start; i < start + m_numChildren[node]; i++ ) {
+          if ( m_prop[i] > 0 ) {
+            addDistribution( i, inst, weight * m_prop[i], out );
+          }
+        }
+        return true;
+      }
+      double split = m_splitPoint[node];
+      if ( Double.isNaN( split ) ) {
+        int index = (int) val;
+        if ( index < 0 || index >= m_numChildren[node] ) {
+          break;
+        }
+        node = start + index;
+      } else if ( m_splitInclusive ? Utils.smOrEq( val, split ) : val < split ) {
+        node = start;
+      } else {
+        node = start + 1;
+      }
+    }
+
+    if ( fallback < 0 ) {
+      return false;
+    }
+    int offset = m_distOffset[fallback];
+    for ( int i = 0; i < m_width; i++ ) {
+      out[i] += weight * m_dists[offset + i];
+    }
+    return true;
+  }
+
+  /**
+   * Return a probability distribution (over classes), or a single predicted
+   * value for a numeric class.
+   *
+   * @param inst the Instance to be predicted
+   * @return a probability distribution
+   * @throws Exception if an error occurs
+   */
+  @Override public double[] distributionForInstance( Instance inst ) throws Exception {
+    if ( m_boostClasses > 0 ) {
+      double[] fs = new double[m_boostClasses];
+      double[] pred = new double[m_boostClasses];
+      double[] value = new double[1];
+      int perIteration = m_boostClasses == 2 ? 1 : m_boostClasses;
+      for ( int t = 0; t < m_roots.length; t += perIteration ) {
+        for ( int j = 0; j < perIteration; j++ ) {
+          value[0] = 0;
+          addDistribution( m_roots[t + j], inst, 1.0, value );
+          pred[j] = m_shrinkage * value[0];
+        }
+        addBoostedPredictions( pred, fs );
+      }
+      return boostedDistribution( fs );
+    }
+
+    double[] dist = new double[m_width];
+    if ( m_width == 1 && !m_header.classAttribute().isNominal() ) {
+      // numeric class - average the trees that make a prediction
+      double sum = 0;
+      int count = 0;
+      for ( int root : m_roots ) {
+        dist[0] = 0;
+        if ( addDistribution( root, inst, 1.0, dist ) ) {
+          sum += dist[0];
+          count++;
+        }
+      }
+      dist[0] = count > 0 ? sum / count : Utils.missingValue();
+      return dist;
+    }
+
+    for ( int root : m_roots ) {
+      addDistribution( root, inst, 1.0, dist );
+    }
+    if ( m_averageTrees ) {
+      double sum = Utils.sum( dist );
+      if ( !Utils.eq( sum, 0 ) ) {
+        Utils.normalize( dist, sum );
+      }
+    }
+    return dist;
+  }
+
+  /**
+   * Add the (shrunken) tree predictions of one boosting iteration to the
+   * additive model, as LogitBoost does: centred on their mean and scaled by
+   * (K - 1) / K. With two classes there is a single tree, and the prediction
+   * for the second class is the negation of the first.
+   *
+   * @param pred the tree predictions, one per class
+   * @param fs   the additive model's value for each class
+   */
+  protected static void addBoostedPredictions( double[] pred, double[] fs ) {
+    int k = fs.length;
+    double mean = 0;
+    if ( k == 2 ) {
+      pred[1] = -pred[0];
+    } else {
+      mean = Utils.sum( pred ) / k;
+    }
+    for ( int j = 0; j < k; j++ ) {
+      fs[j] += ( pred[j] - mean ) * ( k - 1 ) / k;
+    }
+  }
+
+  /**
+   * Turn the additive model's values into class probabilities (softmax)
+   *
+   * @param fs the additive model's value for each class (overwritten)
+   * @return the class probabilities
+   */
+  protected static double[] boostedDistribution( double[] fs ) {
+    double max = -Double.MAX_VALUE;
+    for ( double f : fs ) {
+      max = Math.max( max, f );
+    }
+    double sum = 0;
+    for ( int j = 0; j < fs.length; j++ ) {
+      fs[j] = Math.exp( fs[j] - max );
+      sum += fs[j];
+    }
+    Utils.normalize( fs, sum );
+    return fs;
+  }
+
+  /**
+   * Return a classification (number for regression problems
+   * or index of a class value for classification problems).
+   *
+   * @param inst the Instance to be classified (predicted)
+   * @return the prediction
+   * @throws Exception if an error occurs
+   */
+  @Override public double classifyInstance( Instance inst ) throws Exception {
+    double[] dist = distributionForInstance( inst );
+    if ( !m_header.classAttribute().isNominal() ) {
+      return dist[0];
+    }
+    int maxIndex = Utils.maxIndex( dist );
+    return dist[maxIndex] > 0 ? maxIndex : Utils.missingValue();
+  }
+
+  /**
+   * Batch scoring method
+   *
+   * @param insts the instances to get predictions for
+   * @return an array of probability distributions, one for each instance
+   * @throws Exception if a problem occurs
+   */
+  @Override public double[][] distributionsForInstances( Instances insts ) throws Exception {
+    double[][] preds = new double[insts.numInstances()][];
+    for ( int i = 0; i < preds.length; i++ ) {
+      preds[i] = distributionForInstance( insts.instance( i ) );
+    }
+    return preds;
+  }
+
+  /**
+   * Returns true. The node tables are never modified once built.
+   *
+   * @return true
+   */
+  @Override public boolean isThreadSafe() {
+    return true;
+  }
+
+  @Override public String toString() {
+    return m_description != null ? m_description : super.toString();
+  }
+
+  /**
+   * Accumulates nodes while the trees are being flattened, and then copies them
+   * into the arrays of a PMIScoringTreeEnsemble
+   */
+  protected static class NodeTableBuilder {
+    protected final int m_width;
+    protected final List<Integer> m_attribute = new ArrayList<Integer>();
+    protected final List<Double> m_splitPoint = new ArrayList<Double>();
+    protected final List<Integer> m_childStart = new ArrayList<Integer>();
+    protected final List<Integer> m_numChildren = new ArrayList<Integer>();
+    protected final List<Double> m_prop = new ArrayList<Double>();
+    protected final List<double[]> m_dists = new ArrayList<double[]>();
+
+    protected NodeTableBuilder( int width ) {
+      m_width = width;
+    }
+
+    /**
+     * Add a contiguous block of (leaf) nodes
+     *
+     * @param count the number of nodes to add
+     * @return the index of the first node added
+     */
+    protected int addNodes( int count ) {
+      int first = m_attribute.size();
+      for ( int i = 0; i < count; i++ ) {
+        m_attribute.add( -1 );
+        m_splitPoint.add( Double.NaN );
+        m_childStart.add( -1 );
+        m_numChildren.add( 0 );
+        m_prop.add( 0.0 );
+        m_dists.add( null );
+      }
+      return first;
+    }
+
+    protected void setSplit( int node, int attribute, double splitPoint ) {
+      m_attribute.set( node, attribute );
+      m_splitPoint.set( node, splitPoint );
+    }
+
+    protected void setChildren( int node, int start, int count ) {
+      m_childStart.set( node, start );
+      m_numChildren.set( node, count );
+    }
+
+    protected void setProp( int node, double prop ) {
+      m_prop.set( node, prop );
+    }
+
+    protected void setDistribution( int node, double[] dist ) {
+      m_dists.set( node, dist );
+    }
+
+    protected void build( PMIScoringTreeEnsemble flat ) {
+      int numNodes = m_attribute.size();
+      flat.m_attribute = new int[numNodes];
+      flat.m_splitPoint = new double[numNodes];
+      flat.m_childStart = new int[numNodes];
+      flat.m_numChildren = new int[numNodes];
+      flat.m_prop = new double[numNodes];
+      flat.m_distOffset = new int[numNodes];
+      int numDists = 0;
+      for ( double[] dist : m_dists ) {
+        if ( dist != null ) {
+          numDists++;
+        }
+      }
+      flat.m_dists = new double[numDists * m_width];
+      int offset = 0;
+      for ( int i = 0; i < numNodes; i++ ) {
+        flat.m_attribute[i] = m_attribute.get( i );
+        flat.m_splitPoint[i] = m_splitPoint.get( i );
+        flat.m_childStart[i] = m_childStart.get( i );
+        flat.m_numChildren[i] = m_numChildren.get( i );
+        flat.m_prop[i] = m_prop.get( i );
+        double[] dist = m_dists.get( i );
+        if ( dist != null ) {
+          System.arraycopy( dist, 0, flat.m_dists, offset, m_width );
+          flat.m_distOffset[i] = offset;
+          offset += m_width;
+        } else {
+          flat.m_distOffset[i] = -1;
+        }
+      }
+    }
+  }
+}
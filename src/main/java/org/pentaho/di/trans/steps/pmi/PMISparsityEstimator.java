@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.pmi;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+/**
+ * Decides whether converted rows are sparse enough to be worth holding as
+ * {@code SparseInstance}s rather than {@code DenseInstance}s. One-hot encoded
+ * and bag-of-words data can have thousands of attributes, most of which are
+ * zero in any given row; a sparse instance only stores the non-zero values
+ * (missing values count as non-zero), which cuts memory use and lets
+ * sparse-aware schemes skip the zeros altogether.
+ * <p>
+ * Only headers with at least {@code MIN_ATTRIBUTES} attributes are considered.
+ * The first {@code SAMPLE_SIZE} rows observed are used to estimate the fraction
+ * of non-zero values, and sparse instances are used if this is at most
+ * {@code MAX_DENSITY}. The decision is then fixed. Observing rows is
+ * thread-safe.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMISparsityEstimator {
+
+  /**
+   * Headers with fewer attributes than this always use dense instances
+   */
+  public static final int MIN_ATTRIBUTES = 32;
+
+  /**
+   * Maximum fraction of non-zero values for sparse instances to be used
+   */
+  public static final double MAX_DENSITY = 0.25;
+
+  /**
+   * Number of rows to observe before deciding
+   */
+  public static final int SAMPLE_SIZE = 100;
+
+  protected static final int UNDECIDED = 0;
+  protected static final int DENSE = 1;
+  protected static final int SPARSE = 2;
+
+  protected volatile int m_state;
+
+  protected int m_numSampled;
+  protected long m_numNonZero;
+  protected long m_numValues;
+
+  /**
+   * Construct a new estimator
+   *
+   * @param header the header of the instances that will be created
+   */
+  public PMISparsityEstimator( Instances header ) {
+    m_state = header.numAttributes() < MIN_ATTRIBUTES ? DENSE : UNDECIDED;
+  }
+
+  /**
+   * Returns true if enough rows have been observed to decide
+   *
+   * @return true if the decision has been made
+   */
+  public boolean isDecided() {
+    return m_state != UNDECIDED;
+  }
+
+  /**
+   * Returns true if sparse instances should be used. Always false until the
+   * decision has been made.
+   *
+   * @return true if sparse instances should be used
+   */
+  public boolean isSparse() {
+    return m_state == SPARSE;
+  }
+
+  /**
+   * Observe the values of a converted row. Does nothing once the decision has
+   * been made.
+   *
+   * @param vals the values of the row
+   */
+  public synchronized void observe( double[] vals ) {
+    if ( m_state != UNDECIDED ) {
+      return;
+    }
+    m_numNonZero += countNonZero( vals );
+    m_numValues += vals.length;
+    if ( ++m_numSampled >= SAMPLE_SIZE ) {
+      decide();
+    }
+  }
+
+  /**
+   * Make the decision on the basis of the rows observed so far (if it has not
+   * already been made). Used when there are fewer than {@code SAMPLE_SIZE} rows
+   * in total.
+   */
+  public synchronized void decide() {
+    if ( m_state == UNDECIDED ) {
+      m_state = m_numValues > 0 && m_numNonZero <= MAX_DENSITY * m_numValues ? SPARSE : DENSE;
+    }
+  }
+
+  /**
+   * Create an instance from the supplied values
+   *
+   * @param vals   the values. Used directly by a dense instance; a sparse
+   *               instance copies the non-zero values, so the array can be
+   *               re-used as a conversion buffer
+   * @param sparse true to create a sparse instance
+   * @return the instance
+   */
+  public static Instance createInstance( double[] vals, boolean sparse ) {
+    return sparse ? new SparseInstance( 1.0, vals ) : new DenseInstance( 1.0, vals );
+  }
+
+  /**
+   * Count the non-zero values in an array. Missing values count as non-zero.
+   *
+   * @param vals the values
+   * @return the number of non-zero values
+   */
+  public static int countNonZero( double[] vals ) {
+    int count = 0;
+    for ( double v : vals ) {
+      if ( v != 0 ) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
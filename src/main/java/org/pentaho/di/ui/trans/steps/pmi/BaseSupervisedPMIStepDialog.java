@@ -159,6 +159,27 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
    */
   protected TextVar m_reservoirRandomSeedField;
 
+  /**
+   * Number of threads to train strata on
+   */
+  protected TextVar m_stratumTrainingThreadsField;
+
+  /**
+   * Output strata as they complete training, rather than in input order
+   */
+  protected Button m_strataCompletionOrderBut;
+  protected Button m_writeModelBundleBut;
+
+  /**
+   * Memory (MB) for accumulated training rows before spilling to disk
+   */
+  protected TextVar m_trainingSpillThresholdField;
+
+  /**
+   * Directory to spill training rows to
+   */
+  protected TextVar m_trainingSpillDirectoryField;
+
   /**
    * Table for incoming fields & arff types
    */
@@ -267,6 +288,7 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
    * Number of cross-validation folds to use
    */
   protected TextVar m_xValFoldsField;
+  protected TextVar m_xValParallelismField;
 
   /**
    * Random seed to use for percentage split and x-val
@@ -277,6 +299,7 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
    * Checkbox for outputting AUC metrics - if performing evaluation
    */
   protected Button m_outputAUCMetricsCheck;
+  protected Button m_buildFinalModelConcurrentlyCheck;
 
   /**
    * Checkbox for outputting IR metrics - if performing evaluation
@@ -459,6 +482,10 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
     }
     meta.setClassField( m_classFieldDropDown.getText() );
     meta.setStratificationFieldName( m_stratificationFieldDropDown.getText() );
+    meta.setStratumTrainingThreads( m_stratumTrainingThreadsField.getText() );
+    meta.setOutputStrataInCompletionOrder( m_strataCompletionOrderBut.getSelection() );
+    meta.setTrainingSpillThreshold( m_trainingSpillThresholdField.getText() );
+    meta.setTrainingSpillDirectory( m_trainingSpillDirectoryField.getText() );
 
     meta.clearStepIOMeta();
     List<StreamInterface> infoStreams = meta.getStepIOMeta().getInfoStreams();
@@ -498,6 +525,7 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
 
     meta.setModelOutputPath( m_modelOutputDirectoryField.getText() );
     meta.setModelFileName( m_modelFilenameField.getText() );
+    meta.setWriteModelBundle( m_writeModelBundleBut.getSelection() );
 
     // preprocessing filters
     m_samplingFilters.clear();
@@ -528,9 +556,11 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
     meta.setEvalMode( toSet );
 
     meta.setXValFolds( m_xValFoldsField.getText() );
+    meta.setXValParallelism( m_xValParallelismField.getText() );
     meta.setPercentageSplit( m_percentageSplitField.getText() );
     meta.setRandomSeed( m_randomSeedField.getText() );
     meta.setOutputAUCMetrics( m_outputAUCMetricsCheck.getSelection() );
+    meta.setBuildFinalModelConcurrently( m_buildFinalModelConcurrentlyCheck.getSelection() );
     meta.setOutputIRMetrics( m_outputIRMetricsCheck.getSelection() );
 
     // Algorithm options - populates the 'properties' map from the widgets and then sets these
@@ -599,6 +629,10 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
     m_testStepDropDown.setText( meta.getTestingStepInputName() );
     m_classFieldDropDown.setText( meta.getClassField() );
     m_stratificationFieldDropDown.setText( meta.getStratificationFieldName() );
+    m_stratumTrainingThreadsField.setText( meta.getStratumTrainingThreads() );
+    m_strataCompletionOrderBut.setSelection( meta.getOutputStrataInCompletionOrder() );
+    m_trainingSpillThresholdField.setText( meta.getTrainingSpillThreshold() );
+    m_trainingSpillDirectoryField.setText( meta.getTrainingSpillDirectory() );
 
     List<ArffMeta> userFields = meta.getFieldMetadata();
     if ( userFields.size() > 0 ) {
@@ -631,6 +665,7 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
     if ( !Const.isEmpty( meta.getModelFileName() ) ) {
       m_modelFilenameField.setText( meta.getModelFileName() );
     }
+    m_writeModelBundleBut.setSelection( meta.getWriteModelBundle() );
 
     // Preprocessing
     // sets options on these filters based on what is stored in meta. Also sets the status of the
@@ -649,9 +684,11 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
 
     // Evaluation
     m_xValFoldsField.setText( meta.getXValFolds() );
+    m_xValParallelismField.setText( meta.getXValParallelism() );
     m_percentageSplitField.setText( meta.getPercentageSplit() );
     m_randomSeedField.setText( meta.getRandomSeed() );
     m_outputAUCMetricsCheck.setSelection( meta.getOutputAUCMetrics() );
+    m_buildFinalModelConcurrentlyCheck.setSelection( meta.getBuildFinalModelConcurrently() );
     m_outputIRMetricsCheck.setSelection( meta.getOutputIRMetrics() );
 
     return engineOK;
@@ -881,6 +918,66 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
     m_reservoirRandomSeedField.setEnabled( true );
     lastControl = m_reservoirRandomSeedField;
 
+    // parallel training of strata
+    Label stratumThreadsLab = new Label( rowGroup, SWT.RIGHT );
+    props.setLook( stratumThreadsLab );
+    stratumThreadsLab.setText( BaseMessages.getString( PKG, "BasePMIStepDialog.StratumTrainingThreads.Label" ) );
+    stratumThreadsLab.setLayoutData( getFirstLabelFormData() );
+
+    m_stratumTrainingThreadsField = new TextVar( transMeta, rowGroup, SWT.SINGLE | SWT.LEAD | SWT.BORDER );
+    props.setLook( m_stratumTrainingThreadsField );
+    m_stratumTrainingThreadsField
+        .setToolTipText( BaseMessages.getString( PKG, "BasePMIStepDialog.StratumTrainingThreads.TipText" ) );
+    m_stratumTrainingThreadsField.addModifyListener( m_simpleModifyListener );
+    m_stratumTrainingThreadsField.setLayoutData( getFirstPromptFormData( stratumThreadsLab ) );
+
+    Label strataCompletionOrderLab = new Label( rowGroup, SWT.RIGHT );
+    props.setLook( strataCompletionOrderLab );
+    strataCompletionOrderLab
+        .setText( BaseMessages.getString( PKG, "BasePMIStepDialog.StrataCompletionOrder.Label" ) );
+    strataCompletionOrderLab.setLayoutData( getSecondLabelFormData( m_stratumTrainingThreadsField ) );
+
+    m_strataCompletionOrderBut = new Button( rowGroup, SWT.CHECK );
+    props.setLook( m_strataCompletionOrderBut );
+    fd = getSecondPromptFormData( strataCompletionOrderLab );
+    fd.right = null;
+    m_strataCompletionOrderBut.setLayoutData( fd );
+    m_strataCompletionOrderBut
+        .setToolTipText( BaseMessages.getString( PKG, "BasePMIStepDialog.StrataCompletionOrder.TipText" ) );
+    m_strataCompletionOrderBut.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        super.widgetSelected( selectionEvent );
+        m_inputMeta.setChanged();
+      }
+    } );
+    lastControl = m_stratumTrainingThreadsField;
+
+    // spilling of accumulated training rows to disk
+    Label spillThresholdLab = new Label( rowGroup, SWT.RIGHT );
+    props.setLook( spillThresholdLab );
+    spillThresholdLab.setText( BaseMessages.getString( PKG, "BasePMIStepDialog.TrainingSpillThreshold.Label" ) );
+    spillThresholdLab.setLayoutData( getFirstLabelFormData() );
+
+    m_trainingSpillThresholdField = new TextVar( transMeta, rowGroup, SWT.SINGLE | SWT.LEAD | SWT.BORDER );
+    props.setLook( m_trainingSpillThresholdField );
+    m_trainingSpillThresholdField
+        .setToolTipText( BaseMessages.getString( PKG, "BasePMIStepDialog.TrainingSpillThreshold.TipText" ) );
+    m_trainingSpillThresholdField.addModifyListener( m_simpleModifyListener );
+    m_trainingSpillThresholdField.setLayoutData( getFirstPromptFormData( spillThresholdLab ) );
+
+    Label spillDirectoryLab = new Label( rowGroup, SWT.RIGHT );
+    props.setLook( spillDirectoryLab );
+    spillDirectoryLab.setText( BaseMessages.getString( PKG, "BasePMIStepDialog.TrainingSpillDirectory.Label" ) );
+    spillDirectoryLab.setLayoutData( getSecondLabelFormData( m_trainingSpillThresholdField ) );
+
+    m_trainingSpillDirectoryField = new TextVar( transMeta, rowGroup, SWT.SINGLE | SWT.LEAD | SWT.BORDER );
+    props.setLook( m_trainingSpillDirectoryField );
+    m_trainingSpillDirectoryField
+        .setToolTipText( BaseMessages.getString( PKG, "BasePMIStepDialog.TrainingSpillDirectory.TipText" ) );
+    m_trainingSpillDirectoryField.addModifyListener( m_simpleModifyListener );
+    m_trainingSpillDirectoryField.setLayoutData( getSecondPromptFormData( spillDirectoryLab ) );
+    lastControl = m_trainingSpillThresholdField;
+
     fd = new FormData();
     fd.left = new FormAttachment( 0, 0 );
     fd.top = new FormAttachment( 0, 0 );
@@ -1153,8 +1250,29 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
 
     m_modelFilenameField = new TextVar( transMeta, m_schemeComposite, SWT.SINGLE | SWT.LEAD | SWT.BORDER );
     props.setLook( m_modelFilenameField );
+    m_modelFilenameField
+        .setToolTipText( BaseMessages.getString( PKG, "BasePMIStepDialog.OutputModelFilename.TipText" ) );
     m_modelFilenameField.setLayoutData( getFirstPromptFormData( modelOutputFilenameLab ) );
 
+    Label writeModelBundleLab = new Label( m_schemeComposite, SWT.RIGHT );
+    props.setLook( writeModelBundleLab );
+    writeModelBundleLab.setText( BaseMessages.getString( PKG, "BasePMIStepDialog.WriteModelBundle.Label" ) );
+    writeModelBundleLab.setLayoutData( getSecondLabelFormData( m_modelFilenameField ) );
+
+    m_writeModelBundleBut = new Button( m_schemeComposite, SWT.CHECK );
+    props.setLook( m_writeModelBundleBut );
+    fd = getSecondPromptFormData( writeModelBundleLab );
+    fd.right = null;
+    m_writeModelBundleBut.setLayoutData( fd );
+    m_writeModelBundleBut
+        .setToolTipText( BaseMessages.getString( PKG, "BasePMIStepDialog.WriteModelBundle.TipText" ) );
+    m_writeModelBundleBut.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent selectionEvent ) {
+        super.widgetSelected( selectionEvent );
+        m_inputMeta.setChanged();
+      }
+    } );
+
     m_schemeTab.setControl( m_schemeComposite );
   }
 
@@ -1876,6 +1994,18 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
     m_xValFoldsField.setLayoutData( getFirstPromptFormData( crossValLabel ) );
     lastControl = m_xValFoldsField;
 
+    Label xValParallelismLabel = new Label( m_evaluationComposite, SWT.RIGHT );
+    xValParallelismLabel.setText( BaseMessages.getString( PKG, "BasePMIStepDialog.CrossValParallelism.Label" ) );
+    props.setLook( xValParallelismLabel );
+    xValParallelismLabel.setLayoutData( getFirstLabelFormData() );
+    xValParallelismLabel
+        .setToolTipText( BaseMessages.getString( PKG, "BasePMIStepDialog.CrossValParallelism.TipText" ) );
+
+    m_xValParallelismField = new TextVar( transMeta, m_evaluationComposite, SWT.SINGLE | SWT.LEAD | SWT.BORDER );
+    props.setLook( m_xValParallelismField );
+    m_xValParallelismField.setLayoutData( getFirstPromptFormData( xValParallelismLabel ) );
+    lastControl = m_xValParallelismField;
+
     Label percentageSplitLabel = new Label( m_evaluationComposite, SWT.RIGHT );
     props.setLook( percentageSplitLabel );
     percentageSplitLabel.setText( BaseMessages.getString( PKG, "BasePMIStepDialog.PercentageSplit.Label" ) );
@@ -1918,6 +2048,19 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
     m_outputIRMetricsCheck = new Button( m_evaluationComposite, SWT.CHECK );
     props.setLook( m_outputAUCMetricsCheck );
     m_outputIRMetricsCheck.setLayoutData( getFirstPromptFormData( outputIRMetricsLab ) );
+    lastControl = m_outputIRMetricsCheck;
+
+    Label buildConcurrentlyLab = new Label( m_evaluationComposite, SWT.RIGHT );
+    props.setLook( buildConcurrentlyLab );
+    buildConcurrentlyLab
+        .setText( BaseMessages.getString( PKG, "BasePMIStepDialog.BuildFinalModelConcurrently.Label" ) );
+    buildConcurrentlyLab
+        .setToolTipText( BaseMessages.getString( PKG, "BasePMIStepDialog.BuildFinalModelConcurrently.TipText" ) );
+    buildConcurrentlyLab.setLayoutData( getFirstLabelFormData() );
+
+    m_buildFinalModelConcurrentlyCheck = new Button( m_evaluationComposite, SWT.CHECK );
+    props.setLook( m_buildFinalModelConcurrentlyCheck );
+    m_buildFinalModelConcurrentlyCheck.setLayoutData( getFirstPromptFormData( buildConcurrentlyLab ) );
 
     FormData fd = new FormData();
     fd.left = new FormAttachment( 0, 0 );
@@ -1942,7 +2085,9 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
     String currentEvalSetting = m_evalModeDropDown.getText();
     boolean aucIREnable = checkAUCIRWidgets();
     if ( currentEvalSetting.equalsIgnoreCase( Evaluator.EvalMode.NONE.toString() ) ) {
+      m_buildFinalModelConcurrentlyCheck.setEnabled( false );
       m_xValFoldsField.setEnabled( false );
+      m_xValParallelismField.setEnabled( false );
       m_percentageSplitField.setEnabled( false );
       m_randomSeedField.setEnabled( false );
       m_outputAUCMetricsCheck.setEnabled( false );
@@ -1951,7 +2096,9 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
       m_outputIRMetricsCheck.setSelection( false );
       m_testStepDropDown.setEnabled( false );
     } else if ( currentEvalSetting.equalsIgnoreCase( Evaluator.EvalMode.SEPARATE_TEST_SET.toString() ) ) {
+      m_buildFinalModelConcurrentlyCheck.setEnabled( false );
       m_xValFoldsField.setEnabled( false );
+      m_xValParallelismField.setEnabled( false );
       m_percentageSplitField.setEnabled( false );
       m_randomSeedField.setEnabled( false );
       m_outputAUCMetricsCheck.setEnabled( aucIREnable );
@@ -1962,7 +2109,9 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
       }
       m_testStepDropDown.setEnabled( true );
     } else if ( currentEvalSetting.equalsIgnoreCase( Evaluator.EvalMode.CROSS_VALIDATION.toString() ) ) {
+      m_buildFinalModelConcurrentlyCheck.setEnabled( true );
       m_xValFoldsField.setEnabled( true );
+      m_xValParallelismField.setEnabled( true );
       m_percentageSplitField.setEnabled( false );
       m_randomSeedField.setEnabled( true );
       m_outputAUCMetricsCheck.setEnabled( aucIREnable );
@@ -1973,7 +2122,9 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
       }
       m_testStepDropDown.setEnabled( false );
     } else if ( currentEvalSetting.equalsIgnoreCase( Evaluator.EvalMode.PERCENTAGE_SPLIT.toString() ) ) {
+      m_buildFinalModelConcurrentlyCheck.setEnabled( true );
       m_xValFoldsField.setEnabled( false );
+      m_xValParallelismField.setEnabled( false );
       m_percentageSplitField.setEnabled( true );
       m_randomSeedField.setEnabled( true );
       m_outputAUCMetricsCheck.setEnabled( aucIREnable );
@@ -1984,7 +2135,9 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
       }
       m_testStepDropDown.setEnabled( false );
     } else if ( currentEvalSetting.equalsIgnoreCase( Evaluator.EvalMode.PREQUENTIAL.toString() ) ) {
+      m_buildFinalModelConcurrentlyCheck.setEnabled( false );
       m_xValFoldsField.setEnabled( false );
+      m_xValParallelismField.setEnabled( false );
       m_percentageSplitField.setEnabled( false );
       m_randomSeedField.setEnabled( false );
       m_outputAUCMetricsCheck.setEnabled( aucIREnable );
@@ -2114,6 +2267,9 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
       m_reservoirSizeField.setText( "" );
       m_stratificationFieldDropDown.setEnabled( false );
       m_stratificationFieldDropDown.setText( "" );
+      m_stratumTrainingThreadsField.setEnabled( false );
+      m_strataCompletionOrderBut.setEnabled( false );
+      m_writeModelBundleBut.setEnabled( true );
     } else if ( rowsToProcess
         .equals( BaseMessages.getString( PKG, "BasePMIStepDialog.NumberOfRowsToProcess.Dropdown.AllEntry.Label" ) ) ) {
       m_batchSizeField.setEnabled( false );
@@ -2126,6 +2282,9 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
       m_reservoirSizeField.setText( m_originalMeta.getReservoirSize() );
       m_stratificationFieldDropDown.setEnabled( true );
       m_stratificationFieldDropDown.setText( m_originalMeta.getStratificationFieldName() );
+      m_stratumTrainingThreadsField.setEnabled( false );
+      m_strataCompletionOrderBut.setEnabled( false );
+      m_writeModelBundleBut.setEnabled( false );
     } else if ( rowsToProcess.equals(
         BaseMessages.getString( PKG, "BasePMIStepDialog.NumberOfRowsToProcess.Dropdown.StratifiedEntry.Label" ) ) ) {
       m_batchSizeField.setEnabled( false );
@@ -2135,6 +2294,9 @@ public class BaseSupervisedPMIStepDialog extends BaseStepDialog implements StepD
       m_reservoirSizeField.setText( m_originalMeta.getReservoirSize() );
       m_stratificationFieldDropDown.setEnabled( true );
       m_stratificationFieldDropDown.setText( m_originalMeta.getStratificationFieldName() );
+      m_stratumTrainingThreadsField.setEnabled( true );
+      m_strataCompletionOrderBut.setEnabled( true );
+      m_writeModelBundleBut.setEnabled( true );
     }
   }
 
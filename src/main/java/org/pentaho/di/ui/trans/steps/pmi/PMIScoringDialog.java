@@ -47,6 +47,7 @@ import org.eclipse.swt.widgets.Group;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.Props;
@@ -59,10 +60,14 @@ import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.pmi.PMIModelBundle;
+import org.pentaho.di.trans.steps.pmi.PMIModelContainer;
 import org.pentaho.di.trans.steps.pmi.PMIScoringClusterer;
 import org.pentaho.di.trans.steps.pmi.PMIScoringData;
 import org.pentaho.di.trans.steps.pmi.PMIScoringMeta;
 import org.pentaho.di.trans.steps.pmi.PMIScoringModel;
+import org.pentaho.di.ui.core.widget.ColumnInfo;
+import org.pentaho.di.ui.core.widget.TableView;
 import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
@@ -71,6 +76,9 @@ import weka.core.Attribute;
 import weka.core.Instances;
 import weka.core.xml.XStream;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Dialog class for PMIScoring
  *
@@ -85,7 +93,7 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
    * The tabs of the dialog
    */
   private CTabFolder m_wTabFolder;
-  private CTabItem m_wFileTab, m_wFieldsTab, m_wModelTab;
+  private CTabItem m_wFileTab, m_wFieldsTab, m_wModelTab, m_wChallengersTab;
 
   /**
    * Checkbox for serializing model into step meta data
@@ -107,6 +115,35 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
    */
   private Button m_wCacheModelsCheckBox;
 
+  /**
+   * Limits for the model cache and prefetching
+   */
+  private TextVar m_wModelCacheMaxEntriesText;
+  private TextVar m_wModelCacheMaxMBText;
+  private TextVar m_wModelPrefetchRowsText;
+  private TextVar m_wModelGroupWindowSizeText;
+
+  /**
+   * Check box for sharing loaded models with other steps/transformations
+   */
+  private Button m_wShareModelsCheckBox;
+  private Button m_wCompileTreeModelsCheckBox;
+  private Button m_wCompactModelsCheckBox;
+
+  /**
+   * Check box for watching the model file for new versions, and the interval
+   * between checks
+   */
+  private Button m_wWatchModelFileCheckBox;
+  private TextVar m_wModelWatchIntervalText;
+
+  /**
+   * Check box for writing an embedded model to a separate file, and the
+   * directory to write it to
+   */
+  private Button m_wExternalizeEmbeddedModelCheckBox;
+  private TextVar m_wEmbeddedModelDirectoryText;
+
   /**
    * check box for output probabilities
    */
@@ -143,6 +180,23 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
    */
   private TextVar m_batchScoringBatchSizeText;
 
+  private TextVar m_numScoringThreadsText;
+
+  /**
+   * Check box for pipelining batch scoring, and the maximum number of batches
+   * in flight
+   */
+  private Button m_wPipelineBatchScoringCheckBox;
+  private TextVar m_wMaxBatchesInFlightText;
+
+  /**
+   * TextVar for the maximum time a row can wait in a partially filled batch
+   */
+  private TextVar m_wMaxBatchLatencyText;
+  private TextVar m_wPredictionCacheSizeText;
+  private TextVar m_wLookupTableMaxMBText;
+  private TextVar m_wCompactModelToleranceText;
+
   /**
    * the text area for the model
    */
@@ -153,6 +207,11 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
    */
   private Text m_wMappingText;
 
+  /**
+   * Table of challenger model files
+   */
+  private TableView m_wChallengersTable;
+
   /**
    * Checkbox for performing evaluation
    */
@@ -241,6 +300,7 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     setupFileTab( middle, margin, lsMod );
     setupFieldsMappingTab( middle, margin, lsMod );
     setupModelDisplayTab( middle, margin, lsMod );
+    setupChallengersTab( middle, margin, lsMod );
 
     fd = new FormData();
     fd.left = new FormAttachment( 0, 0 );
@@ -303,25 +363,35 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
         String[] extensions = null;
         String[] filterNames = null;
         if ( XStream.isPresent() ) {
-          extensions = new String[4];
-          filterNames = new String[4];
+          extensions = new String[6];
+          filterNames = new String[6];
           extensions[0] = "*.model";
           filterNames[0] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFileBinary" );
-          extensions[1] = "*.xstreammodel"; //$NON-NLS-1$
-          filterNames[1] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFileXML" );
-          extensions[2] = "*.xml";
-          filterNames[2] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFilePMML" );
-          extensions[3] = "*";
-          filterNames[3] = BaseMessages.getString( PMIScoringMeta.PKG, "System.FileType.AllFiles" );
+          extensions[1] = "*" + PMIModelContainer.FILE_EXTENSION;
+          filterNames[1] =
+              BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFileContainer" );
+          extensions[2] = "*" + PMIModelBundle.FILE_EXTENSION;
+          filterNames[2] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelBundle" );
+          extensions[3] = "*.xstreammodel"; //$NON-NLS-1$
+          filterNames[3] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFileXML" );
+          extensions[4] = "*.xml";
+          filterNames[4] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFilePMML" );
+          extensions[5] = "*";
+          filterNames[5] = BaseMessages.getString( PMIScoringMeta.PKG, "System.FileType.AllFiles" );
         } else {
-          extensions = new String[3];
-          filterNames = new String[3];
+          extensions = new String[5];
+          filterNames = new String[5];
           extensions[0] = "*.model";
           filterNames[0] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFileBinary" );
-          extensions[1] = "*.xml";
-          filterNames[1] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFilePMML" );
-          extensions[2] = "*";
-          filterNames[2] = BaseMessages.getString( PMIScoringMeta.PKG, "System.FileType.AllFiles" );
+          extensions[1] = "*" + PMIModelContainer.FILE_EXTENSION;
+          filterNames[1] =
+              BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFileContainer" );
+          extensions[2] = "*" + PMIModelBundle.FILE_EXTENSION;
+          filterNames[2] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelBundle" );
+          extensions[3] = "*.xml";
+          filterNames[3] = BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.FileType.ModelFilePMML" );
+          extensions[4] = "*";
+          filterNames[4] = BaseMessages.getString( PMIScoringMeta.PKG, "System.FileType.AllFiles" );
         }
 
         // get current file
@@ -466,6 +536,17 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
       m_inputMeta.setFieldNameToLoadModelFrom( m_wAcceptFileNameFromFieldText.getText() );
     }
     m_inputMeta.setCacheLoadedModels( m_wCacheModelsCheckBox.getSelection() );
+    m_inputMeta.setShareLoadedModels( m_wShareModelsCheckBox.getSelection() );
+    m_inputMeta.setCompileTreeModels( m_wCompileTreeModelsCheckBox.getSelection() );
+    m_inputMeta.setCompactModels( m_wCompactModelsCheckBox.getSelection() );
+    m_inputMeta.setWatchModelFile( m_wWatchModelFileCheckBox.getSelection() );
+    m_inputMeta.setModelWatchInterval( m_wModelWatchIntervalText.getText() );
+    m_inputMeta.setExternalizeEmbeddedModel( m_wExternalizeEmbeddedModelCheckBox.getSelection() );
+    m_inputMeta.setEmbeddedModelDirectory( m_wEmbeddedModelDirectoryText.getText() );
+    m_inputMeta.setModelCacheMaxEntries( m_wModelCacheMaxEntriesText.getText() );
+    m_inputMeta.setModelCacheMaxMB( m_wModelCacheMaxMBText.getText() );
+    m_inputMeta.setModelPrefetchRows( m_wModelPrefetchRowsText.getText() );
+    m_inputMeta.setModelGroupWindowSize( m_wModelGroupWindowSizeText.getText() );
 
     m_inputMeta.setOutputProbabilities( m_wOutputProbs.getSelection() );
     m_inputMeta.setUpdateIncrementalModel( m_wUpdateModel.getSelection() );
@@ -486,6 +567,22 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     if ( !Const.isEmpty( m_batchScoringBatchSizeText.getText() ) ) {
       m_inputMeta.setBatchScoringSize( m_batchScoringBatchSizeText.getText() );
     }
+    m_inputMeta.setNumScoringThreads( m_numScoringThreadsText.getText() );
+    m_inputMeta.setPipelineBatchScoring( m_wPipelineBatchScoringCheckBox.getSelection() );
+    m_inputMeta.setMaxBatchesInFlight( m_wMaxBatchesInFlightText.getText() );
+    m_inputMeta.setMaxBatchLatency( m_wMaxBatchLatencyText.getText() );
+    m_inputMeta.setPredictionCacheSize( m_wPredictionCacheSizeText.getText() );
+    m_inputMeta.setLookupTableMaxMB( m_wLookupTableMaxMBText.getText() );
+    m_inputMeta.setCompactModelTolerance( m_wCompactModelToleranceText.getText() );
+
+    List<String> challengers = new ArrayList<String>();
+    for ( int i = 0; i < m_wChallengersTable.nrNonEmpty(); i++ ) {
+      TableItem item = m_wChallengersTable.getNonEmpty( i );
+      if ( !Const.isEmpty( item.getText( 1 ) ) ) {
+        challengers.add( item.getText( 1 ) );
+      }
+    }
+    m_inputMeta.setChallengerModelFileNames( challengers );
 
     if ( !m_originalMeta.equals( m_inputMeta ) ) {
       m_inputMeta.setChanged();
@@ -495,10 +592,54 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     dispose();
   }
 
+  /**
+   * Adds a labelled text field for one of the model cache settings
+   *
+   * @param parent       the parent composite
+   * @param above        the control to attach below
+   * @param msgKeyPrefix prefix of the label and tip text message keys
+   * @param middle       the middle percentage
+   * @param margin       the margin
+   * @param lsMod        the modify listener to use
+   * @return the text field
+   */
+  protected TextVar addModelCacheSetting( Composite parent, Control above, String msgKeyPrefix, int middle,
+      int margin, ModifyListener lsMod ) {
+    Label settingLab = new Label( parent, SWT.RIGHT );
+    settingLab.setText( BaseMessages.getString( PMIScoringMeta.PKG, msgKeyPrefix + ".Label" ) );
+    settingLab.setToolTipText( BaseMessages.getString( PMIScoringMeta.PKG, msgKeyPrefix + ".TipText" ) );
+    props.setLook( settingLab );
+    FormData fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( above, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    settingLab.setLayoutData( fd );
+
+    TextVar settingText = new TextVar( transMeta, parent, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( settingText );
+    settingText.addModifyListener( lsMod );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( above, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    settingText.setLayoutData( fd );
+    settingText.setEnabled( false );
+
+    return settingText;
+  }
+
+  protected void setModelCacheSettingsEnabled( boolean enabled ) {
+    m_wModelCacheMaxEntriesText.setEnabled( enabled );
+    m_wModelCacheMaxMBText.setEnabled( enabled );
+    m_wModelPrefetchRowsText.setEnabled( enabled );
+    m_wModelGroupWindowSizeText.setEnabled( enabled );
+  }
+
   public void getData() {
     if ( m_inputMeta.getFileNameFromField() ) {
       m_wAcceptFileNameFromFieldCheckBox.setSelection( true );
       m_wCacheModelsCheckBox.setEnabled( true );
+      setModelCacheSettingsEnabled( true );
       m_wSaveFilename.setEnabled( false );
       m_wbSaveFilename.setEnabled( false );
       m_wSaveFilename.setText( "" );
@@ -509,6 +650,18 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
       m_wAcceptFileNameFromFieldText.setEnabled( true );
 
       m_wCacheModelsCheckBox.setSelection( m_inputMeta.getCacheLoadedModels() );
+      if ( !Const.isEmpty( m_inputMeta.getModelCacheMaxEntries() ) ) {
+        m_wModelCacheMaxEntriesText.setText( m_inputMeta.getModelCacheMaxEntries() );
+      }
+      if ( !Const.isEmpty( m_inputMeta.getModelCacheMaxMB() ) ) {
+        m_wModelCacheMaxMBText.setText( m_inputMeta.getModelCacheMaxMB() );
+      }
+      if ( !Const.isEmpty( m_inputMeta.getModelPrefetchRows() ) ) {
+        m_wModelPrefetchRowsText.setText( m_inputMeta.getModelPrefetchRows() );
+      }
+      if ( !Const.isEmpty( m_inputMeta.getModelGroupWindowSize() ) ) {
+        m_wModelGroupWindowSizeText.setText( m_inputMeta.getModelGroupWindowSize() );
+      }
       m_wFilename.setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.Default.Label" ) );
     }
 
@@ -517,6 +670,19 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     }
 
     m_wOutputProbs.setSelection( m_inputMeta.getOutputProbabilities() );
+    m_wShareModelsCheckBox.setSelection( m_inputMeta.getShareLoadedModels() );
+    m_wCompileTreeModelsCheckBox.setSelection( m_inputMeta.getCompileTreeModels() );
+    m_wCompactModelsCheckBox.setSelection( m_inputMeta.getCompactModels() );
+    m_wWatchModelFileCheckBox.setSelection( m_inputMeta.getWatchModelFile() );
+    m_wModelWatchIntervalText.setEnabled( m_inputMeta.getWatchModelFile() );
+    if ( !Const.isEmpty( m_inputMeta.getModelWatchInterval() ) ) {
+      m_wModelWatchIntervalText.setText( m_inputMeta.getModelWatchInterval() );
+    }
+    m_wExternalizeEmbeddedModelCheckBox.setSelection( m_inputMeta.getExternalizeEmbeddedModel() );
+    m_wEmbeddedModelDirectoryText.setEnabled( m_inputMeta.getExternalizeEmbeddedModel() );
+    if ( !Const.isEmpty( m_inputMeta.getEmbeddedModelDirectory() ) ) {
+      m_wEmbeddedModelDirectoryText.setText( m_inputMeta.getEmbeddedModelDirectory() );
+    }
 
     if ( !m_inputMeta.getFileNameFromField() ) {
       m_wUpdateModel.setSelection( m_inputMeta.getUpdateIncrementalModel() );
@@ -531,6 +697,37 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     if ( !Const.isEmpty( m_inputMeta.getBatchScoringSize() ) ) {
       m_batchScoringBatchSizeText.setText( m_inputMeta.getBatchScoringSize() );
     }
+    if ( !Const.isEmpty( m_inputMeta.getNumScoringThreads() ) ) {
+      m_numScoringThreadsText.setText( m_inputMeta.getNumScoringThreads() );
+    }
+    m_wPipelineBatchScoringCheckBox.setSelection( m_inputMeta.getPipelineBatchScoring() );
+    if ( !Const.isEmpty( m_inputMeta.getMaxBatchesInFlight() ) ) {
+      m_wMaxBatchesInFlightText.setText( m_inputMeta.getMaxBatchesInFlight() );
+    }
+    if ( !Const.isEmpty( m_inputMeta.getMaxBatchLatency() ) ) {
+      m_wMaxBatchLatencyText.setText( m_inputMeta.getMaxBatchLatency() );
+    }
+    if ( !Const.isEmpty( m_inputMeta.getPredictionCacheSize() ) ) {
+      m_wPredictionCacheSizeText.setText( m_inputMeta.getPredictionCacheSize() );
+    }
+    if ( !Const.isEmpty( m_inputMeta.getLookupTableMaxMB() ) ) {
+      m_wLookupTableMaxMBText.setText( m_inputMeta.getLookupTableMaxMB() );
+    }
+    if ( !Const.isEmpty( m_inputMeta.getCompactModelTolerance() ) ) {
+      m_wCompactModelToleranceText.setText( m_inputMeta.getCompactModelTolerance() );
+    }
+    m_wCompactModelToleranceText.setEnabled( m_inputMeta.getCompactModels() );
+
+    if ( m_inputMeta.getChallengerModelFileNames().size() > 0 ) {
+      m_wChallengersTable.clearAll();
+      for ( String challenger : m_inputMeta.getChallengerModelFileNames() ) {
+        TableItem item = new TableItem( m_wChallengersTable.table, SWT.NONE );
+        item.setText( 1, Const.NVL( challenger, "" ) );
+      }
+      m_wChallengersTable.removeEmptyRows();
+      m_wChallengersTable.setRowNums();
+      m_wChallengersTable.optWidth( true );
+    }
 
     // m_storeModelInStepMetaData.setSelection( m_inputMeta.getStoreModelInStepMetaData() );
 
@@ -611,6 +808,57 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     m_wModelTab.setControl( wModelComp );
   }
 
+  protected void setupChallengersTab( int middle, int margin, ModifyListener lsMod ) {
+    // Challenger models tab
+    m_wChallengersTab = new CTabItem( m_wTabFolder, SWT.NONE );
+    m_wChallengersTab
+        .setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.ChallengersTab.TabTitle" ) );
+
+    FormLayout challengersLayout = new FormLayout();
+    challengersLayout.marginWidth = 3;
+    challengersLayout.marginHeight = 3;
+
+    Composite wChallengersComp = new Composite( m_wTabFolder, SWT.NONE );
+    props.setLook( wChallengersComp );
+    wChallengersComp.setLayout( challengersLayout );
+
+    Label challengersLab = new Label( wChallengersComp, SWT.LEFT );
+    challengersLab.setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.Challengers.Label" ) );
+    props.setLook( challengersLab );
+    FormData fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( 0, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    challengersLab.setLayoutData( fd );
+
+    ColumnInfo[]
+        colinf =
+        new ColumnInfo[] {
+            new ColumnInfo( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.ChallengersColumn.FileName" ),
+                ColumnInfo.COLUMN_TYPE_TEXT, false ) };
+    colinf[0].setUsingVariables( true );
+
+    m_wChallengersTable =
+        new TableView( transMeta, wChallengersComp, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, colinf, 1, lsMod,
+            props );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( challengersLab, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    fd.bottom = new FormAttachment( 100, 0 );
+    m_wChallengersTable.setLayoutData( fd );
+
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( 100, 0 );
+    fd.bottom = new FormAttachment( 100, 0 );
+    wChallengersComp.setLayoutData( fd );
+
+    wChallengersComp.layout();
+    m_wChallengersTab.setControl( wChallengersComp );
+  }
+
   protected void setupFieldsMappingTab( int middle, int margin, ModifyListener lsMod ) {
     // Fields mapping tab
     m_wFieldsTab = new CTabItem( m_wTabFolder, SWT.NONE );
@@ -819,6 +1067,7 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
         }
 
         m_wCacheModelsCheckBox.setEnabled( m_wAcceptFileNameFromFieldCheckBox.getSelection() );
+        setModelCacheSettingsEnabled( m_wAcceptFileNameFromFieldCheckBox.getSelection() );
         m_wAcceptFileNameFromFieldText.setEnabled( m_wAcceptFileNameFromFieldCheckBox.getSelection() );
         m_wbSaveFilename
             .setEnabled( !m_wAcceptFileNameFromFieldCheckBox.getSelection() && m_wUpdateModel.getSelection() );
@@ -838,6 +1087,8 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     acceptFileNameFromFieldLab.setLayoutData( fd );
     m_wAcceptFileNameFromFieldText = new TextVar( transMeta, wFileComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
     props.setLook( m_wAcceptFileNameFromFieldText );
+    m_wAcceptFileNameFromFieldText.setToolTipText(
+        BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.AcceptFileNamesFromField.TipText" ) );
     m_wAcceptFileNameFromFieldText.addModifyListener( lsMod );
     FormData fdAcceptText = new FormData();
     fdAcceptText.left = new FormAttachment( middle, 0 );
@@ -864,25 +1115,40 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     m_wCacheModelsCheckBox.setLayoutData( fdCacheCheckBox );
     m_wCacheModelsCheckBox.setEnabled( false );
 
+    m_wModelCacheMaxEntriesText =
+        addModelCacheSetting( wFileComp, m_wCacheModelsCheckBox, "PMIScoringDialog.ModelCacheMaxEntries", middle,
+            margin, lsMod );
+    m_wModelCacheMaxMBText =
+        addModelCacheSetting( wFileComp, m_wModelCacheMaxEntriesText, "PMIScoringDialog.ModelCacheMaxMB", middle,
+            margin, lsMod );
+    m_wModelPrefetchRowsText =
+        addModelCacheSetting( wFileComp, m_wModelCacheMaxMBText, "PMIScoringDialog.ModelPrefetchRows", middle,
+            margin, lsMod );
+    m_wModelGroupWindowSizeText =
+        addModelCacheSetting( wFileComp, m_wModelPrefetchRowsText, "PMIScoringDialog.ModelGroupWindowSize", middle,
+            margin, lsMod );
+
     Label outputProbsLab = new Label( wFileComp, SWT.RIGHT );
     outputProbsLab.setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.OutputProbs.Label" ) );
     props.setLook( outputProbsLab );
     fd = new FormData();
     fd.left = new FormAttachment( 0, 0 );
-    fd.top = new FormAttachment( m_wCacheModelsCheckBox, margin );
+    fd.top = new FormAttachment( m_wModelGroupWindowSizeText, margin );
     fd.right = new FormAttachment( middle, -margin );
     outputProbsLab.setLayoutData( fd );
     m_wOutputProbs = new Button( wFileComp, SWT.CHECK );
     props.setLook( m_wOutputProbs );
     fd = new FormData();
     fd.left = new FormAttachment( middle, 0 );
-    fd.top = new FormAttachment( m_wCacheModelsCheckBox, margin );
+    fd.top = new FormAttachment( m_wModelGroupWindowSizeText, margin );
     fd.right = new FormAttachment( 100, 0 );
     m_wOutputProbs.setLayoutData( fd );
 
     // batch scoring size line
     Label batchLab = new Label( wFileComp, SWT.RIGHT );
     batchLab.setText( "Batch scoring batch size" ); //$NON-NLS-1$
+    batchLab
+        .setToolTipText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.BatchScoringSize.TipText" ) );
     props.setLook( batchLab );
     FormData fdd = new FormData();
     fdd.left = new FormAttachment( 0, 0 );
@@ -900,7 +1166,195 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     m_batchScoringBatchSizeText.setLayoutData( fdd );
     m_batchScoringBatchSizeText.setEnabled( false );
 
-    Control lastWidget = m_batchScoringBatchSizeText;
+    // number of scoring threads line
+    Label numThreadsLab = new Label( wFileComp, SWT.RIGHT );
+    numThreadsLab.setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.NumScoringThreads.Label" ) );
+    numThreadsLab
+        .setToolTipText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.NumScoringThreads.TipText" ) );
+    props.setLook( numThreadsLab );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( 0, 0 );
+    fdd.top = new FormAttachment( m_batchScoringBatchSizeText, margin );
+    fdd.right = new FormAttachment( middle, -margin );
+    numThreadsLab.setLayoutData( fdd );
+
+    m_numScoringThreadsText = new TextVar( transMeta, wFileComp, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( m_numScoringThreadsText );
+    m_numScoringThreadsText.addModifyListener( lsMod );
+    fdd = new FormData();
+    fdd.left = new FormAttachment( middle, 0 );
+    fdd.top = new FormAttachment( m_batchScoringBatchSizeText, margin );
+    fdd.right = new FormAttachment( 100, 0 );
+    m_numScoringThreadsText.setLayoutData( fdd );
+
+    Label pipelineLab = new Label( wFileComp, SWT.RIGHT );
+    pipelineLab
+        .setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.PipelineBatchScoring.Label" ) );
+    pipelineLab.setToolTipText(
+        BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.PipelineBatchScoring.TipText" ) );
+    props.setLook( pipelineLab );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( m_numScoringThreadsText, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    pipelineLab.setLayoutData( fd );
+    m_wPipelineBatchScoringCheckBox = new Button( wFileComp, SWT.CHECK );
+    props.setLook( m_wPipelineBatchScoringCheckBox );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( m_numScoringThreadsText, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wPipelineBatchScoringCheckBox.setLayoutData( fd );
+    m_wPipelineBatchScoringCheckBox.setEnabled( false );
+    m_wPipelineBatchScoringCheckBox.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_inputMeta.setChanged();
+        m_wMaxBatchesInFlightText.setEnabled( m_wPipelineBatchScoringCheckBox.getSelection() );
+      }
+    } );
+
+    m_wMaxBatchesInFlightText =
+        addModelCacheSetting( wFileComp, m_wPipelineBatchScoringCheckBox, "PMIScoringDialog.MaxBatchesInFlight", middle,
+            margin, lsMod );
+
+    m_wMaxBatchLatencyText =
+        addModelCacheSetting( wFileComp, m_wMaxBatchesInFlightText, "PMIScoringDialog.MaxBatchLatency", middle, margin,
+            lsMod );
+    m_wMaxBatchLatencyText.setEnabled( true );
+
+    m_wPredictionCacheSizeText =
+        addModelCacheSetting( wFileComp, m_wMaxBatchLatencyText, "PMIScoringDialog.PredictionCacheSize", middle,
+            margin, lsMod );
+    m_wPredictionCacheSizeText.setEnabled( true );
+
+    m_wLookupTableMaxMBText =
+        addModelCacheSetting( wFileComp, m_wPredictionCacheSizeText, "PMIScoringDialog.LookupTableMaxMB", middle,
+            margin, lsMod );
+    m_wLookupTableMaxMBText.setEnabled( true );
+
+    Label compileTreesLab = new Label( wFileComp, SWT.RIGHT );
+    compileTreesLab
+        .setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.CompileTreeModels.Label" ) );
+    compileTreesLab
+        .setToolTipText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.CompileTreeModels.TipText" ) );
+    props.setLook( compileTreesLab );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( m_wLookupTableMaxMBText, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    compileTreesLab.setLayoutData( fd );
+    m_wCompileTreeModelsCheckBox = new Button( wFileComp, SWT.CHECK );
+    props.setLook( m_wCompileTreeModelsCheckBox );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( m_wLookupTableMaxMBText, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wCompileTreeModelsCheckBox.setLayoutData( fd );
+
+    Label compactModelsLab = new Label( wFileComp, SWT.RIGHT );
+    compactModelsLab.setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.CompactModels.Label" ) );
+    compactModelsLab
+        .setToolTipText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.CompactModels.TipText" ) );
+    props.setLook( compactModelsLab );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( m_wCompileTreeModelsCheckBox, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    compactModelsLab.setLayoutData( fd );
+    m_wCompactModelsCheckBox = new Button( wFileComp, SWT.CHECK );
+    props.setLook( m_wCompactModelsCheckBox );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( m_wCompileTreeModelsCheckBox, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wCompactModelsCheckBox.setLayoutData( fd );
+    m_wCompactModelsCheckBox.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_inputMeta.setChanged();
+        m_wCompactModelToleranceText.setEnabled( m_wCompactModelsCheckBox.getSelection() );
+      }
+    } );
+
+    m_wCompactModelToleranceText =
+        addModelCacheSetting( wFileComp, m_wCompactModelsCheckBox, "PMIScoringDialog.CompactModelTolerance", middle,
+            margin, lsMod );
+
+    Label shareModelsLab = new Label( wFileComp, SWT.RIGHT );
+    shareModelsLab.setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.ShareModels.Label" ) );
+    shareModelsLab
+        .setToolTipText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.ShareModels.TipText" ) );
+    props.setLook( shareModelsLab );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( m_wCompactModelToleranceText, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    shareModelsLab.setLayoutData( fd );
+    m_wShareModelsCheckBox = new Button( wFileComp, SWT.CHECK );
+    props.setLook( m_wShareModelsCheckBox );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( m_wCompactModelToleranceText, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wShareModelsCheckBox.setLayoutData( fd );
+
+    Label watchModelLab = new Label( wFileComp, SWT.RIGHT );
+    watchModelLab.setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.WatchModelFile.Label" ) );
+    watchModelLab
+        .setToolTipText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.WatchModelFile.TipText" ) );
+    props.setLook( watchModelLab );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( m_wShareModelsCheckBox, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    watchModelLab.setLayoutData( fd );
+    m_wWatchModelFileCheckBox = new Button( wFileComp, SWT.CHECK );
+    props.setLook( m_wWatchModelFileCheckBox );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( m_wShareModelsCheckBox, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wWatchModelFileCheckBox.setLayoutData( fd );
+    m_wWatchModelFileCheckBox.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_inputMeta.setChanged();
+        m_wModelWatchIntervalText.setEnabled( m_wWatchModelFileCheckBox.getSelection() );
+      }
+    } );
+
+    m_wModelWatchIntervalText =
+        addModelCacheSetting( wFileComp, m_wWatchModelFileCheckBox, "PMIScoringDialog.ModelWatchInterval", middle,
+            margin, lsMod );
+
+    Label externalizeModelLab = new Label( wFileComp, SWT.RIGHT );
+    externalizeModelLab
+        .setText( BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.ExternalizeEmbeddedModel.Label" ) );
+    externalizeModelLab.setToolTipText(
+        BaseMessages.getString( PMIScoringMeta.PKG, "PMIScoringDialog.ExternalizeEmbeddedModel.TipText" ) );
+    props.setLook( externalizeModelLab );
+    fd = new FormData();
+    fd.left = new FormAttachment( 0, 0 );
+    fd.top = new FormAttachment( m_wModelWatchIntervalText, margin );
+    fd.right = new FormAttachment( middle, -margin );
+    externalizeModelLab.setLayoutData( fd );
+    m_wExternalizeEmbeddedModelCheckBox = new Button( wFileComp, SWT.CHECK );
+    props.setLook( m_wExternalizeEmbeddedModelCheckBox );
+    fd = new FormData();
+    fd.left = new FormAttachment( middle, 0 );
+    fd.top = new FormAttachment( m_wModelWatchIntervalText, margin );
+    fd.right = new FormAttachment( 100, 0 );
+    m_wExternalizeEmbeddedModelCheckBox.setLayoutData( fd );
+    m_wExternalizeEmbeddedModelCheckBox.addSelectionListener( new SelectionAdapter() {
+      @Override public void widgetSelected( SelectionEvent e ) {
+        m_inputMeta.setChanged();
+        m_wEmbeddedModelDirectoryText.setEnabled( m_wExternalizeEmbeddedModelCheckBox.getSelection() );
+      }
+    } );
+
+    m_wEmbeddedModelDirectoryText =
+        addModelCacheSetting( wFileComp, m_wExternalizeEmbeddedModelCheckBox, "PMIScoringDialog.EmbeddedModelDirectory",
+            middle, margin, lsMod );
+
+    Control lastWidget = m_wEmbeddedModelDirectoryText;
 
     Group evaluationGroup = new Group( wFileComp, SWT.SHADOW_NONE );
     props.setLook( evaluationGroup );
@@ -912,7 +1366,7 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
     fd = new FormData();
     fd.left = new FormAttachment( 0, 0 );
     fd.right = new FormAttachment( 100, 0 );
-    fd.top = new FormAttachment( m_batchScoringBatchSizeText, margin );
+    fd.top = new FormAttachment( m_wEmbeddedModelDirectoryText, margin );
     evaluationGroup.setLayoutData( fd );
 
     // evaluation stuff
@@ -1044,6 +1498,8 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
       m_wAcceptFileNameFromFieldText.setEnabled( false );
       m_wAcceptFileNameFromFieldText.setText( "" );
       m_batchScoringBatchSizeText.setEnabled( true );
+      m_wPipelineBatchScoringCheckBox.setEnabled( true );
+      m_wMaxBatchesInFlightText.setEnabled( m_wPipelineBatchScoringCheckBox.getSelection() );
     } else {
       m_wUpdateModel.setEnabled( true );
       // disable the save field and button
@@ -1052,6 +1508,8 @@ public class PMIScoringDialog extends BaseStepDialog implements StepDialogInterf
       m_wAcceptFileNameFromFieldCheckBox.setEnabled( true );
       m_wAcceptFileNameFromFieldText.setEnabled( true );
       m_batchScoringBatchSizeText.setEnabled( false );
+      m_wPipelineBatchScoringCheckBox.setEnabled( false );
+      m_wMaxBatchesInFlightText.setEnabled( false );
     }
   }
 
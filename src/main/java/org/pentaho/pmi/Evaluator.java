@@ -43,7 +43,16 @@ import weka.core.Utils;
 
 import java.io.File;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that handles evaluating a PMI model.
@@ -63,6 +72,13 @@ public class Evaluator {
    */
   protected int m_xValFolds = 10;
 
+  /**
+   * Maximum number of cross-validation folds to train and test concurrently. Defaults to 1, which evaluates the folds
+   * sequentially on the calling thread. Parallel evaluation holds a copy of the training and test data (and a model)
+   * per concurrent fold, so it has to be asked for
+   */
+  protected int m_foldParallelism = 1;
+
   /**
    * Default 2/3 1/3
    */
@@ -162,6 +178,25 @@ public class Evaluator {
     return m_xValFolds;
   }
 
+  /**
+   * Set the maximum number of cross-validation folds to train and test concurrently. Values less than 2 result in
+   * the folds being processed sequentially.
+   *
+   * @param parallelism the maximum number of folds to process at the same time
+   */
+  public void setFoldParallelism( int parallelism ) {
+    m_foldParallelism = parallelism;
+  }
+
+  /**
+   * Get the maximum number of cross-validation folds to train and test concurrently.
+   *
+   * @return the maximum number of folds to process at the same time
+   */
+  public int getFoldParallelism() {
+    return m_foldParallelism;
+  }
+
   /**
    * Set the random seed to use
    *
@@ -306,11 +341,102 @@ public class Evaluator {
 
     m_evalWasPerformed = true;
     Random r = new Random( m_randomSeed );
-    // shuffle the training data
-    if ( !m_preserveOrder && ( m_evaluationMode == EvalMode.CROSS_VALIDATION
-        || m_evaluationMode == EvalMode.PERCENTAGE_SPLIT ) ) {
-      m_trainingData.randomize( r );
+    prepareTrainingData( r );
+    performEvaluation( separateTestData, r, log, vars );
+  }
+
+  /**
+   * Perform a percentage split or cross-validation evaluation while building the final model on all the training data
+   * at the same time. The training data is shuffled (and stratified) up front, after which it is only read by both the
+   * evaluation and the final model build. The resulting metrics and final model are the same as those produced by
+   * calling {@code performEvaluation()} followed by {@code buildFinalModel()}. For other evaluation modes this simply
+   * performs these two steps one after the other.
+   *
+   * @param log  the logging object to use
+   * @param vars Kettle environment variables
+   * @return the final model
+   * @throws Exception if a problem occurs
+   */
+  public Classifier performEvaluationAndBuildFinalModel( LogChannelInterface log, VariableSpace vars )
+      throws Exception {
+    if ( m_evaluationMode != EvalMode.CROSS_VALIDATION && m_evaluationMode != EvalMode.PERCENTAGE_SPLIT ) {
+      performEvaluation( null, log, vars );
+      return buildFinalModel( log, vars );
+    }
+    if ( m_trainingData == null ) {
+      throw new IllegalStateException(
+          BaseMessages.getString( BaseSupervisedPMIStepMeta.PKG, "Evaluator.Error.EvaluatorNotInitialized" ) );
+    }
+
+    m_evalWasPerformed = true;
+    Random r = new Random( m_randomSeed );
+    prepareTrainingData( r );
+
+    final Classifier finalModel = configureFinalModel( log, vars );
+    final Instances trainingData = m_trainingData;
+    ExecutorService executor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+      @Override public Thread newThread( Runnable runnable ) {
+        Thread t = new Thread( runnable, "PMI final model builder" );
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+    try {
+      Future<?> finalModelBuild = executor.submit( new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          finalModel.buildClassifier( trainingData );
+          return null;
+        }
+      } );
+
+      performEvaluation( null, r, log, vars );
+
+      try {
+        finalModelBuild.get();
+      } catch ( ExecutionException e ) {
+        Throwable cause = e.getCause();
+        if ( cause instanceof Exception ) {
+          throw (Exception) cause;
+        }
+        throw e;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    m_classifier = finalModel;
+
+    return m_classifier;
+  }
+
+  /**
+   * Shuffle the training data (and stratify it for cross-validation), unless order is to be preserved. This is the
+   * only point at which the training data is modified, so it is safe to read concurrently afterwards.
+   *
+   * @param r the random number generator to use
+   */
+  protected void prepareTrainingData( Random r ) {
+    if ( m_preserveOrder || ( m_evaluationMode != EvalMode.CROSS_VALIDATION
+        && m_evaluationMode != EvalMode.PERCENTAGE_SPLIT ) ) {
+      return;
+    }
+    m_trainingData.randomize( r );
+    if ( m_evaluationMode == EvalMode.CROSS_VALIDATION && m_trainingData.numInstances() >= m_xValFolds
+        && m_trainingData.classAttribute().isNominal() ) {
+      m_trainingData.stratify( m_xValFolds );
     }
+  }
+
+  /**
+   * Perform an evaluation on training data that has already been prepared via {@code prepareTrainingData()}.
+   *
+   * @param separateTestData optional separate test data (used in separate test set evaluation)
+   * @param r                the random number generator used to prepare the training data
+   * @param log              the logging object to use
+   * @param vars             Kettle environment variables
+   * @throws Exception if a problem occurs
+   */
+  protected void performEvaluation( Instances separateTestData, Random r, LogChannelInterface log,
+      VariableSpace vars ) throws Exception {
     if ( m_evaluationMode == EvalMode.PERCENTAGE_SPLIT ) {
       if ( m_trainingData.numInstances() < 10 ) {
         log.logBasic( BaseMessages
@@ -348,8 +474,9 @@ public class Evaluator {
       }
       log.logBasic( BaseMessages
           .getString( BaseSupervisedPMIStepMeta.PKG, "Evaluator.Message.PerformingCrossValidation", m_xValFolds ) );
-      if ( !m_preserveOrder && m_trainingData.classAttribute().isNominal() ) {
-        m_trainingData.stratify( m_xValFolds );
+      if ( Math.min( m_foldParallelism, m_xValFolds ) > 1 ) {
+        performCrossValidationParallel( r, log, vars );
+        return;
       }
       for ( int i = 0; i < m_xValFolds; i++ ) {
         log.logDetailed( BaseMessages
@@ -413,6 +540,144 @@ public class Evaluator {
     }
   }
 
+  /**
+   * Cross-validation with folds trained and tested concurrently on a bounded pool. Fold splits are created on the
+   * calling thread in fold order, so the random number generator is consumed exactly as in the sequential case. Each
+   * worker builds its fold's model and computes predicted distributions for the fold's test instances; the
+   * distributions are then fed into the shared Evaluation object in fold order, so the resulting metrics are identical
+   * to those of a sequential run with the same seed.
+   *
+   * @param r    the random number generator used for the (already performed) shuffle
+   * @param log  the logging object to use
+   * @param vars Kettle environment variables
+   * @throws Exception if a problem occurs
+   */
+  protected void performCrossValidationParallel( Random r, final LogChannelInterface log, VariableSpace vars )
+      throws Exception {
+    int numThreads = Math.min( m_foldParallelism, m_xValFolds );
+    final boolean batchPredictor =
+        m_templateClassifier instanceof BatchPredictor && ( (BatchPredictor) m_templateClassifier )
+            .implementsMoreEfficientBatchPrediction();
+    ExecutorService executor = Executors.newFixedThreadPool( numThreads, new ThreadFactory() {
+      protected AtomicInteger m_count = new AtomicInteger();
+
+      @Override public Thread newThread( Runnable runnable ) {
+        Thread t = new Thread( runnable, "PMI x-val fold worker " + m_count.incrementAndGet() );
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+
+    Deque<FoldTask> inFlight = new ArrayDeque<>();
+    try {
+      for ( int i = 0; i < m_xValFolds; i++ ) {
+        final int fold = i;
+        final Instances train = m_trainingData.trainCV( m_xValFolds, i, r );
+        final Instances test = m_trainingData.testCV( m_xValFolds, i );
+        // the template is only ever touched from the calling thread
+        final Classifier foldClassifier = copyClassifierTemplate();
+        enableClassifierLoggingIfSupported( foldClassifier, log );
+        configureWekaEnvironmentHandler( foldClassifier, vars );
+        Future<double[][]> future = executor.submit( new Callable<double[][]>() {
+          @Override public double[][] call() throws Exception {
+            log.logDetailed( BaseMessages
+                .getString( BaseSupervisedPMIStepMeta.PKG, "Evaluator.Message.TrainingModelForFold", ( fold + 1 ) ) );
+            foldClassifier.buildClassifier( train );
+            log.logDetailed( BaseMessages
+                .getString( BaseSupervisedPMIStepMeta.PKG, "Evaluator.Message.TestingModelForFold", ( fold + 1 ) ) );
+            return predictFold( foldClassifier, test, batchPredictor );
+          }
+        } );
+        inFlight.addLast( new FoldTask( train, test, future ) );
+
+        // bound the number of folds (and their train/test copies) held in memory at any one time
+        if ( inFlight.size() >= numThreads ) {
+          aggregateFold( inFlight.removeFirst() );
+        }
+      }
+      while ( !inFlight.isEmpty() ) {
+        aggregateFold( inFlight.removeFirst() );
+      }
+    } finally {
+      for ( FoldTask task : inFlight ) {
+        task.m_predictions.cancel( true );
+      }
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Compute predicted distributions for the instances in a fold's test set.
+   *
+   * @param foldClassifier the classifier trained on the fold's training data
+   * @param test           the fold's test data
+   * @param batchPredictor true if the classifier is a more efficient batch predictor
+   * @return an array of predicted distributions, one per test instance
+   * @throws Exception if a problem occurs
+   */
+  protected static double[][] predictFold( Classifier foldClassifier, Instances test, boolean batchPredictor )
+      throws Exception {
+    if ( batchPredictor ) {
+      Instances testCopy = new Instances( test );
+      for ( int j = 0; j < testCopy.numInstances(); j++ ) {
+        testCopy.instance( j ).setClassMissing();
+      }
+      return ( (BatchPredictor) foldClassifier ).distributionsForInstances( testCopy );
+    }
+
+    double[][] preds = new double[test.numInstances()][];
+    for ( int j = 0; j < test.numInstances(); j++ ) {
+      Instance classMissing = (Instance) test.instance( j ).copy();
+      classMissing.setDataset( test );
+      classMissing.setClassMissing();
+      preds[j] = foldClassifier.distributionForInstance( classMissing );
+    }
+    return preds;
+  }
+
+  /**
+   * Wait for a fold to complete and add its predictions to the evaluation.
+   *
+   * @param task the fold to aggregate
+   * @throws Exception if the fold failed
+   */
+  protected void aggregateFold( FoldTask task ) throws Exception {
+    double[][] preds;
+    try {
+      preds = task.m_predictions.get();
+    } catch ( ExecutionException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof Exception ) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+
+    m_eval.setPriors( task.m_train );
+    for ( int j = 0; j < task.m_test.numInstances(); j++ ) {
+      if ( m_computeAUC ) {
+        m_eval.evaluateModelOnceAndRecordPrediction( preds[j], task.m_test.instance( j ) );
+      } else {
+        m_eval.evaluateModelOnce( preds[j], task.m_test.instance( j ) );
+      }
+    }
+  }
+
+  /**
+   * Holds the training/test split for a fold along with the pending predictions for its test instances
+   */
+  protected static class FoldTask {
+    protected Instances m_train;
+    protected Instances m_test;
+    protected Future<double[][]> m_predictions;
+
+    protected FoldTask( Instances train, Instances test, Future<double[][]> predictions ) {
+      m_train = train;
+      m_test = test;
+      m_predictions = predictions;
+    }
+  }
+
   /**
    * Performs incremental evaluation. Only applicable to separate test set mode and non-BatchPredictors
    *
@@ -454,18 +719,31 @@ public class Evaluator {
           BaseMessages.getString( BaseSupervisedPMIStepMeta.PKG, "Evaluator.Error.EvaluatorNotInitialized" ) );
     }
 
-    m_classifier = copyClassifierTemplate();
+    m_classifier = configureFinalModel( log, vars );
+    m_classifier.buildClassifier( m_trainingData );
+
+    return m_classifier;
+  }
+
+  /**
+   * Create and configure an untrained copy of the classifier template for use as the final model
+   *
+   * @param log  the log to write to
+   * @param vars Kettle environment variables
+   * @return an untrained final model
+   * @throws Exception if a problem occurs
+   */
+  protected Classifier configureFinalModel( LogChannelInterface log, VariableSpace vars ) throws Exception {
+    Classifier classifier = copyClassifierTemplate();
     if ( log != null ) {
       log.logBasic( BaseMessages.getString( BaseSupervisedPMIStepMeta.PKG, "BasePMIStep.Info.BuildingFinalModel",
-          m_classifier.getClass().getCanonicalName() + " " + Utils
-              .joinOptions( ( (OptionHandler) m_classifier ).getOptions() ) ) );
-      enableClassifierLoggingIfSupported( m_classifier, log );
+          classifier.getClass().getCanonicalName() + " " + Utils
+              .joinOptions( ( (OptionHandler) classifier ).getOptions() ) ) );
+      enableClassifierLoggingIfSupported( classifier, log );
     }
-    configureWekaEnvironmentHandler( m_classifier, vars );
+    configureWekaEnvironmentHandler( classifier, vars );
 
-    m_classifier.buildClassifier( m_trainingData );
-
-    return m_classifier;
+    return classifier;
   }
 
   /**
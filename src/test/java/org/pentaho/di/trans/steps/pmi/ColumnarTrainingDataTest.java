@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.dm.commons.ArffMeta;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that training data held in columns materializes to the same
+ * instances as converting the rows directly, both in memory and when row
+ * groups are spilled to disk.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class ColumnarTrainingDataTest {
+
+  protected static final int NUM_ROWS = 200;
+
+  @Rule public TemporaryFolder m_tmp = new TemporaryFolder();
+
+  // incoming fields are deliberately in a different order to the header
+  protected static final String[] STREAM_FIELDS = { "text", "color", "unused", "num2", "num1", "class" };
+
+  protected RowMetaInterface m_rowMeta;
+  protected Map<String, Integer> m_fieldIndexes;
+  protected List<ArffMeta> m_arffMetas;
+  protected Instances m_header;
+  protected List<Object[]> m_rows;
+
+  @Before public void setUp() throws Exception {
+    m_rowMeta = new RowMeta();
+    m_fieldIndexes = new HashMap<String, Integer>();
+    for ( String name : STREAM_FIELDS ) {
+      m_fieldIndexes.put( name, m_rowMeta.size() );
+      m_rowMeta.addValueMeta( name.startsWith( "num" ) ? new ValueMetaNumber( name ) : new ValueMetaString( name ) );
+    }
+
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add( new Attribute( "num1" ) );
+    atts.add( new Attribute( "color", Arrays.asList( "red", "green", "blue" ) ) );
+    atts.add( new Attribute( "text", (List<String>) null ) );
+    atts.add( new Attribute( "absent" ) );
+    atts.add( new Attribute( "num2" ) );
+    atts.add( new Attribute( "class", Arrays.asList( "yes", "no" ) ) );
+    m_header = new Instances( "mixed", atts, 0 );
+    m_header.setClassIndex( m_header.numAttributes() - 1 );
+
+    m_arffMetas = new ArrayList<ArffMeta>();
+    m_arffMetas.add( new ArffMeta( "num1", ValueMetaInterface.TYPE_NUMBER, ArffMeta.NUMERIC ) );
+    m_arffMetas.add( new ArffMeta( "color", ValueMetaInterface.TYPE_STRING, ArffMeta.NOMINAL ) );
+    m_arffMetas.add( new ArffMeta( "text", ValueMetaInterface.TYPE_STRING, ArffMeta.STRING ) );
+    m_arffMetas.add( new ArffMeta( "absent", ValueMetaInterface.TYPE_NUMBER, ArffMeta.NUMERIC ) );
+    m_arffMetas.add( new ArffMeta( "num2", ValueMetaInterface.TYPE_NUMBER, ArffMeta.NUMERIC ) );
+    m_arffMetas.add( new ArffMeta( "class", ValueMetaInterface.TYPE_STRING, ArffMeta.NOMINAL ) );
+
+    // about one value in eight is missing. "purple" is not a legal color, so
+    // it is missing in the instances too
+    String[] colors = { "red", "green", "blue", "purple" };
+    Random r = new Random( 1 );
+    m_rows = new ArrayList<Object[]>();
+    for ( int i = 0; i < NUM_ROWS; i++ ) {
+      Object[] row = new Object[STREAM_FIELDS.length];
+      row[0] = r.nextInt( 8 ) == 0 ? null : "word" + r.nextInt( 30 );
+      row[1] = r.nextInt( 8 ) == 0 ? null : colors[r.nextInt( colors.length )];
+      row[2] = "ignored";
+      row[3] = r.nextInt( 8 ) == 0 ? null : r.nextBoolean() ? 0.0 : r.nextGaussian();
+      row[4] = r.nextInt( 8 ) == 0 ? null : (double) r.nextInt( 100 );
+      row[5] = r.nextInt( 8 ) == 0 ? null : r.nextBoolean() ? "yes" : "no";
+      m_rows.add( row );
+    }
+  }
+
+  protected ColumnarTrainingData store( long maxBytesInMemory ) throws Exception {
+    ColumnarTrainingData columns = new ColumnarTrainingData( m_arffMetas, m_rowMeta, m_fieldIndexes );
+    columns.setSpillToDisk( m_tmp.getRoot(), maxBytesInMemory );
+    for ( Object[] row : m_rows ) {
+      columns.add( row );
+    }
+    assertEquals( NUM_ROWS, columns.size() );
+    return columns;
+  }
+
+  protected Instances expected() throws Exception {
+    return new BaseSupervisedPMIStepData()
+        .buildDataset( m_header.stringFreeStructure(), m_rowMeta, m_rows, m_fieldIndexes, null );
+  }
+
+  protected static void checkSame( Instances expected, Instances actual ) {
+    assertEquals( expected.numInstances(), actual.numInstances() );
+    assertEquals( expected.attribute( "text" ).numValues(), actual.attribute( "text" ).numValues() );
+    for ( int i = 0; i < expected.numInstances(); i++ ) {
+      assertArrayEquals( "row " + i, expected.instance( i ).toDoubleArray(), actual.instance( i ).toDoubleArray(), 0 );
+      if ( !expected.instance( i ).isMissing( 2 ) ) {
+        assertEquals( "row " + i, expected.instance( i ).stringValue( 2 ), actual.instance( i ).stringValue( 2 ) );
+      }
+    }
+  }
+
+  @Test public void testInMemory() throws Exception {
+    ColumnarTrainingData columns = store( 0 );
+    assertEquals( 0, columns.getNumSpilledRows() );
+    assertEquals( Arrays.asList( "blue", "green", "purple", "red" ), columns.getSortedDistinctValues( 1 ) );
+
+    checkSame( expected(), columns.toInstances( m_header.stringFreeStructure() ) );
+    // materializing without releasing leaves the rows in place
+    checkSame( expected(), columns.toInstances( m_header.stringFreeStructure() ) );
+    columns.clear();
+  }
+
+  @Test public void testSpilled() throws Exception {
+    // enough for four groups of 16 rows of 28 bytes
+    ColumnarTrainingData columns = store( 28 * 16 * 4 );
+    assertEquals( 16, columns.m_groupSize );
+    assertTrue( "" + columns.getNumSpilledRows(), columns.getNumSpilledRows() >= 8 * 16 );
+
+    checkSame( expected(), columns.toInstances( m_header.stringFreeStructure(), true ) );
+    for ( ColumnarTrainingData.Column column : columns.m_columns ) {
+      List<?> chunks = column instanceof ColumnarTrainingData.NumericColumn
+          ? ( (ColumnarTrainingData.NumericColumn) column ).m_chunks
+          : column instanceof ColumnarTrainingData.DictionaryColumn
+          ? ( (ColumnarTrainingData.DictionaryColumn) column ).m_chunks : new ArrayList<Object>();
+      for ( Object chunk : chunks ) {
+        assertNull( "group not released", chunk );
+      }
+    }
+
+    assertTrue( columns.m_spillFile.exists() );
+    columns.clear();
+    assertNull( columns.m_spillFile );
+  }
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.evaluation.Evaluation;
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes several models to a bundle and reads them back by key.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIModelBundleTest {
+
+  @Rule public TemporaryFolder m_tmp = new TemporaryFolder();
+
+  @Test public void testLookupByKey() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "trees_classification.arff" );
+    J48 tree = new J48();
+    tree.buildClassifier( data );
+    NaiveBayes bayes = new NaiveBayes();
+    bayes.buildClassifier( data );
+
+    File file = m_tmp.newFile( "strata" + PMIModelBundle.FILE_EXTENSION );
+    PMIModelBundle.Writer writer = new PMIModelBundle.Writer( file );
+    try {
+      writer.add( "red", tree, data, new Evaluation( data ), null );
+      writer.add( "green", bayes, data, null, null );
+      writer.add( "blue", new double[] { 4, 5 }, data, null, new int[] { 0 } );
+      assertEquals( 3, writer.size() );
+      try {
+        writer.add( "red", bayes, data, null, null );
+        fail( "Duplicate key was accepted" );
+      } catch ( IOException ex ) {
+        // expected
+      }
+    } finally {
+      writer.close();
+    }
+    assertTrue( PMIModelBundle.hasBundleExtension( file.getName() ) );
+
+    PMIModelBundle.Reader reader = new PMIModelBundle.Reader( file );
+    try {
+      assertEquals( Arrays.asList( "red", "green", "blue" ), new ArrayList<String>( reader.getKeys() ) );
+      assertTrue( reader.contains( "green" ) );
+
+      PMIModelContainer.ModelInfo info = reader.readInfo( "green" );
+      assertEquals( NaiveBayes.class.getName(), info.getModelClassName() );
+      assertTrue( info.getHeader().equalHeaders( data ) );
+      assertNull( info.getClassPriors() );
+
+      // entries can be read in any order
+      Object[] blue = reader.readEntry( "blue" );
+      assertArrayEquals( new int[] { 0 }, ( (PMIModelContainer.ModelInfo) blue[0] ).getIgnoredAttributes() );
+      assertArrayEquals( new double[] { 4, 5 }, (double[]) blue[1], 0 );
+
+      checkSamePredictions( tree, (Classifier) reader.readEntry( "red" )[1], data );
+      checkSamePredictions( bayes, (Classifier) reader.readEntry( "green" )[1], data );
+      assertNotNull( ( (PMIModelContainer.ModelInfo) reader.readEntry( "red" )[0] ).getClassPriors() );
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test public void testMissingKey() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "trees_regression.arff" );
+    File file = m_tmp.newFile( "single" + PMIModelBundle.FILE_EXTENSION );
+    PMIModelBundle.Writer writer = new PMIModelBundle.Writer( file );
+    try {
+      writer.add( "only", new double[] { 1 }, data, null, null );
+    } finally {
+      writer.close();
+    }
+
+    PMIModelBundle.Reader reader = new PMIModelBundle.Reader( file );
+    try {
+      assertFalse( reader.contains( "other" ) );
+      assertNull( reader.readInfo( "other" ) );
+      assertNull( reader.readEntry( "other" ) );
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test public void testIncompleteBundleRejected() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "trees_regression.arff" );
+    File file = m_tmp.newFile( "incomplete" + PMIModelBundle.FILE_EXTENSION );
+    PMIModelBundle.Writer writer = new PMIModelBundle.Writer( file );
+    writer.add( "only", new double[] { 1 }, data, null, null );
+    writer.close();
+
+    // drop the trailer, as if the writer had not been closed
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try {
+      raf.setLength( raf.length() - PMIModelBundle.TRAILER_LENGTH );
+    } finally {
+      raf.close();
+    }
+
+    try {
+      new PMIModelBundle.Reader( file ).close();
+      fail( "Incomplete bundle was opened" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  protected static void checkSamePredictions( Classifier expected, Classifier actual, Instances data )
+      throws Exception {
+    for ( int i = 0; i < data.numInstances(); i++ ) {
+      assertArrayEquals( expected.distributionForInstance( data.instance( i ) ),
+          actual.distributionForInstance( data.instance( i ) ), 0 );
+    }
+  }
+}
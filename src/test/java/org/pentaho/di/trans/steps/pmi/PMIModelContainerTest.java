@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips models through the container format with each body codec, and
+ * checks that a corrupted body is detected.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIModelContainerTest {
+
+  @Rule public TemporaryFolder m_tmp = new TemporaryFolder();
+
+  protected static final byte[] CODECS =
+      { PMIModelContainer.CODEC_SERIALIZED, PMIModelContainer.CODEC_SERIALIZED_DEFLATE };
+
+  @Test public void testRoundTripClassifier() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "trees_classification.arff" );
+    J48 tree = new J48();
+    tree.buildClassifier( data );
+    Evaluation priors = new Evaluation( data );
+    int[] ignored = { 1 };
+
+    for ( byte codec : CODECS ) {
+      File file = m_tmp.newFile( "j48-" + codec + PMIModelContainer.FILE_EXTENSION );
+      PMIModelContainer.write( file, tree, data, priors, ignored, codec );
+      assertTrue( PMIModelContainer.hasContainerExtension( file.getName() ) );
+
+      InputStream in = new BufferedInputStream( new FileInputStream( file ) );
+      try {
+        assertTrue( "codec " + codec, PMIModelContainer.isContainer( in ) );
+        PMIModelContainer.ModelInfo info = PMIModelContainer.readInfo( in );
+        assertEquals( PMIModelContainer.FORMAT_VERSION, info.getFormatVersion() );
+        assertEquals( J48.class.getName(), info.getModelClassName() );
+        assertTrue( info.isClassifier() );
+        assertFalse( info.isClusterer() );
+        assertTrue( info.getHeader().equalHeaders( data ) );
+        assertEquals( 0, info.getHeader().numInstances() );
+        assertArrayEquals( ignored, info.getIgnoredAttributes() );
+        assertArrayEquals( priors.getClassPriors(), info.getClassPriors().getClassPriors(), 0 );
+
+        Classifier copy = (Classifier) PMIModelContainer.readModel( in, info );
+        for ( int i = 0; i < data.numInstances(); i++ ) {
+          assertArrayEquals( "codec " + codec, tree.distributionForInstance( data.instance( i ) ),
+              copy.distributionForInstance( data.instance( i ) ), 0 );
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  @Test public void testInfoWithoutModel() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "trees_regression.arff" );
+    for ( byte codec : CODECS ) {
+      File file = m_tmp.newFile( "values-" + codec + PMIModelContainer.FILE_EXTENSION );
+      PMIModelContainer.write( file, new double[] { 1, 2, 3 }, data, null, null, codec );
+
+      InputStream in = new FileInputStream( file );
+      try {
+        PMIModelContainer.ModelInfo info = PMIModelContainer.readInfo( in );
+        assertEquals( double[].class.getName(), info.getModelClassName() );
+        assertFalse( info.isClassifier() );
+        assertFalse( info.isClusterer() );
+        assertNull( info.getClassPriors() );
+        assertNull( info.getIgnoredAttributes() );
+        assertEquals( "codec " + codec, file.length() - info.getBodyLength(), bodyOffset( file ) );
+        assertArrayEquals( new double[] { 1, 2, 3 }, (double[]) PMIModelContainer.readModel( in, info ), 0 );
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  @Test public void testCorruptBodyFailsChecksum() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "trees_regression.arff" );
+    double[] values = new double[100];
+    File file = m_tmp.newFile( "corrupt" + PMIModelContainer.FILE_EXTENSION );
+    PMIModelContainer.write( file, values, data, null, null, PMIModelContainer.CODEC_SERIALIZED );
+
+    // the body is at the end of the file, and finishes with the array values -
+    // changing one still leaves a body that deserializes
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try {
+      raf.seek( raf.length() - 1 );
+      raf.writeByte( 1 );
+    } finally {
+      raf.close();
+    }
+
+    InputStream in = new FileInputStream( file );
+    try {
+      PMIModelContainer.ModelInfo info = PMIModelContainer.readInfo( in );
+      PMIModelContainer.readModel( in, info );
+      fail( "Corrupted body was not detected" );
+    } catch ( IOException ex ) {
+      assertTrue( ex.getMessage(), ex.getMessage().contains( "checksum" ) );
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test public void testNotAContainer() throws Exception {
+    File file = m_tmp.newFile( "other" + PMIModelContainer.FILE_EXTENSION );
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try {
+      raf.writeBytes( "not a model container" );
+    } finally {
+      raf.close();
+    }
+
+    InputStream in = new BufferedInputStream( new FileInputStream( file ) );
+    try {
+      assertFalse( PMIModelContainer.isContainer( in ) );
+      PMIModelContainer.readInfo( in );
+      fail( "Non-container was read" );
+    } catch ( IOException ex ) {
+      // expected
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the number of bytes before the model body of a container file
+   */
+  protected static long bodyOffset( File file ) throws Exception {
+    FileInputStream in = new FileInputStream( file );
+    try {
+      PMIModelContainer.readInfo( in );
+      return in.getChannel().position();
+    } finally {
+      in.close();
+    }
+  }
+}
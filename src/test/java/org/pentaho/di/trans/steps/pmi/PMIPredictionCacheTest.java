@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Test;
+import org.pentaho.di.core.logging.LogChannel;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.trees.J48;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that cached predictions are the same as those of the model for every
+ * combination of values, including missing ones, and that the cache is
+ * invalidated when the model changes.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIPredictionCacheTest {
+
+  protected static PMIPredictionCache newCache( int maxEntries ) {
+    return new PMIPredictionCache( maxEntries, new LogChannel( "PMIPredictionCacheTest" ) );
+  }
+
+  /**
+   * Look each combination up, scoring and caching it if it is not cached
+   *
+   * @return the number of combinations that were already cached
+   */
+  protected static int score( PMIPredictionCache cache, PMIScoringModel model, Instances combinations )
+      throws Exception {
+    int cached = 0;
+    for ( int i = 0; i < combinations.numInstances(); i++ ) {
+      double[] vals = combinations.instance( i ).toDoubleArray();
+      double[] expected = model.distributionForInstance( combinations.instance( i ) );
+      double[][] preds = cache.get( model, vals );
+      if ( preds == null ) {
+        cache.put( model, vals, new double[][] { expected } );
+      } else {
+        cached++;
+        assertArrayEquals( combinations.instance( i ).toString(), expected, preds[0], 0 );
+      }
+    }
+    return cached;
+  }
+
+  @Test public void testAllCombinations() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "nominal_classification.arff" );
+    PMIScoringModel model = PMITestFixtures.train( new J48(), data );
+    Instances combinations = PMITestFixtures.allCombinations( data );
+    int n = combinations.numInstances();
+
+    PMIPredictionCache cache = newCache( n );
+    assertTrue( cache.isCacheable( model ) );
+    assertEquals( 0, score( cache, model, combinations ) );
+    // missing values are NaN, which must still match when looked up again
+    assertEquals( n, score( cache, model, combinations ) );
+    assertEquals( n, cache.getHits() );
+    assertEquals( n, cache.getMisses() );
+    assertEquals( 0.5, cache.getHitRate(), 0 );
+  }
+
+  @Test public void testInvalidatedWhenModelChanges() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "nominal_classification.arff" );
+    PMIScoringModel first = PMITestFixtures.train( new J48(), data );
+    PMIScoringModel second = PMITestFixtures.train( new NaiveBayes(), data );
+    Instances combinations = PMITestFixtures.allCombinations( data );
+    int n = combinations.numInstances();
+
+    PMIPredictionCache cache = newCache( n );
+    score( cache, first, combinations );
+    // nothing cached for the first model is returned for the second
+    assertEquals( 0, score( cache, second, combinations ) );
+    assertEquals( n, score( cache, second, combinations ) );
+    // and switching back starts again
+    assertEquals( 0, score( cache, first, combinations ) );
+
+    cache.clear();
+    assertEquals( 0, score( cache, first, combinations ) );
+  }
+
+  @Test public void testKeysAreCopied() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "nominal_classification.arff" );
+    PMIScoringModel model = PMITestFixtures.train( new J48(), data );
+    PMIPredictionCache cache = newCache( 10 );
+
+    // the scoring step re-uses its array of values from row to row
+    double[] vals = PMITestFixtures.allCombinations( data ).instance( 0 ).toDoubleArray();
+    double[] key = vals.clone();
+    cache.put( model, vals, new double[][] { { 1, 0 } } );
+    vals[0] = 1;
+    assertNull( cache.get( model, vals ) );
+    assertNotNull( cache.get( model, key ) );
+  }
+
+  @Test public void testLeastRecentlyUsedEvicted() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "nominal_classification.arff" );
+    PMIScoringModel model = PMITestFixtures.train( new J48(), data );
+    Instances combinations = PMITestFixtures.allCombinations( data );
+    PMIPredictionCache cache = newCache( 2 );
+
+    double[] a = combinations.instance( 0 ).toDoubleArray();
+    double[] b = combinations.instance( 1 ).toDoubleArray();
+    double[] c = combinations.instance( 2 ).toDoubleArray();
+    cache.put( model, a, new double[][] { { 1, 0 } } );
+    cache.put( model, b, new double[][] { { 0, 1 } } );
+    assertNotNull( cache.get( model, a ) );
+    cache.put( model, c, new double[][] { { 0.5, 0.5 } } );
+    assertNotNull( cache.get( model, a ) );
+    assertNull( cache.get( model, b ) );
+    assertNotNull( cache.get( model, c ) );
+  }
+
+  @Test public void testStringAttributesNotCached() throws Exception {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add( new Attribute( "text", (List<String>) null ) );
+    atts.add( new Attribute( "class", Arrays.asList( "yes", "no" ) ) );
+    Instances header = new Instances( "text", atts, 0 );
+    header.setClassIndex( 1 );
+    PMIScoringModel model = PMIScoringModel.createScorer( new NaiveBayes() );
+    model.setHeader( header );
+
+    PMIPredictionCache cache = newCache( 10 );
+    assertFalse( cache.isCacheable( model ) );
+    cache.put( model, new double[] { 0, 0 }, new double[][] { { 1, 0 } } );
+    assertNull( cache.get( model, new double[] { 0, 0 } ) );
+  }
+}
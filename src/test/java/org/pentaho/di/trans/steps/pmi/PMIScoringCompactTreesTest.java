@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Test;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that compacted trees stay within the compaction tolerance of the
+ * original model, and that the check is made against the original model
+ * rather than the flattened copy that is compacted.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringCompactTreesTest {
+
+  protected static PMIScoringClassifier trainForest( String fixture ) throws Exception {
+    Instances data = PMITestFixtures.loadArff( fixture );
+    RandomForest forest = new RandomForest();
+    forest.setNumIterations( 20 );
+    forest.buildClassifier( data );
+    PMIScoringClassifier source = (PMIScoringClassifier) PMIScoringModel.createScorer( forest );
+    source.setHeader( new Instances( data, 0 ) );
+    return source;
+  }
+
+  @Test public void testForestWithinTolerance() throws Exception {
+    for ( String fixture : new String[] { "trees_classification.arff", "trees_regression.arff" } ) {
+      PMIScoringClassifier source = trainForest( fixture );
+      PMIScoringCompactTrees compact = PMIScoringCompactTrees.compactModel( source );
+      assertNotNull( fixture, compact );
+      assertTrue( fixture + ": " + compact.getMaxDifference(),
+          compact.getMaxDifference() <= PMIScoringMeta.DEFAULT_COMPACT_MODEL_TOLERANCE );
+      assertTrue( fixture, compact.getNumNodes() <= compact.getOriginalNumNodes() );
+
+      Instances data = PMITestFixtures.loadArff( fixture );
+      boolean nominal = data.classAttribute().isNominal();
+      for ( int n = 0; n < data.numInstances(); n++ ) {
+        Instance inst = data.instance( n );
+        double[] expected = source.distributionForInstance( inst );
+        double[] actual = compact.distributionForInstance( inst );
+        for ( int i = 0; i < expected.length; i++ ) {
+          double tolerance = PMIScoringMeta.DEFAULT_COMPACT_MODEL_TOLERANCE;
+          assertEquals( fixture + ": " + inst, expected[i], actual[i],
+              nominal ? tolerance : tolerance * Math.max( 1, Math.abs( expected[i] ) ) );
+        }
+      }
+    }
+  }
+
+  @Test public void testDifferenceMeasuredAgainstOriginal() throws Exception {
+    PMIScoringClassifier source = trainForest( "trees_classification.arff" );
+    PMIScoringTreeEnsemble flat = PMIScoringTreeEnsemble.compile( source );
+    assertNotNull( flat );
+
+    // break the flattened copy: every leaf predicts the first class
+    for ( int offset = 0; offset < flat.m_dists.length; offset += flat.m_width ) {
+      for ( int i = 0; i < flat.m_width; i++ ) {
+        flat.m_dists[offset + i] = i == 0 ? 1 : 0;
+      }
+    }
+    PMIScoringCompactTrees compact = PMIScoringCompactTrees.compact( flat );
+    // the compacted copy agrees with what it was compacted from, but not with the original model
+    assertTrue( compact.maxDifference( flat, PMIScoringCompactTrees.NUM_CHECK_ROWS ) < 1e-6 );
+    assertTrue( compact.maxDifference( source, PMIScoringCompactTrees.NUM_CHECK_ROWS )
+        > PMIScoringMeta.DEFAULT_COMPACT_MODEL_TOLERANCE );
+  }
+}
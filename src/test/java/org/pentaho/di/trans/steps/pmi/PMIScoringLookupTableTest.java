@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Test;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.bayes.NaiveBayesUpdateable;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.REPTree;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a lookup table gives the same predictions as the classifier it
+ * was compiled from for every combination of values, including missing ones.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringLookupTableTest {
+
+  protected static void checkSamePredictions( String message, PMIScoringModel expected, PMIScoringModel actual,
+      Instances combinations ) throws Exception {
+    double[][] batch = actual.distributionsForInstances( combinations );
+    for ( int i = 0; i < combinations.numInstances(); i++ ) {
+      double[] dist = expected.distributionForInstance( combinations.instance( i ) );
+      String row = message + ": " + combinations.instance( i );
+      assertArrayEquals( row, dist, actual.distributionForInstance( combinations.instance( i ) ), 0 );
+      assertArrayEquals( row, dist, batch[i], 0 );
+    }
+  }
+
+  @Test public void testAllCombinations() throws Exception {
+    Instances classification = PMITestFixtures.loadArff( "nominal_classification.arff" );
+    Instances regression = PMITestFixtures.loadArff( "nominal_regression.arff" );
+    Object[][] cases =
+        { { new NaiveBayes(), classification }, { new J48(), classification }, { new REPTree(), regression },
+            { new LinearRegression(), regression } };
+
+    for ( Object[] c : cases ) {
+      Instances data = (Instances) c[1];
+      PMIScoringClassifier source = PMITestFixtures.train( (Classifier) c[0], data );
+      PMIScoringLookupTable lookup = PMIScoringLookupTable.compile( source, Long.MAX_VALUE );
+      String message = c[0].getClass().getSimpleName();
+      assertNotNull( message, lookup );
+      assertTrue( message, lookup.isTableValid() );
+      assertTrue( message, lookup.isThreadSafe() );
+
+      // three attributes of 3, 2 and 3 values, plus missing for each
+      Instances combinations = PMITestFixtures.allCombinations( data );
+      assertEquals( message, 4 * 3 * 4, combinations.numInstances() );
+      checkSamePredictions( message, source, lookup, combinations );
+    }
+  }
+
+  @Test public void testNotCompiled() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "nominal_classification.arff" );
+    PMIScoringClassifier source = PMITestFixtures.train( new NaiveBayes(), data );
+    long size = PMIScoringLookupTable.getTableSizeInBytes( source.getHeader() );
+    assertEquals( 4 * 3 * 4 * 2 * 8, size );
+    assertNull( PMIScoringLookupTable.compile( source, size - 1 ) );
+
+    // numeric attributes can't be tabulated
+    Instances mixed = PMITestFixtures.loadArff( "trees_classification.arff" );
+    assertNull( PMIScoringLookupTable.compile( PMITestFixtures.train( new J48(), mixed ), Long.MAX_VALUE ) );
+  }
+
+  @Test public void testUpdateInvalidatesTable() throws Exception {
+    Instances data = PMITestFixtures.loadArff( "nominal_classification.arff" );
+    Instances firstHalf = new Instances( data, 0, data.numInstances() / 2 );
+    PMIScoringClassifier source = PMITestFixtures.train( new NaiveBayesUpdateable(), firstHalf );
+    PMIScoringLookupTable lookup = PMIScoringLookupTable.compile( source, Long.MAX_VALUE );
+    assertNotNull( lookup );
+    Instances combinations = PMITestFixtures.allCombinations( data );
+
+    for ( int i = firstHalf.numInstances(); i < data.numInstances(); i++ ) {
+      lookup.update( data.instance( i ) );
+    }
+    assertFalse( lookup.isTableValid() );
+    checkSamePredictions( "updated", source, lookup, combinations );
+  }
+}
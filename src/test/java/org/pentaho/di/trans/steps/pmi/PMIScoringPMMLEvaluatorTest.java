@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Test;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.w3c.dom.Document;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.pmml.PMMLFactory;
+import weka.core.pmml.PMMLModel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the predictions of compiled PMML evaluators with those of Weka's
+ * interpreted PMML models, on small RegressionModel and TreeModel documents
+ * that cover each supported normalization method and predicate type.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringPMMLEvaluatorTest {
+
+  /**
+   * Numeric values to score: the constants that the fixtures compare with,
+   * values either side of them, and values well outside them
+   */
+  protected static final double[] NUMERIC_VALUES =
+      { -10, -1, 0, 0.999, 1, 1.001, 2.499, 2.5, 2.501, 4.999, 5, 5.001, 100 };
+
+  /**
+   * Maximum difference allowed between compiled and interpreted predictions
+   */
+  protected static final double TOLERANCE = 1e-9;
+
+  @Test public void testNumericRegression() throws Exception {
+    checkCompiled( "regression_numeric.xml", null, "RegressionModel" );
+  }
+
+  @Test public void testRegressionNormalizationMethods() throws Exception {
+    for ( String method : new String[] { "none", "simplemax", "softmax", "logit" } ) {
+      checkCompiled( "regression_classification.xml", method, "RegressionModel" );
+    }
+  }
+
+  @Test public void testUncompiledNormalizationMethodsUseInterpretedModel() throws Exception {
+    for ( String method : new String[] { "exp", "probit", "cloglog", "loglog", "cauchit" } ) {
+      String pmml = readFixture( "regression_classification.xml", method );
+      assertNull( method, compile( loadInterpreted( pmml ), pmml ) );
+    }
+  }
+
+  @Test public void testTreePredicates() throws Exception {
+    checkCompiled( "tree_classification.xml", null, "TreeModel" );
+  }
+
+  @Test public void testRegressionTreeReturnLastPrediction() throws Exception {
+    checkCompiled( "tree_regression.xml", null, "TreeModel" );
+  }
+
+  @Test public void testMissingValuesUseInterpretedModel() throws Exception {
+    String pmml = readFixture( "regression_numeric.xml", null );
+    PMIScoringClassifier interpreted = loadInterpreted( pmml );
+    PMIScoringPMMLEvaluator compiled = compile( interpreted, pmml );
+    assertNotNull( compiled );
+
+    Instances header = interpreted.getHeader();
+    Instance inst = new DenseInstance( header.numAttributes() );
+    inst.setDataset( header );
+    inst.setMissing( header.attribute( "x1" ) );
+    inst.setValue( header.attribute( "x2" ), 2.0 );
+    inst.setValue( header.attribute( "c" ), "a" );
+    inst.setMissing( header.classIndex() );
+    assertEquals( interpreted.distributionForInstance( inst )[0], compiled.distributionForInstance( inst )[0],
+        TOLERANCE );
+  }
+
+  /**
+   * Compile a fixture and check that the compiled evaluator makes the same
+   * prediction as the interpreted model for every generated row
+   *
+   * @param fixture       the name of the PMML fixture
+   * @param normalization the normalization method to substitute, or null
+   * @param modelType     the type of model expected to be compiled
+   * @throws Exception if a problem occurs
+   */
+  protected static void checkCompiled( String fixture, String normalization, String modelType )
+      throws Exception {
+    String label = normalization != null ? fixture + " (" + normalization + ")" : fixture;
+    String pmml = readFixture( fixture, normalization );
+    PMIScoringClassifier interpreted = loadInterpreted( pmml );
+    PMIScoringPMMLEvaluator compiled = compile( interpreted, pmml );
+    assertNotNull( label + " was not compiled", compiled );
+    assertEquals( label, modelType, compiled.getCompiledModelType() );
+
+    for ( Instance inst : generateRows( interpreted.getHeader() ) ) {
+      double[] expected = interpreted.distributionForInstance( inst );
+      // call the compiled model directly, so that a row can't pass by falling back to the interpreted model
+      double[] actual = compiled.m_compiled.evaluate( inst );
+      assertNotNull( label + ": no compiled prediction for " + inst, actual );
+      assertEquals( label + ": " + inst, expected.length, actual.length );
+      for ( int i = 0; i < expected.length; i++ ) {
+        assertEquals( label + ": " + inst, expected[i], actual[i], TOLERANCE * Math.max( 1, Math.abs( expected[i] ) ) );
+      }
+    }
+  }
+
+  /**
+   * Generate every combination of the nominal values and NUMERIC_VALUES for
+   * the input fields of a mining schema
+   *
+   * @param header the mining schema
+   * @return the rows
+   */
+  protected static List<Instance> generateRows( Instances header ) {
+    List<Instance> rows = new ArrayList<Instance>();
+    Instance first = new DenseInstance( header.numAttributes() );
+    first.setDataset( header );
+    first.setMissing( header.classIndex() );
+    rows.add( first );
+    for ( int i = 0; i < header.numAttributes(); i++ ) {
+      if ( i == header.classIndex() ) {
+        continue;
+      }
+      Attribute att = header.attribute( i );
+      int numValues = att.isNominal() ? att.numValues() : NUMERIC_VALUES.length;
+      List<Instance> next = new ArrayList<Instance>();
+      for ( Instance row : rows ) {
+        for ( int v = 0; v < numValues; v++ ) {
+          Instance copy = (Instance) row.copy();
+          copy.setValue( i, att.isNominal() ? v : NUMERIC_VALUES[v] );
+          next.add( copy );
+        }
+      }
+      rows = next;
+    }
+    return rows;
+  }
+
+  /**
+   * Read a PMML fixture
+   *
+   * @param name          the name of the fixture
+   * @param normalization the normalization method to substitute for the
+   *                      placeholder in the fixture, or null
+   * @return the PMML document
+   * @throws Exception if the fixture can't be read
+   */
+  protected static String readFixture( String name, String normalization ) throws Exception {
+    InputStream in = PMIScoringPMMLEvaluatorTest.class.getResourceAsStream( name );
+    assertNotNull( "Missing fixture " + name, in );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      byte[] chunk = new byte[8192];
+      int read;
+      while ( ( read = in.read( chunk ) ) > 0 ) {
+        bytes.write( chunk, 0, read );
+      }
+    } finally {
+      in.close();
+    }
+    String pmml = bytes.toString( "UTF-8" );
+    return normalization != null ? pmml.replace( "@NORMALIZATION@", normalization ) : pmml;
+  }
+
+  /**
+   * Load a PMML document as Weka's interpreted model, with the mining schema as
+   * the header (as PMIScoringData does)
+   *
+   * @param pmml the PMML document
+   * @return the interpreted scorer
+   * @throws Exception if the model can't be loaded
+   */
+  protected static PMIScoringClassifier loadInterpreted( String pmml ) throws Exception {
+    PMMLModel model = PMMLFactory.getPMMLModel( new ByteArrayInputStream( pmml.getBytes( "UTF-8" ) ), null );
+    PMIScoringClassifier scorer = (PMIScoringClassifier) PMIScoringModel.createScorer( model );
+    scorer.setHeader( model.getMiningSchema().getMiningSchemaAsInstances() );
+    return scorer;
+  }
+
+  protected static PMIScoringPMMLEvaluator compile( PMIScoringClassifier interpreted, String pmml )
+      throws Exception {
+    Document doc = XMLHandler.loadXMLFile( new ByteArrayInputStream( pmml.getBytes( "UTF-8" ) ) );
+    return PMIScoringPMMLEvaluator.compile( interpreted, doc );
+  }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Test;
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.meta.LogitBoost;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.REPTree;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that flattened trees predict the same as the Weka models they are
+ * compiled from, for each supported tree type. The fixtures mix numeric and
+ * nominal attributes and have missing values, so the missing value weighting
+ * and (for J48) empty branches are exercised.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMIScoringTreeEnsembleTest {
+
+  protected static final double TOLERANCE = 1e-9;
+
+  @Test public void testJ48() throws Exception {
+    checkFlattened( new J48(), "trees_classification.arff" );
+  }
+
+  @Test public void testUnprunedJ48() throws Exception {
+    J48 tree = new J48();
+    tree.setUnpruned( true );
+    tree.setMinNumObj( 1 );
+    checkFlattened( tree, "trees_classification.arff" );
+  }
+
+  @Test public void testRandomTree() throws Exception {
+    checkFlattened( new RandomTree(), "trees_classification.arff" );
+    checkFlattened( new RandomTree(), "trees_regression.arff" );
+  }
+
+  @Test public void testREPTree() throws Exception {
+    checkFlattened( new REPTree(), "trees_classification.arff" );
+    checkFlattened( new REPTree(), "trees_regression.arff" );
+  }
+
+  @Test public void testRandomForest() throws Exception {
+    RandomForest forest = new RandomForest();
+    forest.setNumIterations( 20 );
+    checkFlattened( forest, "trees_classification.arff" );
+    forest = new RandomForest();
+    forest.setNumIterations( 20 );
+    checkFlattened( forest, "trees_regression.arff" );
+  }
+
+  @Test public void testBaggedREPTrees() throws Exception {
+    Bagging bagging = new Bagging();
+    bagging.setClassifier( new REPTree() );
+    checkFlattened( bagging, "trees_classification.arff" );
+    bagging = new Bagging();
+    bagging.setClassifier( new REPTree() );
+    checkFlattened( bagging, "trees_regression.arff" );
+  }
+
+  @Test public void testGradientBoostedTrees() throws Exception {
+    LogitBoost boost = new LogitBoost();
+    REPTree base = new REPTree();
+    base.setMaxDepth( 5 );
+    base.setNoPruning( true );
+    boost.setClassifier( base );
+    boost.setNumIterations( 20 );
+    checkFlattened( boost, "trees_classification.arff" );
+  }
+
+  @Test public void testTwoClassGradientBoostedTrees() throws Exception {
+    // LogitBoost builds a single tree per iteration for two classes
+    LogitBoost boost = new LogitBoost();
+    boost.setClassifier( new REPTree() );
+    checkFlattened( boost, "trees_two_class.arff" );
+  }
+
+  protected static void checkFlattened( Classifier classifier, String fixture ) throws Exception {
+    checkFlattened( classifier, PMITestFixtures.loadArff( fixture ) );
+  }
+
+  /**
+   * Train a classifier, flatten it and check that the flattened trees make the
+   * same predictions on the training data
+   *
+   * @param classifier the (untrained) classifier
+   * @param data       the data to train and score with
+   * @throws Exception if a problem occurs
+   */
+  protected static void checkFlattened( Classifier classifier, Instances data ) throws Exception {
+    String label = classifier.getClass().getSimpleName() + " on " + data.relationName();
+    classifier.buildClassifier( data );
+    PMIScoringClassifier source = (PMIScoringClassifier) PMIScoringModel.createScorer( classifier );
+    source.setHeader( new Instances( data, 0 ) );
+
+    PMIScoringTreeEnsemble flat = PMIScoringTreeEnsemble.compile( source );
+    assertNotNull( label + " was not flattened", flat );
+    for ( int n = 0; n < data.numInstances(); n++ ) {
+      Instance inst = data.instance( n );
+      double[] expected = classifier.distributionForInstance( inst );
+      double[] actual = flat.distributionForInstance( inst );
+      assertEquals( label + ": " + inst, expected.length, actual.length );
+      for ( int i = 0; i < expected.length; i++ ) {
+        assertEquals( label + ": " + inst, expected[i], actual[i], TOLERANCE * Math.max( 1, Math.abs( expected[i] ) ) );
+      }
+    }
+  }
+}
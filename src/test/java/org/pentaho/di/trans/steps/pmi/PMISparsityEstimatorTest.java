@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.functions.Logistic;
+import weka.classifiers.trees.J48;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that wide, mostly-zero data is converted to sparse instances for
+ * training and scoring, and that models give the same results as they do with
+ * dense instances.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMISparsityEstimatorTest {
+
+  protected static final int NUM_ATTRIBUTES = 60;
+  protected static final int NUM_ROWS = 300;
+  protected static final double TOLERANCE = 1e-9;
+
+  protected RowMetaInterface m_rowMeta;
+  protected Map<String, Integer> m_fieldIndexes;
+  protected Instances m_header;
+  protected List<Object[]> m_rows;
+
+  @Before public void setUp() {
+    m_rowMeta = new RowMeta();
+    m_fieldIndexes = new HashMap<String, Integer>();
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    for ( int i = 0; i < NUM_ATTRIBUTES; i++ ) {
+      atts.add( new Attribute( "a" + i ) );
+      m_fieldIndexes.put( "a" + i, i );
+      m_rowMeta.addValueMeta( new ValueMetaNumber( "a" + i ) );
+    }
+    atts.add( new Attribute( "class", Arrays.asList( "pos", "neg" ) ) );
+    m_fieldIndexes.put( "class", NUM_ATTRIBUTES );
+    m_rowMeta.addValueMeta( new ValueMetaString( "class" ) );
+    m_header = new Instances( "wide", atts, 0 );
+    m_header.setClassIndex( NUM_ATTRIBUTES );
+
+    // about 5% of the values are non-zero, and a few are missing. The class
+    // mostly depends on the first few attributes
+    Random r = new Random( 1 );
+    m_rows = new ArrayList<Object[]>();
+    for ( int n = 0; n < NUM_ROWS; n++ ) {
+      Object[] row = new Object[NUM_ATTRIBUTES + 1];
+      for ( int i = 0; i < NUM_ATTRIBUTES; i++ ) {
+        int p = r.nextInt( 100 );
+        row[i] = p == 0 ? null : p < 6 ? (double) ( 1 + r.nextInt( 5 ) ) : 0.0;
+      }
+      boolean pos = ( row[0] != null && (Double) row[0] > 0 ) || ( row[1] != null && (Double) row[1] > 2 );
+      row[NUM_ATTRIBUTES] = ( r.nextInt( 10 ) == 0 ) != pos ? "pos" : "neg";
+      m_rows.add( row );
+    }
+  }
+
+  protected static Instances dense( Instances data ) {
+    Instances result = new Instances( data, data.numInstances() );
+    for ( int i = 0; i < data.numInstances(); i++ ) {
+      result.add( new DenseInstance( data.instance( i ).weight(), data.instance( i ).toDoubleArray() ) );
+    }
+    return result;
+  }
+
+  protected static Classifier[] schemes() {
+    Logistic logistic = new Logistic();
+    logistic.setMaxIts( 50 );
+    return new Classifier[] { new NaiveBayes(), new J48(), logistic };
+  }
+
+  @Test public void testDecision() {
+    PMISparsityEstimator narrow = new PMISparsityEstimator( new Instances( "narrow", new ArrayList<Attribute>(
+        Arrays.asList( new Attribute( "x" ), new Attribute( "y" ) ) ), 0 ) );
+    assertTrue( narrow.isDecided() );
+    assertFalse( narrow.isSparse() );
+
+    PMISparsityEstimator wide = new PMISparsityEstimator( m_header );
+    double[] mostlyZero = new double[m_header.numAttributes()];
+    mostlyZero[3] = 1;
+    for ( int i = 0; i < PMISparsityEstimator.SAMPLE_SIZE - 1; i++ ) {
+      wide.observe( mostlyZero );
+    }
+    assertFalse( wide.isDecided() );
+    assertFalse( wide.isSparse() );
+    wide.observe( mostlyZero );
+    assertTrue( wide.isSparse() );
+
+    PMISparsityEstimator full = new PMISparsityEstimator( m_header );
+    double[] ones = new double[m_header.numAttributes()];
+    Arrays.fill( ones, 1 );
+    full.observe( ones );
+    full.decide();
+    assertTrue( full.isDecided() );
+    assertFalse( full.isSparse() );
+  }
+
+  @Test public void testTrainingSparseMatchesDense() throws Exception {
+    Instances sparse =
+        new BaseSupervisedPMIStepData().buildDataset( m_header, m_rowMeta, m_rows, m_fieldIndexes, null );
+    assertEquals( NUM_ROWS, sparse.numInstances() );
+    for ( int i = 0; i < sparse.numInstances(); i++ ) {
+      assertTrue( "row " + i, sparse.instance( i ) instanceof SparseInstance );
+    }
+    Instances dense = dense( sparse );
+
+    for ( Classifier scheme : schemes() ) {
+      Classifier fromSparse = AbstractClassifier.makeCopy( scheme );
+      fromSparse.buildClassifier( sparse );
+      Classifier fromDense = AbstractClassifier.makeCopy( scheme );
+      fromDense.buildClassifier( dense );
+      for ( int i = 0; i < dense.numInstances(); i++ ) {
+        double[] expected = fromDense.distributionForInstance( dense.instance( i ) );
+        String message = scheme.getClass().getSimpleName() + " row " + i;
+        assertArrayEquals( message, expected, fromSparse.distributionForInstance( dense.instance( i ) ), TOLERANCE );
+        assertArrayEquals( message, expected, fromSparse.distributionForInstance( sparse.instance( i ) ),
+            TOLERANCE );
+      }
+    }
+  }
+
+  @Test public void testScoringSparseMatchesDense() throws Exception {
+    Instances dense = dense(
+        new BaseSupervisedPMIStepData().buildDataset( m_header, m_rowMeta, m_rows, m_fieldIndexes, null ) );
+
+    for ( Classifier scheme : schemes() ) {
+      Classifier classifier = AbstractClassifier.makeCopy( scheme );
+      classifier.buildClassifier( dense );
+      PMIScoringModel model = PMIScoringModel.createScorer( classifier );
+      model.setHeader( new Instances( m_header, 0 ) );
+
+      PMIScoringData data = new PMIScoringData();
+      data.setModel( model );
+      data.mapIncomingRowMetaData( model.getHeader(), m_rowMeta, false, null );
+      Instances batch = data.convertBatch( m_rowMeta, m_rows );
+      assertEquals( NUM_ROWS, batch.numInstances() );
+      // rows are dense until the estimator has seen enough of them
+      assertFalse( batch.instance( 0 ) instanceof SparseInstance );
+      assertTrue( batch.instance( NUM_ROWS - 1 ) instanceof SparseInstance );
+
+      for ( int i = 0; i < NUM_ROWS; i++ ) {
+        assertTrue( batch.instance( i ).classIsMissing() );
+        double[] expected = classifier.distributionForInstance( dense.instance( i ) );
+        assertArrayEquals( scheme.getClass().getSimpleName() + " row " + i, expected,
+            model.distributionForInstance( batch.instance( i ) ), TOLERANCE );
+      }
+    }
+  }
+}
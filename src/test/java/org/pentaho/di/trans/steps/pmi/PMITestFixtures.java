@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2018 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.pmi;
+
+import weka.classifiers.Classifier;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Loads the data sets that the tests train and score with
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ */
+public class PMITestFixtures {
+
+  /**
+   * Load an ARFF fixture, with the last attribute as the class
+   *
+   * @param name the name of the fixture (relative to this package)
+   * @return the data
+   * @throws Exception if the fixture can't be read
+   */
+  public static Instances loadArff( String name ) throws Exception {
+    InputStream in = PMITestFixtures.class.getResourceAsStream( name );
+    assertNotNull( "Missing fixture " + name, in );
+    BufferedReader reader = new BufferedReader( new InputStreamReader( in, "UTF-8" ) );
+    try {
+      Instances data = new Instances( reader );
+      data.setClassIndex( data.numAttributes() - 1 );
+      return data;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Train a classifier and wrap it in a scorer
+   *
+   * @param classifier the classifier to train
+   * @param data       the training data
+   * @return the scorer
+   * @throws Exception if the classifier can't be trained
+   */
+  public static PMIScoringClassifier train( Classifier classifier, Instances data ) throws Exception {
+    classifier.buildClassifier( data );
+    PMIScoringClassifier scorer = (PMIScoringClassifier) PMIScoringModel.createScorer( classifier );
+    scorer.setHeader( new Instances( data, 0 ) );
+    return scorer;
+  }
+
+  /**
+   * Every combination of the values of the (nominal) non-class attributes,
+   * including missing, with the class missing
+   *
+   * @param header the structure of the data
+   * @return the combinations
+   */
+  public static Instances allCombinations( Instances header ) {
+    Instances result = new Instances( header, 0 );
+    double[] vals = new double[header.numAttributes()];
+    vals[header.classIndex()] = Utils.missingValue();
+    addCombinations( result, vals, 0 );
+    return result;
+  }
+
+  protected static void addCombinations( Instances result, double[] vals, int att ) {
+    if ( att == vals.length ) {
+      result.add( new DenseInstance( 1.0, vals.clone() ) );
+      return;
+    }
+    if ( att == result.classIndex() ) {
+      addCombinations( result, vals, att + 1 );
+      return;
+    }
+    int numVals = result.attribute( att ).numValues();
+    for ( int v = 0; v <= numVals; v++ ) {
+      // the extra value is missing
+      vals[att] = v == numVals ? Utils.missingValue() : v;
+      addCombinations( result, vals, att + 1 );
+    }
+  }
+}